@@ -0,0 +1,85 @@
+package org.rogach.ardiff.benchmarks;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.rogach.ardiff.ArchiveDiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of main library operations on synthetic archives, see {@link SyntheticArchiveGenerator}.
+ * Streaming mode is measured separately in {@link StreamingArchiveDiffBenchmark}.
+ *
+ * Run with GC profiler to see allocation rate as well: {@code sbt "benchmarks/jmh:run -prof gc"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class ArchiveDiffBenchmark {
+
+    @Param({"zip", "tar", "tar.gz", "tar.xz", "ar", SyntheticArchiveGenerator.NESTED_JAR})
+    public String format;
+
+    @Param({"200"})
+    public int entryCount;
+
+    @Param({"4096", "65536"})
+    public int entrySize;
+
+    @Param({"0.1"})
+    public double changeRatio;
+
+    private byte[] before;
+    private byte[] after;
+    private byte[] sortedAfter;
+    private byte[] diff;
+
+    @Setup(Level.Trial)
+    public void generateArchives() throws Exception {
+        SyntheticArchiveGenerator.ArchivePair archives = SyntheticArchiveGenerator.generate(format, entryCount, entrySize, changeRatio, 42);
+        before = archives.before;
+        after = archives.after;
+
+        ByteArrayOutputStream sortedAfterStream = new ByteArrayOutputStream();
+        ArchiveDiff.sortArchiveEntries(new ByteArrayInputStream(after), sortedAfterStream);
+        sortedAfter = sortedAfterStream.toByteArray();
+
+        ByteArrayOutputStream diffStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffStream, false);
+        diff = diffStream.toByteArray();
+    }
+
+    @Benchmark
+    public long computeDiff() throws Exception {
+        CountingOutputStream diffStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffStream, false);
+        return diffStream.getByteCount();
+    }
+
+    @Benchmark
+    public long applyDiff() throws Exception {
+        CountingOutputStream resultStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff), resultStream, false);
+        return resultStream.getByteCount();
+    }
+
+    @Benchmark
+    public long sortArchiveEntries() throws Exception {
+        CountingOutputStream sortedStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ArchiveDiff.sortArchiveEntries(new ByteArrayInputStream(after), sortedStream);
+        return sortedStream.getByteCount();
+    }
+
+    /** Compares archives with the same entries in different order. */
+    @Benchmark
+    public boolean archivesAreEqual() throws Exception {
+        return ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(sortedAfter));
+    }
+
+}
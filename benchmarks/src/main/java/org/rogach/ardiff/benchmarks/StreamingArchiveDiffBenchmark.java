@@ -0,0 +1,73 @@
+package org.rogach.ardiff.benchmarks;
+
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.io.output.NullOutputStream;
+import org.openjdk.jmh.annotations.*;
+import org.rogach.ardiff.ArchiveDiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of diff computation and application in streaming ({@code assumeOrdering}) mode,
+ * on synthetic archives that were sorted beforehand.
+ *
+ * Ar format is not included - it doesn't support sorting, and generated archives have entries in random order.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class StreamingArchiveDiffBenchmark {
+
+    @Param({"zip", "tar", "tar.gz", "tar.xz", SyntheticArchiveGenerator.NESTED_JAR})
+    public String format;
+
+    @Param({"200"})
+    public int entryCount;
+
+    @Param({"4096", "65536"})
+    public int entrySize;
+
+    @Param({"0.1"})
+    public double changeRatio;
+
+    private byte[] before;
+    private byte[] after;
+    private byte[] diff;
+
+    @Setup(Level.Trial)
+    public void generateArchives() throws Exception {
+        SyntheticArchiveGenerator.ArchivePair archives = SyntheticArchiveGenerator.generate(format, entryCount, entrySize, changeRatio, 42);
+        before = sortArchive(archives.before);
+        after = sortArchive(archives.after);
+
+        ByteArrayOutputStream diffStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffStream, true);
+        diff = diffStream.toByteArray();
+    }
+
+    private static byte[] sortArchive(byte[] archive) throws Exception {
+        ByteArrayOutputStream sortedStream = new ByteArrayOutputStream();
+        ArchiveDiff.sortArchiveEntries(new ByteArrayInputStream(archive), sortedStream);
+        return sortedStream.toByteArray();
+    }
+
+    @Benchmark
+    public long computeDiff() throws Exception {
+        CountingOutputStream diffStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffStream, true);
+        return diffStream.getByteCount();
+    }
+
+    @Benchmark
+    public long applyDiff() throws Exception {
+        CountingOutputStream resultStream = new CountingOutputStream(NullOutputStream.NULL_OUTPUT_STREAM);
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff), resultStream, true);
+        return resultStream.getByteCount();
+    }
+
+}
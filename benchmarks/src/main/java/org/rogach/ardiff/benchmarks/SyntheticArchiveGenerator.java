@@ -0,0 +1,201 @@
+package org.rogach.ardiff.benchmarks;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.archivers.ar.ArArchiveEntry;
+import org.apache.commons.compress.archivers.ar.ArArchiveOutputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.*;
+
+/**
+ * Generates pairs of archives that differ in a given fraction of entries.
+ *
+ * Entry data is pseudo-random text over a small alphabet - it compresses reasonably well and still
+ * leaves some work for delta encoding. Changed entries are either modified in place, removed, or replaced
+ * by a new entry under a different name. Entries are written in shuffled order, so that archives have to be sorted
+ * before they can be used in streaming mode.
+ */
+public class SyntheticArchiveGenerator {
+
+    /** Zip archive of jars, with changes inside the jars. */
+    public static final String NESTED_JAR = "nested-jar";
+
+    private static final int NESTED_JAR_ENTRY_COUNT = 16;
+    private static final long MOD_TIME = 1500000000000L;
+    private static final byte[] ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789 \n".getBytes();
+
+    public static class ArchivePair {
+        public final byte[] before;
+        public final byte[] after;
+
+        ArchivePair(byte[] before, byte[] after) {
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final Random random;
+    private final int entrySize;
+    private final double changeRatio;
+
+    private SyntheticArchiveGenerator(int entrySize, double changeRatio, long seed) {
+        this.random = new Random(seed);
+        this.entrySize = entrySize;
+        this.changeRatio = changeRatio;
+    }
+
+    /**
+     * @param format one of "zip", "tar", "tar.gz", "tar.xz", "ar" or {@link #NESTED_JAR}
+     * @param entryCount number of entries in "before" archive; for nested jars - total number of entries in all jars
+     * @param changeRatio fraction of entries that are different in "after" archive
+     */
+    public static ArchivePair generate(String format, int entryCount, int entrySize, double changeRatio, long seed) throws IOException {
+        SyntheticArchiveGenerator generator = new SyntheticArchiveGenerator(entrySize, changeRatio, seed);
+        if (NESTED_JAR.equals(format)) {
+            return generator.generateNestedJars(entryCount);
+        } else {
+            Map<String, byte[]> entriesBefore = generator.generateEntries(format, entryCount);
+            Map<String, byte[]> entriesAfter = generator.changeEntries(format, entriesBefore, changeRatio);
+            return new ArchivePair(generator.writeArchive(format, entriesBefore), generator.writeArchive(format, entriesAfter));
+        }
+    }
+
+    private ArchivePair generateNestedJars(int entryCount) throws IOException {
+        int jarCount = Math.max(1, entryCount / NESTED_JAR_ENTRY_COUNT);
+        Map<String, byte[]> jarsBefore = new LinkedHashMap<>();
+        Map<String, byte[]> jarsAfter = new LinkedHashMap<>();
+        for (int i = 0; i < jarCount; i++) {
+            String jarName = String.format("lib/lib%05d.jar", i);
+            Map<String, byte[]> classesBefore = new LinkedHashMap<>();
+            for (int j = 0; j < NESTED_JAR_ENTRY_COUNT; j++) {
+                classesBefore.put(String.format("org/example/lib%05d/Class%02d.class", i, j), generateData(entrySize));
+            }
+            byte[] jarBefore = writeArchive("zip", classesBefore);
+            jarsBefore.put(jarName, jarBefore);
+            if (random.nextDouble() < changeRatio) {
+                jarsAfter.put(jarName, writeArchive("zip", changeEntries("zip", classesBefore, 0.5)));
+            } else {
+                jarsAfter.put(jarName, jarBefore);
+            }
+        }
+        return new ArchivePair(writeArchive("zip", jarsBefore), writeArchive("zip", jarsAfter));
+    }
+
+    private Map<String, byte[]> generateEntries(String format, int entryCount) {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int i = 0; i < entryCount; i++) {
+            entries.put(entryName(format, "f", i), generateData(entrySize));
+        }
+        return entries;
+    }
+
+    private Map<String, byte[]> changeEntries(String format, Map<String, byte[]> entries, double ratio) {
+        Map<String, byte[]> changedEntries = new LinkedHashMap<>();
+        int addedCount = 0;
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            if (random.nextDouble() >= ratio) {
+                changedEntries.put(entry.getKey(), entry.getValue());
+            } else {
+                switch (random.nextInt(4)) {
+                    case 0:
+                    case 1:
+                        changedEntries.put(entry.getKey(), modifyData(entry.getValue()));
+                        break;
+                    case 2:
+                        break;
+                    default:
+                        changedEntries.put(entryName(format, "n", addedCount++), generateData(entrySize));
+                }
+            }
+        }
+        return changedEntries;
+    }
+
+    /** Ar format only supports short names without directories. */
+    private String entryName(String format, String prefix, int index) {
+        if ("ar".equals(format)) {
+            return String.format("%s%05d.o", prefix, index);
+        } else {
+            return String.format("dir%02d/%s%05d.txt", index % 16, prefix, index);
+        }
+    }
+
+    private byte[] generateData(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+        }
+        return data;
+    }
+
+    /** Overwrites several short regions of data, and sometimes appends a few bytes at the end. */
+    private byte[] modifyData(byte[] data) {
+        int appendedLength = random.nextBoolean() ? random.nextInt(64) : 0;
+        byte[] modified = Arrays.copyOf(data, data.length + appendedLength);
+        System.arraycopy(generateData(appendedLength), 0, modified, data.length, appendedLength);
+        int regionCount = 1 + random.nextInt(4);
+        for (int r = 0; r < regionCount && data.length > 0; r++) {
+            int offset = random.nextInt(data.length);
+            int length = Math.min(data.length - offset, 1 + random.nextInt(64));
+            System.arraycopy(generateData(length), 0, modified, offset, length);
+        }
+        return modified;
+    }
+
+    private byte[] writeArchive(String format, Map<String, byte[]> entries) throws IOException {
+        List<Map.Entry<String, byte[]>> shuffledEntries = new ArrayList<>(entries.entrySet());
+        Collections.shuffle(shuffledEntries, random);
+
+        ByteArrayOutputStream archiveBytes = new ByteArrayOutputStream();
+        try (ArchiveOutputStream archiveOutputStream = createArchiveOutputStream(format, archiveBytes)) {
+            for (Map.Entry<String, byte[]> entryWithData : shuffledEntries) {
+                archiveOutputStream.putArchiveEntry(createArchiveEntry(format, entryWithData.getKey(), entryWithData.getValue().length));
+                archiveOutputStream.write(entryWithData.getValue());
+                archiveOutputStream.closeArchiveEntry();
+            }
+            archiveOutputStream.finish();
+        }
+        return archiveBytes.toByteArray();
+    }
+
+    private static ArchiveOutputStream createArchiveOutputStream(String format, OutputStream out) throws IOException {
+        if ("zip".equals(format)) {
+            return new ZipArchiveOutputStream(out);
+        } else if ("tar".equals(format)) {
+            return new TarArchiveOutputStream(out);
+        } else if ("tar.gz".equals(format)) {
+            return new TarArchiveOutputStream(new GzipCompressorOutputStream(out));
+        } else if ("tar.xz".equals(format)) {
+            return new TarArchiveOutputStream(new XZCompressorOutputStream(out));
+        } else if ("ar".equals(format)) {
+            return new ArArchiveOutputStream(out);
+        } else {
+            throw new IllegalArgumentException("Unsupported archive format: " + format);
+        }
+    }
+
+    private static ArchiveEntry createArchiveEntry(String format, String name, int size) {
+        if ("zip".equals(format)) {
+            ZipArchiveEntry entry = new ZipArchiveEntry(name);
+            entry.setTime(MOD_TIME);
+            return entry;
+        } else if ("ar".equals(format)) {
+            return new ArArchiveEntry(name, size, 0, 0, 0100644, MOD_TIME / 1000);
+        } else {
+            TarArchiveEntry entry = new TarArchiveEntry(name);
+            entry.setSize(size);
+            entry.setModTime(MOD_TIME);
+            return entry;
+        }
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.rogach.ardiff;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Listener that emits events as Java Flight Recorder events (category "ArchiveDiff"), so that they show up
+ * in recordings next to GC and I/O events. Events are only recorded while a recording is running,
+ * e.g. with -XX:StartFlightRecording. Events are committed when the work is done, so JFR durations are zero -
+ * measured times are in event fields.
+ */
+public class JfrArchiveDiffListener implements ArchiveDiffListener {
+
+    @Override
+    public void operationFinished(String operation, long wallNanos, long peakBufferedBytes, int depth) {
+        OperationEvent event = new OperationEvent();
+        event.operation = operation;
+        event.wallTime = wallNanos;
+        event.peakBufferedBytes = peakBufferedBytes;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Override
+    public void commandWritten(String command, String path, long length, int depth) {
+        CommandEvent event = new CommandEvent();
+        event.direction = "written";
+        event.command = command;
+        event.path = path;
+        event.length = length;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Override
+    public void commandApplied(String command, String path, long length, int depth) {
+        CommandEvent event = new CommandEvent();
+        event.direction = "applied";
+        event.command = command;
+        event.path = path;
+        event.length = length;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Override
+    public void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {
+        DeltaEvent event = new DeltaEvent();
+        event.path = path;
+        event.sourceLength = sourceLength;
+        event.targetLength = targetLength;
+        event.deltaLength = deltaLength;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Override
+    public void phaseFinished(Phase phase, String path, long wallNanos, long cpuNanos, int depth) {
+        PhaseEvent event = new PhaseEvent();
+        event.phase = phase.name().toLowerCase();
+        event.path = path;
+        event.wallTime = wallNanos;
+        event.cpuTime = cpuNanos;
+        event.depth = depth;
+        event.commit();
+    }
+
+    @Name("org.rogach.ardiff.Operation")
+    @Label("Archive Diff Operation")
+    @Category("ArchiveDiff")
+    @StackTrace(false)
+    static class OperationEvent extends Event {
+        @Label("Operation")
+        String operation;
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+        @Label("Peak Buffered")
+        @DataAmount(DataAmount.BYTES)
+        long peakBufferedBytes;
+        @Label("Nesting Depth")
+        int depth;
+    }
+
+    @Name("org.rogach.ardiff.Command")
+    @Label("Archive Diff Command")
+    @Category("ArchiveDiff")
+    @StackTrace(false)
+    static class CommandEvent extends Event {
+        @Label("Direction")
+        String direction;
+        @Label("Command")
+        String command;
+        @Label("Path")
+        String path;
+        @Label("Length")
+        @DataAmount(DataAmount.BYTES)
+        long length;
+        @Label("Nesting Depth")
+        int depth;
+    }
+
+    @Name("org.rogach.ardiff.Delta")
+    @Label("Archive Diff Delta")
+    @Category("ArchiveDiff")
+    @StackTrace(false)
+    static class DeltaEvent extends Event {
+        @Label("Path")
+        String path;
+        @Label("Source Length")
+        @DataAmount(DataAmount.BYTES)
+        long sourceLength;
+        @Label("Target Length")
+        @DataAmount(DataAmount.BYTES)
+        long targetLength;
+        @Label("Delta Length")
+        @DataAmount(DataAmount.BYTES)
+        long deltaLength;
+        @Label("Nesting Depth")
+        int depth;
+    }
+
+    @Name("org.rogach.ardiff.Phase")
+    @Label("Archive Diff Phase")
+    @Category("ArchiveDiff")
+    @StackTrace(false)
+    static class PhaseEvent extends Event {
+        @Label("Phase")
+        String phase;
+        @Label("Path")
+        String path;
+        @Label("Wall Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long wallTime;
+        @Label("CPU Time")
+        @Timespan(Timespan.NANOSECONDS)
+        long cpuTime;
+        @Label("Nesting Depth")
+        int depth;
+    }
+
+}
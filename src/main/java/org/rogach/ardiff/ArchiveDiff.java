@@ -8,13 +8,30 @@ import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.output.TeeOutputStream;
+import org.rogach.ardiff.delta.DeltaEngine;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
+import org.rogach.ardiff.exceptions.ArchiveDiffFormatException;
 import org.rogach.ardiff.formats.ArArchiveDiff;
 import org.rogach.ardiff.formats.TarArchiveDiff;
 import org.rogach.ardiff.formats.ZipArchiveDiff;
 
 import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
@@ -29,6 +46,35 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
     static final byte COMMAND_PATCH = 4;
     static final byte COMMAND_ARCHIVE_PATCH = 5;
     static final byte COMMAND_UPDATE_ATTRIBUTES = 6;
+    static final byte COMMAND_COPY = 7;
+    static final byte COMMAND_RETAIN = 8;
+    static final byte COMMAND_PATCH_FROM = 9;
+    static final byte COMMAND_ARCHIVE_PATCH_FROM = 10;
+
+    /** Set on command byte if all lengths in the command are written as longs instead of ints. */
+    static final byte FLAG_LONG_LENGTHS = (byte) 0x80;
+
+    /** Set on patch command byte if patch was computed by other delta engine than GDiff, engine id precedes patch data. */
+    static final byte FLAG_DELTA_ENGINE = 0x40;
+
+    /**
+     * Set on archive patch command byte if nested diff is written as a sequence of length-prefixed chunks
+     * (see {@link ChunkedOutputStream}) instead of a single length-prefixed block.
+     */
+    static final byte FLAG_CHUNKED = 0x20;
+
+    /**
+     * Follows the header if the rest of the diff is compressed, followed by compression id and block size.
+     * Never clashes with command bytes, since commands are smaller than 0x10 and flags use higher bits.
+     */
+    static final byte CONTAINER_COMPRESSED = 0x10;
+
+    private ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT;
+
+    @Override
+    public ArchiveDiffOptions getOptions() {
+        return options;
+    }
 
     public static void computeDiff(
             InputStream before,
@@ -43,6 +89,16 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
             InputStream after,
             OutputStream diff,
             boolean assumeOrdering
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        computeDiff(before, after, diff, assumeOrdering, ArchiveDiffOptions.DEFAULT);
+    }
+
+    public static void computeDiff(
+            InputStream before,
+            InputStream after,
+            OutputStream diff,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
     ) throws ArchiveDiffException, ArchiveException, IOException {
         String beforeArchiveType = detectArchiveType(before);
         String afterArchiveType = detectArchiveType(after);
@@ -51,7 +107,7 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
             throw new ArchiveDiffException(String.format("Unable to compute diff for different archive types: before=%s, after=%s", beforeArchiveType, afterArchiveType));
         }
 
-        computeDiff(before, after, beforeArchiveType, assumeOrdering, diff);
+        computeDiff(before, after, beforeArchiveType, assumeOrdering, options, diff);
     }
 
     public static void computeDiff(
@@ -61,7 +117,220 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
             boolean assumeOrdering,
             OutputStream diff
     ) throws ArchiveException, ArchiveDiffException, IOException {
-        getInstance(archiveType).computeDiffImpl(before, after, assumeOrdering, diff);
+        computeDiff(before, after, archiveType, assumeOrdering, ArchiveDiffOptions.DEFAULT, diff);
+    }
+
+    public static void computeDiff(
+            InputStream before,
+            InputStream after,
+            String archiveType,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        withExecutor(options, observed("compute", opts ->
+                getInstance(archiveType, opts).computeDiffImpl(before, after, assumeOrdering, diff)));
+    }
+
+    public static void computeDiff(
+            File before,
+            File after,
+            OutputStream diff,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        try (
+                FileChannel beforeChannel = FileChannel.open(before.toPath(), StandardOpenOption.READ);
+                FileChannel afterChannel = FileChannel.open(after.toPath(), StandardOpenOption.READ)
+        ) {
+            computeDiff(beforeChannel, afterChannel, diff, assumeOrdering, options);
+        }
+    }
+
+    /**
+     * Random-access variant of computeDiff - allows formats with central directory (zip)
+     * to read only entries that are actually needed. Channels may be closed by this method.
+     */
+    public static void computeDiff(
+            SeekableByteChannel before,
+            SeekableByteChannel after,
+            OutputStream diff,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        String beforeArchiveType = detectArchiveType(before);
+        String afterArchiveType = detectArchiveType(after);
+
+        if (!Objects.equals(beforeArchiveType, afterArchiveType)) {
+            throw new ArchiveDiffException(String.format("Unable to compute diff for different archive types: before=%s, after=%s", beforeArchiveType, afterArchiveType));
+        }
+
+        // diffs of nested archives are cached by the writer, together with reconstructed archives
+        DiffCache cache = options.getNestedArchiveCache() == null ? options.getDiffCache() : null;
+        if (cache == null) {
+            withExecutor(options, observed("compute", opts ->
+                    getInstance(beforeArchiveType, opts).computeDiffImpl(before, after, assumeOrdering, diff)));
+            return;
+        }
+
+        String cacheKey = DiffCache.key("archive")
+                .add(beforeArchiveType)
+                .add(assumeOrdering ? 1 : 0)
+                .add(options.getDiffSettings())
+                .addContent(before)
+                .addContent(after)
+                .build();
+        if (!cache.copyTo(cacheKey, diff)) {
+            cache.put(cacheKey, cachedDiff ->
+                    withExecutor(options, observed("compute", opts ->
+                            getInstance(beforeArchiveType, opts).computeDiffImpl(before, after, assumeOrdering, new TeeOutputStream(diff, cachedDiff)))));
+        }
+    }
+
+    /**
+     * Computes diffs from one "before" archive to each of "after" archives, reading the "before" archive only once.
+     * Diffs are the same as computed by {@link #computeDiff(InputStream, InputStream, OutputStream, boolean, ArchiveDiffOptions)}
+     * for each pair. With parallelism greater than 1, up to that many diffs are computed at once.
+     */
+    public static void computeDiffs(
+            InputStream before,
+            List<InputStream> afters,
+            List<OutputStream> diffs,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        computeDiffs(before, true, afters, diffs, assumeOrdering, options);
+    }
+
+    /** Computes diffs from each of "before" archives to one "after" archive, reading the "after" archive only once. */
+    public static void computeDiffs(
+            List<InputStream> befores,
+            InputStream after,
+            List<OutputStream> diffs,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        computeDiffs(after, false, befores, diffs, assumeOrdering, options);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void computeDiffs(
+            InputStream shared,
+            boolean sharedIsBefore,
+            List<InputStream> others,
+            List<OutputStream> diffs,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveDiffException, ArchiveException, IOException {
+        if (others.size() != diffs.size()) {
+            throw new IllegalArgumentException(String.format("Got %d archives, but %d diffs", others.size(), diffs.size()));
+        }
+        String archiveType = detectArchiveType(shared);
+        for (InputStream other : others) {
+            String otherArchiveType = detectArchiveType(other);
+            if (!Objects.equals(archiveType, otherArchiveType)) {
+                throw new ArchiveDiffException(String.format("Unable to compute diff for different archive types: %s and %s", archiveType, otherArchiveType));
+            }
+        }
+
+        withExecutor(options, observed("compute batch", opts -> {
+            ArchiveDiff sharedReader = getInstance(archiveType, opts);
+            boolean sortInputArchives = !(assumeOrdering || !sharedReader.supportsSorting());
+            try (ArchiveEntryStore sharedEntries = sharedReader.createEntryStore()) {
+                List<String> sharedKeys = sharedReader.storeAllEntries(sharedReader.createArchiveInputStream(shared), sortInputArchives, sharedEntries);
+
+                // every diff gets its own instance, only the store with shared archive is shared between them
+                DiffOperation[] pairs = new DiffOperation[others.size()];
+                for (int i = 0; i < others.size(); i++) {
+                    InputStream other = others.get(i);
+                    OutputStream diff = diffs.get(i);
+                    pairs[i] = pairOptions -> getInstance(archiveType, pairOptions).computeDiffImpl(sharedEntries, sharedKeys, sharedIsBefore, other, assumeOrdering, diff);
+                }
+                runConcurrently(pairs, opts);
+            }
+        }));
+    }
+
+    /** Runs operations on up to parallelism threads, separate from the pool for per-entry work. */
+    private static void runConcurrently(DiffOperation[] operations, ArchiveDiffOptions options) throws ArchiveException, ArchiveDiffException, IOException {
+        int threads = Math.min(options.getParallelism(), operations.length);
+        if (threads <= 1) {
+            for (DiffOperation operation : operations) {
+                operation.run(options);
+            }
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> results = new ArrayList<>();
+            for (DiffOperation operation : operations) {
+                results.add(executor.submit(() -> {
+                    operation.run(options);
+                    return null;
+                }));
+            }
+            for (Future<?> result : results) {
+                try {
+                    result.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for diff", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) {
+                        throw (IOException) cause;
+                    } else if (cause instanceof ArchiveDiffException) {
+                        throw (ArchiveDiffException) cause;
+                    } else if (cause instanceof ArchiveException) {
+                        throw (ArchiveException) cause;
+                    } else if (cause instanceof RuntimeException) {
+                        throw (RuntimeException) cause;
+                    } else if (cause instanceof Error) {
+                        throw (Error) cause;
+                    } else {
+                        throw new RuntimeException(cause);
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private interface DiffOperation {
+        void run(ArchiveDiffOptions options) throws ArchiveException, ArchiveDiffException, IOException;
+    }
+
+    /**
+     * Reports the operation to the listener, if there is one. Top-level operations start tracking of buffered entry data,
+     * which their nested operations share.
+     */
+    private static DiffOperation observed(String operationName, DiffOperation operation) {
+        return options -> {
+            ArchiveDiffListener listener = options.getListener();
+            if (listener == null) {
+                operation.run(options);
+                return;
+            }
+            ArchiveDiffOptions observedOptions = options.getBufferGauge() == null ? options.withBufferGauge(new BufferGauge()) : options;
+            long startTime = System.nanoTime();
+            operation.run(observedOptions);
+            listener.operationFinished(operationName, System.nanoTime() - startTime, observedOptions.getBufferGauge().getPeak(), options.getNestingDepth());
+        };
+    }
+
+    /** Creates worker pool for the duration of the operation, unless it is already provided in options. */
+    private static void withExecutor(ArchiveDiffOptions options, DiffOperation operation) throws ArchiveException, ArchiveDiffException, IOException {
+        if (options.getParallelism() > 1 && options.getExecutor() == null) {
+            ForkJoinPool executor = new ForkJoinPool(options.getParallelism());
+            try {
+                operation.run(options.withExecutor(executor));
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            operation.run(options);
+        }
     }
 
     public static void applyDiff(
@@ -77,9 +346,29 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
             InputStream diff,
             OutputStream after,
             boolean assumeOrdering
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        applyDiff(before, diff, after, assumeOrdering, ArchiveDiffOptions.DEFAULT);
+    }
+
+    public static void applyDiff(
+            InputStream before,
+            InputStream diff,
+            OutputStream after,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
     ) throws ArchiveException, IOException, ArchiveDiffException {
         String archiveType = detectArchiveType(before);
-        applyDiff(before, diff, archiveType, assumeOrdering, after);
+        applyDiff(before, diff, archiveType, assumeOrdering, options, after);
+    }
+
+    public static void applyDiff(
+            InputStream before,
+            InputStream diff,
+            String archiveType,
+            boolean assumeOrdering,
+            OutputStream after
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        applyDiff(before, diff, archiveType, assumeOrdering, ArchiveDiffOptions.DEFAULT, after);
     }
 
     @SuppressWarnings("unchecked")
@@ -88,15 +377,153 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
             InputStream diff,
             String archiveType,
             boolean assumeOrdering,
+            ArchiveDiffOptions options,
             OutputStream after
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        withExecutor(options, observed("apply", opts -> getInstance(archiveType, opts).applyDiffImpl(before, diff, after, assumeOrdering)));
+    }
+
+    /**
+     * Variant of applyDiff for archive in a file - allows formats with central directory (zip)
+     * to copy compressed data of unchanged entries as is, without decompressing and compressing it again.
+     */
+    @SuppressWarnings("unchecked")
+    public static void applyDiff(
+            File before,
+            InputStream diff,
+            OutputStream after,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        String archiveType;
+        try (FileChannel beforeChannel = FileChannel.open(before.toPath(), StandardOpenOption.READ)) {
+            archiveType = detectArchiveType(beforeChannel);
+        }
+        withExecutor(options, observed("apply", opts -> getInstance(archiveType, opts).applyDiffImpl(before, diff, after, assumeOrdering)));
+    }
+
+    public void applyDiffImpl(
+            InputStream before,
+            InputStream diff,
+            OutputStream after,
+            boolean assumeOrdering
     ) throws ArchiveException, IOException, ArchiveDiffException {
         if (assumeOrdering) {
-            new StreamingArchiveDiffReader(before, diff, after, getInstance(archiveType)).streamingApplyDiff();
+            new StreamingArchiveDiffReader<>(before, diff, after, this).streamingApplyDiff();
         } else {
-            getInstance(archiveType).applyDiffImpl(before, diff, after);
+            applyDiffImpl(before, diff, after);
+        }
+    }
+
+    /** Formats that can make use of random access to "before" archive override this method, others simply read the file. */
+    public void applyDiffImpl(
+            File before,
+            InputStream diff,
+            OutputStream after,
+            boolean assumeOrdering
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        try (InputStream beforeStream = new BufferedInputStream(new FileInputStream(before))) {
+            applyDiffImpl(beforeStream, diff, after, assumeOrdering);
         }
     }
 
+    /**
+     * Applies diff only to entries with given paths - resulting archive contains only those of them that exist
+     * after applying the diff. For uncompressed diffs with an index, only commands for these entries are read.
+     */
+    @SuppressWarnings("unchecked")
+    public static void applyDiff(
+            InputStream before,
+            SeekableByteChannel diff,
+            OutputStream after,
+            Set<String> paths,
+            ArchiveDiffOptions options
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        String archiveType = detectArchiveType(before);
+        withExecutor(options, observed("apply", opts -> getInstance(archiveType, opts).applyDiffImpl(before, diff, after, paths)));
+    }
+
+    /** Same as above, but always reads the whole diff. */
+    @SuppressWarnings("unchecked")
+    public static void applyDiff(
+            InputStream before,
+            InputStream diff,
+            OutputStream after,
+            Set<String> paths,
+            ArchiveDiffOptions options
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        String archiveType = detectArchiveType(before);
+        withExecutor(options, observed("apply", opts ->
+                getInstance(archiveType, opts).applyDiffCommands(before, readDiffHeader(diff, opts), after, paths::contains)));
+    }
+
+    /**
+     * Checks diff header and returns the stream of diff commands that follows it,
+     * decompressing it if diff was computed with compression.
+     */
+    static InputStream readDiffHeader(InputStream diff, ArchiveDiffOptions options) throws IOException, ArchiveDiffException {
+        DataInputStream headerStream = new DataInputStream(diff);
+        byte[] header = new byte[HEADER.length()];
+        headerStream.readFully(header);
+
+        if (!Arrays.equals(header, HEADER.getBytes("ASCII"))) {
+            throw new ArchiveDiffFormatException("Invalid diff stream header");
+        }
+
+        PushbackInputStream commands = new PushbackInputStream(diff, 1);
+        int marker = commands.read();
+        if (marker != CONTAINER_COMPRESSED) {
+            if (marker != -1) {
+                commands.unread(marker);
+            }
+            return commands;
+        }
+
+        DiffCompression compression = DiffCompression.forId(headerStream.readByte());
+        int blockSize = headerStream.readInt();
+        if (compression == null || compression == DiffCompression.NONE) {
+            throw new ArchiveDiffFormatException("Unknown diff compression");
+        }
+        if (blockSize <= 0) {
+            throw new ArchiveDiffFormatException("Invalid diff compression block size: " + blockSize);
+        }
+        return new BlockDecompressingInputStream(diff, compression, blockSize, options);
+    }
+
+    public static void composeDiffs(
+            InputStream first,
+            InputStream second,
+            String archiveType,
+            boolean assumeOrdering,
+            OutputStream composed
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        composeDiffs(first, second, archiveType, assumeOrdering, ArchiveDiffOptions.DEFAULT, composed);
+    }
+
+    /**
+     * Composes diff from A to B and diff from B to C into a single diff from A to C, without restoring B.
+     * Archive type can't be detected from diffs, so it has to be provided. See {@link ArchiveDiffComposer}.
+     */
+    public static void composeDiffs(
+            InputStream first,
+            InputStream second,
+            String archiveType,
+            boolean assumeOrdering,
+            ArchiveDiffOptions options,
+            OutputStream composed
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        withExecutor(options, opts -> getInstance(archiveType, opts).composeDiffsImpl(first, second, composed, assumeOrdering));
+    }
+
+    public void composeDiffsImpl(
+            InputStream first,
+            InputStream second,
+            OutputStream composed,
+            boolean assumeOrdering
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        new ArchiveDiffComposer<>(first, second, composed, assumeOrdering, this).composeDiffs();
+    }
+
     public static boolean archivesAreEqual(InputStream before, InputStream after) throws ArchiveDiffException, ArchiveException, IOException {
         String beforeArchiveType = detectArchiveType(before);
         String afterArchiveType = detectArchiveType(after);
@@ -107,21 +534,28 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
         return comparatorForArchiveType(beforeArchiveType).archivesEqual(before, after);
     }
 
-    @SuppressWarnings("unchecked")
     public static ArchiveDiff getInstance(String archiveType) {
+        return getInstance(archiveType, ArchiveDiffOptions.DEFAULT);
+    }
+
+    @SuppressWarnings("unchecked")
+    public static ArchiveDiff getInstance(String archiveType, ArchiveDiffOptions options) {
+        ArchiveDiff instance;
         if ("zip".equals(archiveType)) {
-            return new ZipArchiveDiff();
+            instance = new ZipArchiveDiff();
         } else if ("tar".equals(archiveType)) {
-            return new TarArchiveDiff("");
+            instance = new TarArchiveDiff("");
         } else if ("tar.gz".equals(archiveType)) {
-            return new TarArchiveDiff("gz");
+            instance = new TarArchiveDiff("gz");
         } else if ("tar.xz".equals(archiveType)) {
-            return new TarArchiveDiff("xz");
+            instance = new TarArchiveDiff("xz");
         } else if ("ar".equals(archiveType)) {
-            return new ArArchiveDiff();
+            instance = new ArArchiveDiff();
         } else {
             throw new RuntimeException("Unsupported archive type: " + archiveType);
         }
+        instance.options = options;
+        return instance;
     }
 
     public static ArchiveComparator comparatorForArchiveType(String archiveType) {
@@ -129,8 +563,13 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
     }
 
     public static void sortArchiveEntries(InputStream input, OutputStream output) throws IOException, ArchiveDiffException, ArchiveException {
+        sortArchiveEntries(input, output, ArchiveDiffOptions.DEFAULT);
+    }
+
+    /** Entry data over options' memory budget is spilled to temporary files and merged back in sorted order. */
+    public static void sortArchiveEntries(InputStream input, OutputStream output, ArchiveDiffOptions options) throws IOException, ArchiveDiffException, ArchiveException {
         String archiveType = detectArchiveType(input);
-        getInstance(archiveType).sortArchiveEntriesImpl(input, output);
+        withExecutor(options, opts -> getInstance(archiveType, opts).sortArchiveEntriesImpl(input, output));
     }
 
     public static String detectArchiveType(InputStream in) throws ArchiveDiffException, IOException {
@@ -179,6 +618,15 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
         }
     }
 
+    public static String detectArchiveType(SeekableByteChannel channel) throws ArchiveDiffException, IOException {
+        long position = channel.position();
+        try {
+            return detectArchiveType(new BufferedInputStream(Channels.newInputStream(channel)));
+        } finally {
+            channel.position(position);
+        }
+    }
+
     static boolean isSupportedArchive(ArchiveEntry entry) {
         return getArchiverType(entry) != null;
     }
@@ -204,49 +652,258 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
     }
 
     public static void main(String[] args) throws IOException, ArchiveDiffException, ArchiveException {
-        if (args.length == 4 && args[0].equals("compute")) {
-            OutputStream output = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(args[3])));
-            ArchiveDiff.computeDiff(
-                    new BufferedInputStream(new FileInputStream(args[1])),
-                    new BufferedInputStream(new FileInputStream(args[2])),
-                    output
-            );
-            output.close();
-        } else if (args.length == 5 && args[0].equals("compute") && args[1].equals("--sorted")) {
-            OutputStream output = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(args[4])));
+        int status = run(args, new File("").getAbsoluteFile(), ArchiveDiffOptions.DEFAULT, true, System.out, System.err);
+        if (status != 0) {
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Runs the command line, resolving relative paths against given working directory - both for the process itself
+     * and for jobs of {@link DiffServer}, which pass options shared between jobs as default ones.
+     *
+     * @param local false for jobs of {@link DiffServer}, which can't start servers or send jobs to them
+     * @return exit status
+     */
+    static int run(
+            String[] args,
+            File workingDirectory,
+            ArchiveDiffOptions defaultOptions,
+            boolean local,
+            PrintStream out,
+            PrintStream err
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        List<String> arguments = new ArrayList<>();
+        List<String> serverArguments = new ArrayList<>();
+        boolean sorted = false;
+        boolean reverse = false;
+        Set<String> onlyPaths = new LinkedHashSet<>();
+        ArchiveDiffOptions options = defaultOptions;
+        File cacheDirectory = null;
+        long cacheSize = 1024L * 1024 * 1024;
+        int serverPort = -1;
+        int port = DiffServer.DEFAULT_PORT;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        List<ArchiveDiffListener> listeners = new ArrayList<>();
+        ArchiveDiffMetrics metrics = null;
+        File eventsFile = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--server") && i + 1 < args.length) {
+                serverPort = Integer.parseInt(args[++i]);
+            } else {
+                serverArguments.add(args[i]);
+            }
+        }
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--server") && i + 1 < args.length) {
+                i++;
+            } else if (args[i].equals("--sorted")) {
+                sorted = true;
+            } else if (args[i].equals("--reverse")) {
+                reverse = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                options = options.withParallelism(Integer.parseInt(args[++i]));
+            } else if (args[i].equals("--memory-budget") && i + 1 < args.length) {
+                options = options.withMemoryBudget(parseSize(args[++i]));
+            } else if (args[i].equals("--temp-dir") && i + 1 < args.length) {
+                options = options.withTempDirectory(resolve(workingDirectory, args[++i]));
+            } else if (args[i].equals("--large-entry-threshold") && i + 1 < args.length) {
+                options = options.withLargeEntryThreshold(parseSize(args[++i]));
+            } else if (args[i].equals("--no-copy-detection")) {
+                options = options.withDetectCopies(false);
+            } else if (args[i].equals("--no-similarity-detection")) {
+                options = options.withDetectSimilarEntries(false);
+            } else if (args[i].equals("--delta-engine") && i + 1 < args.length) {
+                options = options.withDeltaEngine(parseDeltaEngine(args[++i]));
+            } else if (args[i].equals("--delta-engine-for") && i + 2 < args.length) {
+                String nameSuffix = args[++i];
+                options = options.withDeltaEngine(nameSuffix, parseDeltaEngine(args[++i]));
+            } else if (args[i].equals("--compression") && i + 1 < args.length) {
+                options = options.withCompression(DiffCompression.forName(args[++i]));
+            } else if (args[i].equals("--compression-block-size") && i + 1 < args.length) {
+                options = options.withCompressionBlockSize((int) parseSize(args[++i]));
+            } else if (args[i].equals("--gzip-block-size") && i + 1 < args.length) {
+                options = options.withGzipBlockSize((int) parseSize(args[++i]));
+            } else if (args[i].equals("--xz-block-size") && i + 1 < args.length) {
+                options = options.withXzBlockSize((int) parseSize(args[++i]));
+            } else if (args[i].equals("--index")) {
+                options = options.withIndex(true);
+            } else if (args[i].equals("--only") && i + 1 < args.length) {
+                onlyPaths.add(args[++i]);
+            } else if (args[i].equals("--no-patch-prediction")) {
+                options = options.withPatchPrediction(false);
+            } else if (args[i].equals("--patch-prediction-stats")) {
+                options = options.withPatchPredictionStats(new PatchPredictionStats());
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = resolve(workingDirectory, args[++i]);
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheSize = parseSize(args[++i]);
+            } else if (args[i].equals("--metrics")) {
+                metrics = new ArchiveDiffMetrics();
+                listeners.add(metrics);
+            } else if (args[i].equals("--events") && i + 1 < args.length) {
+                eventsFile = resolve(workingDirectory, args[++i]);
+            } else if (args[i].equals("--jfr")) {
+                ArchiveDiffListener jfrListener = createJfrListener();
+                if (jfrListener == null) {
+                    err.println("Java Flight Recorder is not available in this build or JVM");
+                    return 2;
+                }
+                listeners.add(jfrListener);
+            } else if (args[i].equals("--port") && i + 1 < args.length) {
+                port = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--jobs") && i + 1 < args.length) {
+                jobs = Integer.parseInt(args[++i]);
+            } else {
+                arguments.add(args[i]);
+            }
+        }
+        if (!local && (serverPort != -1 || arguments.size() == 1 && arguments.get(0).equals("serve"))) {
+            err.println("Server jobs can't start servers or send jobs to them");
+            return 2;
+        }
+        if (serverPort != -1) {
+            return DiffServer.runRemotely(serverPort, serverArguments.toArray(new String[0]), workingDirectory, out, err);
+        }
+        if (cacheDirectory != null) {
+            options = options.withDiffCache(new DiffCache(cacheDirectory, cacheSize));
+        }
+        JsonLinesListener events = eventsFile != null ? new JsonLinesListener(new FileOutputStream(eventsFile, true)) : null;
+        if (events != null) {
+            listeners.add(events);
+        }
+        if (!listeners.isEmpty()) {
+            options = options.withListener(listeners.size() == 1 ? listeners.get(0) : ArchiveDiffListener.combine(listeners.toArray(new ArchiveDiffListener[0])));
+        }
+
+        if (arguments.size() == 4 && arguments.get(0).equals("compute")) {
+            // diffs without built-in compression are gzipped as a whole, unless they have an index that should stay readable
+            OutputStream output = options.getCompression() == DiffCompression.NONE && !options.isIndex()
+                    ? new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(3)))))
+                    : new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(3))));
             ArchiveDiff.computeDiff(
-                    new BufferedInputStream(new FileInputStream(args[2])),
-                    new BufferedInputStream(new FileInputStream(args[3])),
+                    resolve(workingDirectory, arguments.get(1)),
+                    resolve(workingDirectory, arguments.get(2)),
                     output,
-                    true
+                    sorted,
+                    options
             );
             output.close();
-        } else if (args.length == 4 && args[0].equals("apply")) {
-            OutputStream output = new BufferedOutputStream(new FileOutputStream(args[3]));
-            ArchiveDiff.applyDiff(
-                    new BufferedInputStream(new FileInputStream(args[1])),
-                    new GZIPInputStream(new BufferedInputStream(new FileInputStream(args[2]))),
-                    output
-            );
+            if (options.getPatchPredictionStats() != null) {
+                err.println(options.getPatchPredictionStats());
+            }
+        } else if (arguments.size() >= 4 && arguments.size() % 2 == 0 && arguments.get(0).equals("compute-batch")) {
+            List<InputStream> inputs = new ArrayList<>();
+            List<OutputStream> outputs = new ArrayList<>();
+            try (InputStream shared = new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(1))))) {
+                for (int i = 2; i < arguments.size(); i += 2) {
+                    inputs.add(new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(i)))));
+                    File diffFile = resolve(workingDirectory, arguments.get(i + 1));
+                    outputs.add(options.getCompression() == DiffCompression.NONE && !options.isIndex()
+                            ? new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(diffFile)))
+                            : new BufferedOutputStream(new FileOutputStream(diffFile)));
+                }
+                if (reverse) {
+                    ArchiveDiff.computeDiffs(inputs, shared, outputs, sorted, options);
+                } else {
+                    ArchiveDiff.computeDiffs(shared, inputs, outputs, sorted, options);
+                }
+            } finally {
+                for (InputStream input : inputs) {
+                    input.close();
+                }
+                for (OutputStream output : outputs) {
+                    output.close();
+                }
+            }
+            if (options.getPatchPredictionStats() != null) {
+                err.println(options.getPatchPredictionStats());
+            }
+        } else if (arguments.size() == 4 && arguments.get(0).equals("apply")) {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(3))));
+            InputStream diff = new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(2))));
+            diff.mark(2);
+            boolean gzipped = diff.read() == 0x1f && diff.read() == 0x8b;
+            diff.reset();
+            if (onlyPaths.isEmpty()) {
+                ArchiveDiff.applyDiff(
+                        resolve(workingDirectory, arguments.get(1)),
+                        gzipped ? new GZIPInputStream(diff) : diff,
+                        output,
+                        sorted,
+                        options
+                );
+            } else if (gzipped) {
+                ArchiveDiff.applyDiff(
+                        new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(1)))),
+                        new GZIPInputStream(diff),
+                        output,
+                        onlyPaths,
+                        options
+                );
+            } else {
+                diff.close();
+                try (FileChannel diffChannel = FileChannel.open(resolve(workingDirectory, arguments.get(2)).toPath(), StandardOpenOption.READ)) {
+                    ArchiveDiff.applyDiff(
+                            new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(1)))),
+                            diffChannel,
+                            output,
+                            onlyPaths,
+                            options
+                    );
+                }
+            }
             output.close();
-        } else if (args.length == 5 && args[0].equals("apply") && args[1].equals("--sorted")) {
-            OutputStream output = new BufferedOutputStream(new FileOutputStream(args[4]));
-            ArchiveDiff.applyDiff(
-                    new BufferedInputStream(new FileInputStream(args[2])),
-                    new GZIPInputStream(new BufferedInputStream(new FileInputStream(args[3]))),
-                    output,
-                    true
-            );
+        } else if (arguments.size() == 5 && arguments.get(0).equals("compose")) {
+            OutputStream output = options.getCompression() == DiffCompression.NONE && !options.isIndex()
+                    ? new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(4)))))
+                    : new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(4))));
+            try (
+                    InputStream first = openDiff(resolve(workingDirectory, arguments.get(2)));
+                    InputStream second = openDiff(resolve(workingDirectory, arguments.get(3)))
+            ) {
+                ArchiveDiff.composeDiffs(first, second, arguments.get(1), sorted, options, output);
+            }
             output.close();
-        } else if (args.length == 3 && args[0].equals("sort")) {
-            OutputStream output = new BufferedOutputStream(new FileOutputStream(args[2]));
+        } else if (arguments.size() == 2 && arguments.get(0).equals("inspect")) {
+            try (FileChannel diff = FileChannel.open(resolve(workingDirectory, arguments.get(1)).toPath(), StandardOpenOption.READ)) {
+                DiffIndex index = DiffIndex.read(diff);
+                if (index == null) {
+                    out.println("Diff has no index, it can be computed with --index");
+                } else {
+                    for (DiffIndex.Entry entry : index.getEntries()) {
+                        out.printf(
+                                "%-18s %12d  %s%s%n",
+                                entry.getCommandName(),
+                                entry.getLength(),
+                                entry.getPath(),
+                                entry.getSourcePath() != null ? " <- " + entry.getSourcePath() : ""
+                        );
+                    }
+                }
+            }
+        } else if (arguments.size() == 3 && arguments.get(0).equals("sort")) {
+            OutputStream output = new BufferedOutputStream(new FileOutputStream(resolve(workingDirectory, arguments.get(2))));
             ArchiveDiff.sortArchiveEntries(
-                    new BufferedInputStream(new FileInputStream(args[1])),
-                    output
+                    new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(1)))),
+                    output,
+                    options
             );
             output.close();
+        } else if (arguments.size() == 3 && arguments.get(0).equals("compare")) {
+            boolean equal;
+            try (
+                    InputStream first = new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(1))));
+                    InputStream second = new BufferedInputStream(new FileInputStream(resolve(workingDirectory, arguments.get(2))))
+            ) {
+                equal = ArchiveDiff.archivesAreEqual(first, second);
+            }
+            out.println(equal ? "Archives are equal" : "Archives differ");
+            return equal ? 0 : 1;
+        } else if (arguments.size() == 1 && arguments.get(0).equals("serve")) {
+            new DiffServer(port, jobs, options, out, err).serve();
         } else {
-            System.out.println(String.join(
+            out.println(String.join(
                     "\n",
                     "ArchiveDiff",
                     "",
@@ -261,18 +918,143 @@ public abstract class ArchiveDiff<GenArchiveEntry extends ArchiveEntry>
                     "                                                 switches memory-efficient streaming mode which ensures binary equality of",
                     "                                                 patched archive to original <after> archive.",
                     "",
+                    "  compute-batch [--sorted] [--reverse] <base> <archive> <diff> [<archive> <diff>...]",
+                    "                                                 Compute diffs from <base> to every <archive>, or from every <archive> to",
+                    "                                                 <base> if --reverse is provided. <base> is read only once, and diffs are",
+                    "                                                 computed concurrently with --threads. Zip archives are read sequentially,",
+                    "                                                 not through the central directory as with `compute`.",
+                    "",
                     "  apply [--sorted] <before> <diff> <after>       Apply previously computed <diff> to <before> file, outputting patched archive",
                     "                                                 to <after>. If --sorted is provided, assumes that <before> archive is pre-sorted",
                     "                                                 and <diff> was also computed with --sorted on. In that case memory-efficient",
                     "                                                 streaming mode is used, and generated patched <after> will be binary equal to",
                     "                                                 original <after> archive.",
                     "",
+                    "  inspect <diff>                                 List commands of <diff> computed with --index: command, its length in bytes",
+                    "                                                 and entry path. Only the index at the end of the diff is read.",
+                    "",
+                    "  compose [--sorted] <type> <diff1> <diff2> <diff>",
+                    "                                                 Compose <diff1> (from A to B) and <diff2> (from B to C) into a single",
+                    "                                                 <diff> from A to C, without any of the archives. <type> is the archive",
+                    "                                                 type: zip, tar, tar.gz, tar.xz or ar. Use --sorted if diffs were computed",
+                    "                                                 with --sorted.",
+                    "",
+                    "  compare <first> <second>                       Check if archives have the same entries with the same contents and",
+                    "                                                 attributes, regardless of entry order. Exit status is 1 if they differ.",
+                    "",
+                    "  serve [--port <n>] [--jobs <n>]                Stay resident and run commands sent with --server on a warm JVM, at most",
+                    "                                                 <n> jobs at once (default: number of processors). Listens on loopback",
+                    "                                                 interface only, on port " + DiffServer.DEFAULT_PORT + " by default. Options given here",
+                    "                                                 (e.g. --threads, --cache) are shared by all jobs. Only clients that can",
+                    "                                                 read the token file ~/.ardiff/server-<port>.token can send jobs.",
+                    "",
                     "  sort <input> <output>                          Repack archive. Sorts entries by names inside the archive (except for AR format),",
                     "                                                 normalizes compression and entry headers. Archives that were preprocessed with",
                     "                                                 this option can be later passed into `compute` and `apply`, allowing for",
-                    "                                                 faster computation and binary-equal archive patches."
+                    "                                                 faster computation and binary-equal archive patches.",
+                    "",
+                    "Options:",
+                    "",
+                    "  --threads <n>                                  Compute entry diffs and apply entry patches using <n> worker threads",
+                    "                                                 (default: 1).",
+                    "  --memory-budget <size>                         Keep at most <size> bytes of entry data in memory (suffixes k, m, g are",
+                    "                                                 allowed), spilling the rest to temporary files (default: 1/8 of maximum",
+                    "                                                 heap size).",
+                    "  --temp-dir <dir>                               Directory for temporary files.",
+                    "  --large-entry-threshold <size>                 Keep entries larger than <size> in temporary files instead of memory, and",
+                    "                                                 compute their deltas incrementally (default: 64m).",
+                    "  --no-copy-detection                            Always ship full data of added entries, even if identical data is already",
+                    "                                                 present in <before> under another name.",
+                    "  --no-similarity-detection                      Don't try to encode added entries as deltas against similar entries",
+                    "                                                 from <before> (e.g. previous versions of renamed libraries).",
+                    "  --delta-engine <engine>                        Encode entry patches with <engine>: gdiff (default) or vcdiff (smaller",
+                    "                                                 patches with secondary compression).",
+                    "  --delta-engine-for <suffix> <engine>           Use <engine> for entries with names ending with <suffix> (e.g. .so).",
+                    "  --compression <method>                         Compress diff with <method>: deflate or xz, in blocks that are compressed",
+                    "                                                 and decompressed in parallel with --threads. Without it, diff is gzipped.",
+                    "  --compression-block-size <size>                Size of independently compressed diff blocks (default: 4m).",
+                    "  --gzip-block-size <size>                       Write tar.gz archives (results of apply and sort) as gzip blocks of <size>,",
+                    "                                                 compressed in parallel with --threads. Result is the same for any number",
+                    "                                                 of threads, but depends on block size.",
+                    "  --xz-block-size <size>                         Write tar.xz archives as independent xz blocks of <size>, compressed",
+                    "                                                 in parallel with --threads. Such archives are also decompressed in parallel.",
+                    "  --index                                        Append an index of commands to the diff, for `inspect` and `apply --only`.",
+                    "                                                 Such diffs are not gzipped, use --compression to compress them.",
+                    "  --only <path>                                  Apply diff only to entry <path> (may be repeated), the resulting archive",
+                    "                                                 contains only these entries. With an index, the rest of diff is not read.",
+                    "  --no-patch-prediction                          Compute deltas of all changed entries, even of already compressed ones",
+                    "                                                 that are predicted to end up replaced.",
+                    "  --patch-prediction-stats                       Verify a sample of patch predictions and print their accuracy after compute.",
+                    "  --cache <dir>                                  Reuse diffs of archives, nested archives and entries computed earlier with",
+                    "                                                 same settings, keeping them in <dir>.",
+                    "  --cache-size <size>                            Remove least recently used diffs from the cache once it grows over <size>",
+                    "                                                 (default: 1g).",
+                    "  --server <port>                                Send the command to a server started with `serve` on this machine,",
+                    "                                                 instead of running it in this process. Paths are resolved against",
+                    "                                                 the current directory.",
+                    "  --metrics                                      Print command counts and sizes, time spent in each phase (decompress,",
+                    "                                                 delta, patch, recompress) and peak buffered data after the command.",
+                    "  --events <file>                                Append events of compute and apply to <file> as JSON lines - commands,",
+                    "                                                 per-entry phase times, delta sizes and operation summaries.",
+                    "  --jfr                                          Emit the same events as Java Flight Recorder events, recorded when the",
+                    "                                                 JVM runs with a recording (e.g. -XX:StartFlightRecording)."
             ));
         }
+        if (events != null) {
+            events.close();
+        }
+        if (metrics != null) {
+            err.println(metrics);
+        }
+        return 0;
+    }
+
+    private static File resolve(File workingDirectory, String path) {
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(workingDirectory, path);
+    }
+
+    /** Diffs written by `compute` may be gzipped as a whole. */
+    private static InputStream openDiff(File file) throws IOException {
+        InputStream diff = new BufferedInputStream(new FileInputStream(file));
+        diff.mark(2);
+        boolean gzipped = diff.read() == 0x1f && diff.read() == 0x8b;
+        diff.reset();
+        return gzipped ? new GZIPInputStream(diff) : diff;
+    }
+
+    /** Flight recorder listener is only built on JDKs that have jdk.jfr, so it is loaded reflectively, or null if it's missing. */
+    private static ArchiveDiffListener createJfrListener() {
+        try {
+            return (ArchiveDiffListener) Class.forName("org.rogach.ardiff.JfrArchiveDiffListener").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static DeltaEngine parseDeltaEngine(String name) {
+        for (DeltaEngine engine : DeltaEngine.builtInEngines()) {
+            if (engine.getName().equals(name)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown delta engine: " + name);
+    }
+
+    private static long parseSize(String size) {
+        String lowerCaseSize = size.toLowerCase();
+        long multiplier = 1;
+        if (lowerCaseSize.endsWith("k")) {
+            multiplier = 1024L;
+        } else if (lowerCaseSize.endsWith("m")) {
+            multiplier = 1024L * 1024;
+        } else if (lowerCaseSize.endsWith("g")) {
+            multiplier = 1024L * 1024 * 1024;
+        }
+        if (multiplier != 1) {
+            lowerCaseSize = lowerCaseSize.substring(0, lowerCaseSize.length() - 1);
+        }
+        return Long.parseLong(lowerCaseSize) * multiplier;
     }
 
 }
@@ -15,8 +15,10 @@ public interface ArchiveDiffBase<GenArchiveEntry extends ArchiveEntry> {
 
     boolean supportsSorting();
 
+    ArchiveDiffOptions getOptions();
+
     default ArchiveOutputStream createArchiveOutputStream(OutputStream output) throws IOException, ArchiveDiffException, ArchiveException {
-        return new ArchiveStreamFactory().createArchiveOutputStream(archiverName(), output);
+        return createUncompressedArchiveOutputStream(createCompressingOutputStream(output));
     }
 
     default void finishArchiveOutputStream(ArchiveOutputStream output) throws IOException {
@@ -24,17 +26,76 @@ public interface ArchiveDiffBase<GenArchiveEntry extends ArchiveEntry> {
     }
 
     default ArchiveInputStream createArchiveInputStream(InputStream input) throws IOException, ArchiveDiffException, ArchiveException {
+        return createUncompressedArchiveInputStream(createDecompressingInputStream(input));
+    }
+
+    /**
+     * Outer compression layer of the archive (like gzip for tar.gz), separated from archive itself
+     * so that it can be run on a different thread. Formats without such layer return the stream as is.
+     */
+    default OutputStream createCompressingOutputStream(OutputStream output) throws IOException, ArchiveDiffException {
+        return output;
+    }
+
+    /** Writes out the end of compressed data, without closing the stream. */
+    default void finishCompressingOutputStream(OutputStream output) throws IOException {}
+
+    default InputStream createDecompressingInputStream(InputStream input) throws IOException, ArchiveDiffException {
+        return input;
+    }
+
+    /** Creates archive stream over the data that goes into the outer compression layer. */
+    default ArchiveOutputStream createUncompressedArchiveOutputStream(OutputStream output) throws IOException, ArchiveDiffException, ArchiveException {
+        return new ArchiveStreamFactory().createArchiveOutputStream(archiverName(), output);
+    }
+
+    /** Creates archive stream over the data with outer compression layer already removed. */
+    default ArchiveInputStream createUncompressedArchiveInputStream(InputStream input) throws IOException, ArchiveDiffException, ArchiveException {
         return new ArchiveStreamFactory().createArchiveInputStream(archiverName(), input);
     }
 
+    /**
+     * Diffs of nested archives are embedded into the outer diff, so they are neither compressed nor indexed on their own.
+     * Nested archives are always reconstructed with default compression, since their checksums in the diff are computed that way.
+     * Nested archives are sorted with these options too, so that sorted diffs reconstruct them byte for byte.
+     */
+    default ArchiveDiffOptions getNestedDiffOptions() {
+        return getOptions().withCompression(DiffCompression.NONE).withIndex(false).withGzipBlockSize(0).withXzBlockSize(0)
+                .withNestingDepth(getOptions().getNestingDepth() + 1);
+    }
+
     boolean attributesEqual(GenArchiveEntry entryBefore, GenArchiveEntry entryAfter);
 
+    /**
+     * Checks if entry data is known to be equal just from entry headers (e.g. stored checksum and size),
+     * so that data doesn't need to be read at all. Returning false doesn't imply that data differs.
+     */
+    default boolean dataKnownEqual(GenArchiveEntry entryBefore, GenArchiveEntry entryAfter) {
+        return false;
+    }
+
+    /**
+     * Copy of entry as read from its header, for formats that fill in entry fields once entry data is read
+     * (e.g. size and checksum of zip entries with data descriptor). Other formats return the entry as is.
+     */
+    default GenArchiveEntry copyEntryHeader(GenArchiveEntry entry) throws IOException {
+        return entry;
+    }
+
     /* separated into separate method so that we suppress warnings only for this statement */
     @SuppressWarnings("unchecked")
     default GenArchiveEntry getNextEntry(ArchiveInputStream archiveInputStream) throws IOException {
         return (GenArchiveEntry) archiveInputStream.getNextEntry();
     }
 
+    /**
+     * Large entries are never materialized as byte arrays - their data is kept in temporary files
+     * and deltas are computed incrementally. Entries of unknown size are not considered large.
+     */
+    default boolean isLargeEntry(GenArchiveEntry entry) {
+        return entry.getSize() > getOptions().getLargeEntryThreshold();
+    }
+
     default HashMap<String, ArchiveEntryWithData<GenArchiveEntry>> readAllEntries(ArchiveInputStream archiveInputStream) throws IOException {
         HashMap<String, ArchiveEntryWithData<GenArchiveEntry>> entries = new HashMap<>();
         GenArchiveEntry entry = getNextEntry(archiveInputStream);
@@ -45,4 +106,26 @@ public interface ArchiveDiffBase<GenArchiveEntry extends ArchiveEntry> {
         return entries;
     }
 
+    default void readAllEntries(ArchiveInputStream archiveInputStream, ArchiveEntryStore<GenArchiveEntry> store) throws IOException {
+        GenArchiveEntry entry = getNextEntry(archiveInputStream);
+        while (entry != null) {
+            store.put(entry.getName(), entry, timeEntryData(entry, archiveInputStream));
+            entry = getNextEntry(archiveInputStream);
+        }
+    }
+
+    /** Wraps data stream of entry from an input archive, so that reading it is reported as decompression time of the entry. */
+    default InputStream timeEntryData(GenArchiveEntry entry, InputStream data) {
+        return PhaseTimer.timeReads(getOptions(), entry.getName(), data);
+    }
+
+    default ArchiveEntryStore<GenArchiveEntry> createEntryStore() {
+        return createEntryStore(getOptions().getMemoryBudget());
+    }
+
+    /** Creates store that gets only a part of memory budget, for stores that are filled at the same time as other buffers. */
+    default ArchiveEntryStore<GenArchiveEntry> createEntryStore(long memoryBudget) {
+        return new SpillingArchiveEntryStore<>(memoryBudget, getOptions().getLargeEntryThreshold(), getOptions().getTempDirectory(), getOptions().getBufferGauge());
+    }
+
 }
@@ -0,0 +1,597 @@
+package org.rogach.ardiff;
+
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.utils.BoundedInputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.io.input.TeeInputStream;
+import org.rogach.ardiff.delta.DeltaEngine;
+import org.rogach.ardiff.exceptions.ArchiveDiffCorruptedException;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
+import org.rogach.ardiff.exceptions.ArchiveDiffFormatException;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Composes a diff from A to B and a diff from B to C into a single diff from A to C, working only on the command
+ * streams - neither of the archives is needed, and B is never restored.
+ *
+ * Commands of both diffs are folded per path. Content of an entry is tracked in terms of archive A: literal data,
+ * an entry of A, a delta against an entry of A, or a nested diff against an entry of A. Commands of the second diff
+ * are applied to that content - binary patches are composed with binary patches of the first diff through
+ * copy/insert arithmetic, nested diffs are composed recursively, and patches of literal data are applied right away.
+ * Attribute lists are concatenated, since attributes are applied in order and later values win.
+ *
+ * Commands of the first diff are held in an entry store (spilling to a temporary file over memory budget),
+ * commands of the second diff are composed as they are read. Composed commands are written out after all of them are
+ * composed, since the list of retained entries precedes them. Commands of sorted diffs are ordered by path, so sorted
+ * diffs can only be composed for formats that support sorting.
+ *
+ * Unsorted apply reads nested zip archives as streams, losing attributes that are kept only in the central directory
+ * (e.g. comments) of entries it doesn't change. If the second diff leaves such nested entry unchanged after the first diff
+ * sets it, composed diff reconstructs it intact - so the enclosing archive doesn't match its checksum from the second diff.
+ */
+public class ArchiveDiffComposer<GenArchiveEntry extends ArchiveEntry> {
+
+    private InputStream first;
+    private InputStream second;
+    private OutputStream composed;
+    private boolean assumeOrdering;
+    private ArchiveDiff<GenArchiveEntry> utils;
+
+    public ArchiveDiffComposer(InputStream first, InputStream second, OutputStream composed, boolean assumeOrdering, ArchiveDiff<GenArchiveEntry> utils) {
+        this.first = first;
+        this.second = second;
+        this.composed = composed;
+        this.assumeOrdering = assumeOrdering;
+        this.utils = utils;
+    }
+
+    /** Single diff command, payload (entry data, patch or nested diff) is kept in the payload store. */
+    private static class Command {
+        byte command;
+        String path;
+        String sourcePath;
+        long length;
+        byte[] checksum; // as written by the format, null for commands without checksum
+        byte[] attributes; // including the terminating zero
+        DeltaEngine deltaEngine;
+        String payload;
+    }
+
+    /** Commands of the same path in a single diff - removal of existing entry, and the command that creates or modifies it. */
+    private static class PathCommands {
+        final String path;
+        Command remove;
+        Command command; // null if entry was only removed
+
+        PathCommands(String path) {
+            this.path = path;
+        }
+
+        boolean existedBefore() {
+            return remove != null || isModification(command.command);
+        }
+    }
+
+    /**
+     * Entry data in terms of archive A: literal data (only payload is set), data of an entry of A (only source path is set),
+     * or a delta or a nested diff against an entry of A.
+     */
+    private static class Content {
+        final String sourcePath;
+        final String payload;
+        final DeltaEngine deltaEngine;
+
+        Content(String sourcePath, String payload, DeltaEngine deltaEngine) {
+            this.sourcePath = sourcePath;
+            this.payload = payload;
+            this.deltaEngine = deltaEngine;
+        }
+
+        boolean isNestedDiff() {
+            return sourcePath != null && payload != null && deltaEngine == null;
+        }
+    }
+
+    private interface PayloadWriter {
+        void write(OutputStream output) throws IOException, ArchiveDiffException, ArchiveException;
+    }
+
+    private ArchiveEntryStore<GenArchiveEntry> payloads;
+    private int payloadCount = 0;
+
+    private final List<PathCommands> firstCommandList = new ArrayList<>();
+    private final Map<String, PathCommands> firstCommands = new HashMap<>();
+    private final List<PathCommands> composedCommandList = new ArrayList<>();
+    private final Map<String, PathCommands> composedCommands = new HashMap<>();
+    /** Paths of entries (re)created by the second diff. */
+    private final Set<String> appendedPaths = new HashSet<>();
+
+    private final Set<String> retainedPaths = new TreeSet<>();
+    private DiffCommandQueue commandQueue;
+
+    void composeDiffs() throws IOException, ArchiveDiffException, ArchiveException {
+        if (assumeOrdering && !utils.supportsSorting()) {
+            // streaming apply expects commands in entry order of A, which can't be recovered from the diffs alone
+            throw new ArchiveDiffException(String.format("Sorted diffs of %s archives can't be composed, since their entries are not sorted", utils.archiverName()));
+        }
+        try (
+                ArchiveEntryStore<GenArchiveEntry> payloads = utils.createEntryStore();
+                SpillingOutputStream commandBuffer = new SpillingOutputStream(utils.getOptions().getMemoryBudget(), utils.getOptions().getTempDirectory())
+        ) {
+            this.payloads = payloads;
+
+            DiffReader firstReader = new DiffReader(first);
+            Command command;
+            while ((command = firstReader.readCommand()) != null) {
+                PathCommands pathCommands = firstCommands.get(command.path);
+                if (pathCommands == null) {
+                    pathCommands = new PathCommands(command.path);
+                    firstCommands.put(command.path, pathCommands);
+                    firstCommandList.add(pathCommands);
+                }
+                addCommand(pathCommands, command);
+            }
+
+            DiffReader secondReader = new DiffReader(second);
+            Command next = secondReader.readCommand();
+            while (next != null) {
+                PathCommands pathCommands = new PathCommands(next.path);
+                do {
+                    addCommand(pathCommands, next);
+                    next = secondReader.readCommand();
+                } while (next != null && next.path.equals(pathCommands.path) && pathCommands.command == null && next.command != ArchiveDiff.COMMAND_REMOVE);
+
+                PathCommands composed = composeCommands(pathCommands);
+                composedCommandList.add(composed);
+                composedCommands.put(composed.path, composed);
+                if (pathCommands.command != null && isCreation(pathCommands.command.command)) {
+                    appendedPaths.add(composed.path);
+                }
+            }
+
+            // retained entries are only known after all commands are composed, so commands are buffered
+            DiffIndexingOutputStream indexingCommandStream = new DiffIndexingOutputStream(commandBuffer);
+            CheckedOutputStream checkedCommandStream = new CheckedOutputStream(indexingCommandStream, new CRC32());
+            DataOutputStream commandStream = new DataOutputStream(checkedCommandStream);
+            commandQueue = new DiffCommandQueue(indexingCommandStream, checkedCommandStream, commandStream, ArchiveDiffOptions.DEFAULT);
+            writeCommands();
+            commandQueue.flush();
+            commandStream.flush();
+
+            writeDiff(commandBuffer, indexingCommandStream);
+        }
+    }
+
+    private void addCommand(PathCommands pathCommands, Command command) throws ArchiveDiffFormatException {
+        if (pathCommands.command != null || (command.command == ArchiveDiff.COMMAND_REMOVE && pathCommands.remove != null)) {
+            throw new ArchiveDiffFormatException("Duplicate commands for entry: " + command.path);
+        } else if (command.command == ArchiveDiff.COMMAND_REMOVE) {
+            pathCommands.remove = command;
+        } else if (pathCommands.remove != null && !isCreation(command.command)) {
+            throw new ArchiveDiffFormatException("Removed entry is modified: " + command.path);
+        } else {
+            pathCommands.command = command;
+        }
+    }
+
+    /**
+     * Sorted diffs list commands in path order. Unsorted apply keeps existing entries in place and appends created entries
+     * in the order of commands - so commands of entries (re)created by the second diff go last, and nested archives
+     * are reconstructed byte for byte the same as by applying both diffs.
+     */
+    private void writeCommands() throws IOException, ArchiveDiffException, ArchiveException {
+        if (assumeOrdering) {
+            TreeMap<String, PathCommands> commands = new TreeMap<>();
+            for (PathCommands pathCommands : firstCommandList) {
+                commands.put(pathCommands.path, pathCommands);
+            }
+            commands.putAll(composedCommands);
+            for (PathCommands pathCommands : commands.values()) {
+                writeCommands(pathCommands);
+            }
+        } else {
+            for (PathCommands pathCommands : firstCommandList) {
+                PathCommands composed = composedCommands.get(pathCommands.path);
+                if (composed == null) {
+                    writeCommands(pathCommands);
+                } else if (!appendedPaths.contains(composed.path)) {
+                    writeCommands(composed);
+                }
+            }
+            for (PathCommands composed : composedCommandList) {
+                if (!firstCommands.containsKey(composed.path) && !appendedPaths.contains(composed.path)) {
+                    writeCommands(composed);
+                }
+            }
+            for (PathCommands composed : composedCommandList) {
+                if (appendedPaths.contains(composed.path)) {
+                    writeCommands(composed);
+                }
+            }
+        }
+    }
+
+    /** Folds commands of the second diff for a single path with commands of the first diff for the same path. */
+    private PathCommands composeCommands(PathCommands secondCommands) throws IOException, ArchiveDiffException, ArchiveException {
+        String path = secondCommands.path;
+        PathCommands firstCommands = this.firstCommands.get(path);
+        // whether the entry exists in A - if first diff doesn't touch it, same as in B
+        boolean existedBefore = firstCommands != null ? firstCommands.existedBefore() : secondCommands.existedBefore();
+        Command second = secondCommands.command;
+
+        PathCommands composed = new PathCommands(path);
+        if (second == null) {
+            composed.remove = existedBefore ? removeCommand(path) : null;
+        } else if (isCreation(second.command)) {
+            Content content = second.command == ArchiveDiff.COMMAND_ADD
+                    ? new Content(null, second.payload, null)
+                    : applyCommand(getContentInB(second.sourcePath), second);
+            composed.remove = existedBefore ? removeCommand(path) : null;
+            composed.command = toCommand(path, content, true, second.length, second.checksum, second.attributes);
+        } else if (firstCommands == null) {
+            composed.command = second;
+        } else if (firstCommands.command == null) {
+            throw new ArchiveDiffFormatException("Modified entry doesn't exist: " + path);
+        } else {
+            Command first = firstCommands.command;
+            Content content = applyCommand(getContent(first), second);
+            byte[] checksum = second.command != ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES ? second.checksum : first.checksum;
+            byte[] attributes = concatAttributes(first.attributes, second.attributes);
+            composed.remove = firstCommands.remove != null ? removeCommand(path) : null;
+            composed.command = toCommand(path, content, isCreation(first.command), second.length, checksum, attributes);
+        }
+        return composed;
+    }
+
+    /** Content of an entry of B, as produced by the first diff. */
+    private Content getContentInB(String path) throws ArchiveDiffException {
+        PathCommands firstCommands = this.firstCommands.get(path);
+        if (firstCommands == null) {
+            return new Content(path, null, null);
+        } else if (firstCommands.command == null) {
+            throw new ArchiveDiffFormatException("Source entry doesn't exist: " + path);
+        } else {
+            return getContent(firstCommands.command);
+        }
+    }
+
+    private Content getContent(Command command) {
+        switch (command.command) {
+            case ArchiveDiff.COMMAND_ADD:
+            case ArchiveDiff.COMMAND_REPLACE:
+                return new Content(null, command.payload, null);
+            case ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES:
+                return new Content(command.path, null, null);
+            case ArchiveDiff.COMMAND_COPY:
+                return new Content(command.sourcePath, null, null);
+            case ArchiveDiff.COMMAND_PATCH:
+                return new Content(command.path, command.payload, command.deltaEngine);
+            case ArchiveDiff.COMMAND_PATCH_FROM:
+                return new Content(command.sourcePath, command.payload, command.deltaEngine);
+            case ArchiveDiff.COMMAND_ARCHIVE_PATCH:
+                return new Content(command.path, command.payload, null);
+            default:
+                return new Content(command.sourcePath, command.payload, null);
+        }
+    }
+
+    /** Applies command of the second diff to the content of its base entry. */
+    private Content applyCommand(Content base, Command command) throws IOException, ArchiveDiffException, ArchiveException {
+        switch (command.command) {
+            case ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES:
+            case ArchiveDiff.COMMAND_COPY:
+                return base;
+            case ArchiveDiff.COMMAND_REPLACE:
+                return new Content(null, command.payload, null);
+            case ArchiveDiff.COMMAND_PATCH:
+            case ArchiveDiff.COMMAND_PATCH_FROM:
+                return applyDelta(base, command);
+            default:
+                return applyNestedDiff(base, command);
+        }
+    }
+
+    private Content applyDelta(Content base, Command command) throws IOException, ArchiveDiffException, ArchiveException {
+        DeltaEngine deltaEngine = command.deltaEngine;
+        if (base.sourcePath == null) {
+            return new Content(null, computePayload(out -> {
+                try (SeekableSource data = payloads.openSeekableData(base.payload); InputStream delta = payloads.openData(command.payload)) {
+                    deltaEngine.applyDelta(data, delta, out);
+                }
+            }), null);
+        } else if (base.payload == null) {
+            return new Content(base.sourcePath, command.payload, deltaEngine);
+        } else if (base.isNestedDiff()) {
+            throw new ArchiveDiffException("Binary patch of an entry patched as nested archive can't be composed: " + command.path);
+        } else if (base.deltaEngine.getId() != deltaEngine.getId()) {
+            throw new ArchiveDiffException(String.format(
+                    "Patches computed by different delta engines (%s and %s) can't be composed: %s", base.deltaEngine.getName(), deltaEngine.getName(), command.path));
+        }
+        boolean[] supported = new boolean[1];
+        String payload = computePayload(out -> {
+            try (SeekableSource firstDelta = payloads.openSeekableData(base.payload); InputStream secondDelta = payloads.openData(command.payload)) {
+                supported[0] = deltaEngine.composeDeltas(firstDelta, secondDelta, out);
+            }
+        });
+        if (!supported[0]) {
+            throw new ArchiveDiffException(String.format("Patches computed by %s can't be composed: %s", deltaEngine.getName(), command.path));
+        }
+        return new Content(base.sourcePath, payload, deltaEngine);
+    }
+
+    private Content applyNestedDiff(Content base, Command command) throws IOException, ArchiveDiffException, ArchiveException {
+        if (base.sourcePath == null) {
+            return new Content(null, computePayload(out -> {
+                try (InputStream data = payloads.openData(base.payload); InputStream diff = payloads.openData(command.payload)) {
+                    ArchiveDiff.applyDiff(new BufferedInputStream(data), diff, out, assumeOrdering, utils.getNestedDiffOptions());
+                }
+            }), null);
+        } else if (base.payload == null) {
+            return new Content(base.sourcePath, command.payload, null);
+        } else if (!base.isNestedDiff()) {
+            throw new ArchiveDiffException("Nested archive patch of a binary patched entry can't be composed: " + command.path);
+        }
+        String archiveType = ArchiveDiff.getArchiverType(utils.createNewArchiveEntry(command.path, 0));
+        if (archiveType == null) {
+            throw new ArchiveDiffFormatException("Unsupported nested archive type: " + command.path);
+        }
+        ArchiveDiff<?> nestedUtils = ArchiveDiff.getInstance("jar".equals(archiveType) ? "zip" : archiveType, utils.getNestedDiffOptions());
+        return new Content(base.sourcePath, computePayload(out -> {
+            try (InputStream firstDiff = payloads.openData(base.payload); InputStream secondDiff = payloads.openData(command.payload)) {
+                nestedUtils.composeDiffsImpl(firstDiff, secondDiff, out, assumeOrdering);
+            }
+        }), null);
+    }
+
+    /** Builds command that produces given content - creating the entry, or modifying the entry with the same path in A. */
+    private Command toCommand(String path, Content content, boolean creation, long length, byte[] checksum, byte[] attributes) {
+        Command command = new Command();
+        command.path = path;
+        command.length = length;
+        command.checksum = checksum;
+        command.attributes = attributes;
+        command.payload = content.payload;
+        command.deltaEngine = content.deltaEngine;
+        if (creation) {
+            command.sourcePath = content.sourcePath;
+        }
+        if (content.sourcePath == null) {
+            command.command = creation ? ArchiveDiff.COMMAND_ADD : ArchiveDiff.COMMAND_REPLACE;
+            command.length = payloads.getDataLength(content.payload);
+        } else if (content.payload == null) {
+            command.command = creation ? ArchiveDiff.COMMAND_COPY : ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES;
+            if (!creation) {
+                command.checksum = null;
+            }
+        } else if (content.deltaEngine != null) {
+            command.command = creation ? ArchiveDiff.COMMAND_PATCH_FROM : ArchiveDiff.COMMAND_PATCH;
+        } else {
+            command.command = creation ? ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM : ArchiveDiff.COMMAND_ARCHIVE_PATCH;
+        }
+        return command;
+    }
+
+    private static Command removeCommand(String path) {
+        Command command = new Command();
+        command.command = ArchiveDiff.COMMAND_REMOVE;
+        command.path = path;
+        return command;
+    }
+
+    private void writeCommands(PathCommands pathCommands) throws IOException, ArchiveDiffException, ArchiveException {
+        if (pathCommands.remove != null) {
+            writeCommand(pathCommands.remove);
+        }
+        if (pathCommands.command != null) {
+            writeCommand(pathCommands.command);
+        }
+    }
+
+    private void writeCommand(Command command) throws IOException, ArchiveDiffException, ArchiveException {
+        if (command.sourcePath != null && !isModification(command.command)) {
+            retainedPaths.add(command.sourcePath);
+        }
+        commandQueue.write(out -> {
+            long payloadLength = command.payload != null ? payloads.getDataLength(command.payload) : 0;
+            boolean longLengths = utils.requiresLongLengths(command.length, payloadLength);
+            if (command.deltaEngine != null) {
+                utils.writeCommand(command.command, longLengths, command.deltaEngine, out);
+            } else {
+                utils.writeCommand(command.command, longLengths, out);
+            }
+            utils.writeString(command.path, out);
+            if (command.command == ArchiveDiff.COMMAND_REMOVE) {
+                return true;
+            }
+            if (command.sourcePath != null) {
+                utils.writeString(command.sourcePath, out);
+            }
+            utils.writeLength(command.length, longLengths, out);
+            if (command.checksum != null) {
+                out.write(command.checksum);
+            }
+            out.write(command.attributes);
+            if (command.deltaEngine != null) {
+                utils.writeDeltaEngine(command.deltaEngine, out);
+            }
+            if (command.payload != null) {
+                if (command.command != ArchiveDiff.COMMAND_ADD && command.command != ArchiveDiff.COMMAND_REPLACE) {
+                    utils.writeLength(payloadLength, longLengths, out);
+                }
+                try (InputStream data = payloads.openData(command.payload)) {
+                    IOUtils.copy(data, out);
+                }
+            }
+            return true;
+        });
+    }
+
+    /** Writes the header, retained entries and buffered commands, framed the same way as computed diffs. */
+    private void writeDiff(SpillingOutputStream commandBuffer, DiffIndexingOutputStream indexingCommandStream) throws IOException, ArchiveDiffException, ArchiveException {
+        composed.write(ArchiveDiff.HEADER.getBytes("ASCII"));
+        BlockCompressingOutputStream compressedDiff =
+                utils.getOptions().getCompression() != DiffCompression.NONE ? new BlockCompressingOutputStream(composed, utils.getOptions()) : null;
+        DiffIndexingOutputStream indexingDiffStream = new DiffIndexingOutputStream(compressedDiff != null ? compressedDiff : composed);
+        CheckedOutputStream checkedDiffStream = new CheckedOutputStream(indexingDiffStream, new CRC32());
+        DataOutputStream diffStream = new DataOutputStream(checkedDiffStream);
+
+        DiffCommandQueue retainQueue = new DiffCommandQueue(indexingDiffStream, checkedDiffStream, diffStream, ArchiveDiffOptions.DEFAULT);
+        for (String path : retainedPaths) {
+            retainQueue.write(out -> { utils.writeEntryRetained(path, out); return true; });
+        }
+
+        long commandBufferOffset = indexingDiffStream.getPosition();
+        commandBuffer.writeTo(diffStream);
+
+        diffStream.writeByte(0);
+        if (compressedDiff != null) {
+            diffStream.flush();
+            compressedDiff.finish();
+        }
+
+        if (utils.getOptions().isIndex()) {
+            List<DiffIndex.Entry> indexEntries = new ArrayList<>(indexingDiffStream.getEntries());
+            for (DiffIndex.Entry entry : indexingCommandStream.getEntries()) {
+                indexEntries.add(entry.withOffset(commandBufferOffset + entry.getOffset()));
+            }
+            new DiffIndex(indexEntries).write(composed);
+        }
+    }
+
+    private String storePayload(InputStream data) throws IOException {
+        String key = String.valueOf(payloadCount++);
+        payloads.put(key, utils.createNewArchiveEntry(key, 0), data);
+        return key;
+    }
+
+    private String computePayload(PayloadWriter writer) throws IOException, ArchiveDiffException, ArchiveException {
+        try (SpillingOutputStream buffer = new SpillingOutputStream(utils.getOptions().getMemoryBudget(), utils.getOptions().getTempDirectory())) {
+            writer.write(buffer);
+            try (InputStream data = buffer.openInputStream()) {
+                return storePayload(data);
+            }
+        }
+    }
+
+    /** First list is written without its terminating zero, so attributes of the second list are applied on top of it. */
+    private static byte[] concatAttributes(byte[] first, byte[] second) {
+        byte[] attributes = Arrays.copyOf(first, first.length - 1 + second.length);
+        System.arraycopy(second, 0, attributes, first.length - 1, second.length);
+        return attributes;
+    }
+
+    private static boolean isCreation(byte command) {
+        return command == ArchiveDiff.COMMAND_ADD ||
+                command == ArchiveDiff.COMMAND_COPY ||
+                command == ArchiveDiff.COMMAND_PATCH_FROM ||
+                command == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM;
+    }
+
+    private static boolean isModification(byte command) {
+        return command == ArchiveDiff.COMMAND_REPLACE ||
+                command == ArchiveDiff.COMMAND_PATCH ||
+                command == ArchiveDiff.COMMAND_ARCHIVE_PATCH ||
+                command == ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES;
+    }
+
+    /** Reads commands of a single diff, skipping retained entries (they are listed anew in the composed diff). */
+    private class DiffReader {
+
+        private final CheckedInputStream checkedDiffStream;
+        private final CountingInputStream countingDiffStream;
+        private final DataInputStream diffStream;
+
+        DiffReader(InputStream diff) throws IOException, ArchiveDiffException {
+            checkedDiffStream = new CheckedInputStream(ArchiveDiff.readDiffHeader(diff, utils.getOptions()), new CRC32());
+            countingDiffStream = new CountingInputStream(checkedDiffStream);
+            diffStream = new DataInputStream(countingDiffStream);
+        }
+
+        /** @return null at the end of the diff */
+        Command readCommand() throws IOException, ArchiveDiffException {
+            while (true) {
+                checkedDiffStream.getChecksum().reset();
+                byte commandByte = diffStream.readByte();
+                if (commandByte == 0) {
+                    return null;
+                }
+                boolean longLengths = (commandByte & ArchiveDiff.FLAG_LONG_LENGTHS) != 0;
+                boolean customDeltaEngine = (commandByte & ArchiveDiff.FLAG_DELTA_ENGINE) != 0;
+                boolean chunked = (commandByte & ArchiveDiff.FLAG_CHUNKED) != 0;
+
+                Command command = new Command();
+                command.command = (byte) (commandByte & ~(ArchiveDiff.FLAG_LONG_LENGTHS | ArchiveDiff.FLAG_DELTA_ENGINE | ArchiveDiff.FLAG_CHUNKED));
+                command.path = utils.readString(diffStream);
+                if (command.command == ArchiveDiff.COMMAND_RETAIN) {
+                    validateChecksum();
+                    continue;
+                } else if (command.command != ArchiveDiff.COMMAND_REMOVE) {
+                    readCommandBody(command, longLengths, customDeltaEngine, chunked);
+                }
+                validateChecksum();
+                return command;
+            }
+        }
+
+        private void readCommandBody(Command command, boolean longLengths, boolean customDeltaEngine, boolean chunked) throws IOException, ArchiveDiffException {
+            if (command.command < ArchiveDiff.COMMAND_ADD || command.command > ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM) {
+                throw new ArchiveDiffException("Unexpected command: " + command.command);
+            }
+            if (command.command == ArchiveDiff.COMMAND_COPY || command.command == ArchiveDiff.COMMAND_PATCH_FROM || command.command == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM) {
+                command.sourcePath = utils.readString(diffStream);
+            }
+            command.length = utils.readLength(longLengths, diffStream);
+
+            // checksum and attributes are only passed along, so they are kept as written
+            GenArchiveEntry entry = utils.createNewArchiveEntry(command.path, command.length);
+            ByteArrayOutputStream rawBytes = new ByteArrayOutputStream();
+            DataInputStream rawStream = new DataInputStream(new TeeInputStream(diffStream, rawBytes));
+            if (command.command != ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES) {
+                utils.readEntryChecksum(entry, rawStream);
+                command.checksum = rawBytes.toByteArray();
+                rawBytes.reset();
+            }
+            utils.readAttributes(entry, rawStream);
+            command.attributes = rawBytes.toByteArray();
+
+            if (command.command == ArchiveDiff.COMMAND_PATCH || command.command == ArchiveDiff.COMMAND_PATCH_FROM) {
+                command.deltaEngine = utils.readDeltaEngine(customDeltaEngine, diffStream);
+            }
+
+            if (command.command == ArchiveDiff.COMMAND_ADD || command.command == ArchiveDiff.COMMAND_REPLACE) {
+                command.payload = storePayload(new BoundedInputStream(diffStream, command.length));
+                if (payloads.getDataLength(command.payload) != command.length) {
+                    throw new EOFException(String.format("Unexpected end of diff - expected %d bytes of entry data", command.length));
+                }
+            } else if (chunked) {
+                try (InputStream payload = new ChunkedInputStream(diffStream)) {
+                    command.payload = storePayload(payload);
+                }
+            } else if (command.command != ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES && command.command != ArchiveDiff.COMMAND_COPY) {
+                long payloadLength = utils.readLength(longLengths, diffStream);
+                command.payload = storePayload(new BoundedInputStream(diffStream, payloadLength));
+                if (payloads.getDataLength(command.payload) != payloadLength) {
+                    throw new EOFException(String.format("Unexpected end of diff - expected %d bytes of patch", payloadLength));
+                }
+            }
+        }
+
+        private void validateChecksum() throws IOException, ArchiveDiffCorruptedException {
+            long checksum = checkedDiffStream.getChecksum().getValue();
+            long expectedChecksum = diffStream.readLong();
+            if (checksum != expectedChecksum) {
+                throw new ArchiveDiffCorruptedException("Checksum mismatch at offset " + countingDiffStream.getBytesRead());
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,104 @@
+package org.rogach.ardiff;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Receives events of compute and apply operations, see {@link ArchiveDiffOptions#withListener}.
+ * Nested archives are diffed and patched by operations of their own, so events of their entries are reported
+ * with nesting depth greater than zero (top-level archive has depth 0).
+ *
+ * Methods may be called concurrently from worker threads, and are called while the operation is running -
+ * so they should be quick and thread-safe. All methods do nothing by default.
+ */
+public interface ArchiveDiffListener {
+
+    /**
+     * Kinds of per-entry work. Times are measured per entry, on the thread that does the work,
+     * so with parallelism total time of a phase can exceed the duration of the operation.
+     * When diffs are applied in sorted mode, data of "before" entries is decompressed while it is being copied
+     * or patched into the result, so decompression is counted as part of PATCH and RECOMPRESS phases there.
+     */
+    enum Phase {
+        /** Reading entry data out of input archives. */
+        DECOMPRESS,
+        /** Computing deltas of changed entries. */
+        DELTA,
+        /** Applying deltas of patched entries. */
+        PATCH,
+        /** Writing entries into the resulting archive. */
+        RECOMPRESS
+    }
+
+    /**
+     * Called when compute or apply operation completes successfully.
+     *
+     * @param operation "compute", "compute batch" or "apply"
+     * @param peakBufferedBytes largest amount of data held in memory at once by entry stores and buffered diff commands
+     *                          of the top-level operation (including its nested operations) up to this point
+     */
+    default void operationFinished(String operation, long wallNanos, long peakBufferedBytes, int depth) {}
+
+    /**
+     * Called for every command of a computed diff, once the diff is written.
+     *
+     * @param command command name, as listed by {@link DiffIndex.Entry#getCommandName()}
+     * @param length length of the command in the diff, including nested diff of archive patches
+     */
+    default void commandWritten(String command, String path, long length, int depth) {}
+
+    /**
+     * Called for every command read from the diff, once it is applied (patches may still run in the background).
+     * In unsorted mode diffs of nested archives are applied while computing, so compute reports such commands too.
+     */
+    default void commandApplied(String command, String path, long length, int depth) {}
+
+    /** Called when delta of entry data is computed, whether or not it ends up in the diff. */
+    default void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {}
+
+    /** @param cpuNanos CPU time of the thread, or -1 if JVM doesn't measure it */
+    default void phaseFinished(Phase phase, String path, long wallNanos, long cpuNanos, int depth) {}
+
+    /** Forwards events to all given listeners, in order. */
+    static ArchiveDiffListener combine(ArchiveDiffListener... listeners) {
+        List<ArchiveDiffListener> targets = new ArrayList<>(Arrays.asList(listeners));
+        return new ArchiveDiffListener() {
+            @Override
+            public void operationFinished(String operation, long wallNanos, long peakBufferedBytes, int depth) {
+                for (ArchiveDiffListener listener : targets) {
+                    listener.operationFinished(operation, wallNanos, peakBufferedBytes, depth);
+                }
+            }
+
+            @Override
+            public void commandWritten(String command, String path, long length, int depth) {
+                for (ArchiveDiffListener listener : targets) {
+                    listener.commandWritten(command, path, length, depth);
+                }
+            }
+
+            @Override
+            public void commandApplied(String command, String path, long length, int depth) {
+                for (ArchiveDiffListener listener : targets) {
+                    listener.commandApplied(command, path, length, depth);
+                }
+            }
+
+            @Override
+            public void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {
+                for (ArchiveDiffListener listener : targets) {
+                    listener.deltaComputed(path, sourceLength, targetLength, deltaLength, depth);
+                }
+            }
+
+            @Override
+            public void phaseFinished(Phase phase, String path, long wallNanos, long cpuNanos, int depth) {
+                for (ArchiveDiffListener listener : targets) {
+                    listener.phaseFinished(phase, path, wallNanos, cpuNanos, depth);
+                }
+            }
+        };
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.rogach.ardiff;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Listener that aggregates events of all operations it is used for: count and bytes of diff commands by command name,
+ * time spent in each phase, sizes of computed deltas, maximal nesting depth and peak buffered data.
+ * Like {@link PatchPredictionStats}, it is mutable and thread-safe.
+ */
+public class ArchiveDiffMetrics implements ArchiveDiffListener {
+
+    private final Map<String, long[]> commandsWritten = new TreeMap<>();
+    private final Map<String, long[]> commandsApplied = new TreeMap<>();
+    private final Map<Phase, long[]> phases = new EnumMap<>(Phase.class);
+    private long deltaCount = 0;
+    private long deltaTargetBytes = 0;
+    private long deltaBytes = 0;
+    private long operationCount = 0;
+    private long operationNanos = 0;
+    private int maxDepth = 0;
+    private long peakBufferedBytes = 0;
+
+    @Override
+    public synchronized void operationFinished(String operation, long wallNanos, long peakBufferedBytes, int depth) {
+        if (depth == 0) {
+            operationCount++;
+            operationNanos += wallNanos;
+        }
+        this.maxDepth = Math.max(this.maxDepth, depth);
+        this.peakBufferedBytes = Math.max(this.peakBufferedBytes, peakBufferedBytes);
+    }
+
+    @Override
+    public synchronized void commandWritten(String command, String path, long length, int depth) {
+        record(commandsWritten, command, length);
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    @Override
+    public synchronized void commandApplied(String command, String path, long length, int depth) {
+        record(commandsApplied, command, length);
+        maxDepth = Math.max(maxDepth, depth);
+    }
+
+    @Override
+    public synchronized void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {
+        deltaCount++;
+        deltaTargetBytes += targetLength;
+        deltaBytes += deltaLength;
+    }
+
+    @Override
+    public synchronized void phaseFinished(Phase phase, String path, long wallNanos, long cpuNanos, int depth) {
+        long[] times = phases.computeIfAbsent(phase, p -> new long[2]);
+        times[0] += wallNanos;
+        times[1] += Math.max(0, cpuNanos);
+    }
+
+    private static void record(Map<String, long[]> commands, String command, long length) {
+        long[] counts = commands.computeIfAbsent(command, c -> new long[2]);
+        counts[0]++;
+        counts[1] += length;
+    }
+
+    public synchronized long getCommandsWritten(String command) {
+        return commandsWritten.getOrDefault(command, new long[2])[0];
+    }
+
+    public synchronized long getBytesWritten(String command) {
+        return commandsWritten.getOrDefault(command, new long[2])[1];
+    }
+
+    public synchronized long getCommandsApplied(String command) {
+        return commandsApplied.getOrDefault(command, new long[2])[0];
+    }
+
+    public synchronized long getBytesApplied(String command) {
+        return commandsApplied.getOrDefault(command, new long[2])[1];
+    }
+
+    /** Wall time of the phase, summed over all entries and threads. */
+    public synchronized long getPhaseWallNanos(Phase phase) {
+        return phases.getOrDefault(phase, new long[2])[0];
+    }
+
+    /** CPU time of the phase, summed over all entries and threads. */
+    public synchronized long getPhaseCpuNanos(Phase phase) {
+        return phases.getOrDefault(phase, new long[2])[1];
+    }
+
+    public synchronized long getDeltaCount() {
+        return deltaCount;
+    }
+
+    /** Total size of computed deltas relative to total size of data they encode, 0 if no deltas were computed. */
+    public synchronized double getDeltaRatio() {
+        return deltaTargetBytes == 0 ? 0 : (double) deltaBytes / deltaTargetBytes;
+    }
+
+    /** Number of top-level operations. */
+    public synchronized long getOperationCount() {
+        return operationCount;
+    }
+
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public synchronized long getPeakBufferedBytes() {
+        return peakBufferedBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("Operations: %d, %d ms, max nesting depth %d, peak buffered %d bytes%n",
+                operationCount, operationNanos / 1000000, maxDepth, peakBufferedBytes));
+        appendCommands(report, "written", commandsWritten);
+        appendCommands(report, "applied", commandsApplied);
+        for (Map.Entry<Phase, long[]> phase : phases.entrySet()) {
+            report.append(String.format("Phase %-10s %8d ms wall, %8d ms cpu%n",
+                    phase.getKey().name().toLowerCase(), phase.getValue()[0] / 1000000, phase.getValue()[1] / 1000000));
+        }
+        report.append(String.format("Deltas: %d, %d bytes encoding %d bytes (ratio %.3f)", deltaCount, deltaBytes, deltaTargetBytes, getDeltaRatio()));
+        return report.toString();
+    }
+
+    private static void appendCommands(StringBuilder report, String direction, Map<String, long[]> commands) {
+        for (Map.Entry<String, long[]> command : commands.entrySet()) {
+            report.append(String.format("Commands %s: %-18s %8d commands, %12d bytes%n",
+                    direction, command.getKey(), command.getValue()[0], command.getValue()[1]));
+        }
+    }
+
+}
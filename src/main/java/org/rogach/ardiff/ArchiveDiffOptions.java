@@ -0,0 +1,396 @@
+package org.rogach.ardiff;
+
+import org.rogach.ardiff.delta.DeltaEngine;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tuning knobs for compute/apply/sort.
+ * Instances are immutable - every "with" method returns modified copy, so a single instance
+ * can be safely shared between nested archive levels and concurrent jobs.
+ */
+public class ArchiveDiffOptions implements Cloneable {
+
+    public static final ArchiveDiffOptions DEFAULT = new ArchiveDiffOptions();
+
+    private int parallelism = 1;
+    private ForkJoinPool executor = null;
+    private long memoryBudget = Runtime.getRuntime().maxMemory() / 8;
+    private long largeEntryThreshold = 64L * 1024 * 1024;
+    private File tempDirectory = null;
+    private boolean detectCopies = true;
+    private boolean detectSimilarEntries = true;
+    private DeltaEngine deltaEngine = DeltaEngine.GDIFF;
+    private Map<String, DeltaEngine> deltaEnginesBySuffix = Collections.emptyMap();
+    private boolean patchPrediction = true;
+    private PatchPredictionStats patchPredictionStats = null;
+    private DiffCompression compression = DiffCompression.NONE;
+    private int compressionBlockSize = 4 * 1024 * 1024;
+    private boolean index = false;
+    private int gzipBlockSize = 0;
+    private int xzBlockSize = 0;
+    private NestedArchiveCache nestedArchiveCache = null;
+    private DiffCache diffCache = null;
+    private ArchiveDiffListener listener = null;
+    private int nestingDepth = 0;
+    private BufferGauge bufferGauge = null;
+
+    /** Number of worker threads used for per-entry work. 1 means everything runs on the calling thread. */
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public ArchiveDiffOptions withParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+        }
+        ArchiveDiffOptions options = copy();
+        options.parallelism = parallelism;
+        return options;
+    }
+
+    /**
+     * Pool for per-entry work. If not set and parallelism is greater than 1,
+     * a pool is created for the duration of a single top-level operation.
+     */
+    public ForkJoinPool getExecutor() {
+        return executor;
+    }
+
+    public ArchiveDiffOptions withExecutor(ForkJoinPool executor) {
+        ArchiveDiffOptions options = copy();
+        options.executor = executor;
+        return options;
+    }
+
+    /**
+     * Approximate upper bound on entry data that can be buffered in memory at once by each buffer of an operation
+     * (e.g. entry stores, delta source index, buffered diff commands). Data over this budget is spilled to temporary files.
+     * Defaults to an eighth of maximum heap size, so that default options don't run out of memory on archives larger than heap.
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public ArchiveDiffOptions withMemoryBudget(long memoryBudget) {
+        if (memoryBudget < 0) {
+            throw new IllegalArgumentException("Memory budget can't be negative: " + memoryBudget);
+        }
+        ArchiveDiffOptions options = copy();
+        options.memoryBudget = memoryBudget;
+        return options;
+    }
+
+    /**
+     * Entries with data larger than this are never loaded into heap arrays, regardless of memory budget.
+     * Their data is kept in temporary files, and deltas are computed incrementally over file-backed data.
+     */
+    public long getLargeEntryThreshold() {
+        return largeEntryThreshold;
+    }
+
+    public ArchiveDiffOptions withLargeEntryThreshold(long largeEntryThreshold) {
+        if (largeEntryThreshold < 0) {
+            throw new IllegalArgumentException("Large entry threshold can't be negative: " + largeEntryThreshold);
+        }
+        ArchiveDiffOptions options = copy();
+        options.largeEntryThreshold = largeEntryThreshold;
+        return options;
+    }
+
+    /** Directory for temporary files, null means system default. */
+    public File getTempDirectory() {
+        return tempDirectory;
+    }
+
+    public ArchiveDiffOptions withTempDirectory(File tempDirectory) {
+        ArchiveDiffOptions options = copy();
+        options.tempDirectory = tempDirectory;
+        return options;
+    }
+
+    /**
+     * If set, added entries whose data is identical to some preceding entry of the "before" archive
+     * are encoded as references to that entry instead of shipping the data again.
+     */
+    public boolean isDetectCopies() {
+        return detectCopies;
+    }
+
+    public ArchiveDiffOptions withDetectCopies(boolean detectCopies) {
+        ArchiveDiffOptions options = copy();
+        options.detectCopies = detectCopies;
+        return options;
+    }
+
+    /**
+     * If set, added entries are delta-encoded against the most similar preceding entry of the "before" archive
+     * (preferring entries with the same name up to version numbers), if that makes the diff smaller.
+     * Data of candidate entries is kept until the end of computation, subject to memory budget.
+     */
+    public boolean isDetectSimilarEntries() {
+        return detectSimilarEntries;
+    }
+
+    public ArchiveDiffOptions withDetectSimilarEntries(boolean detectSimilarEntries) {
+        ArchiveDiffOptions options = copy();
+        options.detectSimilarEntries = detectSimilarEntries;
+        return options;
+    }
+
+    /** Delta engine for patches of entries that have no engine configured for their name suffix. */
+    public DeltaEngine getDeltaEngine() {
+        return deltaEngine;
+    }
+
+    public ArchiveDiffOptions withDeltaEngine(DeltaEngine deltaEngine) {
+        ArchiveDiffOptions options = copy();
+        options.deltaEngine = deltaEngine;
+        return options;
+    }
+
+    /**
+     * Sets delta engine for entries with names ending with given suffix (e.g. ".so"),
+     * if several configured suffixes match, the longest one wins.
+     */
+    public ArchiveDiffOptions withDeltaEngine(String nameSuffix, DeltaEngine deltaEngine) {
+        ArchiveDiffOptions options = copy();
+        Map<String, DeltaEngine> deltaEngines = new LinkedHashMap<>(deltaEnginesBySuffix);
+        deltaEngines.put(nameSuffix, deltaEngine);
+        options.deltaEnginesBySuffix = Collections.unmodifiableMap(deltaEngines);
+        return options;
+    }
+
+    public DeltaEngine getDeltaEngine(String entryName) {
+        DeltaEngine engine = deltaEngine;
+        int matchedSuffixLength = -1;
+        for (Map.Entry<String, DeltaEngine> suffixEngine : deltaEnginesBySuffix.entrySet()) {
+            if (entryName.endsWith(suffixEngine.getKey()) && suffixEngine.getKey().length() > matchedSuffixLength) {
+                engine = suffixEngine.getValue();
+                matchedSuffixLength = suffixEngine.getKey().length();
+            }
+        }
+        return engine;
+    }
+
+    /** Looks up delta engine for reading diffs among configured and built-in engines, returns null if there is none. */
+    public DeltaEngine findDeltaEngine(byte id) {
+        for (DeltaEngine engine : deltaEnginesBySuffix.values()) {
+            if (engine.getId() == id) {
+                return engine;
+            }
+        }
+        if (deltaEngine.getId() == id) {
+            return deltaEngine;
+        }
+        for (DeltaEngine engine : DeltaEngine.builtInEngines()) {
+            if (engine.getId() == id) {
+                return engine;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * If set, deltas of changed entries that look already compressed are not computed when {@link PatchPredictor}
+     * estimates that they would be too large to be used, and such entries are replaced right away.
+     */
+    public boolean isPatchPrediction() {
+        return patchPrediction;
+    }
+
+    public ArchiveDiffOptions withPatchPrediction(boolean patchPrediction) {
+        ArchiveDiffOptions options = copy();
+        options.patchPrediction = patchPrediction;
+        return options;
+    }
+
+    /**
+     * Collector of patch prediction outcomes, null means that outcomes are not tracked.
+     * Unlike other options, it is mutable and accumulates results of all operations it is used for.
+     */
+    public PatchPredictionStats getPatchPredictionStats() {
+        return patchPredictionStats;
+    }
+
+    public ArchiveDiffOptions withPatchPredictionStats(PatchPredictionStats patchPredictionStats) {
+        ArchiveDiffOptions options = copy();
+        options.patchPredictionStats = patchPredictionStats;
+        return options;
+    }
+
+    /**
+     * Compression of computed diffs. Diffs are compressed in independent blocks, which are compressed and decompressed
+     * on worker threads when parallelism is greater than 1. Compressed diffs are recognized automatically when applying.
+     */
+    public DiffCompression getCompression() {
+        return compression;
+    }
+
+    public ArchiveDiffOptions withCompression(DiffCompression compression) {
+        ArchiveDiffOptions options = copy();
+        options.compression = compression;
+        return options;
+    }
+
+    /** Size of independently compressed diff blocks, larger blocks compress better but give less parallelism. */
+    public int getCompressionBlockSize() {
+        return compressionBlockSize;
+    }
+
+    public ArchiveDiffOptions withCompressionBlockSize(int compressionBlockSize) {
+        if (compressionBlockSize < 1) {
+            throw new IllegalArgumentException("Compression block size must be positive: " + compressionBlockSize);
+        }
+        ArchiveDiffOptions options = copy();
+        options.compressionBlockSize = compressionBlockSize;
+        return options;
+    }
+
+    /**
+     * If set, computed diffs end with {@link DiffIndex} - location of every command in the diff,
+     * which allows to inspect diffs and apply them partially without reading them whole.
+     */
+    public boolean isIndex() {
+        return index;
+    }
+
+    public ArchiveDiffOptions withIndex(boolean index) {
+        ArchiveDiffOptions options = copy();
+        options.index = index;
+        return options;
+    }
+
+    /**
+     * If positive, gzip-compressed archives (tar.gz) are written by {@link ParallelGzipOutputStream} in blocks of this size,
+     * which are compressed on worker threads when parallelism is greater than 1. Output depends on block size,
+     * but not on parallelism. If zero (default), archives are written by a single deflater.
+     */
+    public int getGzipBlockSize() {
+        return gzipBlockSize;
+    }
+
+    public ArchiveDiffOptions withGzipBlockSize(int gzipBlockSize) {
+        if (gzipBlockSize < 0) {
+            throw new IllegalArgumentException("Gzip block size can't be negative: " + gzipBlockSize);
+        }
+        ArchiveDiffOptions options = copy();
+        options.gzipBlockSize = gzipBlockSize;
+        return options;
+    }
+
+    /**
+     * If positive, xz-compressed archives (tar.xz) are written by {@link ParallelXzOutputStream} as independent blocks
+     * of this size, which are compressed on worker threads when parallelism is greater than 1. Block headers of such
+     * archives record block sizes, so reading them is parallel too. If zero (default), archives are written as a single block.
+     */
+    public int getXzBlockSize() {
+        return xzBlockSize;
+    }
+
+    public ArchiveDiffOptions withXzBlockSize(int xzBlockSize) {
+        if (xzBlockSize < 0) {
+            throw new IllegalArgumentException("Xz block size can't be negative: " + xzBlockSize);
+        }
+        ArchiveDiffOptions options = copy();
+        options.xzBlockSize = xzBlockSize;
+        return options;
+    }
+
+    /**
+     * Cache of computed diffs, null means that nothing is cached. Like patch prediction stats, it is mutable
+     * and shared by all operations it is used for - see {@link DiffCache}.
+     */
+    public DiffCache getDiffCache() {
+        return diffCache;
+    }
+
+    public ArchiveDiffOptions withDiffCache(DiffCache diffCache) {
+        ArchiveDiffOptions options = copy();
+        options.diffCache = diffCache;
+        return options;
+    }
+
+    /**
+     * Receiver of per-command, per-entry and per-operation events of compute and apply, null means no events are reported.
+     * {@link ArchiveDiffMetrics} aggregates them, {@link JsonLinesListener} and {@code JfrArchiveDiffListener} export them.
+     */
+    public ArchiveDiffListener getListener() {
+        return listener;
+    }
+
+    public ArchiveDiffOptions withListener(ArchiveDiffListener listener) {
+        ArchiveDiffOptions options = copy();
+        options.listener = listener;
+        return options;
+    }
+
+    /** Nesting depth of archives processed with these options, 0 for top-level archives. */
+    int getNestingDepth() {
+        return nestingDepth;
+    }
+
+    ArchiveDiffOptions withNestingDepth(int nestingDepth) {
+        ArchiveDiffOptions options = copy();
+        options.nestingDepth = nestingDepth;
+        return options;
+    }
+
+    /** Tracks entry data buffered by the operation, set only when there is a listener to report it to. */
+    BufferGauge getBufferGauge() {
+        return bufferGauge;
+    }
+
+    ArchiveDiffOptions withBufferGauge(BufferGauge bufferGauge) {
+        ArchiveDiffOptions options = copy();
+        options.bufferGauge = bufferGauge;
+        return options;
+    }
+
+    /** Settings that affect computed diffs (and archives reconstructed by nested apply), as a part of {@link DiffCache} keys. */
+    String getDiffSettings() {
+        StringBuilder settings = new StringBuilder();
+        settings.append("largeEntryThreshold=").append(largeEntryThreshold)
+                .append(",detectCopies=").append(detectCopies)
+                .append(",detectSimilarEntries=").append(detectSimilarEntries)
+                .append(",deltaEngine=").append(deltaEngine.getId());
+        for (Map.Entry<String, DeltaEngine> suffixEngine : deltaEnginesBySuffix.entrySet()) {
+            settings.append(",deltaEngine[").append(suffixEngine.getKey()).append("]=").append(suffixEngine.getValue().getId());
+        }
+        settings.append(",patchPrediction=").append(patchPrediction)
+                .append(",patchPredictionStats=").append(patchPredictionStats != null)
+                .append(",compression=").append(compression.getId())
+                .append(",compressionBlockSize=").append(compressionBlockSize)
+                .append(",index=").append(index)
+                .append(",gzipBlockSize=").append(gzipBlockSize)
+                .append(",xzBlockSize=").append(xzBlockSize);
+        return settings.toString();
+    }
+
+    /**
+     * Archives reconstructed by nested diff-apply during compute, which the apply of the enclosing archive can reuse.
+     * Set only for computing diffs of nested archives, see {@link NestedArchiveCache}.
+     */
+    NestedArchiveCache getNestedArchiveCache() {
+        return nestedArchiveCache;
+    }
+
+    ArchiveDiffOptions withNestedArchiveCache(NestedArchiveCache nestedArchiveCache) {
+        ArchiveDiffOptions options = copy();
+        options.nestedArchiveCache = nestedArchiveCache;
+        return options;
+    }
+
+    private ArchiveDiffOptions copy() {
+        try {
+            return (ArchiveDiffOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -1,19 +1,26 @@
 package org.rogach.ardiff;
 
-import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.SeekableSource;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
+import org.apache.commons.compress.utils.BoundedInputStream;
 import org.apache.commons.compress.utils.CountingInputStream;
 import org.apache.commons.compress.utils.IOUtils;
+import org.rogach.ardiff.delta.DeltaEngine;
 import org.rogach.ardiff.exceptions.ArchiveDiffCorruptedException;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
 import org.rogach.ardiff.exceptions.ArchiveDiffFormatException;
 
 import java.io.*;
-import java.util.Arrays;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Predicate;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
@@ -25,72 +32,234 @@ public interface ArchiveDiffReader<GenArchiveEntry extends ArchiveEntry>
             InputStream diff,
             OutputStream after
     ) throws ArchiveException, IOException, ArchiveDiffException {
+        applyDiffCommands(before, ArchiveDiff.readDiffHeader(diff, getOptions()), after, path -> true);
+    }
+
+    /**
+     * Applies diff only to selected entries, resulting archive contains only those of them that exist after the diff.
+     * If diff has an index and is not compressed, only commands for selected entries (and entries they take data from)
+     * are read, otherwise the whole diff is applied.
+     */
+    default void applyDiffImpl(
+            InputStream before,
+            SeekableByteChannel diff,
+            OutputStream after,
+            Set<String> paths
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        DiffIndex index = DiffIndex.read(diff);
+        diff.position(0);
+        InputStream commandStream = ArchiveDiff.readDiffHeader(new BufferedInputStream(Channels.newInputStream(diff)), getOptions());
+        if (index == null || commandStream instanceof BlockDecompressingInputStream) {
+            applyDiffCommands(before, commandStream, after, paths::contains);
+            return;
+        }
+
+        Set<String> sourcePaths = new HashSet<>();
+        for (DiffIndex.Entry command : index.getEntries()) {
+            if (paths.contains(command.getPath()) && command.getSourcePath() != null) {
+                sourcePaths.add(command.getSourcePath());
+            }
+        }
+
         ArchiveInputStream archiveStreamBefore = createArchiveInputStream(before);
-        CheckedInputStream checkedDiffStream = new CheckedInputStream(diff, new CRC32());
+        ArchiveOutputStream archiveStreamAfter = createArchiveOutputStream(after);
+
+        try (ArchiveEntryStore<GenArchiveEntry> entries = createEntryStore();
+             ArchiveEntryStore<GenArchiveEntry> retainedEntries = createEntryStore();
+             PatchQueue<GenArchiveEntry> patchQueue = new PatchQueue<>(entries, getOptions())) {
+            GenArchiveEntry entry = getNextEntry(archiveStreamBefore);
+            while (entry != null) {
+                if (paths.contains(entry.getName()) || sourcePaths.contains(entry.getName())) {
+                    entries.put(entry.getName(), entry, timeEntryData(entry, archiveStreamBefore));
+                }
+                entry = getNextEntry(archiveStreamBefore);
+            }
+            Map<String, GenArchiveEntry> entriesBefore = getEntries(entries);
+
+            for (DiffIndex.Entry command : index.getEntries()) {
+                boolean retainedSource = DiffIndex.getCommandType(command.getCommand()) == ArchiveDiff.COMMAND_RETAIN && sourcePaths.contains(command.getPath());
+                if (paths.contains(command.getPath()) || retainedSource) {
+                    diff.position(ArchiveDiff.HEADER.length() + command.getOffset());
+                    InputStream commandData = new BufferedInputStream(new BoundedInputStream(Channels.newInputStream(diff), command.getLength()));
+                    CheckedInputStream checkedDiffStream = new CheckedInputStream(commandData, new CRC32());
+                    CountingInputStream countingDiffStream = new CountingInputStream(checkedDiffStream);
+                    applyCommand(checkedDiffStream, countingDiffStream, new DataInputStream(countingDiffStream), entries, retainedEntries, patchQueue);
+                }
+            }
+            patchQueue.flush();
+
+            writeEntries(archiveStreamAfter, entries, entriesBefore, paths::contains);
+        }
+
+        finishArchiveOutputStream(archiveStreamAfter);
+    }
+
+    /** Applies commands that follow diff header, writes out only entries with selected paths. */
+    default void applyDiffCommands(
+            InputStream before,
+            InputStream commandStream,
+            OutputStream after,
+            Predicate<String> selectedPaths
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        ArchiveInputStream archiveStreamBefore = createArchiveInputStream(before);
+        CheckedInputStream checkedDiffStream = new CheckedInputStream(commandStream, new CRC32());
         CountingInputStream countingDiffStream = new CountingInputStream(checkedDiffStream);
         DataInputStream diffStream = new DataInputStream(countingDiffStream);
 
         ArchiveOutputStream archiveStreamAfter = createArchiveOutputStream(after);
 
-        byte[] header = new byte[8];
-        diffStream.readFully(header);
+        try (ArchiveEntryStore<GenArchiveEntry> entries = createEntryStore();
+             ArchiveEntryStore<GenArchiveEntry> retainedEntries = createEntryStore();
+             PatchQueue<GenArchiveEntry> patchQueue = new PatchQueue<>(entries, getOptions())) {
+            readAllEntries(archiveStreamBefore, entries);
+            Map<String, GenArchiveEntry> entriesBefore = getEntries(entries);
+
+            while (applyCommand(checkedDiffStream, countingDiffStream, diffStream, entries, retainedEntries, patchQueue)) {
+                // keep reading commands until the end of the diff
+            }
+            patchQueue.flush();
 
-        if (!Arrays.equals(header, ArchiveDiff.HEADER.getBytes("ASCII"))) {
-            throw new ArchiveDiffFormatException("Invalid diff stream header");
+            writeEntries(archiveStreamAfter, entries, entriesBefore, selectedPaths);
         }
 
-        HashMap<String, ArchiveEntryWithData<GenArchiveEntry>> entries = readAllEntries(archiveStreamBefore);
+        finishArchiveOutputStream(archiveStreamAfter);
+    }
+
+    /**
+     * Reads a single command with its checksum and applies it to the entries, returns false at the end of the diff.
+     * Patches may still be applied in the background when this returns, see {@link PatchQueue}.
+     */
+    default boolean applyCommand(
+            CheckedInputStream checkedDiffStream,
+            CountingInputStream countingDiffStream,
+            DataInputStream diffStream,
+            ArchiveEntryStore<GenArchiveEntry> entries,
+            ArchiveEntryStore<GenArchiveEntry> retainedEntries,
+            PatchQueue<GenArchiveEntry> patchQueue
+    ) throws ArchiveException, IOException, ArchiveDiffException {
+        checkedDiffStream.getChecksum().reset();
+        long commandOffset = countingDiffStream.getBytesRead();
 
-        do {
-            checkedDiffStream.getChecksum().reset();
+        byte command = diffStream.readByte();
 
-            byte command = diffStream.readByte();
+        if (command == 0) {
+            return false;
+        }
 
-            if (command == 0) {
-                break;
+        boolean longLengths = (command & ArchiveDiff.FLAG_LONG_LENGTHS) != 0;
+        boolean customDeltaEngine = (command & ArchiveDiff.FLAG_DELTA_ENGINE) != 0;
+        boolean chunked = (command & ArchiveDiff.FLAG_CHUNKED) != 0;
+        command &= ~(ArchiveDiff.FLAG_LONG_LENGTHS | ArchiveDiff.FLAG_DELTA_ENGINE | ArchiveDiff.FLAG_CHUNKED);
+
+        String path = readString(diffStream);
+        patchQueue.await(path);
+
+        if (command == ArchiveDiff.COMMAND_ADD) {
+            readEntryAdd(path, longLengths, diffStream, entries);
+        } else if (command == ArchiveDiff.COMMAND_REPLACE) {
+            readEntryReplace(path, longLengths, diffStream, entries);
+        } else if (command == ArchiveDiff.COMMAND_REMOVE) {
+            entries.remove(path);
+        } else if (command == ArchiveDiff.COMMAND_PATCH) {
+            readEntryPatch(path, longLengths, customDeltaEngine, diffStream, entries, patchQueue);
+        } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH) {
+            readEntryArchivePatch(path, longLengths, chunked, diffStream, entries, patchQueue);
+        } else if (command == ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES) {
+            entries.updateEntry(path, readEntryUpdateAttributes(entries.getEntry(path), longLengths, diffStream));
+        } else if (command == ArchiveDiff.COMMAND_COPY) {
+            String sourcePath = readString(diffStream);
+            if (!retainedEntries.contains(sourcePath)) {
+                throw new ArchiveDiffFormatException("Copy source was not retained: " + sourcePath);
             }
-
-            String path = readString(diffStream);
-            ArchiveEntryWithData<GenArchiveEntry> entryBefore = entries.get(path);
-
-            if (command == ArchiveDiff.COMMAND_ADD) {
-                entries.put(path, readEntryAdd(path, diffStream));
-            } else if (command == ArchiveDiff.COMMAND_REPLACE) {
-                entries.put(path, readEntryReplace(entryBefore.entry, diffStream));
-            } else if (command == ArchiveDiff.COMMAND_REMOVE) {
-                entries.remove(path);
-            } else if (command == ArchiveDiff.COMMAND_PATCH) {
-                entries.put(path, readEntryPatch(entryBefore, diffStream));
-            } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH) {
-                entries.put(path, readEntryArchivePatch(entryBefore, diffStream));
-            } else if (command == ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES) {
-                entries.put(path, readEntryUpdateAttributes(entryBefore, diffStream));
+            try (InputStream data = retainedEntries.openData(sourcePath)) {
+                entries.put(path, readEntryCopy(path, longLengths, diffStream), data);
+            }
+        } else if (command == ArchiveDiff.COMMAND_PATCH_FROM || command == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM) {
+            String sourcePath = readString(diffStream);
+            if (!retainedEntries.contains(sourcePath)) {
+                throw new ArchiveDiffFormatException("Patch source was not retained: " + sourcePath);
+            }
+            if (command == ArchiveDiff.COMMAND_PATCH_FROM) {
+                readEntryPatchFrom(path, sourcePath, longLengths, customDeltaEngine, diffStream, retainedEntries, patchQueue);
             } else {
-                throw new ArchiveDiffException("Unexpected command: " + command);
+                readEntryArchivePatchFrom(path, sourcePath, longLengths, diffStream, retainedEntries, patchQueue);
             }
-
-            long checksum = checkedDiffStream.getChecksum().getValue();
-            long expectedChecksum = diffStream.readLong();
-            if (checksum != expectedChecksum) {
-                throw new ArchiveDiffCorruptedException("Checksum mismatch at offset " + countingDiffStream.getBytesRead());
+        } else if (command == ArchiveDiff.COMMAND_RETAIN) {
+            // keep original data, since entry may be modified or removed before it is copied
+            if (!entries.contains(path)) {
+                throw new ArchiveDiffFormatException("Retained entry doesn't exist: " + path);
             }
-        } while (true);
+            try (InputStream data = entries.openData(path)) {
+                retainedEntries.put(path, entries.getEntry(path), data);
+            }
+        } else {
+            throw new ArchiveDiffException("Unexpected command: " + command);
+        }
 
-        for (ArchiveEntryWithData<GenArchiveEntry> entry : entries.values()) {
-            archiveStreamAfter.putArchiveEntry(entry.entry);
-            IOUtils.copy(new ByteArrayInputStream(entry.data), archiveStreamAfter);
-            archiveStreamAfter.closeArchiveEntry();
+        long checksum = checkedDiffStream.getChecksum().getValue();
+        long expectedChecksum = diffStream.readLong();
+        if (checksum != expectedChecksum) {
+            throw new ArchiveDiffCorruptedException("Checksum mismatch at offset " + countingDiffStream.getBytesRead());
         }
 
-        finishArchiveOutputStream(archiveStreamAfter);
+        ArchiveDiffListener listener = getOptions().getListener();
+        if (listener != null) {
+            listener.commandApplied(DiffIndex.getCommandName(command), path, countingDiffStream.getBytesRead() - commandOffset, getOptions().getNestingDepth());
+        }
+
+        return true;
+    }
+
+    default Map<String, GenArchiveEntry> getEntries(ArchiveEntryStore<GenArchiveEntry> entries) {
+        Map<String, GenArchiveEntry> entriesByPath = new HashMap<>();
+        for (String path : entries.paths()) {
+            entriesByPath.put(path, entries.getEntry(path));
+        }
+        return entriesByPath;
+    }
+
+    /**
+     * Commands never modify entries in place, so entries that are still the same objects as in entriesBefore
+     * are known to be unchanged, and their data can be copied without decompressing it.
+     */
+    default void writeEntries(
+            ArchiveOutputStream archiveStreamAfter,
+            ArchiveEntryStore<GenArchiveEntry> entries,
+            Map<String, GenArchiveEntry> entriesBefore,
+            Predicate<String> selectedPaths
+    ) throws IOException {
+        for (String path : entries.paths()) {
+            if (selectedPaths.test(path)) {
+                GenArchiveEntry entry = entries.getEntry(path);
+                PhaseTimer timer = PhaseTimer.start(getOptions());
+                if (entry != entriesBefore.get(path) || !copyRawEntry(entry, entry, archiveStreamAfter)) {
+                    archiveStreamAfter.putArchiveEntry(entry);
+                    try (InputStream data = entries.openData(path)) {
+                        IOUtils.copy(data, archiveStreamAfter);
+                    }
+                    archiveStreamAfter.closeArchiveEntry();
+                }
+                timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, path);
+            }
+        }
     }
 
-    GenArchiveEntry createNewArchiveEntry(String path, int length);
+    /**
+     * Writes entry with data of entryBefore from "before" archive, under the header of entryAfter
+     * (which is entryBefore itself for unchanged entries). Formats that can copy compressed data as is
+     * override this method, so that unchanged data is not decompressed and compressed again.
+     * @return false if entry has to be written from uncompressed data
+     */
+    default boolean copyRawEntry(GenArchiveEntry entryBefore, GenArchiveEntry entryAfter, ArchiveOutputStream archiveStreamAfter) throws IOException {
+        return false;
+    }
+
+    GenArchiveEntry createNewArchiveEntry(String path, long length);
 
-    GenArchiveEntry copyArchiveEntry(GenArchiveEntry orig, int length) throws IOException;
+    GenArchiveEntry copyArchiveEntry(GenArchiveEntry orig, long length) throws IOException;
 
-    default ArchiveEntryWithData<GenArchiveEntry> readEntryAdd(String path, DataInputStream diffStream) throws IOException {
-        int dataLength = diffStream.readInt();
+    default void readEntryAdd(String path, boolean longLengths, DataInputStream diffStream, ArchiveEntryStore<GenArchiveEntry> entries) throws IOException {
+        long dataLength = readLength(longLengths, diffStream);
 
         GenArchiveEntry entry = createNewArchiveEntry(path, dataLength);
 
@@ -98,75 +267,217 @@ public interface ArchiveDiffReader<GenArchiveEntry extends ArchiveEntry>
 
         entry = readAttributes(entry, diffStream);
 
-        byte[] data = new byte[dataLength];
-        diffStream.readFully(data);
+        readEntryData(path, entry, dataLength, diffStream, entries);
+    }
 
-        return new ArchiveEntryWithData<>(entry, data);
+    /** Reads entry header for COPY command, the data itself is taken from retained entry. */
+    default GenArchiveEntry readEntryCopy(String path, boolean longLengths, DataInputStream diffStream) throws IOException {
+        long dataLength = readLength(longLengths, diffStream);
+
+        GenArchiveEntry entry = createNewArchiveEntry(path, dataLength);
+
+        readEntryChecksum(entry, diffStream);
+
+        return readAttributes(entry, diffStream);
     }
 
-    default ArchiveEntryWithData<GenArchiveEntry> readEntryReplace(GenArchiveEntry before, DataInputStream diffStream) throws IOException {
-        int dataLength = diffStream.readInt();
+    default void readEntryReplace(String path, boolean longLengths, DataInputStream diffStream, ArchiveEntryStore<GenArchiveEntry> entries) throws IOException {
+        long dataLength = readLength(longLengths, diffStream);
 
-        GenArchiveEntry entry = copyArchiveEntry(before, dataLength);
+        GenArchiveEntry entry = copyArchiveEntry(entries.getEntry(path), dataLength);
 
         readEntryChecksum(entry, diffStream);
 
         entry = readAttributes(entry, diffStream);
 
-        byte[] data = new byte[dataLength];
-        diffStream.readFully(data);
-
-        return new ArchiveEntryWithData<>(entry, data);
+        readEntryData(path, entry, dataLength, diffStream, entries);
     }
 
-    default ArchiveEntryWithData<GenArchiveEntry> readEntryPatch(ArchiveEntryWithData<GenArchiveEntry> entryBefore, DataInputStream diffStream) throws IOException {
-        int length = diffStream.readInt();
+    default void readEntryPatch(String path, boolean longLengths, boolean customDeltaEngine, DataInputStream diffStream, ArchiveEntryStore<GenArchiveEntry> entries, PatchQueue<GenArchiveEntry> patchQueue) throws IOException, ArchiveDiffException, ArchiveException {
+        long length = readLength(longLengths, diffStream);
 
-        GenArchiveEntry entryAfter = copyArchiveEntry(entryBefore.entry, length);
+        GenArchiveEntry entryAfter = copyArchiveEntry(entries.getEntry(path), length);
 
         readEntryChecksum(entryAfter, diffStream);
 
         entryAfter = readAttributes(entryAfter, diffStream);
 
-        int patchLength = diffStream.readInt();
-        byte[] patch = new byte[patchLength];
-        diffStream.readFully(patch);
+        DeltaEngine deltaEngine = readDeltaEngine(customDeltaEngine, diffStream);
+
+        long patchLength = readLength(longLengths, diffStream);
+
+        readPatchedData(path, entryAfter, deltaEngine, entries.openSeekableData(path), patchLength, diffStream, patchQueue);
+    }
+
+    default void readEntryArchivePatch(String path, boolean longLengths, boolean chunked, DataInputStream diffStream, ArchiveEntryStore<GenArchiveEntry> entries, PatchQueue<GenArchiveEntry> patchQueue) throws IOException, ArchiveDiffException, ArchiveException {
+        long length = readLength(longLengths, diffStream);
+
+        GenArchiveEntry entryAfter = copyArchiveEntry(entries.getEntry(path), length);
 
-        byte[] dataAfter = new GDiffPatcher().patch(entryBefore.data, patch);
+        readEntryChecksum(entryAfter, diffStream);
+
+        entryAfter = readAttributes(entryAfter, diffStream);
 
-        return new ArchiveEntryWithData<>(entryAfter, dataAfter);
+        if (chunked) {
+            try (ChunkedInputStream patch = new ChunkedInputStream(diffStream)) {
+                readArchivePatchedData(path, entryAfter, entries.openData(path), -1, new DataInputStream(patch), patchQueue);
+            }
+        } else {
+            long patchLength = readLength(longLengths, diffStream);
+
+            readArchivePatchedData(path, entryAfter, entries.openData(path), patchLength, diffStream, patchQueue);
+        }
     }
 
-    default ArchiveEntryWithData<GenArchiveEntry> readEntryArchivePatch(ArchiveEntryWithData<GenArchiveEntry> entryBefore, DataInputStream diffStream) throws IOException, ArchiveDiffException, ArchiveException {
-        int length = diffStream.readInt();
+    default void readEntryPatchFrom(
+            String path,
+            String sourcePath,
+            boolean longLengths,
+            boolean customDeltaEngine,
+            DataInputStream diffStream,
+            ArchiveEntryStore<GenArchiveEntry> retainedEntries,
+            PatchQueue<GenArchiveEntry> patchQueue
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        long length = readLength(longLengths, diffStream);
 
-        GenArchiveEntry entryAfter = copyArchiveEntry(entryBefore.entry, length);
+        GenArchiveEntry entryAfter = createNewArchiveEntry(path, length);
 
         readEntryChecksum(entryAfter, diffStream);
 
         entryAfter = readAttributes(entryAfter, diffStream);
 
-        diffStream.readInt();
+        DeltaEngine deltaEngine = readDeltaEngine(customDeltaEngine, diffStream);
 
-        ByteArrayOutputStream after = new ByteArrayOutputStream();
-        ArchiveDiff.applyDiff(
-                new ByteArrayInputStream(entryBefore.data),
-                diffStream,
-                after
-        );
-        after.close();
+        long patchLength = readLength(longLengths, diffStream);
 
-        return new ArchiveEntryWithData<>(entryAfter, after.toByteArray());
+        readPatchedData(path, entryAfter, deltaEngine, retainedEntries.openSeekableData(sourcePath), patchLength, diffStream, patchQueue);
     }
 
-    default ArchiveEntryWithData<GenArchiveEntry> readEntryUpdateAttributes(ArchiveEntryWithData<GenArchiveEntry> entryBefore, DataInputStream diffStream) throws IOException {
-        int length = diffStream.readInt();
+    default void readEntryArchivePatchFrom(
+            String path,
+            String sourcePath,
+            boolean longLengths,
+            DataInputStream diffStream,
+            ArchiveEntryStore<GenArchiveEntry> retainedEntries,
+            PatchQueue<GenArchiveEntry> patchQueue
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        long length = readLength(longLengths, diffStream);
 
-        GenArchiveEntry entryAfter = copyArchiveEntry(entryBefore.entry, length);
+        GenArchiveEntry entryAfter = createNewArchiveEntry(path, length);
+
+        readEntryChecksum(entryAfter, diffStream);
 
         entryAfter = readAttributes(entryAfter, diffStream);
 
-        return new ArchiveEntryWithData<>(entryAfter, entryBefore.data);
+        long patchLength = readLength(longLengths, diffStream);
+
+        readArchivePatchedData(path, entryAfter, retainedEntries.openData(sourcePath), patchLength, diffStream, patchQueue);
+    }
+
+    default GenArchiveEntry readEntryUpdateAttributes(GenArchiveEntry entryBefore, boolean longLengths, DataInputStream diffStream) throws IOException {
+        long length = readLength(longLengths, diffStream);
+
+        GenArchiveEntry entryAfter = copyArchiveEntry(entryBefore, length);
+
+        return readAttributes(entryAfter, diffStream);
+    }
+
+    /** Streams entry data from the diff into the store, so that entry size is not limited by memory. */
+    default void readEntryData(String path, GenArchiveEntry entry, long dataLength, DataInputStream diffStream, ArchiveEntryStore<GenArchiveEntry> entries) throws IOException {
+        entries.put(path, entry, new BoundedInputStream(diffStream, dataLength));
+        if (entries.getDataLength(path) != dataLength) {
+            throw new EOFException(String.format("Unexpected end of diff - expected %d bytes of entry data", dataLength));
+        }
+    }
+
+    /** Patches without engine id were computed by GDiff, which was the only engine in earlier versions of the format. */
+    default DeltaEngine readDeltaEngine(boolean customDeltaEngine, DataInputStream diffStream) throws IOException, ArchiveDiffException {
+        if (!customDeltaEngine) {
+            return DeltaEngine.GDIFF;
+        }
+        byte id = diffStream.readByte();
+        DeltaEngine deltaEngine = getOptions().findDeltaEngine(id);
+        if (deltaEngine == null) {
+            throw new ArchiveDiffFormatException("Unknown delta engine: " + id);
+        }
+        return deltaEngine;
+    }
+
+    /**
+     * Applies entry patch against random access view of the base data, patched data is buffered
+     * (spilling to a temporary file if needed) before it is put into the store, since it may replace the base.
+     * With parallelism, patches that fit into memory are read whole and applied on worker threads.
+     */
+    default void readPatchedData(
+            String path,
+            GenArchiveEntry entry,
+            DeltaEngine deltaEngine,
+            SeekableSource dataBase,
+            long patchLength,
+            DataInputStream diffStream,
+            PatchQueue<GenArchiveEntry> patchQueue
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        if (patchQueue.canSubmit(patchLength)) {
+            byte[] patch = readPatch(patchLength, diffStream);
+            patchQueue.submit(path, entry, patchLength + Math.max(0, entry.getSize()), dataAfter ->
+                    applyDelta(path, deltaEngine, dataBase, new ByteArrayInputStream(patch), dataAfter));
+        } else {
+            patchQueue.apply(path, entry, dataAfter ->
+                    applyDelta(path, deltaEngine, dataBase, new BoundedInputStream(diffStream, patchLength), dataAfter));
+        }
+    }
+
+    /** Applies entry patch on the current thread, reporting it as PATCH phase of the entry. */
+    default void applyDelta(String path, DeltaEngine deltaEngine, SeekableSource dataBase, InputStream patch, OutputStream dataAfter) throws IOException {
+        PhaseTimer timer = PhaseTimer.start(getOptions());
+        deltaEngine.applyDelta(dataBase, patch, dataAfter);
+        timer.finish(ArchiveDiffListener.Phase.PATCH, path);
+    }
+
+    /** @param patchLength -1 for chunked patch, diff stream then ends with the patch */
+    default void readArchivePatchedData(
+            String path,
+            GenArchiveEntry entry,
+            InputStream dataBase,
+            long patchLength,
+            DataInputStream diffStream,
+            PatchQueue<GenArchiveEntry> patchQueue
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        NestedArchiveCache nestedArchiveCache = getOptions().getNestedArchiveCache();
+        if (nestedArchiveCache != null) {
+            // apply during compute - nested archive may already be reconstructed, its diff was computed in-memory anyway
+            byte[] base = IOUtils.toByteArray(dataBase);
+            byte[] patch = readPatch(patchLength, diffStream);
+            byte[] archive = nestedArchiveCache.take(base, patch);
+            if (archive != null) {
+                patchQueue.apply(path, entry, dataAfter -> dataAfter.write(archive));
+            } else {
+                // archives nested deeper were cached only for this archive, so they are not looked up
+                ArchiveDiffOptions nestedOptions = getNestedDiffOptions().withNestedArchiveCache(null);
+                patchQueue.submit(path, entry, patchLength + Math.max(0, entry.getSize()), dataAfter ->
+                        ArchiveDiff.applyDiff(new ByteArrayInputStream(base), new ByteArrayInputStream(patch), dataAfter, false, nestedOptions));
+            }
+        } else if (patchQueue.canSubmit(patchLength)) {
+            byte[] patch = readPatch(patchLength, diffStream);
+            patchQueue.submit(path, entry, patchLength + Math.max(0, entry.getSize()), dataAfter ->
+                    ArchiveDiff.applyDiff(new BufferedInputStream(dataBase), new ByteArrayInputStream(patch), dataAfter, false, getNestedDiffOptions()));
+        } else {
+            patchQueue.apply(path, entry, dataAfter ->
+                    ArchiveDiff.applyDiff(new BufferedInputStream(dataBase), diffStream, dataAfter, false, getNestedDiffOptions()));
+        }
+    }
+
+    default byte[] readPatch(long patchLength, DataInputStream diffStream) throws IOException {
+        if (patchLength < 0) {
+            return IOUtils.toByteArray(diffStream);
+        }
+        byte[] patch = new byte[(int) patchLength];
+        diffStream.readFully(patch);
+        return patch;
+    }
+
+    default long readLength(boolean longLengths, DataInputStream diffStream) throws IOException {
+        return longLengths ? diffStream.readLong() : diffStream.readInt();
     }
 
     default void readEntryChecksum(GenArchiveEntry entry, DataInputStream diffStream) throws IOException {}
@@ -26,4 +26,8 @@ public class ArchiveDiffUtils {
         return checkedOutputStream.getChecksum().getValue();
     }
 
+    public static boolean contentEquals(InputStream dataStreamA, InputStream dataStreamB) throws IOException {
+        return IOUtils.contentEquals(dataStreamA, dataStreamB);
+    }
+
 }
@@ -1,15 +1,22 @@
 package org.rogach.ardiff;
 
-import com.nothome.delta.Delta;
+import com.nothome.delta.SeekableSource;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.utils.BoundedInputStream;
 import org.apache.commons.compress.utils.CountingInputStream;
 import org.apache.commons.compress.utils.IOUtils;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
+import org.rogach.ardiff.delta.DeltaEngine;
+import org.rogach.ardiff.delta.GDiffDeltaEngine;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
 import org.rogach.ardiff.formats.ArArchiveDiff;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
 import java.util.*;
 import java.util.function.Supplier;
 import java.util.zip.CRC32;
@@ -28,60 +35,226 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
         ArchiveInputStream archiveStreamBefore = createArchiveInputStream(before);
         ArchiveInputStream archiveStreamAfter = createArchiveInputStream(after);
 
-        CheckedOutputStream checkedDiffStream = new CheckedOutputStream(diff, new CRC32());
-        DataOutputStream diffStream = new DataOutputStream(checkedDiffStream);
-        diffStream.write(ArchiveDiff.HEADER.getBytes("ASCII"));
-
         boolean sortInputArchives = !(assumeOrdering || !this.supportsSorting());
-        Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorBefore = iterateAllEntries(archiveStreamBefore, sortInputArchives);
-        Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorAfter = iterateAllEntries(archiveStreamAfter, sortInputArchives);
-
-        ArchiveEntryWithDataStream<GenArchiveEntry> entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
-        ArchiveEntryWithDataStream<GenArchiveEntry> entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
-
-        while (entryBefore != null || entryAfter != null) {
-            if (entryBefore == null) {
-                checkedDiffStream.getChecksum().reset();
-                writeEntryAdded(entryAfter, diffStream);
-                diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
-                entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
-            } else if (entryAfter == null) {
-                checkedDiffStream.getChecksum().reset();
-                writeEntryRemoved(entryBefore.entry, diffStream);
-                diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
-                entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
+        // sorting requires reading whole archives upfront, entry data over memory budget is kept in temporary files meanwhile
+        try (
+                ArchiveEntryStore<GenArchiveEntry> entriesBefore = createEntryStore();
+                ArchiveEntryStore<GenArchiveEntry> entriesAfter = createEntryStore()
+        ) {
+            if (sortInputArchives) {
+                List<String> keysBefore = storeAllEntries(archiveStreamBefore, true, entriesBefore);
+                List<String> keysAfter = storeAllEntries(archiveStreamAfter, true, entriesAfter);
+                computeDiffImpl(
+                        iterateStoredEntries(entriesBefore, keysBefore),
+                        iterateStoredEntries(entriesAfter, keysAfter),
+                        indexStoredSources(entriesBefore, keysBefore, entriesAfter, keysAfter),
+                        assumeOrdering,
+                        diff
+                );
             } else {
-                int entryOrder = entryBefore.entry.getName().compareTo(entryAfter.entry.getName());
+                computeDiffImpl(
+                        iterateAllEntries(archiveStreamBefore),
+                        iterateAllEntries(archiveStreamAfter),
+                        assumeOrdering,
+                        diff
+                );
+            }
+        }
+    }
+
+    /**
+     * Formats that can make use of random access (e.g. zip central directory) override this method,
+     * others simply read the channels sequentially.
+     */
+    default void computeDiffImpl(
+            SeekableByteChannel before,
+            SeekableByteChannel after,
+            boolean assumeOrdering,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        computeDiffImpl(
+                new BufferedInputStream(Channels.newInputStream(before)),
+                new BufferedInputStream(Channels.newInputStream(after)),
+                assumeOrdering,
+                diff
+        );
+    }
+
+    /** Registers entries of "before" archive as delta sources ahead of the merge pass. */
+    interface SourceIndexer<GenArchiveEntry extends ArchiveEntry> {
+        void indexSources(DeltaSourceIndex<GenArchiveEntry> sources) throws IOException;
+    }
+
+    /** Streaming variant - delta sources are indexed during the merge pass, see below. */
+    default void computeDiffImpl(
+            Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorBefore,
+            Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorAfter,
+            boolean assumeOrdering,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        computeDiffImpl(iteratorBefore, iteratorAfter, null, assumeOrdering, diff);
+    }
+
+    /**
+     * Merges sorted entry lists of both archives into diff commands.
+     *
+     * @param sourceIndexer registers all "before" entries as delta sources upfront, when they can be read in any order;
+     *                      if null, entries are indexed during the merge pass as they are read, so added entries can only be
+     *                      based on "before" entries with names that sort earlier (and on unchanged entries only as copies)
+     */
+    default void computeDiffImpl(
+            Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorBefore,
+            Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorAfter,
+            SourceIndexer<GenArchiveEntry> sourceIndexer,
+            boolean assumeOrdering,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        diff.write(ArchiveDiff.HEADER.getBytes("ASCII"));
+        BlockCompressingOutputStream compressedDiff =
+                getOptions().getCompression() != DiffCompression.NONE ? new BlockCompressingOutputStream(diff, getOptions()) : null;
+        DiffIndexingOutputStream indexingDiffStream = new DiffIndexingOutputStream(compressedDiff != null ? compressedDiff : diff);
+        CheckedOutputStream checkedDiffStream = new CheckedOutputStream(indexingDiffStream, new CRC32());
+        DataOutputStream diffStream = new DataOutputStream(checkedDiffStream);
+        List<DiffIndex.Entry> indexEntries = new ArrayList<>();
+
+        // delta sources are only known after all commands are computed, but readers need to know them upfront -
+        // so when source detection is enabled, commands are buffered and written out after the list of retained entries
+        boolean detectSources = getOptions().isDetectCopies() || getOptions().isDetectSimilarEntries();
+        // source index and command buffer grow together for the whole computation, so they split the memory budget
+        long sourcesBudget = getOptions().getMemoryBudget() / 2;
+        try (
+                DeltaSourceIndex<GenArchiveEntry> sources = detectSources ? new DeltaSourceIndex<>(getOptions().isDetectSimilarEntries() ? createEntryStore(sourcesBudget) : null) : null;
+                SpillingOutputStream commandBuffer = detectSources ? new SpillingOutputStream(getOptions().getMemoryBudget() - sourcesBudget, getOptions().getTempDirectory(), getOptions().getBufferGauge()) : null
+        ) {
+            DiffIndexingOutputStream indexingCommandStream = commandBuffer != null ? new DiffIndexingOutputStream(commandBuffer) : indexingDiffStream;
+            CheckedOutputStream checkedCommandStream = commandBuffer != null ? new CheckedOutputStream(indexingCommandStream, new CRC32()) : checkedDiffStream;
+            DataOutputStream commandStream = commandBuffer != null ? new DataOutputStream(checkedCommandStream) : diffStream;
+
+            DiffCommandQueue commandQueue = new DiffCommandQueue(indexingCommandStream, checkedCommandStream, commandStream, getOptions());
+
+            boolean indexSourcesDuringMerge = sources != null && sourceIndexer == null;
+            if (sources != null && sourceIndexer != null) {
+                sourceIndexer.indexSources(sources);
+            }
+
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
+
+            while (entryBefore != null || entryAfter != null) {
+                int entryOrder =
+                        entryBefore == null ? 1 :
+                        entryAfter == null ? -1 :
+                        entryBefore.entry.getName().compareTo(entryAfter.entry.getName());
+
                 if (entryOrder < 0) {
-                    checkedDiffStream.getChecksum().reset();
-                    writeEntryRemoved(entryBefore.entry, diffStream);
-                    diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
+                    GenArchiveEntry entryRemoved = entryBefore.entry;
+                    if (indexSourcesDuringMerge && !isLargeEntry(entryRemoved)) {
+                        sources.addSource(entryRemoved, entryBefore.getDataStream());
+                    }
+                    commandQueue.write(out -> { writeEntryRemoved(entryRemoved, out); return true; });
                     entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
                 } else if (entryOrder > 0) {
-                    checkedDiffStream.getChecksum().reset();
-                    writeEntryAdded(entryAfter, diffStream);
-                    diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
+                    if (isLargeEntry(entryAfter.entry)) {
+                        // large entries are streamed straight into the diff, without looking for delta sources
+                        ArchiveEntryWithDataStream<GenArchiveEntry> entryAdded = entryAfter;
+                        commandQueue.writeUnbuffered(out -> { writeEntryAdded(entryAdded, out); return true; });
+                    } else if (sources == null) {
+                        ArchiveEntryWithDataStream<GenArchiveEntry> entryAdded = entryAfter;
+                        commandQueue.write(out -> { writeEntryAdded(entryAdded, out); return true; });
+                    } else {
+                        ArchiveEntryWithDataStream<GenArchiveEntry> entryAdded = entryAfter.materialize();
+                        DeltaSourceIndex.Match source = sources.findSource(entryAdded.entry, entryAdded.readData());
+                        if (source == null) {
+                            commandQueue.write(out -> { writeEntryAdded(entryAdded, out); return true; });
+                        } else if (source.exact && getOptions().isDetectCopies()) {
+                            sources.markReferenced(source.path);
+                            commandQueue.write(out -> { writeEntryCopied(entryAdded, source.path, out); return true; });
+                        } else {
+                            ArchiveEntryWithDataStream<GenArchiveEntry> entryBase = sources.getSource(source.path);
+                            commandQueue.submit(
+                                    entryBase.dataLength() + entryAdded.dataLength(),
+                                    out -> {
+                                        if (writeEntryPatchedFrom(entryBase, entryAdded, out, assumeOrdering)) {
+                                            sources.markReferenced(source.path);
+                                        } else {
+                                            writeEntryAdded(entryAdded, out);
+                                        }
+                                        return true;
+                                    });
+                        }
+                    }
+                    entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
+                } else if (attributesEqual(entryBefore.entry, entryAfter.entry) && dataKnownEqual(entryBefore.entry, entryAfter.entry)) {
+                    // unchanged entry, no need to even decompress the data - length and checksum identify it as a copy source
+                    if (indexSourcesDuringMerge && getOptions().isDetectCopies() && isEntryHeaderComplete(entryBefore.entry) && !isLargeEntry(entryBefore.entry)) {
+                        sources.addSource(entryBefore.entry, entryBefore.entry.getSize(), getEntryHeaderChecksum(entryBefore.entry));
+                    }
+                    entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
+                    entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
+                } else if (isLargeEntry(entryBefore.entry) || isLargeEntry(entryAfter.entry)) {
+                    // large entries can't be materialized for parallel computation, so they are diffed on this thread
+                    ArchiveEntryWithDataStream<GenArchiveEntry> entryDiffBefore = entryBefore;
+                    ArchiveEntryWithDataStream<GenArchiveEntry> entryDiffAfter = entryAfter;
+                    commandQueue.writeUnbuffered(out -> writeEntryDiff(entryDiffBefore, entryDiffAfter, out, assumeOrdering));
+                    entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
                     entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
                 } else {
-                    checkedDiffStream.getChecksum().reset();
-                    boolean entryWritten = writeEntryDiff(entryBefore, entryAfter, diffStream, assumeOrdering);
-                    if (entryWritten) {
-                        diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
+                    // nested archives in sorted mode are diffed as streams, indexing them would require reading them into memory
+                    boolean indexEntryBefore = indexSourcesDuringMerge && !(assumeOrdering && ArchiveDiff.isSupportedArchive(entryBefore.entry));
+
+                    // entry data streams are backed by archive streams, which are about to be advanced,
+                    // so entries must be fully read before handing them over to another thread
+                    ArchiveEntryWithDataStream<GenArchiveEntry> entryDiffBefore = commandQueue.isParallel() || indexEntryBefore ? entryBefore.materialize() : entryBefore;
+                    ArchiveEntryWithDataStream<GenArchiveEntry> entryDiffAfter = commandQueue.isParallel() ? entryAfter.materialize() : entryAfter;
+                    if (indexEntryBefore) {
+                        sources.addSource(entryDiffBefore.entry, entryDiffBefore.readData());
                     }
+                    commandQueue.submit(
+                            entryDiffBefore.dataLength() + entryDiffAfter.dataLength(),
+                            out -> writeEntryDiff(entryDiffBefore, entryDiffAfter, out, assumeOrdering));
                     entryBefore = iteratorBefore.hasNext() ? iteratorBefore.next() : null;
                     entryAfter = iteratorAfter.hasNext() ? iteratorAfter.next() : null;
                 }
             }
+
+            commandQueue.flush();
+
+            if (commandBuffer != null) {
+                commandStream.flush();
+
+                DiffCommandQueue retainQueue = new DiffCommandQueue(indexingDiffStream, checkedDiffStream, diffStream, ArchiveDiffOptions.DEFAULT);
+                for (String path : sources.getReferencedSources()) {
+                    retainQueue.write(out -> { writeEntryRetained(path, out); return true; });
+                }
+
+                long commandBufferOffset = indexingDiffStream.getPosition();
+                commandBuffer.writeTo(diffStream);
+                for (DiffIndex.Entry entry : indexingCommandStream.getEntries()) {
+                    indexEntries.add(entry.withOffset(commandBufferOffset + entry.getOffset()));
+                }
+            }
         }
 
         diffStream.writeByte(0);
-    }
+        if (compressedDiff != null) {
+            diffStream.flush();
+            compressedDiff.finish();
+        }
 
-    default Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iterateAllEntries(ArchiveInputStream archiveInputStream, boolean sort) throws IOException {
-        if (sort) {
-            return listAllEntries(archiveInputStream, true).iterator();
-        } else {
-            return iterateAllEntries(archiveInputStream);
+        ArchiveDiffListener listener = getOptions().getListener();
+        if (listener != null) {
+            for (DiffIndex.Entry entry : indexingDiffStream.getEntries()) {
+                listener.commandWritten(entry.getCommandName(), entry.getPath(), entry.getLength(), getOptions().getNestingDepth());
+            }
+            for (DiffIndex.Entry entry : indexEntries) {
+                listener.commandWritten(entry.getCommandName(), entry.getPath(), entry.getLength(), getOptions().getNestingDepth());
+            }
+        }
+
+        if (getOptions().isIndex()) {
+            // commands written straight to the diff stream (including retained entries) precede buffered ones
+            indexEntries.addAll(0, indexingDiffStream.getEntries());
+            new DiffIndex(indexEntries).write(diff);
         }
     }
 
@@ -105,26 +278,155 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
 
             @Override
             public ArchiveEntryWithDataStream<GenArchiveEntry> next() {
-                ArchiveEntryWithDataStream<GenArchiveEntry> entryWithData = new ArchiveEntryWithDataStream<>(entry, archiveInputStream);
+                // header is taken before entry data is read, so that diff doesn't depend on when the data is read
+                ArchiveEntryWithDataStream<GenArchiveEntry> entryWithData;
+                try {
+                    entryWithData = new ArchiveEntryWithDataStream<>(copyEntryHeader(entry), timeEntryData(entry, archiveInputStream));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
                 gotNextEntry = false;
                 return entryWithData;
             }
         };
     }
 
-    default List<ArchiveEntryWithDataStream<GenArchiveEntry>> listAllEntries(ArchiveInputStream archiveInputStream, boolean sort) throws IOException {
-        List<ArchiveEntryWithDataStream<GenArchiveEntry>> entries = new ArrayList<>();
+    /**
+     * Computes diff between shared archive, which is already read into the store, and another archive -
+     * so that the shared archive is read only once for a batch of diffs.
+     *
+     * @param sharedKeys keys of shared archive entries in the store, in the order returned by {@link #storeAllEntries}
+     * @param sharedIsBefore whether shared archive is "before" or "after" archive of the diff
+     */
+    default void computeDiffImpl(
+            ArchiveEntryStore<GenArchiveEntry> sharedEntries,
+            List<String> sharedKeys,
+            boolean sharedIsBefore,
+            InputStream other,
+            boolean assumeOrdering,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        ArchiveInputStream archiveStreamOther = createArchiveInputStream(other);
+
+        boolean sortInputArchives = !(assumeOrdering || !this.supportsSorting());
+        try (ArchiveEntryStore<GenArchiveEntry> entriesOther = createEntryStore()) {
+            Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorShared = iterateStoredEntries(sharedEntries, sharedKeys);
+            if (sortInputArchives) {
+                List<String> keysOther = storeAllEntries(archiveStreamOther, true, entriesOther);
+                Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorOther = iterateStoredEntries(entriesOther, keysOther);
+                computeDiffImpl(
+                        sharedIsBefore ? iteratorShared : iteratorOther,
+                        sharedIsBefore ? iteratorOther : iteratorShared,
+                        sharedIsBefore
+                                ? indexStoredSources(sharedEntries, sharedKeys, entriesOther, keysOther)
+                                : indexStoredSources(entriesOther, keysOther, sharedEntries, sharedKeys),
+                        assumeOrdering,
+                        diff
+                );
+            } else {
+                Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iteratorOther = iterateAllEntries(archiveStreamOther);
+                computeDiffImpl(
+                        sharedIsBefore ? iteratorShared : iteratorOther,
+                        sharedIsBefore ? iteratorOther : iteratorShared,
+                        assumeOrdering,
+                        diff
+                );
+            }
+        }
+    }
+
+    /**
+     * Reads all entries into the store, by their position in the archive (archive may contain several entries
+     * with the same name). Sorting, if requested, is stable, so entries with the same name keep their relative order.
+     * Without sorting, stored entries stand in for entries streamed straight from the archive - so they keep headers
+     * as they were before entry data was read, and diffs are the same as computed from the stream.
+     *
+     * @return keys of entries in the store, in iteration order
+     */
+    default List<String> storeAllEntries(ArchiveInputStream archiveInputStream, boolean sort, ArchiveEntryStore<GenArchiveEntry> store) throws IOException {
+        List<String> keys = new ArrayList<>();
         GenArchiveEntry entry = getNextEntry(archiveInputStream);
         while (entry != null) {
-            entries.add(new ArchiveEntryWithDataStream<>(entry, IOUtils.toByteArray(archiveInputStream)));
+            String key = String.valueOf(keys.size());
+            GenArchiveEntry header = sort ? entry : copyEntryHeader(entry);
+            store.put(key, header, timeEntryData(entry, archiveInputStream));
+            keys.add(key);
             entry = getNextEntry(archiveInputStream);
         }
 
         if (sort) {
-            Collections.sort(entries);
+            keys.sort(Comparator.comparing(key -> store.getEntry(key).getName()));
+        }
+
+        return keys;
+    }
+
+    /** Registers entries of "before" archive, read into the store, as delta sources - see {@link #indexSource}. */
+    default SourceIndexer<GenArchiveEntry> indexStoredSources(
+            ArchiveEntryStore<GenArchiveEntry> storeBefore,
+            List<String> keysBefore,
+            ArchiveEntryStore<GenArchiveEntry> storeAfter,
+            List<String> keysAfter
+    ) {
+        return sources -> {
+            Set<String> pathsAfter = new HashSet<>();
+            for (String key : keysAfter) {
+                pathsAfter.add(storeAfter.getEntry(key).getName());
+            }
+            for (String key : keysBefore) {
+                GenArchiveEntry entry = storeBefore.getEntry(key);
+                indexSource(sources, entry, storeBefore.getDataLength(key), !pathsAfter.contains(entry.getName()), () -> storeBefore.openData(key));
+            }
+        };
+    }
+
+    /**
+     * Registers entry of "before" archive as a delta source ahead of the merge pass. Removed entries are indexed right away,
+     * since nothing else reads their data. Other entries are read only if some added entry turns out to need them -
+     * so that unchanged entries still don't have to be decompressed.
+     */
+    default void indexSource(
+            DeltaSourceIndex<GenArchiveEntry> sources,
+            GenArchiveEntry entry,
+            long length,
+            boolean removed,
+            DeltaSourceIndex.DataOpener data
+    ) throws IOException {
+        if (length > getOptions().getLargeEntryThreshold()) {
+            return;
         }
+        if (removed) {
+            try (InputStream entryData = data.open()) {
+                sources.addSource(entry, entryData);
+            }
+        } else {
+            sources.addSource(entry, length, isEntryHeaderComplete(entry) ? getEntryHeaderChecksum(entry) : -1, data);
+        }
+    }
 
-        return entries;
+    /** Entries can be iterated any number of times, even concurrently. Data of large entries is not read into memory. */
+    default Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>> iterateStoredEntries(ArchiveEntryStore<GenArchiveEntry> store, List<String> keys) {
+        Iterator<String> keyIterator = keys.iterator();
+        return new Iterator<ArchiveEntryWithDataStream<GenArchiveEntry>>() {
+            @Override
+            public boolean hasNext() {
+                return keyIterator.hasNext();
+            }
+
+            @Override
+            public ArchiveEntryWithDataStream<GenArchiveEntry> next() {
+                String key = keyIterator.next();
+                GenArchiveEntry entry = store.getEntry(key);
+                try {
+                    // header may not record size of the entry, so size of stored data is checked instead
+                    return store.getDataLength(key) > getOptions().getLargeEntryThreshold()
+                            ? new ArchiveEntryWithDataStream<>(entry, store.openData(key))
+                            : new ArchiveEntryWithDataStream<>(entry, store.get(key).data);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
     }
 
     default void writeEntryRemoved(GenArchiveEntry entry, DataOutputStream diffStream) throws IOException {
@@ -132,7 +434,234 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
         writeString(entry.getName(), diffStream);
     }
 
+    default void writeEntryRetained(String path, DataOutputStream diffStream) throws IOException {
+        diffStream.writeByte(ArchiveDiff.COMMAND_RETAIN);
+        writeString(path, diffStream);
+    }
+
+    default void writeEntryCopied(ArchiveEntryWithDataStream<GenArchiveEntry> entryWithData, String copySource, DataOutputStream diffStream) throws IOException {
+        diffStream.writeByte(ArchiveDiff.COMMAND_COPY);
+        writeString(entryWithData.entry.getName(), diffStream);
+        writeString(copySource, diffStream);
+
+        byte[] data = entryWithData.readData();
+
+        diffStream.writeInt(data.length);
+
+        writeEntryChecksum(() -> ArchiveDiffUtils.computeCRC32Checksum(data), diffStream);
+
+        writeAttributes(entryWithData.entry, diffStream);
+    }
+
+    /**
+     * Writes added entry as a delta against entry from "before" archive with another name.
+     * Attributes are written in full, same as for added entries.
+     *
+     * @return false if delta turned out to be too large and nothing was written
+     */
+    default boolean writeEntryPatchedFrom(
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryBase,
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryAfter,
+            DataOutputStream diffStream,
+            boolean assumeOrdering
+    ) throws IOException, ArchiveDiffException, ArchiveException {
+        byte[] dataBase = entryBase.readData();
+        byte[] dataAfter = entryAfter.readData();
+
+        if (ArchiveDiff.isSupportedArchive(entryAfter.entry)) {
+            ByteArrayOutputStream diffByteArrayOutputStream = new ByteArrayOutputStream();
+            byte[] resultData;
+            // unlike added entries, base entries are parsed as archives here, so they may turn out to be broken
+            try {
+                if (assumeOrdering) {
+                    ArchiveDiff.computeDiff(
+                            new ByteArrayInputStream(dataBase),
+                            new ByteArrayInputStream(dataAfter),
+                            diffByteArrayOutputStream,
+                            true,
+                            getNestedDiffOptions()
+                    );
+                    resultData = dataAfter;
+                } else {
+                    resultData = computeNestedArchiveDiff(dataBase, dataAfter, diffByteArrayOutputStream);
+                }
+            } catch (ArchiveDiffException | ArchiveException | IOException e) {
+                return false;
+            }
+
+            byte[] nestedArchiveDiff = diffByteArrayOutputStream.toByteArray();
+
+            if (nestedArchiveDiff.length >= dataAfter.length * 0.7) {
+                return false;
+            }
+
+            diffStream.writeByte(ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM);
+            writeString(entryAfter.entry.getName(), diffStream);
+            writeString(entryBase.entry.getName(), diffStream);
+
+            diffStream.writeInt(resultData.length);
+
+            writeEntryChecksum(() -> ArchiveDiffUtils.computeCRC32Checksum(resultData), diffStream);
+
+            writeAttributes(entryAfter.entry, diffStream);
+
+            diffStream.writeInt(nestedArchiveDiff.length);
+            diffStream.write(nestedArchiveDiff);
+
+        } else {
+
+            DeltaEngine deltaEngine = getOptions().getDeltaEngine(entryAfter.entry.getName());
+            byte[] entryDiff = computeDelta(entryAfter.entry.getName(), deltaEngine, dataBase, dataAfter);
+
+            // same threshold as for patches of entries with unchanged name
+            if (entryDiff.length >= dataAfter.length * 0.7) {
+                return false;
+            }
+
+            writeCommand(ArchiveDiff.COMMAND_PATCH_FROM, false, deltaEngine, diffStream);
+            writeString(entryAfter.entry.getName(), diffStream);
+            writeString(entryBase.entry.getName(), diffStream);
+
+            diffStream.writeInt(dataAfter.length);
+
+            writeEntryChecksum(() -> ArchiveDiffUtils.computeCRC32Checksum(dataAfter), diffStream);
+
+            writeAttributes(entryAfter.entry, diffStream);
+
+            writeDeltaEngine(deltaEngine, diffStream);
+            diffStream.writeInt(entryDiff.length);
+            diffStream.write(entryDiff);
+        }
+
+        return true;
+    }
+
+    /**
+     * Computes diff of nested archives in unsorted mode. Archive is written anew when the diff is applied,
+     * so it has to be reconstructed here as well - to learn length and checksum of the result.
+     * Archives nested deeper are reconstructed by their own diffs and reused for this reconstruction,
+     * and the result is kept for reconstruction of the enclosing archive, see {@link NestedArchiveCache}.
+     *
+     * @return reconstructed archive
+     */
+    default byte[] computeNestedArchiveDiff(byte[] dataBefore, byte[] dataAfter, ByteArrayOutputStream diff) throws IOException, ArchiveDiffException, ArchiveException {
+        ArchiveDiffOptions nestedOptions = getNestedDiffOptions().withNestedArchiveCache(new NestedArchiveCache());
+
+        // diff is cached together with the reconstructed archive, so that a cache hit skips both compute and apply
+        DiffCache cache = getOptions().getDiffCache();
+        String cacheKey = cache == null ? null :
+                DiffCache.key("nested archive").add(nestedOptions.getDiffSettings()).addContent(dataBefore).addContent(dataAfter).build();
+        byte[] cachedValue = cache == null ? null : cache.get(cacheKey);
+
+        byte[] nestedArchiveDiff;
+        byte[] recompressedData;
+        if (cachedValue != null) {
+            int diffLength = ByteBuffer.wrap(cachedValue).getInt();
+            nestedArchiveDiff = Arrays.copyOfRange(cachedValue, 4, 4 + diffLength);
+            recompressedData = Arrays.copyOfRange(cachedValue, 4 + diffLength, cachedValue.length);
+            diff.write(nestedArchiveDiff);
+        } else {
+            ArchiveDiff.computeDiff(
+                    new SeekableInMemoryByteChannel(dataBefore),
+                    new SeekableInMemoryByteChannel(dataAfter),
+                    diff,
+                    false,
+                    nestedOptions
+            );
+            nestedArchiveDiff = diff.toByteArray();
+
+            ByteArrayOutputStream recompressByteArrayOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(dataBefore),
+                    new ByteArrayInputStream(nestedArchiveDiff),
+                    recompressByteArrayOutputStream,
+                    false,
+                    nestedOptions
+            );
+            recompressedData = recompressByteArrayOutputStream.toByteArray();
+
+            if (cache != null) {
+                byte[] diffToCache = nestedArchiveDiff;
+                cache.put(cacheKey, out -> {
+                    new DataOutputStream(out).writeInt(diffToCache.length);
+                    out.write(diffToCache);
+                    out.write(recompressedData);
+                });
+            }
+        }
+
+        if (getOptions().getNestedArchiveCache() != null) {
+            getOptions().getNestedArchiveCache().put(dataBefore, nestedArchiveDiff, recompressedData);
+        }
+        return recompressedData;
+    }
+
+    /** Computes delta of in-memory data, reusing deltas from {@link DiffCache} if it is configured. */
+    default byte[] computeDelta(String path, DeltaEngine deltaEngine, byte[] dataBefore, byte[] dataAfter) throws IOException {
+        PhaseTimer timer = PhaseTimer.start(getOptions());
+        DiffCache cache = getOptions().getDiffCache();
+        String cacheKey = cache == null ? null :
+                DiffCache.key("delta").add(deltaEngine.getId()).addContent(dataBefore).addContent(dataAfter).build();
+        byte[] delta = cache == null ? null : cache.get(cacheKey);
+        if (delta == null) {
+            delta = deltaEngine.computeDelta(dataBefore, dataAfter);
+            if (cache != null) {
+                cache.put(cacheKey, delta);
+            }
+        }
+        timer.finish(ArchiveDiffListener.Phase.DELTA, path);
+        reportDelta(path, dataBefore.length, dataAfter.length, delta.length);
+        return delta;
+    }
+
+    default void reportDelta(String path, long sourceLength, long targetLength, long deltaLength) {
+        ArchiveDiffListener listener = getOptions().getListener();
+        if (listener != null) {
+            listener.deltaComputed(path, sourceLength, targetLength, deltaLength, getOptions().getNestingDepth());
+        }
+    }
+
     default void writeEntryAdded(ArchiveEntryWithDataStream<GenArchiveEntry> entryWithData, DataOutputStream diffStream) throws IOException {
+        if (!entryWithData.dataOpt.isPresent() && isEntryHeaderComplete(entryWithData.entry)) {
+            // length and checksum are known from the entry header, so data is streamed straight into the diff
+            GenArchiveEntry entry = entryWithData.entry;
+            boolean longLengths = requiresLongLengths(entry.getSize());
+            writeCommand(ArchiveDiff.COMMAND_ADD, longLengths, diffStream);
+            writeString(entry.getName(), diffStream);
+
+            writeLength(entry.getSize(), longLengths, diffStream);
+
+            writeEntryChecksum(() -> getEntryHeaderChecksum(entry), diffStream);
+
+            writeAttributes(entry, diffStream);
+
+            CountingInputStream countingData = new CountingInputStream(entryWithData.dataStreamOpt.get());
+            CheckedInputStream checkedData = new CheckedInputStream(countingData, new CRC32());
+            IOUtils.copy(new BoundedInputStream(checkedData, entry.getSize()), diffStream);
+            verifyEntryHeader(entry, checkedData, countingData);
+            return;
+        }
+
+        if (!entryWithData.dataOpt.isPresent() && isLargeEntry(entryWithData.entry)) {
+            // length and checksum precede the data in the diff, so data is first stored into a temporary file
+            try (SpillingOutputStream data = new SpillingOutputStream(0, getOptions().getTempDirectory())) {
+                IOUtils.copy(entryWithData.dataStreamOpt.get(), data);
+
+                boolean longLengths = requiresLongLengths(data.length());
+                writeCommand(ArchiveDiff.COMMAND_ADD, longLengths, diffStream);
+                writeString(entryWithData.entry.getName(), diffStream);
+
+                writeLength(data.length(), longLengths, diffStream);
+
+                writeEntryChecksum(() -> ArchiveDiffUtils.computeCRC32Checksum(data.openInputStream()), diffStream);
+
+                writeAttributes(entryWithData.entry, diffStream);
+
+                data.writeTo(diffStream);
+            }
+            return;
+        }
+
         diffStream.writeByte(ArchiveDiff.COMMAND_ADD);
         writeString(entryWithData.entry.getName(), diffStream);
 
@@ -159,6 +688,31 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
 
     default void writeEntryChecksum(Supplier<Long> checksumSupplier, DataOutputStream diffStream) throws IOException {}
 
+    /**
+     * Whether entry header records length of entry data (and its checksum, for formats that write it to the diff) -
+     * then data or nested diff of the entry can be streamed into the diff right after the command header.
+     */
+    default boolean isEntryHeaderComplete(GenArchiveEntry entry) {
+        return entry.getSize() >= 0;
+    }
+
+    /** @return checksum of entry data recorded in entry header, or -1 if format doesn't record one */
+    default long getEntryHeaderChecksum(GenArchiveEntry entry) {
+        return -1;
+    }
+
+    /**
+     * Reads the rest of entry data and checks it against entry header, after the header was already written to the diff.
+     * Archive with a mismatching header can't be diffed this way, so computation fails.
+     */
+    default void verifyEntryHeader(GenArchiveEntry entry, CheckedInputStream checkedData, CountingInputStream countingData) throws IOException {
+        IOUtils.skip(checkedData, Long.MAX_VALUE);
+        long checksum = getEntryHeaderChecksum(entry);
+        if (countingData.getBytesRead() != entry.getSize() || (checksum != -1 && checkedData.getChecksum().getValue() != checksum)) {
+            throw new IOException("Entry data doesn't match length or checksum in its header: " + entry.getName());
+        }
+    }
+
     default boolean writeEntryDiff(
             ArchiveEntryWithDataStream<GenArchiveEntry> entryBefore,
             ArchiveEntryWithDataStream<GenArchiveEntry> entryAfter,
@@ -167,31 +721,63 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
     ) throws IOException, ArchiveDiffException, ArchiveException {
 
         if (ArchiveDiff.isSupportedArchive(entryAfter.entry)) {
-            diffStream.writeByte(ArchiveDiff.COMMAND_ARCHIVE_PATCH);
-            writeString(entryAfter.entry.getName(), diffStream);
+            if (assumeOrdering && isEntryHeaderComplete(entryAfter.entry)) {
+                CountingInputStream dataAfterCountingStream = new CountingInputStream(entryAfter.getDataStream());
+                CheckedInputStream dataAfterCheckedStream = new CheckedInputStream(dataAfterCountingStream, new CRC32());
+
+                // length and checksum of the nested archive are known from its header,
+                // so nested diff is streamed straight into the diff in chunks, instead of being buffered whole
+                GenArchiveEntry entry = entryAfter.entry;
+                boolean longLengths = requiresLongLengths(entry.getSize());
+                writeCommand((byte) (ArchiveDiff.COMMAND_ARCHIVE_PATCH | ArchiveDiff.FLAG_CHUNKED), longLengths, diffStream);
+                writeString(entry.getName(), diffStream);
+
+                writeLength(entry.getSize(), longLengths, diffStream);
+
+                writeEntryChecksum(() -> getEntryHeaderChecksum(entry), diffStream);
+
+                writeAttributesDiff(entryBefore.entry, entry, diffStream);
+
+                try (ChunkedOutputStream nestedArchiveDiff = new ChunkedOutputStream(diffStream, ChunkedOutputStream.DEFAULT_CHUNK_SIZE)) {
+                    ArchiveDiff.computeDiff(
+                            new BufferedInputStream(entryBefore.getDataStream(), 4096),
+                            new BufferedInputStream(dataAfterCheckedStream, 4096),
+                            nestedArchiveDiff,
+                            true,
+                            getNestedDiffOptions()
+                    );
+                }
+
+                verifyEntryHeader(entry, dataAfterCheckedStream, dataAfterCountingStream);
 
-            if (assumeOrdering) {
-                CountingInputStream dataAfterCountingStream = new CountingInputStream(entryAfter.dataStreamOpt.get());
+            } else if (assumeOrdering) {
+                CountingInputStream dataAfterCountingStream = new CountingInputStream(entryAfter.getDataStream());
                 CheckedInputStream dataAfterCheckedStream = new CheckedInputStream(dataAfterCountingStream, new CRC32());
 
                 ByteArrayOutputStream diffByteArrayOutputStream = new ByteArrayOutputStream();
                 ArchiveDiff.computeDiff(
-                        new BufferedInputStream(entryBefore.dataStreamOpt.get(), 4096),
+                        new BufferedInputStream(entryBefore.getDataStream(), 4096),
                         new BufferedInputStream(dataAfterCheckedStream, 4096),
                         diffByteArrayOutputStream,
-                        true
+                        true,
+                        getNestedDiffOptions()
                 );
                 diffByteArrayOutputStream.close();
 
                 byte[] nestedArchiveDiff = diffByteArrayOutputStream.toByteArray();
 
-                diffStream.writeInt((int) dataAfterCountingStream.getBytesRead());
+                // nested archives are streamed in sorted mode, so their size is not limited by memory
+                boolean longLengths = requiresLongLengths(dataAfterCountingStream.getBytesRead());
+                writeCommand(ArchiveDiff.COMMAND_ARCHIVE_PATCH, longLengths, diffStream);
+                writeString(entryAfter.entry.getName(), diffStream);
+
+                writeLength(dataAfterCountingStream.getBytesRead(), longLengths, diffStream);
 
                 writeEntryChecksum(() -> dataAfterCheckedStream.getChecksum().getValue(), diffStream);
 
                 writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
 
-                diffStream.writeInt(nestedArchiveDiff.length);
+                writeLength(nestedArchiveDiff.length, longLengths, diffStream);
                 diffStream.write(nestedArchiveDiff);
 
             } else {
@@ -200,23 +786,12 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
                 byte[] dataAfter = entryAfter.readData();
 
                 ByteArrayOutputStream diffByteArrayOutputStream = new ByteArrayOutputStream();
-                ArchiveDiff.computeDiff(
-                        new ByteArrayInputStream(dataBefore),
-                        new ByteArrayInputStream(dataAfter),
-                        diffByteArrayOutputStream
-                );
-                diffByteArrayOutputStream.close();
+                byte[] recompressedData = computeNestedArchiveDiff(dataBefore, dataAfter, diffByteArrayOutputStream);
 
                 byte[] nestedArchiveDiff = diffByteArrayOutputStream.toByteArray();
 
-                ByteArrayOutputStream recompressByteArrayOutputStream = new ByteArrayOutputStream();
-                ArchiveDiff.applyDiff(
-                        new ByteArrayInputStream(dataBefore),
-                        new ByteArrayInputStream(nestedArchiveDiff),
-                        recompressByteArrayOutputStream
-                );
-                recompressByteArrayOutputStream.close();
-                byte[] recompressedData = recompressByteArrayOutputStream.toByteArray();
+                diffStream.writeByte(ArchiveDiff.COMMAND_ARCHIVE_PATCH);
+                writeString(entryAfter.entry.getName(), diffStream);
 
                 diffStream.writeInt(recompressedData.length);
 
@@ -227,6 +802,8 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
                 diffStream.writeInt(nestedArchiveDiff.length);
                 diffStream.write(nestedArchiveDiff);
             }
+        } else if (isLargeEntry(entryBefore.entry) || isLargeEntry(entryAfter.entry)) {
+            return writeLargeEntryDiff(entryBefore, entryAfter, diffStream);
         } else {
 
             byte[] dataBefore = entryBefore.readData();
@@ -248,17 +825,23 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
                 writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
             } else {
 
-                ByteArrayOutputStream entryDiffByteArrayOutputStream = new ByteArrayOutputStream();
-                new Delta().compute(dataBefore, dataAfter, entryDiffByteArrayOutputStream);
-                byte[] entryDiff = entryDiffByteArrayOutputStream.toByteArray();
+                DeltaEngine deltaEngine = getOptions().getDeltaEngine(entryAfter.entry.getName());
+                PatchPredictor.Prediction prediction = getOptions().isPatchPrediction()
+                        ? PatchPredictor.predict(dataBefore, dataAfter)
+                        : PatchPredictor.Prediction.NONE;
+                byte[] entryDiff = null;
+                if (shouldComputeDelta(prediction, entryAfter.entry.getName(), dataAfter.length)) {
+                    entryDiff = computeDelta(entryAfter.entry.getName(), deltaEngine, dataBefore, dataAfter);
+                    recordPredictionOutcome(prediction, entryDiff.length < dataAfter.length * 0.7);
+                }
 
                 // if diff is too large, we can simply send the whole file
                 // even if diff is slightly smaller, we should send the whole file to
                 // to avoid extra memory & cpu cost on decoding side
                 // (we assume decoding machines to be weaker)
-                if (entryDiff.length < dataAfter.length * 0.7) {
+                if (entryDiff != null && entryDiff.length < dataAfter.length * 0.7) {
 
-                    diffStream.writeByte(ArchiveDiff.COMMAND_PATCH);
+                    writeCommand(ArchiveDiff.COMMAND_PATCH, false, deltaEngine, diffStream);
                     writeString(entryAfter.entry.getName(), diffStream);
 
                     diffStream.writeInt(dataAfter.length);
@@ -267,6 +850,7 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
 
                     writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
 
+                    writeDeltaEngine(deltaEngine, diffStream);
                     diffStream.writeInt(entryDiff.length);
                     diffStream.write(entryDiff);
 
@@ -290,8 +874,158 @@ public interface ArchiveDiffWriter<GenArchiveEntry extends ArchiveEntry>
         return true;
     }
 
+    /**
+     * Same as {@link #writeEntryDiff} for plain entries, but never holds entry data in memory.
+     * Data of both entries is stored into temporary files, and delta is computed incrementally
+     * against random access view of the "before" data.
+     */
+    default boolean writeLargeEntryDiff(
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryBefore,
+            ArchiveEntryWithDataStream<GenArchiveEntry> entryAfter,
+            DataOutputStream diffStream
+    ) throws IOException {
+        // entries are stored under fixed keys, since names of "before" and "after" entries are the same
+        try (
+                ArchiveEntryStore<GenArchiveEntry> store = createEntryStore();
+                SpillingOutputStream entryDiff = new SpillingOutputStream(getOptions().getMemoryBudget(), getOptions().getTempDirectory(), getOptions().getBufferGauge())
+        ) {
+            store.put("before", entryBefore.entry, entryBefore.getDataStream());
+            store.put("after", entryAfter.entry, entryAfter.getDataStream());
+            long lengthBefore = store.getDataLength("before");
+            long lengthAfter = store.getDataLength("after");
+
+            boolean attributesDifferent = !attributesEqual(entryBefore.entry, entryAfter.entry);
+            boolean dataDifferent;
+            try (InputStream dataBefore = store.openData("before"); InputStream dataAfter = store.openData("after")) {
+                dataDifferent = lengthBefore != lengthAfter || !ArchiveDiffUtils.contentEquals(dataBefore, dataAfter);
+            }
+
+            if (!attributesDifferent && !dataDifferent) {
+                return false;
+            }
+
+            if (!dataDifferent) {
+                boolean longLengths = requiresLongLengths(lengthAfter);
+                writeCommand(ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES, longLengths, diffStream);
+                writeString(entryAfter.entry.getName(), diffStream);
+
+                writeLength(lengthAfter, longLengths, diffStream);
+
+                writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
+                return true;
+            }
+
+            DeltaEngine deltaEngine = getOptions().getDeltaEngine(entryAfter.entry.getName());
+            PatchPredictor.Prediction prediction = PatchPredictor.Prediction.NONE;
+            if (getOptions().isPatchPrediction()) {
+                try (InputStream dataBefore = store.openData("before"); InputStream dataAfter = store.openData("after")) {
+                    prediction = PatchPredictor.predict(dataBefore, lengthBefore, dataAfter, lengthAfter);
+                }
+            }
+            boolean deltaComputed = shouldComputeDelta(prediction, entryAfter.entry.getName(), lengthAfter);
+            if (deltaComputed) {
+                PhaseTimer timer = PhaseTimer.start(getOptions());
+                try (SeekableSource dataBefore = store.openSeekableData("before"); InputStream dataAfter = store.openData("after")) {
+                    deltaEngine.computeDelta(dataBefore, lengthBefore, dataAfter, entryDiff);
+                }
+                timer.finish(ArchiveDiffListener.Phase.DELTA, entryAfter.entry.getName());
+                reportDelta(entryAfter.entry.getName(), lengthBefore, lengthAfter, entryDiff.length());
+                recordPredictionOutcome(prediction, entryDiff.length() < lengthAfter * 0.7);
+            }
+
+            Supplier<Long> checksumSupplier = () -> {
+                try (InputStream dataAfter = store.openData("after")) {
+                    return ArchiveDiffUtils.computeCRC32Checksum(dataAfter);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            };
+
+            // same threshold as for entries held in memory
+            if (deltaComputed && entryDiff.length() < lengthAfter * 0.7) {
+                boolean longLengths = requiresLongLengths(lengthAfter, entryDiff.length());
+                writeCommand(ArchiveDiff.COMMAND_PATCH, longLengths, deltaEngine, diffStream);
+                writeString(entryAfter.entry.getName(), diffStream);
+
+                writeLength(lengthAfter, longLengths, diffStream);
+
+                writeEntryChecksum(checksumSupplier, diffStream);
+
+                writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
+
+                writeDeltaEngine(deltaEngine, diffStream);
+                writeLength(entryDiff.length(), longLengths, diffStream);
+                entryDiff.writeTo(diffStream);
+            } else {
+                boolean longLengths = requiresLongLengths(lengthAfter);
+                writeCommand(ArchiveDiff.COMMAND_REPLACE, longLengths, diffStream);
+                writeString(entryAfter.entry.getName(), diffStream);
+
+                writeLength(lengthAfter, longLengths, diffStream);
+
+                writeEntryChecksum(checksumSupplier, diffStream);
+
+                writeAttributesDiff(entryBefore.entry, entryAfter.entry, diffStream);
+
+                try (InputStream dataAfter = store.openData("after")) {
+                    IOUtils.copy(dataAfter, diffStream);
+                }
+            }
+            return true;
+        }
+    }
+
+    /** Predicted replacements skip delta computation, except for ones picked for verification by prediction stats. */
+    default boolean shouldComputeDelta(PatchPredictor.Prediction prediction, String path, long lengthAfter) {
+        if (prediction != PatchPredictor.Prediction.REPLACE) {
+            return true;
+        }
+        PatchPredictionStats stats = getOptions().getPatchPredictionStats();
+        return stats != null && stats.recordReplacePrediction(path, lengthAfter);
+    }
+
+    default void recordPredictionOutcome(PatchPredictor.Prediction prediction, boolean patched) {
+        PatchPredictionStats stats = getOptions().getPatchPredictionStats();
+        if (stats != null) {
+            stats.recordOutcome(prediction, patched);
+        }
+    }
+
     void writeAttributesDiff(GenArchiveEntry entryBefore, GenArchiveEntry entryAfter, DataOutputStream diffStream) throws IOException;
 
+    /** Lengths that don't fit into int are only possible for large entries, which are never held in byte arrays. */
+    default boolean requiresLongLengths(long... lengths) {
+        for (long length : lengths) {
+            if (length > Integer.MAX_VALUE) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    default void writeCommand(byte command, boolean longLengths, DataOutputStream diffStream) throws IOException {
+        diffStream.writeByte(longLengths ? command | ArchiveDiff.FLAG_LONG_LENGTHS : command);
+    }
+
+    /** GDiff patches are written without engine id, same as before other engines were introduced. */
+    default void writeCommand(byte command, boolean longLengths, DeltaEngine deltaEngine, DataOutputStream diffStream) throws IOException {
+        writeCommand(deltaEngine.getId() != GDiffDeltaEngine.ID ? (byte) (command | ArchiveDiff.FLAG_DELTA_ENGINE) : command, longLengths, diffStream);
+    }
+
+    default void writeDeltaEngine(DeltaEngine deltaEngine, DataOutputStream diffStream) throws IOException {
+        if (deltaEngine.getId() != GDiffDeltaEngine.ID) {
+            diffStream.writeByte(deltaEngine.getId());
+        }
+    }
+
+    default void writeLength(long length, boolean longLengths, DataOutputStream diffStream) throws IOException {
+        if (longLengths) {
+            diffStream.writeLong(length);
+        } else {
+            diffStream.writeInt((int) length);
+        }
+    }
+
     default void writeString(String s, DataOutputStream diffStream) throws IOException {
         if (s != null) {
             writeBytes(s.getBytes("UTF-8"), diffStream);
@@ -5,7 +5,6 @@ import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.utils.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
 import org.rogach.ardiff.formats.ArArchiveDiff;
 
@@ -13,9 +12,6 @@ import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 import java.util.function.Supplier;
 
 public interface ArchiveEntrySorter<GenArchiveEntry extends ArchiveEntry> extends ArchiveDiffBase<GenArchiveEntry> {
@@ -24,54 +20,41 @@ public interface ArchiveEntrySorter<GenArchiveEntry extends ArchiveEntry> extend
         ArchiveInputStream archiveInputStream = createArchiveInputStream(input);
         ArchiveOutputStream archiveOutputStream = createArchiveOutputStream(output);
 
-        List<ArchiveEntryWithData<GenArchiveEntry>> entries = new ArrayList<>();
-        GenArchiveEntry entry = getNextEntry(archiveInputStream);
-        while (entry != null) {
-            if (ArchiveDiff.isSupportedArchive(entry)) {
-                ByteArrayOutputStream sortedArchiveOutputStream = new ByteArrayOutputStream();
-                ArchiveDiff.sortArchiveEntries(
-                        new BufferedInputStream(archiveInputStream),
-                        sortedArchiveOutputStream
-                );
-                sortedArchiveOutputStream.close();
-
-                if (!supportsSorting()) {
-                    archiveOutputStream.putArchiveEntry(
-                            getEntryForData(entry, sortedArchiveOutputStream.size(), () -> ArchiveDiffUtils.computeCRC32Checksum(sortedArchiveOutputStream.toInputStream())));
-
-                    sortedArchiveOutputStream.writeTo(archiveOutputStream);
-                    archiveOutputStream.closeArchiveEntry();
+        ExternalEntrySorter.EntryWriter<GenArchiveEntry> entryWriter = (sortedEntry, dataSize, checksum, data) -> {
+            archiveOutputStream.putArchiveEntry(getEntryForData(sortedEntry, dataSize, () -> checksum));
+            IOUtils.copy(data, archiveOutputStream);
+            archiveOutputStream.closeArchiveEntry();
+        };
+
+        try (ExternalEntrySorter<GenArchiveEntry> sorter = new ExternalEntrySorter<>(getOptions().getMemoryBudget(), getOptions().getLargeEntryThreshold(), getOptions().getTempDirectory())) {
+            GenArchiveEntry entry = getNextEntry(archiveInputStream);
+            while (entry != null) {
+                OutputStream entryOutputStream = sorter.addEntry(entry);
+                if (ArchiveDiff.isSupportedArchive(entry)) {
+                    // nested sorter and the sorted nested archive buffered by this sorter split what is left of the budget
+                    ArchiveDiff.sortArchiveEntries(
+                            new BufferedInputStream(archiveInputStream),
+                            entryOutputStream,
+                            getNestedDiffOptions().withMemoryBudget(sorter.getRemainingBudget() / 2)
+                    );
                 } else {
-                    entries.add(new ArchiveEntryWithData<>(entry, sortedArchiveOutputStream.toByteArray()));
+                    IOUtils.copy(archiveInputStream, entryOutputStream);
                 }
-            } else {
-                byte[] data = IOUtils.toByteArray(archiveInputStream);
+                entryOutputStream.close();
+
                 if (!supportsSorting()) {
-                    archiveOutputStream.putArchiveEntry(getEntryForData(entry, data.length, () -> ArchiveDiffUtils.computeCRC32Checksum(data)));
-                    archiveOutputStream.write(data);
-                    archiveOutputStream.closeArchiveEntry();
-                } else {
-                    entries.add(new ArchiveEntryWithData<>(entry, data));
+                    // sorter holds only the current entry, so this preserves original order
+                    sorter.writeSortedEntries(entryWriter);
                 }
+                entry = getNextEntry(archiveInputStream);
             }
-            entry = getNextEntry(archiveInputStream);
-        }
-
 
-        if (supportsSorting()) {
-            Collections.sort(entries);
-            for (ArchiveEntryWithData<GenArchiveEntry> archiveEntry : entries) {
-                archiveOutputStream.putArchiveEntry(
-                        getEntryForData(archiveEntry.entry, archiveEntry.data.length, () -> ArchiveDiffUtils.computeCRC32Checksum(archiveEntry.data)));
-
-                archiveOutputStream.write(archiveEntry.data);
-                archiveOutputStream.closeArchiveEntry();
-            }
+            sorter.writeSortedEntries(entryWriter);
         }
 
         finishArchiveOutputStream(archiveOutputStream);
     }
 
-    GenArchiveEntry getEntryForData(GenArchiveEntry entry, int dataSize, Supplier<Long> checksumSupplier) throws IOException;
+    GenArchiveEntry getEntryForData(GenArchiveEntry entry, long dataSize, Supplier<Long> checksumSupplier) throws IOException;
 
 }
@@ -0,0 +1,51 @@
+package org.rogach.ardiff;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * Holds archive entries (metadata and data) keyed by path while a diff is being applied.
+ * Iteration order is insertion order; replacing an entry keeps its position.
+ */
+public interface ArchiveEntryStore<GenArchiveEntry extends ArchiveEntry> extends Closeable {
+
+    void put(String path, GenArchiveEntry entry, byte[] data) throws IOException;
+
+    /** Reads the data stream until the end, but doesn't close it. */
+    void put(String path, GenArchiveEntry entry, InputStream data) throws IOException;
+
+    default void put(String path, ArchiveEntryWithData<GenArchiveEntry> entryWithData) throws IOException {
+        put(path, entryWithData.entry, entryWithData.data);
+    }
+
+    /** Replaces entry metadata, keeping the data. */
+    void updateEntry(String path, GenArchiveEntry entry);
+
+    boolean contains(String path);
+
+    /** @return entry metadata, or null if there is no such entry */
+    GenArchiveEntry getEntry(String path);
+
+    /** @return entry with data read into memory, or null if there is no such entry */
+    ArchiveEntryWithData<GenArchiveEntry> get(String path) throws IOException;
+
+    InputStream openData(String path) throws IOException;
+
+    /** Random access view of entry data, used as a base for computing and applying deltas. */
+    default SeekableSource openSeekableData(String path) throws IOException {
+        return new ByteBufferSeekableSource(get(path).data);
+    }
+
+    long getDataLength(String path);
+
+    void remove(String path);
+
+    Collection<String> paths();
+
+}
@@ -3,6 +3,7 @@ package org.rogach.ardiff;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.utils.IOUtils;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Optional;
@@ -37,4 +38,22 @@ public class ArchiveEntryWithDataStream<GenArchiveEntry extends ArchiveEntry> im
             }
         });
     }
+
+    public InputStream getDataStream() {
+        return dataOpt.<InputStream>map(ByteArrayInputStream::new).orElseGet(dataStreamOpt::get);
+    }
+
+    /** Size of data already held in memory, 0 if data was not read yet. */
+    public long dataLength() {
+        return dataOpt.map(data -> (long) data.length).orElse(0L);
+    }
+
+    /** Returns entry with data fully read into memory, detaching it from the underlying archive stream. */
+    public ArchiveEntryWithDataStream<GenArchiveEntry> materialize() {
+        if (dataOpt.isPresent()) {
+            return this;
+        } else {
+            return new ArchiveEntryWithDataStream<>(entry, readData());
+        }
+    }
 }
@@ -0,0 +1,146 @@
+package org.rogach.ardiff;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes compressed diff container - container header, followed by independently compressed blocks
+ * and a zero-length terminator block.
+ *
+ * With executor, up to two blocks per worker are compressed concurrently, and blocks are written out
+ * in order - so the output doesn't depend on parallelism.
+ * Underlying stream is not closed by {@link #finish}.
+ */
+class BlockCompressingOutputStream extends OutputStream {
+
+    private static class PendingBlock {
+        final byte[] data;
+        final Future<byte[]> compressed;
+
+        PendingBlock(byte[] data, Future<byte[]> compressed) {
+            this.data = data;
+            this.compressed = compressed;
+        }
+    }
+
+    private final DataOutputStream out;
+    private final DiffCompression compression;
+    private final int blockSize;
+    private final ForkJoinPool executor;
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<PendingBlock> pending = new ArrayDeque<>();
+    private byte[] block;
+    private int blockLength = 0;
+
+    BlockCompressingOutputStream(OutputStream out, ArchiveDiffOptions options) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.compression = options.getCompression();
+        this.blockSize = options.getCompressionBlockSize();
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingBlocks = options.getParallelism() * 2;
+        this.block = new byte[blockSize];
+
+        this.out.writeByte(ArchiveDiff.CONTAINER_COMPRESSED);
+        this.out.writeByte(compression.getId());
+        this.out.writeInt(blockSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /** Doesn't end the current block, since that would make compression worse. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Compresses and writes out remaining data and the terminator block. */
+    void finish() throws IOException {
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writePendingBlock();
+        }
+        out.writeInt(0);
+        out.flush();
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = blockLength == blockSize ? block : Arrays.copyOf(block, blockLength);
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        if (executor == null) {
+            pending.add(new PendingBlock(data, CompletableFuture.completedFuture(compression.compress(data, blockSize))));
+        } else {
+            pending.add(new PendingBlock(data, executor.submit(() -> compression.compress(data, blockSize))));
+        }
+
+        while (pending.size() > maxPendingBlocks || (executor == null && !pending.isEmpty())) {
+            writePendingBlock();
+        }
+    }
+
+    private void writePendingBlock() throws IOException {
+        PendingBlock block = pending.poll();
+        byte[] compressed = awaitBlock(block.compressed);
+        out.writeInt(block.data.length);
+        // blocks that don't compress are stored as is, marked by equal lengths
+        if (compressed.length < block.data.length) {
+            out.writeInt(compressed.length);
+            out.write(compressed);
+        } else {
+            out.writeInt(block.data.length);
+            out.write(block.data);
+        }
+    }
+
+    static byte[] awaitBlock(Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for diff block", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+}
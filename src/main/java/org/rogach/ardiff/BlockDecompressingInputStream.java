@@ -0,0 +1,102 @@
+package org.rogach.ardiff;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reads blocks of compressed diff container (after container header), see {@link BlockCompressingOutputStream}.
+ *
+ * Compressed blocks are read sequentially, but with executor up to two blocks per worker are decompressed ahead
+ * of the reader concurrently. Underlying stream is not closed.
+ */
+class BlockDecompressingInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private final DiffCompression compression;
+    private final int blockSize;
+    private final ForkJoinPool executor;
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private boolean lastBlockRead = false;
+    private byte[] block = new byte[0];
+    private int position = 0;
+
+    BlockDecompressingInputStream(InputStream in, DiffCompression compression, int blockSize, ArchiveDiffOptions options) {
+        this.in = new DataInputStream(in);
+        this.compression = compression;
+        this.blockSize = blockSize;
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingBlocks = executor != null ? options.getParallelism() * 2 : 1;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlockIfNeeded()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlockIfNeeded()) {
+            return -1;
+        }
+        int length = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    /** @return false if there is no more data */
+    private boolean nextBlockIfNeeded() throws IOException {
+        while (position == block.length) {
+            readAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            block = BlockCompressingOutputStream.awaitBlock(pending.poll());
+            position = 0;
+        }
+        return true;
+    }
+
+    private void readAhead() throws IOException {
+        while (!lastBlockRead && pending.size() < maxPendingBlocks) {
+            int length = in.readInt();
+            if (length == 0) {
+                lastBlockRead = true;
+                return;
+            }
+            int compressedLength = in.readInt();
+            if (length < 0 || length > blockSize || compressedLength <= 0 || compressedLength > length) {
+                throw new IOException(String.format("Invalid diff block lengths: %d (%d compressed)", length, compressedLength));
+            }
+            byte[] compressed = new byte[compressedLength];
+            in.readFully(compressed);
+
+            if (compressedLength == length) {
+                pending.add(CompletableFuture.completedFuture(compressed));
+            } else if (executor == null) {
+                pending.add(CompletableFuture.completedFuture(compression.decompress(compressed, length, blockSize)));
+            } else {
+                pending.add(executor.submit(() -> compression.decompress(compressed, length, blockSize)));
+            }
+        }
+    }
+
+}
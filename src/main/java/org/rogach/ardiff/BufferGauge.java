@@ -0,0 +1,25 @@
+package org.rogach.ardiff;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Amount of data held in memory by entry stores and spilling buffers (diff commands, entry deltas), and its peak value.
+ * Shared by a top-level operation with all of its nested operations, see {@link ArchiveDiffListener#operationFinished}.
+ */
+class BufferGauge {
+
+    private final AtomicLong current = new AtomicLong();
+    private final AtomicLong peak = new AtomicLong();
+
+    void add(long bytes) {
+        long value = current.addAndGet(bytes);
+        if (bytes > 0) {
+            peak.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    long getPeak() {
+        return peak.get();
+    }
+
+}
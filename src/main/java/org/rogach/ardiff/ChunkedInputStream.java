@@ -0,0 +1,72 @@
+package org.rogach.ardiff;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads payload written by {@link ChunkedOutputStream}, ending at the terminating empty chunk.
+ * Closing the stream skips the rest of the payload (including the terminator), underlying stream is not closed.
+ */
+class ChunkedInputStream extends InputStream {
+
+    private final DataInputStream in;
+    private long remaining = 0;
+    private boolean finished = false;
+
+    ChunkedInputStream(DataInputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextChunkIfNeeded()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of diff - expected " + remaining + " more bytes of chunk");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextChunkIfNeeded()) {
+            return -1;
+        }
+        int bytesRead = in.read(b, off, (int) Math.min(len, remaining));
+        if (bytesRead == -1) {
+            throw new EOFException("Unexpected end of diff - expected " + remaining + " more bytes of chunk");
+        }
+        remaining -= bytesRead;
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        byte[] buffer = new byte[4096];
+        while (read(buffer, 0, buffer.length) != -1) {
+            // skip the rest of the payload
+        }
+    }
+
+    /** @return false after the terminating chunk */
+    private boolean nextChunkIfNeeded() throws IOException {
+        while (remaining == 0 && !finished) {
+            int chunkLength = in.readInt();
+            if (chunkLength < 0) {
+                throw new IOException("Invalid chunk length: " + chunkLength);
+            }
+            remaining = chunkLength;
+            finished = chunkLength == 0;
+        }
+        return !finished;
+    }
+
+}
@@ -0,0 +1,80 @@
+package org.rogach.ardiff;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes payload of unknown length as a sequence of length-prefixed chunks, terminated by an empty chunk -
+ * so that payload can be streamed into the diff without buffering it whole. See {@link ChunkedInputStream}.
+ * Closing the stream writes out the last chunk and the terminator, underlying stream is not closed.
+ */
+class ChunkedOutputStream extends OutputStream {
+
+    static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private final DataOutputStream out;
+    private final byte[] chunk;
+    private int chunkLength = 0;
+    private boolean closed = false;
+
+    ChunkedOutputStream(DataOutputStream out, int chunkSize) {
+        this.out = out;
+        this.chunk = new byte[chunkSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        chunk[chunkLength++] = (byte) b;
+        if (chunkLength == chunk.length) {
+            writeChunk();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (chunkLength == 0 && len >= chunk.length) {
+                // whole chunks are written as is, without copying them into the buffer
+                out.writeInt(chunk.length);
+                out.write(b, off, chunk.length);
+                off += chunk.length;
+                len -= chunk.length;
+                continue;
+            }
+            int length = Math.min(len, chunk.length - chunkLength);
+            System.arraycopy(b, off, chunk, chunkLength, length);
+            chunkLength += length;
+            off += length;
+            len -= length;
+            if (chunkLength == chunk.length) {
+                writeChunk();
+            }
+        }
+    }
+
+    /** Doesn't end the current chunk, so that chunk boundaries depend only on the data. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (chunkLength > 0) {
+            writeChunk();
+        }
+        out.writeInt(0);
+    }
+
+    private void writeChunk() throws IOException {
+        out.writeInt(chunkLength);
+        out.write(chunk, 0, chunkLength);
+        chunkLength = 0;
+    }
+
+}
@@ -0,0 +1,371 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Index of entries from the "before" archive that can serve as a base for added entries.
+ *
+ * Exact content hashes allow to replace added entries with copies of existing data (e.g. when files are moved
+ * between directories). Similarity sketches (bottom-k MinHash over content-defined chunks) together with
+ * version-stripped names allow to find a good delta base for entries that were renamed and modified at the same time
+ * (e.g. libfoo-2.3.1.so -> libfoo-2.3.2.so).
+ *
+ * Sources can also be registered lazily, when their data can be read at any time later - then the data is read
+ * only once some looked up entry has the same length (a possible copy) or the same version-stripped name.
+ * Entries whose data is never read at all can be registered by length and checksum, as copy sources only.
+ */
+public class DeltaSourceIndex<GenArchiveEntry extends ArchiveEntry> implements Closeable {
+
+    /** Entries smaller than this are cheaper to ship in full than to reference by path. */
+    static final int MIN_SOURCE_SIZE = 256;
+
+    /** Minimal estimated similarity for a delta base that was found by content only, without matching name. */
+    static final double MIN_SIMILARITY = 0.2;
+
+    private static final int SKETCH_SIZE = 64;
+    private static final int WINDOW_SIZE = 32;
+    private static final long ANCHOR_MASK = 31; // on average one feature per 32 bytes of data
+    private static final long ROLLING_HASH_MULTIPLIER = 0x100000001b3L;
+    private static final long ROLLING_HASH_WINDOW_MULTIPLIER;
+    static {
+        long multiplier = 1;
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            multiplier *= ROLLING_HASH_MULTIPLIER;
+        }
+        ROLLING_HASH_WINDOW_MULTIPLIER = multiplier;
+    }
+
+    public static class Match {
+        public final String path;
+        /** True if source data is identical to the looked up data. */
+        public final boolean exact;
+
+        Match(String path, boolean exact) {
+            this.path = path;
+            this.exact = exact;
+        }
+    }
+
+    /** Opens data of a lazily registered source, see {@link #addSource(ArchiveEntry, long, long, DataOpener)}. */
+    public interface DataOpener {
+        InputStream open() throws IOException;
+    }
+
+    private static class LazySource<GenArchiveEntry> {
+        final GenArchiveEntry entry;
+        final long checksum;
+        final DataOpener data;
+        boolean indexed = false;
+
+        LazySource(GenArchiveEntry entry, long checksum, DataOpener data) {
+            this.entry = entry;
+            this.checksum = checksum;
+            this.data = data;
+        }
+    }
+
+    private static class Source<GenArchiveEntry> {
+        final GenArchiveEntry entry;
+        final long[] sketch;
+
+        Source(GenArchiveEntry entry, long[] sketch) {
+            this.entry = entry;
+            this.sketch = sketch;
+        }
+    }
+
+    private final ArchiveEntryStore<GenArchiveEntry> dataStore;
+
+    private final Map<ByteBuffer, String> exactSources = new HashMap<>();
+    private final Map<Long, List<Source<GenArchiveEntry>>> sketchIndex = new HashMap<>();
+    private final Map<String, List<Source<GenArchiveEntry>>> nameIndex = new HashMap<>();
+    private final Map<List<Long>, String> checksumSources = new HashMap<>();
+    private final Map<Long, List<LazySource<GenArchiveEntry>>> lazySourcesByLength = new HashMap<>();
+    private final Map<String, List<LazySource<GenArchiveEntry>>> lazySourcesByName = new HashMap<>();
+    private final Set<String> referencedSources = new TreeSet<>();
+
+    /**
+     * @param dataStore store for data of indexed entries, required to compute deltas against them later;
+     *                  if null, only exact copies are detected
+     */
+    public DeltaSourceIndex(ArchiveEntryStore<GenArchiveEntry> dataStore) {
+        this.dataStore = dataStore;
+    }
+
+    public void addSource(GenArchiveEntry entry, byte[] data) throws IOException {
+        if (data.length >= MIN_SOURCE_SIZE) {
+            Fingerprint fingerprint = new Fingerprint(dataStore != null);
+            fingerprint.update(data, 0, data.length);
+            if (dataStore != null) {
+                dataStore.put(entry.getName(), entry, data);
+            }
+            addSource(entry, fingerprint);
+        }
+    }
+
+    /** Reads the data stream until the end, but doesn't close it. */
+    public void addSource(GenArchiveEntry entry, InputStream data) throws IOException {
+        Fingerprint fingerprint = new Fingerprint(dataStore != null);
+        if (dataStore != null) {
+            dataStore.put(entry.getName(), entry, data);
+            try (InputStream storedData = dataStore.openData(entry.getName())) {
+                fingerprint.update(storedData);
+            }
+            if (fingerprint.length < MIN_SOURCE_SIZE) {
+                dataStore.remove(entry.getName());
+            }
+        } else {
+            fingerprint.update(data);
+        }
+        if (fingerprint.length >= MIN_SOURCE_SIZE) {
+            addSource(entry, fingerprint);
+        }
+    }
+
+    /**
+     * Registers source without reading its data, it is read only when needed by {@link #findSource}.
+     *
+     * @param length length of source data
+     * @param checksum CRC32 checksum of source data, or -1 if unknown
+     */
+    public void addSource(GenArchiveEntry entry, long length, long checksum, DataOpener data) {
+        if (length >= MIN_SOURCE_SIZE) {
+            LazySource<GenArchiveEntry> source = new LazySource<>(entry, checksum, data);
+            lazySourcesByLength.computeIfAbsent(length, l -> new ArrayList<>()).add(source);
+            if (dataStore != null) {
+                lazySourcesByName.computeIfAbsent(normalizeName(entry.getName()), n -> new ArrayList<>()).add(source);
+            }
+        }
+    }
+
+    /**
+     * Registers source whose data is not available, only as a source of exact copies - recognized by length
+     * and CRC32 checksum, same as unchanged entries are.
+     */
+    public void addSource(GenArchiveEntry entry, long length, long checksum) {
+        if (length >= MIN_SOURCE_SIZE && checksum != -1) {
+            checksumSources.putIfAbsent(Arrays.asList(length, checksum), entry.getName());
+        }
+    }
+
+    private void addSource(GenArchiveEntry entry, Fingerprint fingerprint) {
+        exactSources.putIfAbsent(ByteBuffer.wrap(fingerprint.digest.digest()), entry.getName());
+        if (dataStore != null) {
+            Source<GenArchiveEntry> source = new Source<>(entry, fingerprint.getSketch());
+            for (long feature : source.sketch) {
+                sketchIndex.computeIfAbsent(feature, f -> new ArrayList<>()).add(source);
+            }
+            nameIndex.computeIfAbsent(normalizeName(entry.getName()), n -> new ArrayList<>()).add(source);
+        }
+    }
+
+    /**
+     * Looks up source with identical data, or, failing that, the most similar source.
+     * Sources with the same version-stripped name are preferred over ones found by content similarity alone.
+     * Nested archives can only be based on sources of the same archive type.
+     *
+     * @return matching source, or null if there is none
+     */
+    public Match findSource(GenArchiveEntry entry, byte[] data) throws IOException {
+        if (data.length < MIN_SOURCE_SIZE) {
+            return null;
+        }
+        Fingerprint fingerprint = new Fingerprint(dataStore != null);
+        fingerprint.update(data, 0, data.length);
+
+        // sources of the same length may turn out to be identical, so they are read (unless their checksum differs)
+        Long checksum = null;
+        for (LazySource<GenArchiveEntry> source : lazySourcesByLength.getOrDefault((long) data.length, Collections.emptyList())) {
+            if (source.checksum != -1 && checksum == null) {
+                checksum = ArchiveDiffUtils.computeCRC32Checksum(data);
+            }
+            if (source.checksum == -1 || source.checksum == checksum) {
+                indexLazySource(source);
+            }
+        }
+
+        String exactSource = exactSources.get(ByteBuffer.wrap(fingerprint.digest.digest()));
+        if (exactSource != null) {
+            return new Match(exactSource, true);
+        }
+        if (!checksumSources.isEmpty()) {
+            String checksumSource = checksumSources.get(Arrays.asList((long) data.length, checksum != null ? checksum : ArchiveDiffUtils.computeCRC32Checksum(data)));
+            if (checksumSource != null) {
+                return new Match(checksumSource, true);
+            }
+        }
+        if (dataStore == null) {
+            return null;
+        }
+
+        long[] sketch = fingerprint.getSketch();
+        String archiverType = ArchiveDiff.getArchiverType(entry);
+
+        for (LazySource<GenArchiveEntry> source : lazySourcesByName.getOrDefault(normalizeName(entry.getName()), Collections.emptyList())) {
+            indexLazySource(source);
+        }
+
+        Source<GenArchiveEntry> bestSource = null;
+        double bestSimilarity = -1;
+        for (Source<GenArchiveEntry> source : nameIndex.getOrDefault(normalizeName(entry.getName()), Collections.emptyList())) {
+            double similarity = estimateSimilarity(sketch, source.sketch);
+            if (similarity > bestSimilarity && Objects.equals(archiverType, ArchiveDiff.getArchiverType(source.entry))) {
+                bestSource = source;
+                bestSimilarity = similarity;
+            }
+        }
+
+        if (bestSource == null) {
+            Set<Source<GenArchiveEntry>> candidates = new LinkedHashSet<>();
+            for (long feature : sketch) {
+                candidates.addAll(sketchIndex.getOrDefault(feature, Collections.emptyList()));
+            }
+            for (Source<GenArchiveEntry> source : candidates) {
+                double similarity = estimateSimilarity(sketch, source.sketch);
+                if (similarity >= MIN_SIMILARITY && similarity > bestSimilarity && Objects.equals(archiverType, ArchiveDiff.getArchiverType(source.entry))) {
+                    bestSource = source;
+                    bestSimilarity = similarity;
+                }
+            }
+        }
+
+        return bestSource != null ? new Match(bestSource.entry.getName(), false) : null;
+    }
+
+    private void indexLazySource(LazySource<GenArchiveEntry> source) throws IOException {
+        if (!source.indexed) {
+            source.indexed = true;
+            try (InputStream data = source.data.open()) {
+                addSource(source.entry, data);
+            }
+        }
+    }
+
+    /** @return source entry with data loaded into memory */
+    public ArchiveEntryWithDataStream<GenArchiveEntry> getSource(String path) throws IOException {
+        ArchiveEntryWithData<GenArchiveEntry> source = dataStore.get(path);
+        return new ArchiveEntryWithDataStream<>(source.entry, source.data);
+    }
+
+    /** Remembers source as used by some command, so that it can be retained by diff readers. */
+    public synchronized void markReferenced(String path) {
+        referencedSources.add(path);
+    }
+
+    /** @return referenced sources in name order */
+    public synchronized Collection<String> getReferencedSources() {
+        return new ArrayList<>(referencedSources);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (dataStore != null) {
+            dataStore.close();
+        }
+    }
+
+    /** Strips version numbers and directories, so that "lib/foo-1.2.jar" and "lib2/foo-1.3.jar" are matched. */
+    static String normalizeName(String path) {
+        String fileName = path.substring(path.lastIndexOf('/') + 1);
+        return fileName.replaceAll("\\d+([._-]\\d+)*", "#");
+    }
+
+    /** Estimates Jaccard similarity of two bottom-k sketches. */
+    static double estimateSimilarity(long[] sketchA, long[] sketchB) {
+        int a = 0;
+        int b = 0;
+        int union = 0;
+        int common = 0;
+        while (union < SKETCH_SIZE && (a < sketchA.length || b < sketchB.length)) {
+            if (b >= sketchB.length || (a < sketchA.length && sketchA[a] < sketchB[b])) {
+                a++;
+            } else if (a >= sketchA.length || sketchB[b] < sketchA[a]) {
+                b++;
+            } else {
+                common++;
+                a++;
+                b++;
+            }
+            union++;
+        }
+        return union == 0 ? 0 : (double) common / union;
+    }
+
+    private static class Fingerprint {
+        final MessageDigest digest;
+        final boolean computeSketch;
+        final TreeSet<Long> sketch = new TreeSet<>();
+        final byte[] window = new byte[WINDOW_SIZE];
+        long rollingHash = 0;
+        long length = 0;
+
+        Fingerprint(boolean computeSketch) {
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            this.computeSketch = computeSketch;
+        }
+
+        void update(InputStream data) throws IOException {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = data.read(buffer)) != -1) {
+                update(buffer, 0, bytesRead);
+            }
+        }
+
+        void update(byte[] data, int offset, int dataLength) {
+            digest.update(data, offset, dataLength);
+            if (!computeSketch) {
+                length += dataLength;
+                return;
+            }
+            for (int i = offset; i < offset + dataLength; i++) {
+                int windowPosition = (int) (length % WINDOW_SIZE);
+                byte removed = window[windowPosition];
+                window[windowPosition] = data[i];
+                rollingHash = rollingHash * ROLLING_HASH_MULTIPLIER + (data[i] & 0xff) - (removed & 0xff) * ROLLING_HASH_WINDOW_MULTIPLIER;
+                length++;
+
+                long feature = mix(rollingHash);
+                if (length >= WINDOW_SIZE && (feature & ANCHOR_MASK) == 0) {
+                    if (sketch.size() < SKETCH_SIZE) {
+                        sketch.add(feature);
+                    } else if (feature < sketch.last() && sketch.add(feature)) {
+                        sketch.pollLast();
+                    }
+                }
+            }
+        }
+
+        long[] getSketch() {
+            long[] result = new long[sketch.size()];
+            int i = 0;
+            for (long feature : sketch) {
+                result[i++] = feature;
+            }
+            return result;
+        }
+
+        /** MurmurHash3 finalizer, spreads polynomial hash bits evenly. */
+        private static long mix(long h) {
+            h ^= h >>> 33;
+            h *= 0xff51afd7ed558ccdL;
+            h ^= h >>> 33;
+            h *= 0xc4ceb9fe1a85ec53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+}
@@ -0,0 +1,297 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Content-addressed cache of computed diffs in a local directory, shared by repeated and overlapping compute jobs.
+ *
+ * Keys are SHA-256 hashes of the "before" and "after" content together with the settings that affect the result,
+ * so cached diffs are reused regardless of file names or the archive the content is nested in. Whole archive diffs
+ * are cached when computing from files or channels, nested archive diffs (in unsorted mode, together with reconstructed
+ * archives) and entry deltas - whenever their data is held in memory. Streamed and large entries are not cached.
+ *
+ * Cached values are written to temporary files and atomically moved in place, so concurrent jobs (even in other
+ * processes) never see partial values. Least recently used values are removed once total size exceeds the limit,
+ * recency is kept in file modification times, so that it survives restarts.
+ */
+public class DiffCache {
+
+    /** Changed whenever cached values would differ for the same inputs, to make old values unreachable. */
+    private static final int VERSION = 1;
+    private static final String TEMP_PREFIX = "tmp-";
+
+    private final File directory;
+    private final long maxSize;
+
+    /** Sizes of cached values by key, in access order. */
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    private long hits = 0;
+    private long misses = 0;
+
+    public DiffCache(File directory, long maxSize) throws IOException {
+        if (maxSize < 0) {
+            throw new IllegalArgumentException("Cache size can't be negative: " + maxSize);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        Files.createDirectories(directory.toPath());
+
+        File[] files = directory.listFiles();
+        List<File> cachedFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (file.isFile() && !file.getName().startsWith(TEMP_PREFIX)) {
+                    cachedFiles.add(file);
+                }
+            }
+        }
+        cachedFiles.sort(Comparator.comparingLong(File::lastModified));
+        for (File file : cachedFiles) {
+            entries.put(file.getName(), file.length());
+            size += file.length();
+        }
+        evict(null);
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /** Total size of cached values, as known to this instance. */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Diff cache %s: %d values, %d bytes, %d hits, %d misses", directory, entries.size(), size, hits, misses);
+    }
+
+    /** @return null if there is no such value */
+    byte[] get(String key) throws IOException {
+        File file = findFile(key);
+        if (file == null) {
+            return null;
+        }
+        try {
+            return Files.readAllBytes(file.toPath());
+        } catch (NoSuchFileException e) {
+            // evicted by another process in the meantime
+            forget(key);
+            return null;
+        }
+    }
+
+    /** Copies the value into output stream. @return false if there is no such value, nothing is written then */
+    boolean copyTo(String key, OutputStream output) throws IOException {
+        File file = findFile(key);
+        if (file == null) {
+            return false;
+        }
+        InputStream input;
+        try {
+            input = new FileInputStream(file);
+        } catch (FileNotFoundException e) {
+            forget(key);
+            return false;
+        }
+        // open file stays readable even if it is evicted meanwhile
+        try (InputStream fileInput = input) {
+            byte[] buffer = new byte[65536];
+            int bytesRead;
+            while ((bytesRead = fileInput.read(buffer)) != -1) {
+                output.write(buffer, 0, bytesRead);
+            }
+        }
+        return true;
+    }
+
+    void put(String key, byte[] value) throws IOException {
+        File tempFile = File.createTempFile(TEMP_PREFIX, ".tmp", directory);
+        try {
+            try (OutputStream output = new FileOutputStream(tempFile)) {
+                output.write(value);
+            }
+            store(key, tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    interface ValueWriter {
+        void write(OutputStream output) throws IOException, ArchiveException, ArchiveDiffException;
+    }
+
+    /** Value is stored only if the writer completes normally, the exception is rethrown otherwise. */
+    void put(String key, ValueWriter writer) throws IOException, ArchiveException, ArchiveDiffException {
+        File tempFile = File.createTempFile(TEMP_PREFIX, ".tmp", directory);
+        try {
+            try (OutputStream output = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+                writer.write(output);
+            }
+            store(key, tempFile);
+        } finally {
+            Files.deleteIfExists(tempFile.toPath());
+        }
+    }
+
+    private void store(String key, File tempFile) throws IOException {
+        long length = tempFile.length();
+        if (length > maxSize) {
+            return;
+        }
+        File file = new File(directory, key);
+        try {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        synchronized (this) {
+            Long previousLength = entries.put(key, length);
+            size += length - (previousLength != null ? previousLength : 0);
+            evict(key);
+        }
+    }
+
+    private File findFile(String key) {
+        File file = new File(directory, key);
+        synchronized (this) {
+            if (!file.isFile()) {
+                if (entries.containsKey(key)) {
+                    forget(key);
+                }
+                misses++;
+                return null;
+            }
+            hits++;
+            if (entries.get(key) == null) {
+                // stored by another process
+                entries.put(key, file.length());
+                size += file.length();
+                evict(key);
+            }
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    private synchronized void forget(String key) {
+        Long length = entries.remove(key);
+        if (length != null) {
+            size -= length;
+        }
+    }
+
+    /** Removes least recently used values until total size fits the limit, except for the value with given key. */
+    private synchronized void evict(String keptKey) {
+        Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (entry.getKey().equals(keptKey)) {
+                continue;
+            }
+            new File(directory, entry.getKey()).delete();
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    static KeyBuilder key(String kind) {
+        return new KeyBuilder(kind);
+    }
+
+    /** Hashes given parts into a cache key, contents are hashed separately so that keys don't depend on how they are split. */
+    static class KeyBuilder {
+
+        private final MessageDigest digest = newDigest();
+
+        KeyBuilder(String kind) {
+            add(VERSION);
+            add(kind);
+        }
+
+        KeyBuilder add(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            add(bytes.length);
+            digest.update(bytes);
+            return this;
+        }
+
+        KeyBuilder add(long value) {
+            digest.update(ByteBuffer.allocate(8).putLong(value).array());
+            return this;
+        }
+
+        KeyBuilder addContent(byte[] content) {
+            MessageDigest contentDigest = newDigest();
+            contentDigest.update(content);
+            digest.update(contentDigest.digest());
+            return this;
+        }
+
+        /** Reads the whole channel from the start, leaving it positioned at the start. */
+        KeyBuilder addContent(SeekableByteChannel content) throws IOException {
+            MessageDigest contentDigest = newDigest();
+            ByteBuffer buffer = ByteBuffer.allocate(65536);
+            content.position(0);
+            while (content.read(buffer) != -1) {
+                buffer.flip();
+                contentDigest.update(buffer);
+                buffer.clear();
+            }
+            content.position(0);
+            digest.update(contentDigest.digest());
+            return this;
+        }
+
+        String build() {
+            StringBuilder key = new StringBuilder();
+            for (byte b : digest.digest()) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        }
+
+        private static MessageDigest newDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,166 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Writes diff commands (each followed by its crc32 trailer) to the diff stream.
+ *
+ * Without executor all commands are written immediately. With executor, submitted commands
+ * are computed concurrently into separate buffers, and buffers are written out strictly
+ * in submission order - so the resulting diff is byte-for-byte the same as in sequential mode.
+ */
+class DiffCommandQueue {
+
+    interface CommandWriter {
+        /** @return false if command turned out to be unnecessary and nothing was written */
+        boolean write(DataOutputStream diffStream) throws IOException, ArchiveDiffException, ArchiveException;
+    }
+
+    private static class PendingCommand {
+        final Future<byte[]> result;
+        final long inputBytes;
+
+        PendingCommand(Future<byte[]> result, long inputBytes) {
+            this.result = result;
+            this.inputBytes = inputBytes;
+        }
+    }
+
+    private final DiffIndexingOutputStream indexingDiffStream;
+    private final CheckedOutputStream checkedDiffStream;
+    private final DataOutputStream diffStream;
+    private final ForkJoinPool executor;
+    private final int maxPendingCommands;
+    private final long maxPendingBytes;
+
+    private final ArrayDeque<PendingCommand> pending = new ArrayDeque<>();
+    private long pendingBytes = 0;
+
+    /** @param indexingDiffStream stream under the checked stream, which records written commands into diff index */
+    DiffCommandQueue(DiffIndexingOutputStream indexingDiffStream, CheckedOutputStream checkedDiffStream, DataOutputStream diffStream, ArchiveDiffOptions options) {
+        this.indexingDiffStream = indexingDiffStream;
+        this.checkedDiffStream = checkedDiffStream;
+        this.diffStream = diffStream;
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingCommands = options.getParallelism() * 2;
+        this.maxPendingBytes = options.getMemoryBudget();
+    }
+
+    boolean isParallel() {
+        return executor != null;
+    }
+
+    /** Writes command on the calling thread, preserving order relative to previously submitted commands. */
+    void write(CommandWriter writer) throws IOException, ArchiveDiffException, ArchiveException {
+        if (pending.isEmpty()) {
+            checkedDiffStream.getChecksum().reset();
+            indexingDiffStream.startCommand();
+            if (writer.write(diffStream)) {
+                diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
+            }
+            indexingDiffStream.endCommand();
+        } else {
+            byte[] command = writeToBuffer(writer);
+            pending.add(new PendingCommand(CompletableFuture.completedFuture(command), 0));
+        }
+    }
+
+    /**
+     * Waits for previously submitted commands and writes command directly to the diff stream,
+     * without buffering it in memory. Used for commands carrying data of large entries.
+     * When diff commands are buffered until delta sources are known, the diff stream is that buffer,
+     * which spills to a temporary file past its share of memory budget.
+     */
+    void writeUnbuffered(CommandWriter writer) throws IOException, ArchiveDiffException, ArchiveException {
+        flush();
+        write(writer);
+    }
+
+    /**
+     * Schedules command for (possibly concurrent) computation.
+     * Writer must not touch any shared streams - all its input has to be already materialized.
+     *
+     * @param inputBytes size of input data held by the writer, used to bound memory consumption
+     */
+    void submit(long inputBytes, CommandWriter writer) throws IOException, ArchiveDiffException, ArchiveException {
+        if (executor == null) {
+            write(writer);
+            return;
+        }
+
+        pending.add(new PendingCommand(executor.submit(() -> writeToBuffer(writer)), inputBytes));
+        pendingBytes += inputBytes;
+
+        while (pending.size() > maxPendingCommands || (pendingBytes > maxPendingBytes && pending.size() > 1)) {
+            writePendingCommand();
+        }
+    }
+
+    /** Waits for all submitted commands and writes them out. */
+    void flush() throws IOException, ArchiveDiffException, ArchiveException {
+        while (!pending.isEmpty()) {
+            writePendingCommand();
+        }
+    }
+
+    private void writePendingCommand() throws IOException, ArchiveDiffException, ArchiveException {
+        PendingCommand command = pending.poll();
+        byte[] commandBytes = awaitResult(command.result);
+        pendingBytes -= command.inputBytes;
+
+        if (commandBytes != null) {
+            checkedDiffStream.getChecksum().reset();
+            indexingDiffStream.startCommand();
+            diffStream.write(commandBytes);
+            diffStream.writeLong(checkedDiffStream.getChecksum().getValue());
+            indexingDiffStream.endCommand();
+        }
+    }
+
+    private static byte[] writeToBuffer(CommandWriter writer) throws IOException, ArchiveDiffException, ArchiveException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream bufferStream = new DataOutputStream(buffer);
+        if (writer.write(bufferStream)) {
+            bufferStream.flush();
+            return buffer.toByteArray();
+        } else {
+            return null;
+        }
+    }
+
+    private static byte[] awaitResult(Future<byte[]> result) throws IOException, ArchiveDiffException, ArchiveException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for diff command", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ArchiveDiffException) {
+                throw (ArchiveDiffException) cause;
+            } else if (cause instanceof ArchiveException) {
+                throw (ArchiveException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+}
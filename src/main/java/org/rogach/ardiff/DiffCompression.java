@@ -0,0 +1,109 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.FinishableWrapperOutputStream;
+import org.tukaani.xz.LZMA2InputStream;
+import org.tukaani.xz.LZMA2Options;
+
+import java.io.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of the diff container. Diff is split into blocks that are compressed independently,
+ * so that both compression and decompression can run on several threads.
+ */
+public enum DiffCompression {
+
+    NONE((byte) 0, "none"),
+    /** Raw deflate stream per block. */
+    DEFLATE((byte) 1, "deflate"),
+    /** Raw LZMA2 stream per block, dictionary size equals block size. */
+    XZ((byte) 2, "xz");
+
+    private final byte id;
+    private final String name;
+
+    DiffCompression(byte id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    public byte getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** @return compression with given id, or null if there is none */
+    public static DiffCompression forId(byte id) {
+        for (DiffCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    public static DiffCompression forName(String name) {
+        for (DiffCompression compression : values()) {
+            if (compression.name.equals(name)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unknown diff compression: " + name);
+    }
+
+    byte[] compress(byte[] block, int blockSize) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(block.length / 2);
+        if (this == DEFLATE) {
+            Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try (OutputStream deflate = new DeflaterOutputStream(compressed, deflater)) {
+                deflate.write(block);
+            } finally {
+                deflater.end();
+            }
+        } else if (this == XZ) {
+            LZMA2Options options = new LZMA2Options();
+            options.setDictSize(getDictSize(blockSize));
+            try (FinishableOutputStream lzma = options.getOutputStream(new FinishableWrapperOutputStream(compressed))) {
+                lzma.write(block);
+            }
+        } else {
+            return block;
+        }
+        return compressed.toByteArray();
+    }
+
+    byte[] decompress(byte[] compressed, int length, int blockSize) throws IOException {
+        byte[] block = new byte[length];
+        int decompressedLength;
+        if (this == DEFLATE) {
+            Inflater inflater = new Inflater(true);
+            try (InputStream inflate = new InflaterInputStream(new ByteArrayInputStream(compressed), inflater)) {
+                decompressedLength = IOUtils.readFully(inflate, block);
+            } finally {
+                inflater.end();
+            }
+        } else if (this == XZ) {
+            InputStream lzma = new LZMA2InputStream(new ByteArrayInputStream(compressed), getDictSize(blockSize));
+            decompressedLength = IOUtils.readFully(lzma, block);
+        } else {
+            return compressed;
+        }
+        if (decompressedLength != length) {
+            throw new EOFException("Unexpected end of compressed diff block");
+        }
+        return block;
+    }
+
+    private static int getDictSize(int blockSize) {
+        return Math.max(LZMA2Options.DICT_SIZE_MIN, blockSize);
+    }
+
+}
@@ -0,0 +1,213 @@
+package org.rogach.ardiff;
+
+import org.rogach.ardiff.exceptions.ArchiveDiffCorruptedException;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
+import org.rogach.ardiff.exceptions.ArchiveDiffFormatException;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Table of contents of a diff - location of every command in the diff command stream.
+ *
+ * Index is written after the end of the diff (after the compressed container, if diff is compressed),
+ * and ends with a fixed-size footer, so it can be found without reading the diff itself.
+ * Offsets are counted from the start of the command stream - right after the header for uncompressed diffs,
+ * and in decompressed data for compressed ones.
+ */
+public class DiffIndex {
+
+    static final String FOOTER_MAGIC = "_ardidx_";
+
+    /** Index length, index checksum and magic bytes. */
+    static final int FOOTER_LENGTH = 8 + 8 + 8;
+
+    public static class Entry {
+        private final byte command;
+        private final String path;
+        private final String sourcePath;
+        private final long offset;
+        private final long length;
+
+        Entry(byte command, String path, String sourcePath, long offset, long length) {
+            this.command = command;
+            this.path = path;
+            this.sourcePath = sourcePath;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Command byte, including flags. */
+        public byte getCommand() {
+            return command;
+        }
+
+        public String getCommandName() {
+            return DiffIndex.getCommandName(command);
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        /** Entry of "before" archive that this command takes data from, null if there is none. */
+        public String getSourcePath() {
+            return sourcePath;
+        }
+
+        /** Offset of the command in the command stream. */
+        public long getOffset() {
+            return offset;
+        }
+
+        /** Length of the command, including its checksum. */
+        public long getLength() {
+            return length;
+        }
+
+        Entry withOffset(long offset) {
+            return new Entry(command, path, sourcePath, offset, length);
+        }
+    }
+
+    private final List<Entry> entries;
+
+    DiffIndex(List<Entry> entries) {
+        this.entries = Collections.unmodifiableList(new ArrayList<>(entries));
+    }
+
+    /** Commands in the order they appear in the diff. */
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * Reads index from the end of the diff, returns null if diff was written without index.
+     * File channels are memory-mapped, so only the index itself is read from disk.
+     * Channel position is not preserved.
+     */
+    public static DiffIndex read(SeekableByteChannel diff) throws IOException, ArchiveDiffException {
+        long size = diff.size();
+        if (size < ArchiveDiff.HEADER.length() + FOOTER_LENGTH) {
+            return null;
+        }
+        ByteBuffer footer = readFully(diff, size - FOOTER_LENGTH, FOOTER_LENGTH);
+        long indexLength = footer.getLong();
+        long expectedChecksum = footer.getLong();
+        byte[] magic = new byte[FOOTER_MAGIC.length()];
+        footer.get(magic);
+        if (!FOOTER_MAGIC.equals(new String(magic, StandardCharsets.US_ASCII))) {
+            return null;
+        }
+        if (indexLength <= 0 || indexLength > size - FOOTER_LENGTH - ArchiveDiff.HEADER.length() || indexLength > Integer.MAX_VALUE) {
+            throw new ArchiveDiffFormatException("Invalid diff index length: " + indexLength);
+        }
+
+        ByteBuffer index = diff instanceof FileChannel
+                ? ((FileChannel) diff).map(FileChannel.MapMode.READ_ONLY, size - FOOTER_LENGTH - indexLength, indexLength)
+                : readFully(diff, size - FOOTER_LENGTH - indexLength, (int) indexLength);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(index.duplicate());
+        if (checksum.getValue() != expectedChecksum) {
+            throw new ArchiveDiffCorruptedException("Diff index checksum mismatch");
+        }
+
+        try {
+            List<Entry> entries = new ArrayList<>();
+            byte command;
+            while ((command = index.get()) != 0) {
+                String path = readString(index);
+                String sourcePath = hasSourcePath(command) ? readString(index) : null;
+                entries.add(new Entry(command, path, sourcePath, index.getLong(), index.getLong()));
+            }
+            return new DiffIndex(entries);
+        } catch (RuntimeException e) {
+            throw new ArchiveDiffFormatException("Invalid diff index", e);
+        }
+    }
+
+    void write(OutputStream out) throws IOException {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        DataOutputStream indexStream = new DataOutputStream(index);
+        for (Entry entry : entries) {
+            indexStream.writeByte(entry.command);
+            writeString(entry.path, indexStream);
+            if (hasSourcePath(entry.command)) {
+                writeString(entry.sourcePath, indexStream);
+            }
+            indexStream.writeLong(entry.offset);
+            indexStream.writeLong(entry.length);
+        }
+        indexStream.writeByte(0);
+
+        CRC32 checksum = new CRC32();
+        checksum.update(index.toByteArray());
+
+        DataOutputStream outStream = new DataOutputStream(out);
+        index.writeTo(outStream);
+        outStream.writeLong(index.size());
+        outStream.writeLong(checksum.getValue());
+        outStream.write(FOOTER_MAGIC.getBytes(StandardCharsets.US_ASCII));
+        outStream.flush();
+    }
+
+    static boolean hasSourcePath(byte command) {
+        byte commandType = getCommandType(command);
+        return commandType == ArchiveDiff.COMMAND_COPY
+                || commandType == ArchiveDiff.COMMAND_PATCH_FROM
+                || commandType == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM;
+    }
+
+    static byte getCommandType(byte command) {
+        return (byte) (command & ~(ArchiveDiff.FLAG_LONG_LENGTHS | ArchiveDiff.FLAG_DELTA_ENGINE | ArchiveDiff.FLAG_CHUNKED));
+    }
+
+    static String getCommandName(byte command) {
+        switch (getCommandType(command)) {
+            case ArchiveDiff.COMMAND_ADD: return "add";
+            case ArchiveDiff.COMMAND_REPLACE: return "replace";
+            case ArchiveDiff.COMMAND_REMOVE: return "remove";
+            case ArchiveDiff.COMMAND_PATCH: return "patch";
+            case ArchiveDiff.COMMAND_ARCHIVE_PATCH: return "archive patch";
+            case ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES: return "update attributes";
+            case ArchiveDiff.COMMAND_COPY: return "copy";
+            case ArchiveDiff.COMMAND_RETAIN: return "retain";
+            case ArchiveDiff.COMMAND_PATCH_FROM: return "patch from";
+            case ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM: return "archive patch from";
+            default: return "unknown (" + command + ")";
+        }
+    }
+
+    private static ByteBuffer readFully(SeekableByteChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        channel.position(position);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) == -1) {
+                throw new EOFException("Unexpected end of diff");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeString(String s, DataOutputStream out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+}
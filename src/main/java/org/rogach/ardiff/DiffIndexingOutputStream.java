@@ -0,0 +1,113 @@
+package org.rogach.ardiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks position in the diff command stream and records {@link DiffIndex} entries for commands written through it.
+ * Command type and paths are picked from the start of each command, so command writers don't need to know about the index.
+ */
+class DiffIndexingOutputStream extends FilterOutputStream {
+
+    private long position = 0;
+
+    private final List<DiffIndex.Entry> entries = new ArrayList<>();
+    private long commandOffset = -1;
+    private final ByteArrayOutputStream commandStart = new ByteArrayOutputStream();
+    private boolean commandStartComplete;
+    private int commandStartLength;
+    private boolean pathLengthKnown;
+    private boolean sourcePathLengthKnown;
+
+    DiffIndexingOutputStream(OutputStream out) {
+        super(out);
+    }
+
+    long getPosition() {
+        return position;
+    }
+
+    List<DiffIndex.Entry> getEntries() {
+        return entries;
+    }
+
+    void startCommand() {
+        commandOffset = position;
+        commandStart.reset();
+        commandStartComplete = false;
+        commandStartLength = 3;
+        pathLengthKnown = false;
+        sourcePathLengthKnown = false;
+    }
+
+    /** Records the command written since {@link #startCommand}, if anything was written. */
+    void endCommand() {
+        if (position > commandOffset) {
+            byte[] start = commandStart.toByteArray();
+            byte command = start[0];
+            int pathLength = readShort(start, 1);
+            String path = new String(start, 3, pathLength, StandardCharsets.UTF_8);
+            String sourcePath = null;
+            if (DiffIndex.hasSourcePath(command)) {
+                int sourcePathLength = readShort(start, 3 + pathLength);
+                sourcePath = new String(start, 5 + pathLength, sourcePathLength, StandardCharsets.UTF_8);
+            }
+            entries.add(new DiffIndex.Entry(command, path, sourcePath, commandOffset, position - commandOffset));
+        }
+        commandOffset = -1;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        position++;
+        if (commandOffset != -1 && !commandStartComplete) {
+            commandStart.write(b);
+            updateCommandStartComplete();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        position += len;
+        // command start is only a few bytes long, so it is captured byte by byte
+        for (int i = 0; i < len && commandOffset != -1 && !commandStartComplete; i++) {
+            commandStart.write(b[off + i]);
+            updateCommandStartComplete();
+        }
+    }
+
+    /**
+     * Command start is complete when command byte, path and source path (for commands that have one) are captured.
+     * Required length grows as length prefixes of paths become known.
+     */
+    private void updateCommandStartComplete() {
+        int captured = commandStart.size();
+        if (captured < commandStartLength) {
+            return;
+        }
+        byte[] start = commandStart.toByteArray();
+        if (!pathLengthKnown) {
+            pathLengthKnown = true;
+            commandStartLength = 3 + readShort(start, 1) + (DiffIndex.hasSourcePath(start[0]) ? 2 : 0);
+        } else if (DiffIndex.hasSourcePath(start[0]) && !sourcePathLengthKnown) {
+            sourcePathLengthKnown = true;
+            commandStartLength += readShort(start, commandStartLength - 2);
+        }
+        commandStartComplete = captured >= commandStartLength && (!DiffIndex.hasSourcePath(start[0]) || sourcePathLengthKnown);
+        if (!commandStartComplete && captured >= commandStartLength) {
+            updateCommandStartComplete();
+        }
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (short) (((bytes[offset] & 0xff) << 8) | (bytes[offset + 1] & 0xff));
+    }
+
+}
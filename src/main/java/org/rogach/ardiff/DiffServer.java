@@ -0,0 +1,244 @@
+package org.rogach.ardiff;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resident process that runs command lines sent by clients (`--server` option), so that repeated jobs
+ * don't pay for JVM startup and run on already compiled code.
+ *
+ * Server listens on loopback interface only. Each connection carries a single job: client working directory
+ * and command line go in, exit status and captured output go out, timings of every job are logged by the server.
+ * Jobs run on a fixed number of threads, and share options given to the server - including worker pool
+ * for per-entry work and diff cache, if any.
+ *
+ * Jobs run with permissions of the server, so other users of the machine must not be able to send them.
+ * Server writes a random token to a file readable only by its owner (see {@link #getTokenFile(int)}),
+ * and connections that don't start with that token are dropped before the job is even read.
+ */
+public class DiffServer implements Closeable {
+
+    public static final int DEFAULT_PORT = 7717;
+
+    private static final int TOKEN_LENGTH = 32;
+    /** Longer command lines are not sent by the client, so such requests are rejected as malformed. */
+    private static final int MAX_ARGUMENTS = 4096;
+    /** Clients send the whole request right away, so connections that stall are dropped. */
+    private static final int READ_TIMEOUT_MILLIS = 30000;
+
+    private final ServerSocket serverSocket;
+    private final ArchiveDiffOptions options;
+    private final ExecutorService jobExecutor;
+    private final ForkJoinPool workerPool;
+    private final PrintStream log;
+    private final byte[] token;
+    private final File tokenFile;
+    private final AtomicLong jobCount = new AtomicLong();
+
+    /** Binds to the port right away, 0 means any free port - see {@link #getPort()}. */
+    public DiffServer(int port, int jobs, ArchiveDiffOptions options, PrintStream out, PrintStream log) throws IOException {
+        if (jobs < 1) {
+            throw new IllegalArgumentException("Number of jobs must be positive: " + jobs);
+        }
+        this.serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        this.token = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(token);
+        this.tokenFile = getTokenFile(getPort());
+        try {
+            writeOwnerOnly(tokenFile, token);
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        this.workerPool = options.getParallelism() > 1 && options.getExecutor() == null ? new ForkJoinPool(options.getParallelism()) : null;
+        this.options = workerPool != null ? options.withExecutor(workerPool) : options;
+        this.jobExecutor = Executors.newFixedThreadPool(jobs);
+        this.log = log;
+        out.printf("Listening on %s:%d, running up to %d jobs at once, token is in %s%n", serverSocket.getInetAddress().getHostAddress(), getPort(), jobs, tokenFile);
+        out.flush();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /** File with the token of server listening on given port, in .ardiff directory under user home. */
+    public static File getTokenFile(int port) {
+        return new File(new File(System.getProperty("user.home"), ".ardiff"), "server-" + port + ".token");
+    }
+
+    /** Accepts jobs until the server is closed. */
+    public void serve() throws IOException {
+        try {
+            while (true) {
+                Socket socket;
+                try {
+                    socket = serverSocket.accept();
+                } catch (SocketException e) {
+                    if (serverSocket.isClosed()) {
+                        return;
+                    }
+                    throw e;
+                }
+                long jobId = jobCount.incrementAndGet();
+                long acceptTime = System.nanoTime();
+                jobExecutor.execute(() -> runJob(socket, jobId, acceptTime));
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /** Stops accepting jobs, running jobs are finished. */
+    @Override
+    public void close() throws IOException {
+        if (!serverSocket.isClosed()) {
+            tokenFile.delete();
+        }
+        serverSocket.close();
+        jobExecutor.shutdown();
+        try {
+            jobExecutor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (workerPool != null) {
+            workerPool.shutdown();
+        }
+    }
+
+    private void runJob(Socket socket, long jobId, long acceptTime) {
+        try (Socket jobSocket = socket) {
+            jobSocket.setSoTimeout(READ_TIMEOUT_MILLIS);
+            DataInputStream request = new DataInputStream(new BufferedInputStream(jobSocket.getInputStream()));
+            byte[] requestToken = new byte[TOKEN_LENGTH];
+            request.readFully(requestToken);
+            if (!MessageDigest.isEqual(token, requestToken)) {
+                synchronized (log) {
+                    log.printf("Job %d rejected: wrong token%n", jobId);
+                }
+                return;
+            }
+            File workingDirectory = new File(request.readUTF());
+            int argumentCount = request.readInt();
+            if (argumentCount < 0 || argumentCount > MAX_ARGUMENTS) {
+                throw new IOException("Malformed request: " + argumentCount + " arguments");
+            }
+            String[] args = new String[argumentCount];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = request.readUTF();
+            }
+
+            long startTime = System.nanoTime();
+            ByteArrayOutputStream jobOut = new ByteArrayOutputStream();
+            ByteArrayOutputStream jobErr = new ByteArrayOutputStream();
+            int status;
+            try (
+                    PrintStream out = new PrintStream(jobOut, true, "UTF-8");
+                    PrintStream err = new PrintStream(jobErr, true, "UTF-8")
+            ) {
+                try {
+                    status = ArchiveDiff.run(args, workingDirectory, options, false, out, err);
+                } catch (Exception e) {
+                    e.printStackTrace(err);
+                    status = 1;
+                }
+            }
+            long endTime = System.nanoTime();
+            long queuedMillis = TimeUnit.NANOSECONDS.toMillis(startTime - acceptTime);
+            long runMillis = TimeUnit.NANOSECONDS.toMillis(endTime - startTime);
+
+            DataOutputStream response = new DataOutputStream(new BufferedOutputStream(jobSocket.getOutputStream()));
+            response.writeInt(status);
+            writeBytes(jobOut.toByteArray(), response);
+            writeBytes(jobErr.toByteArray(), response);
+            response.flush();
+
+            synchronized (log) {
+                log.printf("Job %d: %s - status %d, %d ms (queued for %d ms)%n", jobId, String.join(" ", args), status, runMillis, queuedMillis);
+            }
+        } catch (IOException e) {
+            synchronized (log) {
+                log.printf("Job %d failed: %s%n", jobId, e);
+            }
+        }
+    }
+
+    /**
+     * Sends the command line to the server on given port, and prints job output as if the command was run locally.
+     * @return exit status of the job
+     */
+    static int runRemotely(int port, String[] args, File workingDirectory, PrintStream out, PrintStream err) throws IOException {
+        File tokenFile = getTokenFile(port);
+        if (!tokenFile.isFile()) {
+            throw new IOException(String.format("No server token in %s - is the server running on port %d?", tokenFile, port));
+        }
+        byte[] token = Files.readAllBytes(tokenFile.toPath());
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            request.write(token);
+            request.writeUTF(workingDirectory.getAbsolutePath());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int status = response.readInt();
+            out.write(readBytes(response));
+            out.flush();
+            err.write(readBytes(response));
+            err.flush();
+            return status;
+        }
+    }
+
+    /** Creates the file (and its directory) with permissions for the owner only, replacing existing one. */
+    private static void writeOwnerOnly(File file, byte[] data) throws IOException {
+        Path directory = file.getParentFile().toPath();
+        Path path = file.toPath();
+        Files.deleteIfExists(path);
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            if (!Files.isDirectory(directory)) {
+                Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+            }
+            Files.createFile(path, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createDirectories(directory);
+            Files.createFile(path);
+            File created = path.toFile();
+            if (!(created.setReadable(false, false) && created.setReadable(true, true)
+                    && created.setWritable(false, false) && created.setWritable(true, true))) {
+                throw new IOException("Unable to restrict permissions of " + file);
+            }
+        }
+        Files.write(path, data);
+    }
+
+    private static void writeBytes(byte[] bytes, DataOutputStream stream) throws IOException {
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream stream) throws IOException {
+        byte[] bytes = new byte[stream.readInt()];
+        stream.readFully(bytes);
+        return bytes;
+    }
+
+}
@@ -0,0 +1,204 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.CRC32;
+
+/**
+ * Sorts archive entries by name, keeping at most memory budget worth of entry data on heap.
+ *
+ * Entries are buffered in memory until the budget is exhausted, then the buffer is sorted
+ * and appended to a spill file as a single run. On output, runs are k-way merged.
+ * Entries with equal names keep their original relative order.
+ */
+class ExternalEntrySorter<GenArchiveEntry extends ArchiveEntry> implements Closeable {
+
+    interface EntryWriter<GenArchiveEntry> {
+        void write(GenArchiveEntry entry, long dataSize, long checksum, InputStream data) throws IOException;
+    }
+
+    private static class SortedEntry<GenArchiveEntry extends ArchiveEntry> {
+        final GenArchiveEntry entry;
+        final long sequence;
+        final long checksum;
+        final long length;
+        final byte[] data; // null if data was spilled to disk
+        final long offset;
+
+        SortedEntry(GenArchiveEntry entry, long sequence, long checksum, long length, byte[] data, long offset) {
+            this.entry = entry;
+            this.sequence = sequence;
+            this.checksum = checksum;
+            this.length = length;
+            this.data = data;
+            this.offset = offset;
+        }
+    }
+
+    private static class RunCursor<GenArchiveEntry extends ArchiveEntry> {
+        final List<SortedEntry<GenArchiveEntry>> run;
+        int position = 0;
+
+        RunCursor(List<SortedEntry<GenArchiveEntry>> run) {
+            this.run = run;
+        }
+
+        SortedEntry<GenArchiveEntry> current() {
+            return run.get(position);
+        }
+    }
+
+    private final Comparator<SortedEntry<GenArchiveEntry>> entryOrder =
+            Comparator.<SortedEntry<GenArchiveEntry>, String>comparing(e -> e.entry.getName())
+                    .thenComparingLong(e -> e.sequence);
+
+    private final long memoryBudget;
+    private final long largeEntryThreshold;
+    private final SpillFile spillFile;
+
+    private final List<SortedEntry<GenArchiveEntry>> buffer = new ArrayList<>();
+    private long bufferedBytes = 0;
+    private final List<List<SortedEntry<GenArchiveEntry>>> runs = new ArrayList<>();
+    private long nextSequence = 0;
+
+    ExternalEntrySorter(long memoryBudget, long largeEntryThreshold, File tempDirectory) {
+        this.memoryBudget = memoryBudget;
+        this.largeEntryThreshold = largeEntryThreshold;
+        this.spillFile = new SpillFile(tempDirectory);
+    }
+
+    /**
+     * Returns stream for entry data. Entry is added to the sorter when stream is closed.
+     * If data doesn't fit into remaining memory budget or exceeds large entry threshold,
+     * it is written directly to spill file.
+     */
+    OutputStream addEntry(GenArchiveEntry entry) {
+        long sequence = nextSequence++;
+        return new OutputStream() {
+            private final CRC32 checksum = new CRC32();
+            private ByteArrayOutputStream memoryBuffer = new ByteArrayOutputStream();
+            private long spillOffset = -1;
+            private long length = 0;
+            private boolean closed = false;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                checksum.update(b, off, len);
+                if (memoryBuffer != null && memoryBuffer.size() + len > largeEntryThreshold) {
+                    spillOffset = spillFile.append(memoryBuffer.toByteArray(), 0, memoryBuffer.size());
+                    memoryBuffer = null;
+                } else if (memoryBuffer != null && bufferedBytes + memoryBuffer.size() + len > memoryBudget) {
+                    spillBuffer();
+                    if (memoryBuffer.size() + len > memoryBudget) {
+                        spillOffset = spillFile.append(memoryBuffer.toByteArray(), 0, memoryBuffer.size());
+                        memoryBuffer = null;
+                    }
+                }
+                if (memoryBuffer != null) {
+                    memoryBuffer.write(b, off, len);
+                } else {
+                    spillFile.append(b, off, len);
+                }
+                length += len;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (memoryBuffer != null) {
+                    buffer.add(new SortedEntry<>(entry, sequence, checksum.getValue(), length, memoryBuffer.toByteArray(), 0));
+                    bufferedBytes += length;
+                } else {
+                    // entry data alone exceeded the budget or is too large - it becomes a separate single-entry run
+                    runs.add(Collections.singletonList(new SortedEntry<>(entry, sequence, checksum.getValue(), length, null, spillOffset)));
+                }
+            }
+        };
+    }
+
+    /**
+     * Part of memory budget not taken by entries buffered so far. Data of entry that is being added
+     * also counts against it, so entry writers should keep their own buffers within this amount.
+     */
+    long getRemainingBudget() {
+        return Math.max(0, memoryBudget - bufferedBytes);
+    }
+
+    /** Writes out all added entries in sorted order, leaving sorter empty. */
+    void writeSortedEntries(EntryWriter<GenArchiveEntry> writer) throws IOException {
+        if (runs.isEmpty()) {
+            buffer.sort(entryOrder);
+            for (SortedEntry<GenArchiveEntry> sortedEntry : buffer) {
+                writeEntry(sortedEntry, writer);
+            }
+        } else {
+            spillBuffer();
+            PriorityQueue<RunCursor<GenArchiveEntry>> cursors =
+                    new PriorityQueue<>(runs.size(), (a, b) -> entryOrder.compare(a.current(), b.current()));
+            for (List<SortedEntry<GenArchiveEntry>> run : runs) {
+                cursors.add(new RunCursor<>(run));
+            }
+            while (!cursors.isEmpty()) {
+                RunCursor<GenArchiveEntry> cursor = cursors.poll();
+                writeEntry(cursor.current(), writer);
+                cursor.position++;
+                if (cursor.position < cursor.run.size()) {
+                    cursors.add(cursor);
+                }
+            }
+            runs.clear();
+        }
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        buffer.clear();
+        runs.clear();
+        spillFile.close();
+    }
+
+    private void spillBuffer() throws IOException {
+        if (buffer.isEmpty()) {
+            return;
+        }
+        buffer.sort(entryOrder);
+        List<SortedEntry<GenArchiveEntry>> run = new ArrayList<>(buffer.size());
+        for (SortedEntry<GenArchiveEntry> sortedEntry : buffer) {
+            long offset = spillFile.append(sortedEntry.data, 0, sortedEntry.data.length);
+            run.add(new SortedEntry<>(sortedEntry.entry, sortedEntry.sequence, sortedEntry.checksum, sortedEntry.length, null, offset));
+        }
+        runs.add(run);
+        buffer.clear();
+        bufferedBytes = 0;
+    }
+
+    private void writeEntry(SortedEntry<GenArchiveEntry> sortedEntry, EntryWriter<GenArchiveEntry> writer) throws IOException {
+        InputStream data = sortedEntry.data != null
+                ? new ByteArrayInputStream(sortedEntry.data)
+                : spillFile.openRegion(sortedEntry.offset, sortedEntry.length);
+        writer.write(sortedEntry.entry, sortedEntry.length, sortedEntry.checksum, data);
+    }
+
+}
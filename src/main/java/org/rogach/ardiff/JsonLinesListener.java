@@ -0,0 +1,108 @@
+package org.rogach.ardiff;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Listener that writes every event as a single-line JSON object, e.g.
+ * {"event":"command applied","time":1500000000000,"depth":0,"command":"patch","path":"lib/a.jar","length":1234}.
+ * Output is flushed at the end of every top-level operation, so a complete operation can be picked up by log shippers.
+ * Times are in nanoseconds, "time" is the wall clock time of the event in milliseconds.
+ */
+public class JsonLinesListener implements ArchiveDiffListener, Closeable {
+
+    private final Writer output;
+
+    public JsonLinesListener(OutputStream output) {
+        this.output = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void operationFinished(String operation, long wallNanos, long peakBufferedBytes, int depth) {
+        write(event("operation finished", depth)
+                .append(",\"operation\":").append(quote(operation))
+                .append(",\"wallNanos\":").append(wallNanos)
+                .append(",\"peakBufferedBytes\":").append(peakBufferedBytes), depth == 0);
+    }
+
+    @Override
+    public void commandWritten(String command, String path, long length, int depth) {
+        write(command(event("command written", depth), command, path, length), false);
+    }
+
+    @Override
+    public void commandApplied(String command, String path, long length, int depth) {
+        write(command(event("command applied", depth), command, path, length), false);
+    }
+
+    @Override
+    public void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {
+        write(event("delta computed", depth)
+                .append(",\"path\":").append(quote(path))
+                .append(",\"sourceLength\":").append(sourceLength)
+                .append(",\"targetLength\":").append(targetLength)
+                .append(",\"deltaLength\":").append(deltaLength), false);
+    }
+
+    @Override
+    public void phaseFinished(Phase phase, String path, long wallNanos, long cpuNanos, int depth) {
+        write(event("phase finished", depth)
+                .append(",\"phase\":").append(quote(phase.name().toLowerCase()))
+                .append(",\"path\":").append(quote(path))
+                .append(",\"wallNanos\":").append(wallNanos)
+                .append(",\"cpuNanos\":").append(cpuNanos), false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        output.close();
+    }
+
+    private static StringBuilder event(String event, int depth) {
+        return new StringBuilder()
+                .append("{\"event\":").append(quote(event))
+                .append(",\"time\":").append(System.currentTimeMillis())
+                .append(",\"depth\":").append(depth);
+    }
+
+    private static StringBuilder command(StringBuilder event, String command, String path, long length) {
+        return event
+                .append(",\"command\":").append(quote(command))
+                .append(",\"path\":").append(quote(path))
+                .append(",\"length\":").append(length);
+    }
+
+    /** Listener methods can't throw checked exceptions, so write errors are rethrown as unchecked. */
+    private synchronized void write(StringBuilder event, boolean flush) {
+        try {
+            output.write(event.append("}\n").toString());
+            if (flush) {
+                output.flush();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c == '\n') {
+                quoted.append("\\n");
+            } else if (c == '\r') {
+                quoted.append("\\r");
+            } else if (c == '\t') {
+                quoted.append("\\t");
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
@@ -0,0 +1,42 @@
+package org.rogach.ardiff;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Nested archives reconstructed while computing the diff, by their base data and nested diff.
+ *
+ * Diff of a nested archive (in unsorted mode) has to be applied right away to learn length and checksum
+ * of the reconstructed archive. That apply has to reconstruct archives nested one level deeper, which were
+ * already reconstructed when their own diffs were computed - without the cache this work doubles at every level.
+ * Every reconstruction is needed only by the apply of the enclosing archive, so it is removed once taken.
+ */
+class NestedArchiveCache {
+
+    private final Map<ByteBuffer, byte[]> archives = new HashMap<>();
+
+    synchronized void put(byte[] base, byte[] diff, byte[] archive) {
+        archives.put(key(base, diff), archive);
+    }
+
+    /** @return null if archive was not reconstructed yet */
+    synchronized byte[] take(byte[] base, byte[] diff) {
+        return archives.remove(key(base, diff));
+    }
+
+    private static ByteBuffer key(byte[] base, byte[] diff) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(ByteBuffer.allocate(8).putLong(base.length).array());
+            digest.update(base);
+            digest.update(diff);
+            return ByteBuffer.wrap(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+}
@@ -0,0 +1,168 @@
+package org.rogach.ardiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a single gzip member, deflating fixed-size blocks of input independently (in the manner of pigz).
+ * Every block is primed with the last 32 KB of the previous block as a preset dictionary and ends with a sync flush,
+ * so blocks can be concatenated into one deflate stream, and compression ratio stays close to sequential gzip.
+ *
+ * With executor, up to two blocks per worker are compressed concurrently. Output depends only on block size
+ * (and zlib version), but not on parallelism - so archives written on different machines are binary-equal.
+ */
+public class ParallelGzipOutputStream extends OutputStream {
+
+    private static final int DICTIONARY_SIZE = 32768;
+
+    /** Gzip header without modification time and file name, same as written by {@link java.util.zip.GZIPOutputStream}. */
+    private static final byte[] HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0 };
+
+    /** Empty fixed-Huffman block with the final bit set, which terminates the deflate stream after sync-flushed blocks. */
+    private static final byte[] FINAL_BLOCK = { 0x03, 0x00 };
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final ForkJoinPool executor;
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final CRC32 checksum = new CRC32();
+    private long length = 0;
+    private byte[] block;
+    private int blockLength = 0;
+    private byte[] dictionary = null;
+    private boolean finished = false;
+
+    public ParallelGzipOutputStream(OutputStream out, ArchiveDiffOptions options) throws IOException {
+        this.out = out;
+        this.blockSize = options.getGzipBlockSize();
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingBlocks = options.getParallelism() * 2;
+        this.block = new byte[blockSize];
+
+        out.write(HEADER);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /** Doesn't end the current block, since block boundaries have to be the same regardless of flushes. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Compresses and writes out remaining data and the gzip trailer, without closing the underlying stream. */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            out.write(BlockCompressingOutputStream.awaitBlock(pending.poll()));
+        }
+        out.write(FINAL_BLOCK);
+        writeIntLE((int) checksum.getValue());
+        writeIntLE((int) length);
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = blockLength == blockSize ? block : Arrays.copyOf(block, blockLength);
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        checksum.update(data);
+        length += data.length;
+        byte[] blockDictionary = dictionary;
+        dictionary = nextDictionary(blockDictionary, data);
+
+        if (executor == null) {
+            pending.add(CompletableFuture.completedFuture(deflate(data, blockDictionary)));
+        } else {
+            pending.add(executor.submit(() -> deflate(data, blockDictionary)));
+        }
+
+        while (pending.size() > maxPendingBlocks || (executor == null && !pending.isEmpty())) {
+            out.write(BlockCompressingOutputStream.awaitBlock(pending.poll()));
+        }
+    }
+
+    /** Last 32 KB of input so far - blocks may be smaller than dictionary, so previous dictionary is carried over. */
+    private static byte[] nextDictionary(byte[] dictionary, byte[] data) {
+        if (data.length >= DICTIONARY_SIZE || dictionary == null) {
+            return Arrays.copyOfRange(data, Math.max(0, data.length - DICTIONARY_SIZE), data.length);
+        }
+        int keep = Math.min(dictionary.length, DICTIONARY_SIZE - data.length);
+        byte[] next = new byte[keep + data.length];
+        System.arraycopy(dictionary, dictionary.length - keep, next, 0, keep);
+        System.arraycopy(data, 0, next, keep, data.length);
+        return next;
+    }
+
+    private static byte[] deflate(byte[] data, byte[] dictionary) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data);
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[65536];
+            int bytesCompressed;
+            // sync flush is complete only when output buffer is not filled up
+            do {
+                bytesCompressed = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                compressed.write(buffer, 0, bytesCompressed);
+            } while (bytesCompressed == buffer.length || !deflater.needsInput());
+            return compressed.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private void writeIntLE(int value) throws IOException {
+        out.write(value & 0xff);
+        out.write((value >>> 8) & 0xff);
+        out.write((value >>> 16) & 0xff);
+        out.write((value >>> 24) & 0xff);
+    }
+
+}
@@ -0,0 +1,222 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.tukaani.xz.SingleXZInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+/**
+ * Reads xz streams whose block headers record compressed and uncompressed sizes (as written by
+ * {@link ParallelXzOutputStream} or `xz -T`), decoding blocks independently.
+ *
+ * Blocks are read sequentially, but with executor up to two blocks per worker are decoded ahead of the reader
+ * concurrently. Block sizes are verified against the index at the end of every stream. Underlying stream is not closed.
+ */
+public class ParallelXzInputStream extends InputStream {
+
+    /** Largest possible block header, plus stream header. */
+    private static final int MAX_PEEK_SIZE = XzFormat.STREAM_HEADER_SIZE + 1024;
+
+    private final PushbackInputStream in;
+    private final ForkJoinPool executor;
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+    private final List<XzFormat.Block> streamBlocks = new ArrayList<>();
+    private int checkType = -1;
+    private int streamCount = 0;
+    private boolean lastBlockRead = false;
+    private byte[] block = new byte[0];
+    private int position = 0;
+
+    private ParallelXzInputStream(PushbackInputStream in, ArchiveDiffOptions options) {
+        this.in = in;
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingBlocks = executor != null ? options.getParallelism() * 2 : 1;
+    }
+
+    /**
+     * Opens xz stream for reading - in parallel if the first block header records block sizes,
+     * and sequentially otherwise (single-threaded xz doesn't record them, so block boundaries are not known).
+     */
+    public static InputStream open(InputStream input, ArchiveDiffOptions options) throws IOException {
+        PushbackInputStream in = new PushbackInputStream(input, MAX_PEEK_SIZE);
+        byte[] start = new byte[MAX_PEEK_SIZE];
+        int length = readUpTo(in, start, 0, XzFormat.STREAM_HEADER_SIZE + 1);
+        boolean parallel = false;
+        if (length == XzFormat.STREAM_HEADER_SIZE + 1 && start[XzFormat.STREAM_HEADER_SIZE] != 0) {
+            int blockHeaderSize = ((start[XzFormat.STREAM_HEADER_SIZE] & 0xff) + 1) * 4;
+            length += readUpTo(in, start, length, blockHeaderSize - 1);
+            if (length == XzFormat.STREAM_HEADER_SIZE + blockHeaderSize) {
+                try {
+                    int checkType = XzFormat.parseStreamHeader(start);
+                    parallel = checkType >= 0 && XzFormat.hasBlockSizes(start, XzFormat.STREAM_HEADER_SIZE);
+                } catch (IOException e) {
+                    // not a valid stream - sequential reader will report that
+                }
+            }
+        }
+        in.unread(start, 0, length);
+        return parallel ? new ParallelXzInputStream(in, options) : new XZCompressorInputStream(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlockIfNeeded()) {
+            return -1;
+        }
+        return block[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBlockIfNeeded()) {
+            return -1;
+        }
+        int length = Math.min(len, block.length - position);
+        System.arraycopy(block, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int available() {
+        return block.length - position;
+    }
+
+    /** @return false if there is no more data */
+    private boolean nextBlockIfNeeded() throws IOException {
+        while (position == block.length) {
+            readAhead();
+            if (pending.isEmpty()) {
+                return false;
+            }
+            block = BlockCompressingOutputStream.awaitBlock(pending.poll());
+            position = 0;
+        }
+        return true;
+    }
+
+    private void readAhead() throws IOException {
+        while (!lastBlockRead && pending.size() < maxPendingBlocks) {
+            if (checkType == -1 && !readStreamHeader()) {
+                lastBlockRead = true;
+                return;
+            }
+            int firstByte = in.read();
+            if (firstByte == -1) {
+                throw new EOFException("Unexpected end of xz stream");
+            } else if (firstByte == 0) {
+                readIndexAndFooter();
+                continue;
+            }
+            XzFormat.Block block = XzFormat.readBlock(firstByte, in, checkType);
+            if (block == null) {
+                throw new IOException("xz block doesn't record its size, so it can't be decoded independently");
+            }
+            streamBlocks.add(new XzFormat.Block(null, block.unpaddedSize, block.uncompressedSize));
+            int checkType = this.checkType;
+            if (executor == null) {
+                pending.add(CompletableFuture.completedFuture(decode(block, checkType)));
+            } else {
+                pending.add(executor.submit(() -> decode(block, checkType)));
+            }
+        }
+    }
+
+    /** Skips stream padding before the header. @return false at the end of input */
+    private boolean readStreamHeader() throws IOException {
+        byte[] header = new byte[XzFormat.STREAM_HEADER_SIZE];
+        while (true) {
+            int length = readUpTo(in, header, 0, 4);
+            if (length == 0 && streamCount > 0) {
+                return false;
+            } else if (length < 4) {
+                throw new EOFException("Unexpected end of xz stream");
+            } else if (streamCount > 0 && header[0] == 0 && header[1] == 0 && header[2] == 0 && header[3] == 0) {
+                continue;
+            }
+            XzFormat.readFully(in, header, 4, header.length - 4);
+            checkType = XzFormat.parseStreamHeader(header);
+            streamCount++;
+            return true;
+        }
+    }
+
+    private void readIndexAndFooter() throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(0);
+        CountingInputStream indexStream = new CountingInputStream(in);
+        if (XzFormat.readVarInt(indexStream, crc) != streamBlocks.size()) {
+            throw new IOException("xz index doesn't match blocks");
+        }
+        for (XzFormat.Block block : streamBlocks) {
+            if (XzFormat.readVarInt(indexStream, crc) != block.unpaddedSize || XzFormat.readVarInt(indexStream, crc) != block.uncompressedSize) {
+                throw new IOException("xz index doesn't match blocks");
+            }
+        }
+        long indexSize = 1 + indexStream.getBytesRead();
+        while (indexSize % 4 != 0) {
+            if (in.read() != 0) {
+                throw new IOException("Invalid xz index padding");
+            }
+            crc.update(0);
+            indexSize++;
+        }
+        byte[] indexCrc = new byte[4];
+        XzFormat.readFully(in, indexCrc, 0, indexCrc.length);
+        if (XzFormat.readIntLE(indexCrc, 0) != (int) crc.getValue()) {
+            throw new IOException("Invalid xz index checksum");
+        }
+        indexSize += 4;
+
+        byte[] footer = new byte[XzFormat.STREAM_FOOTER_SIZE];
+        XzFormat.readFully(in, footer, 0, footer.length);
+        if (!Arrays.equals(footer, XzFormat.streamFooter(checkType, indexSize))) {
+            throw new IOException("Invalid xz stream footer");
+        }
+
+        streamBlocks.clear();
+        checkType = -1;
+    }
+
+    private static byte[] decode(XzFormat.Block block, int checkType) throws IOException {
+        byte[] data = new byte[(int) block.uncompressedSize];
+        try (InputStream xzStream = new SingleXZInputStream(new ByteArrayInputStream(XzFormat.standaloneStream(block, checkType)))) {
+            XzFormat.readFully(xzStream, data, 0, data.length);
+            if (xzStream.read() != -1) {
+                throw new IOException("xz block is larger than recorded in its header");
+            }
+        }
+        return data;
+    }
+
+    private static int readUpTo(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int bytesRead = in.read(buffer, offset + total, length - total);
+            if (bytesRead == -1) {
+                break;
+            }
+            total += bytesRead;
+        }
+        return total;
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.rogach.ardiff;
+
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Writes a single xz stream made of independent blocks of fixed uncompressed size (in the manner of `xz -T`).
+ * Blocks are compressed as separate streams and then moved into the output stream, with block headers
+ * recording compressed and uncompressed sizes - so that {@link ParallelXzInputStream} can decode blocks in parallel.
+ *
+ * With executor, up to two blocks per worker are compressed concurrently. Output depends only on block size,
+ * but not on parallelism.
+ */
+public class ParallelXzOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final int blockSize;
+    private final ForkJoinPool executor;
+    private final int maxPendingBlocks;
+
+    private final ArrayDeque<Future<XzFormat.Block>> pending = new ArrayDeque<>();
+    private final List<XzFormat.Block> writtenBlocks = new ArrayList<>();
+    private byte[] block;
+    private int blockLength = 0;
+    private boolean finished = false;
+
+    public ParallelXzOutputStream(OutputStream out, ArchiveDiffOptions options) throws IOException {
+        this.out = out;
+        this.blockSize = options.getXzBlockSize();
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingBlocks = options.getParallelism() * 2;
+        this.block = new byte[blockSize];
+
+        out.write(XzFormat.streamHeader(XZ.CHECK_CRC64));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        block[blockLength++] = (byte) b;
+        if (blockLength == blockSize) {
+            submitBlock();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, blockSize - blockLength);
+            System.arraycopy(b, off, block, blockLength, length);
+            blockLength += length;
+            off += length;
+            len -= length;
+            if (blockLength == blockSize) {
+                submitBlock();
+            }
+        }
+    }
+
+    /** Doesn't end the current block, since block boundaries have to be the same regardless of flushes. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Compresses and writes out remaining data, the index and the stream footer, without closing the underlying stream. */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (blockLength > 0) {
+            submitBlock();
+        }
+        while (!pending.isEmpty()) {
+            writePendingBlock();
+        }
+        byte[] index = XzFormat.index(writtenBlocks);
+        out.write(index);
+        out.write(XzFormat.streamFooter(XZ.CHECK_CRC64, index.length));
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+        out.close();
+    }
+
+    private void submitBlock() throws IOException {
+        byte[] data = blockLength == blockSize ? block : Arrays.copyOf(block, blockLength);
+        block = new byte[blockSize];
+        blockLength = 0;
+
+        if (executor == null) {
+            pending.add(CompletableFuture.completedFuture(compress(data)));
+        } else {
+            pending.add(executor.submit(() -> compress(data)));
+        }
+
+        while (pending.size() > maxPendingBlocks || (executor == null && !pending.isEmpty())) {
+            writePendingBlock();
+        }
+    }
+
+    private void writePendingBlock() throws IOException {
+        XzFormat.Block block = awaitBlock(pending.poll());
+        out.write(block.data);
+        writtenBlocks.add(new XzFormat.Block(null, block.unpaddedSize, block.uncompressedSize));
+    }
+
+    private static XzFormat.Block compress(byte[] data) throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(data.length / 4 + 64);
+        try (XZOutputStream xzStream = new XZOutputStream(stream, new LZMA2Options(), XZ.CHECK_CRC64)) {
+            xzStream.write(data);
+        }
+        return XzFormat.extractBlock(stream.toByteArray(), XZ.CHECK_CRC64);
+    }
+
+    private static XzFormat.Block awaitBlock(Future<XzFormat.Block> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for xz block", e);
+        } catch (ExecutionException e) {
+            ReadAheadInputStream.rethrowFailure(e.getCause());
+            throw new IOException(e);
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package org.rogach.ardiff;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe counters of {@link PatchPredictor} outcomes.
+ *
+ * Whether "patch" predictions were right is known for free, since delta is computed for them anyway.
+ * To measure accuracy of "replace" predictions, about one in n of them is verified by computing the delta regardless
+ * (the entry is then encoded according to the actual delta size, so verification never makes diffs larger).
+ * Entries are picked for verification by hash of their path, so the same entries are verified (and the same diff
+ * is computed) whatever the parallelism and order of entries.
+ */
+public class PatchPredictionStats {
+
+    private final int verificationInterval;
+
+    private final AtomicLong predictedReplace = new AtomicLong();
+    private final AtomicLong verifiedReplace = new AtomicLong();
+    private final AtomicLong correctReplace = new AtomicLong();
+    private final AtomicLong predictedPatch = new AtomicLong();
+    private final AtomicLong correctPatch = new AtomicLong();
+    private final AtomicLong skippedDeltaBytes = new AtomicLong();
+
+    public PatchPredictionStats() {
+        this(16);
+    }
+
+    /** @param verificationInterval verify about one in n "replace" predictions, 0 disables verification */
+    public PatchPredictionStats(int verificationInterval) {
+        if (verificationInterval < 0) {
+            throw new IllegalArgumentException("Verification interval can't be negative: " + verificationInterval);
+        }
+        this.verificationInterval = verificationInterval;
+    }
+
+    /** @return true if delta should be computed anyway to verify the prediction */
+    boolean recordReplacePrediction(String path, long dataLength) {
+        predictedReplace.incrementAndGet();
+        if (verificationInterval > 0 && Math.floorMod(spreadHash(path), verificationInterval) == 0) {
+            return true;
+        }
+        skippedDeltaBytes.addAndGet(dataLength);
+        return false;
+    }
+
+    /** Mixes high bits of path hash into low ones, since paths often differ only in the last characters. */
+    private static int spreadHash(String path) {
+        int hash = path.hashCode() * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    void recordOutcome(PatchPredictor.Prediction prediction, boolean patched) {
+        if (prediction == PatchPredictor.Prediction.REPLACE) {
+            verifiedReplace.incrementAndGet();
+            if (!patched) {
+                correctReplace.incrementAndGet();
+            }
+        } else if (prediction == PatchPredictor.Prediction.PATCH) {
+            predictedPatch.incrementAndGet();
+            if (patched) {
+                correctPatch.incrementAndGet();
+            }
+        }
+    }
+
+    public long getPredictedReplaceCount() {
+        return predictedReplace.get();
+    }
+
+    public long getVerifiedReplaceCount() {
+        return verifiedReplace.get();
+    }
+
+    public long getCorrectReplaceCount() {
+        return correctReplace.get();
+    }
+
+    public long getPredictedPatchCount() {
+        return predictedPatch.get();
+    }
+
+    public long getCorrectPatchCount() {
+        return correctPatch.get();
+    }
+
+    /** Total size of "after" data for which delta computation was skipped. */
+    public long getSkippedDeltaBytes() {
+        return skippedDeltaBytes.get();
+    }
+
+    /** Fraction of checked predictions (verified "replace" and all "patch" ones) that were right, NaN if none were checked. */
+    public double getAccuracy() {
+        long checked = getVerifiedReplaceCount() + getPredictedPatchCount();
+        return (double) (getCorrectReplaceCount() + getCorrectPatchCount()) / checked;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+                "patch prediction: %d replace predictions (%d verified, %d correct, %d bytes not delta-encoded), " +
+                "%d patch predictions (%d correct)",
+                getPredictedReplaceCount(), getVerifiedReplaceCount(), getCorrectReplaceCount(), getSkippedDeltaBytes(),
+                getPredictedPatchCount(), getCorrectPatchCount());
+    }
+
+}
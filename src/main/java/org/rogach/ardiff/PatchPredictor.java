@@ -0,0 +1,209 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Cheap estimate of whether delta of entry data would be small enough to be used, so that deltas of already compressed
+ * payloads (images, compressed archives, encrypted blobs) that are bound to end up replaced are not computed at all.
+ *
+ * Only data that looks compressed (by magic bytes or by byte entropy of its prefix) is judged. For such data,
+ * windows of both versions are sampled at content-defined anchors (so that samples survive insertions
+ * and deletions), and the fraction of sampled "after" windows that are also present in "before" data is computed.
+ * Deltas of compressed data are roughly as large as the part of data that is not found in the source,
+ * so a low fraction means that the entry would be replaced anyway.
+ */
+public class PatchPredictor {
+
+    public enum Prediction {
+        /** Data doesn't look compressed - delta should be computed as usual. */
+        NONE,
+        REPLACE,
+        PATCH
+    }
+
+    /** Deltas of smaller entries are cheap enough to be always computed. */
+    static final int MIN_PREDICTION_SIZE = 8192;
+
+    /**
+     * Replacing is predicted only if less than this fraction of sampled windows is found in the source.
+     * Deltas are only used if they are smaller than 70% of data, so this leaves a wide margin for sampling errors.
+     */
+    static final double MAX_CONTAINMENT_FOR_REPLACE = 0.1;
+
+    /** Data with higher entropy (bits per byte) of its prefix is treated as compressed. */
+    static final double MIN_COMPRESSED_ENTROPY = 7.5;
+
+    private static final int PREFIX_SIZE = 65536;
+    private static final int TARGET_SAMPLE_COUNT = 4096;
+    private static final int MIN_SAMPLE_COUNT = 64;
+    private static final int WINDOW_SIZE = 32;
+    private static final long ROLLING_HASH_MULTIPLIER = 0x100000001b3L;
+    private static final long ROLLING_HASH_WINDOW_MULTIPLIER;
+    static {
+        long multiplier = 1;
+        for (int i = 0; i < WINDOW_SIZE; i++) {
+            multiplier *= ROLLING_HASH_MULTIPLIER;
+        }
+        ROLLING_HASH_WINDOW_MULTIPLIER = multiplier;
+    }
+
+    private static final byte[][] COMPRESSED_MAGIC = {
+            { 0x1f, (byte) 0x8b }, // gzip
+            { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 }, // xz
+            { 'B', 'Z', 'h' }, // bzip2
+            { 0x28, (byte) 0xb5, 0x2f, (byte) 0xfd }, // zstd
+            { 0x04, 0x22, 0x4d, 0x18 }, // lz4
+            { '7', 'z', (byte) 0xbc, (byte) 0xaf, 0x27, 0x1c }, // 7z
+            { 'R', 'a', 'r', '!' }, // rar
+            { (byte) 0x89, 'P', 'N', 'G' }, // png
+            { (byte) 0xff, (byte) 0xd8, (byte) 0xff }, // jpeg
+            { 'G', 'I', 'F', '8' }, // gif
+            { 'O', 'g', 'g', 'S' }, // ogg
+            { 'f', 'L', 'a', 'C' }, // flac
+            { 'w', 'O', 'F', '2' }, // woff2
+    };
+
+    private PatchPredictor() {}
+
+    public static Prediction predict(byte[] dataBefore, byte[] dataAfter) throws IOException {
+        return predict(new ByteArrayInputStream(dataBefore), dataBefore.length, new ByteArrayInputStream(dataAfter), dataAfter.length);
+    }
+
+    /**
+     * Streams are read at most once, source stream is not read at all if data doesn't look compressed.
+     * Streams are not closed.
+     */
+    public static Prediction predict(InputStream dataBefore, long lengthBefore, InputStream dataAfter, long lengthAfter) throws IOException {
+        if (lengthAfter < MIN_PREDICTION_SIZE) {
+            return Prediction.NONE;
+        }
+        byte[] prefix = new byte[(int) Math.min(PREFIX_SIZE, lengthAfter)];
+        int prefixLength = IOUtils.readFully(dataAfter, prefix);
+        if (!isCompressed(prefix, prefixLength)) {
+            return Prediction.NONE;
+        }
+
+        // anchors are chosen by the same rule for both versions, so that the same windows are sampled
+        int anchorBits = 63 - Long.numberOfLeadingZeros(Math.max(1, Math.max(lengthBefore, lengthAfter) / TARGET_SAMPLE_COUNT));
+        Sampler sourceSampler = new Sampler(anchorBits, true);
+        byte[] buffer = new byte[65536];
+        int bytesRead;
+        while ((bytesRead = dataBefore.read(buffer)) != -1) {
+            sourceSampler.update(buffer, bytesRead);
+        }
+        long[] sourceSamples = sourceSampler.getSamples();
+        Arrays.sort(sourceSamples);
+
+        Sampler targetSampler = new Sampler(anchorBits, false);
+        targetSampler.sourceSamples = sourceSamples;
+        targetSampler.update(prefix, prefixLength);
+        while ((bytesRead = dataAfter.read(buffer)) != -1) {
+            targetSampler.update(buffer, bytesRead);
+        }
+
+        if (targetSampler.sampleCount < MIN_SAMPLE_COUNT) {
+            return Prediction.NONE;
+        }
+        double containment = (double) targetSampler.matchedSampleCount / targetSampler.sampleCount;
+        return containment < MAX_CONTAINMENT_FOR_REPLACE ? Prediction.REPLACE : Prediction.PATCH;
+    }
+
+    static boolean isCompressed(byte[] prefix, int prefixLength) {
+        for (byte[] magic : COMPRESSED_MAGIC) {
+            if (startsWith(prefix, prefixLength, magic, 0)) {
+                return true;
+            }
+        }
+        // webp and mp4 have their signatures after the length field
+        if (startsWith(prefix, prefixLength, "RIFF".getBytes(), 0) && startsWith(prefix, prefixLength, "WEBP".getBytes(), 8)) {
+            return true;
+        }
+        if (startsWith(prefix, prefixLength, "ftyp".getBytes(), 4)) {
+            return true;
+        }
+        return estimateEntropy(prefix, prefixLength) > MIN_COMPRESSED_ENTROPY;
+    }
+
+    private static boolean startsWith(byte[] data, int dataLength, byte[] magic, int offset) {
+        if (dataLength < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (data[offset + i] != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Shannon entropy of byte distribution, in bits per byte. */
+    static double estimateEntropy(byte[] data, int dataLength) {
+        int[] counts = new int[256];
+        for (int i = 0; i < dataLength; i++) {
+            counts[data[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / dataLength;
+                entropy -= p * Math.log(p) / Math.log(2);
+            }
+        }
+        return entropy;
+    }
+
+    private static class Sampler {
+        final int anchorBits;
+        final boolean collectSamples;
+        final byte[] window = new byte[WINDOW_SIZE];
+        long rollingHash = 0;
+        long length = 0;
+
+        long[] samples = new long[TARGET_SAMPLE_COUNT];
+        long[] sourceSamples;
+        int sampleCount = 0;
+        int matchedSampleCount = 0;
+
+        Sampler(int anchorBits, boolean collectSamples) {
+            this.anchorBits = anchorBits;
+            this.collectSamples = collectSamples;
+        }
+
+        void update(byte[] data, int dataLength) {
+            for (int i = 0; i < dataLength; i++) {
+                int windowPosition = (int) (length % WINDOW_SIZE);
+                byte removed = window[windowPosition];
+                window[windowPosition] = data[i];
+                rollingHash = rollingHash * ROLLING_HASH_MULTIPLIER + (data[i] & 0xff) - (removed & 0xff) * ROLLING_HASH_WINDOW_MULTIPLIER;
+                length++;
+
+                // top bits of polynomial hash depend on all bytes of the window
+                if (length >= WINDOW_SIZE && (anchorBits == 0 || rollingHash >>> (64 - anchorBits) == 0)) {
+                    addSample(rollingHash);
+                }
+            }
+        }
+
+        private void addSample(long sample) {
+            if (collectSamples) {
+                if (sampleCount == samples.length) {
+                    samples = Arrays.copyOf(samples, samples.length * 2);
+                }
+                samples[sampleCount] = sample;
+            } else if (Arrays.binarySearch(sourceSamples, sample) >= 0) {
+                matchedSampleCount++;
+            }
+            sampleCount++;
+        }
+
+        long[] getSamples() {
+            return Arrays.copyOf(samples, sampleCount);
+        }
+    }
+
+}
@@ -0,0 +1,175 @@
+package org.rogach.ardiff;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Reconstructs patched entries and puts them into the entry store.
+ *
+ * Without executor every patch is applied immediately. With executor, patches (already read from the diff
+ * and checked against command checksum) are applied concurrently, and results are put into the store
+ * in submission order on the calling thread. New entries get an empty placeholder at submission,
+ * so entry order in the store (and in the resulting archive) is the same as in sequential mode.
+ * Commands that touch an entry with pending patch have to call {@link #await} first.
+ */
+class PatchQueue<GenArchiveEntry extends ArchiveEntry> implements Closeable {
+
+    interface PatchTask {
+        void apply(SpillingOutputStream dataAfter) throws IOException, ArchiveDiffException, ArchiveException;
+    }
+
+    private static class PendingPatch<GenArchiveEntry> {
+        final String path;
+        final GenArchiveEntry entry;
+        final Future<SpillingOutputStream> result;
+        final long inputBytes;
+
+        PendingPatch(String path, GenArchiveEntry entry, Future<SpillingOutputStream> result, long inputBytes) {
+            this.path = path;
+            this.entry = entry;
+            this.result = result;
+            this.inputBytes = inputBytes;
+        }
+    }
+
+    private final ArchiveEntryStore<GenArchiveEntry> entries;
+    private final ArchiveDiffOptions options;
+    private final ForkJoinPool executor;
+    private final int maxPendingPatches;
+    private final long maxPendingBytes;
+
+    private final ArrayDeque<PendingPatch<GenArchiveEntry>> pending = new ArrayDeque<>();
+    private final Set<String> pendingPaths = new HashSet<>();
+    private long pendingBytes = 0;
+
+    PatchQueue(ArchiveEntryStore<GenArchiveEntry> entries, ArchiveDiffOptions options) {
+        this.entries = entries;
+        this.options = options;
+        this.executor = options.getParallelism() > 1 ? options.getExecutor() : null;
+        this.maxPendingPatches = options.getParallelism() * 2;
+        this.maxPendingBytes = options.getMemoryBudget();
+    }
+
+    /**
+     * Patches that fit into memory are read from the diff and applied concurrently,
+     * larger ones (and chunked ones, of unknown length) are applied on the calling thread while they are read.
+     */
+    boolean canSubmit(long patchLength) {
+        return executor != null && patchLength >= 0 && patchLength <= Math.min(options.getMemoryBudget(), options.getLargeEntryThreshold());
+    }
+
+    /** Applies patch on the calling thread, preserving order relative to previously submitted patches. */
+    void apply(String path, GenArchiveEntry entry, PatchTask task) throws IOException, ArchiveDiffException, ArchiveException {
+        try (SpillingOutputStream dataAfter = applyToBuffer(task)) {
+            entries.put(path, entry, dataAfter.openInputStream());
+        }
+    }
+
+    /**
+     * Schedules patch for concurrent application. Task must not read the diff stream or touch the entry stores -
+     * patch data and base data have to be obtained before submission.
+     *
+     * @param inputBytes size of data held by the task, used to bound memory consumption
+     */
+    void submit(String path, GenArchiveEntry entry, long inputBytes, PatchTask task) throws IOException, ArchiveDiffException, ArchiveException {
+        if (executor == null) {
+            apply(path, entry, task);
+            return;
+        }
+
+        if (!entries.contains(path)) {
+            entries.put(path, entry, new byte[0]);
+        }
+        pending.add(new PendingPatch<>(path, entry, executor.submit(() -> applyToBuffer(task)), inputBytes));
+        pendingPaths.add(path);
+        pendingBytes += inputBytes;
+
+        while (pending.size() > maxPendingPatches || (pendingBytes > maxPendingBytes && pending.size() > 1)) {
+            putPendingPatch();
+        }
+    }
+
+    /** Waits until entry with given path is no longer being patched. */
+    void await(String path) throws IOException, ArchiveDiffException, ArchiveException {
+        while (pendingPaths.contains(path)) {
+            putPendingPatch();
+        }
+    }
+
+    /** Waits for all submitted patches and puts their results into the store. */
+    void flush() throws IOException, ArchiveDiffException, ArchiveException {
+        while (!pending.isEmpty()) {
+            putPendingPatch();
+        }
+    }
+
+    /** Waits for patches that are still running (after a failure), and discards their results. */
+    @Override
+    public void close() {
+        while (!pending.isEmpty()) {
+            try {
+                pending.poll().result.get().close();
+            } catch (Exception ignored) {
+                // results are discarded anyway, original failure is more relevant
+            }
+        }
+        pendingPaths.clear();
+    }
+
+    private void putPendingPatch() throws IOException, ArchiveDiffException, ArchiveException {
+        PendingPatch<GenArchiveEntry> patch = pending.poll();
+        pendingBytes -= patch.inputBytes;
+        if (pending.stream().noneMatch(p -> p.path.equals(patch.path))) {
+            pendingPaths.remove(patch.path);
+        }
+        try (SpillingOutputStream dataAfter = awaitResult(patch.result)) {
+            entries.put(patch.path, patch.entry, dataAfter.openInputStream());
+        }
+    }
+
+    private SpillingOutputStream applyToBuffer(PatchTask task) throws IOException, ArchiveDiffException, ArchiveException {
+        SpillingOutputStream dataAfter = new SpillingOutputStream(Math.min(options.getMemoryBudget(), options.getLargeEntryThreshold()), options.getTempDirectory());
+        try {
+            task.apply(dataAfter);
+            return dataAfter;
+        } catch (IOException | ArchiveDiffException | ArchiveException | RuntimeException | Error e) {
+            dataAfter.close();
+            throw e;
+        }
+    }
+
+    private static SpillingOutputStream awaitResult(Future<SpillingOutputStream> result) throws IOException, ArchiveDiffException, ArchiveException {
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for patched entry", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof ArchiveDiffException) {
+                throw (ArchiveDiffException) cause;
+            } else if (cause instanceof ArchiveException) {
+                throw (ArchiveException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            } else {
+                throw new RuntimeException(cause);
+            }
+        }
+    }
+
+}
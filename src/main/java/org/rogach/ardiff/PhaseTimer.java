@@ -0,0 +1,118 @@
+package org.rogach.ardiff;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Measures wall and CPU time of a single phase of per-entry work for {@link ArchiveDiffListener}.
+ * Without a listener timers measure nothing, so they cost next to nothing.
+ */
+class PhaseTimer {
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+    private static final PhaseTimer DISABLED = new PhaseTimer(null, 0);
+
+    private final ArchiveDiffListener listener;
+    private final int depth;
+    private final long startTime;
+    private final long startCpuTime;
+
+    private PhaseTimer(ArchiveDiffListener listener, int depth) {
+        this.listener = listener;
+        this.depth = depth;
+        this.startTime = listener != null ? System.nanoTime() : 0;
+        this.startCpuTime = listener != null ? cpuTime() : 0;
+    }
+
+    /** Timers have to be started on the thread that does the work, since CPU time is measured per thread. */
+    static PhaseTimer start(ArchiveDiffOptions options) {
+        return options.getListener() != null ? new PhaseTimer(options.getListener(), options.getNestingDepth()) : DISABLED;
+    }
+
+    void finish(ArchiveDiffListener.Phase phase, String path) {
+        if (listener != null) {
+            long cpuTime = cpuTime();
+            listener.phaseFinished(phase, path, System.nanoTime() - startTime, cpuTime == -1 ? -1 : cpuTime - startCpuTime, depth);
+        }
+    }
+
+    private static long cpuTime() {
+        return threads.isCurrentThreadCpuTimeSupported() ? threads.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Wraps entry data stream, so that time spent reading it is reported as DECOMPRESS phase of the entry
+     * once the data is read to the end or the stream is closed. Data that is never read is not reported.
+     */
+    static InputStream timeReads(ArchiveDiffOptions options, String path, InputStream data) {
+        return options.getListener() != null ? new TimedInputStream(data, options, path) : data;
+    }
+
+    private static class TimedInputStream extends FilterInputStream {
+
+        private final ArchiveDiffOptions options;
+        private final String path;
+        private long wallTime = 0;
+        private long cpuTime = 0;
+        private boolean reported = false;
+
+        TimedInputStream(InputStream input, ArchiveDiffOptions options, String path) {
+            super(input);
+            this.options = options;
+            this.path = path;
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startTime = System.nanoTime();
+            long startCpuTime = cpuTime();
+            int result = super.read();
+            record(startTime, startCpuTime, result == -1);
+            return result;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long startTime = System.nanoTime();
+            long startCpuTime = cpuTime();
+            int result = super.read(buffer, offset, length);
+            record(startTime, startCpuTime, result == -1);
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long startTime = System.nanoTime();
+            long startCpuTime = cpuTime();
+            long result = super.skip(n);
+            record(startTime, startCpuTime, false);
+            return result;
+        }
+
+        @Override
+        public void close() throws IOException {
+            report();
+            super.close();
+        }
+
+        private void record(long startTime, long startCpuTime, boolean endOfData) {
+            wallTime += System.nanoTime() - startTime;
+            cpuTime = startCpuTime == -1 ? -1 : cpuTime + cpuTime() - startCpuTime;
+            if (endOfData) {
+                report();
+            }
+        }
+
+        private void report() {
+            if (!reported) {
+                reported = true;
+                options.getListener().phaseFinished(ArchiveDiffListener.Phase.DECOMPRESS, path, wallTime, cpuTime, options.getNestingDepth());
+            }
+        }
+    }
+
+}
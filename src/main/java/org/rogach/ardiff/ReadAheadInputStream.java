@@ -0,0 +1,133 @@
+package org.rogach.ardiff;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads underlying stream on a separate thread, at most a fixed number of buffers ahead of the reader -
+ * so that reading (and decompression done by the underlying stream) overlaps with processing of the data.
+ *
+ * Underlying stream may be read past the point where the reader stops, and it is not closed.
+ * {@link #close} stops the background thread.
+ */
+class ReadAheadInputStream extends InputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final InputStream in;
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+    private final Thread thread;
+    private volatile Throwable failure;
+
+    private byte[] buffer = new byte[0];
+    private int position = 0;
+    private boolean ended = false;
+
+    ReadAheadInputStream(InputStream in, String name, int bufferSize, int maxBuffers) {
+        this.in = in;
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<>(maxBuffers);
+        this.thread = new Thread(this::readAhead, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (true) {
+                byte[] data = new byte[bufferSize];
+                int length = 0;
+                int bytesRead = 0;
+                while (length < bufferSize && (bytesRead = in.read(data, length, bufferSize - length)) != -1) {
+                    length += bytesRead;
+                }
+                if (length > 0) {
+                    buffers.put(length == bufferSize ? data : Arrays.copyOf(data, length));
+                }
+                if (bytesRead == -1) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (Throwable e) {
+            failure = e;
+        }
+        try {
+            buffers.put(END);
+        } catch (InterruptedException ignored) {
+            // reader is gone, nobody is waiting for the end
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBufferIfNeeded()) {
+            return -1;
+        }
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!nextBufferIfNeeded()) {
+            return -1;
+        }
+        int length = Math.min(len, buffer.length - position);
+        System.arraycopy(buffer, position, b, off, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int available() {
+        return buffer.length - position;
+    }
+
+    @Override
+    public void close() {
+        thread.interrupt();
+    }
+
+    /** @return false if there is no more data */
+    private boolean nextBufferIfNeeded() throws IOException {
+        while (position == buffer.length) {
+            if (ended) {
+                return false;
+            }
+            try {
+                buffer = buffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for data");
+            }
+            position = 0;
+            if (buffer == END) {
+                ended = true;
+                rethrowFailure(failure);
+            }
+        }
+        return true;
+    }
+
+    static void rethrowFailure(Throwable failure) throws IOException {
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new IOException(failure);
+        }
+    }
+
+}
@@ -0,0 +1,127 @@
+package org.rogach.ardiff;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Append-only temporary file for data that doesn't fit into memory budget.
+ * File is created lazily on first write and deleted on close - owners always close it, so that long-running
+ * processes (see {@link DiffServer}) don't accumulate anything per spill file.
+ * Reads are positional, so they can be safely done from several threads.
+ */
+class SpillFile implements Closeable {
+
+    private final File tempDirectory;
+
+    private File file = null;
+    private volatile FileChannel channel = null;
+    private long length = 0;
+
+    SpillFile(File tempDirectory) {
+        this.tempDirectory = tempDirectory;
+    }
+
+    /** @return position at which data was written */
+    synchronized long append(byte[] data, int offset, int dataLength) throws IOException {
+        if (channel == null) {
+            file = File.createTempFile("ardiff-", ".spill", tempDirectory);
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+        long position = length;
+        ByteBuffer buffer = ByteBuffer.wrap(data, offset, dataLength);
+        while (buffer.hasRemaining()) {
+            length += channel.write(buffer, length);
+        }
+        return position;
+    }
+
+    synchronized long length() {
+        return length;
+    }
+
+    void read(long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            int bytesRead = channel.read(buffer, position);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of spill file");
+            }
+            position += bytesRead;
+        }
+    }
+
+    InputStream openRegion(long offset, long regionLength) {
+        return new InputStream() {
+            private long position = offset;
+            private long remaining = regionLength;
+
+            @Override
+            public int read() throws IOException {
+                byte[] single = new byte[1];
+                return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining <= 0) {
+                    return -1;
+                }
+                int bytesToRead = (int) Math.min(len, remaining);
+                SpillFile.this.read(position, ByteBuffer.wrap(b, off, bytesToRead));
+                position += bytesToRead;
+                remaining -= bytesToRead;
+                return bytesToRead;
+            }
+        };
+    }
+
+    /** Region view for delta computation and patching, which need random access to the base data. */
+    SeekableSource openSeekableRegion(long offset, long regionLength) {
+        return new SeekableSource() {
+            private long position = 0;
+
+            @Override
+            public void seek(long pos) throws IOException {
+                if (pos > regionLength) {
+                    throw new IOException(String.format("Can't seek to %d, region length is %d", pos, regionLength));
+                }
+                position = pos;
+            }
+
+            @Override
+            public int read(ByteBuffer buffer) throws IOException {
+                if (position >= regionLength) {
+                    return -1;
+                }
+                int bytesToRead = (int) Math.min(buffer.remaining(), regionLength - position);
+                ByteBuffer slice = buffer.slice();
+                slice.limit(bytesToRead);
+                SpillFile.this.read(offset + position, slice);
+                buffer.position(buffer.position() + bytesToRead);
+                position += bytesToRead;
+                return bytesToRead;
+            }
+
+            @Override
+            public void close() {}
+        };
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+            channel = null;
+        }
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.rogach.ardiff;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.compress.archivers.ArchiveEntry;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/**
+ * Entry store that keeps entry data in memory until memory budget is exhausted,
+ * and appends data of all subsequent entries to a temporary file.
+ * Entries larger than large entry threshold always go to the temporary file.
+ * Only entry metadata and file offsets stay on heap for spilled entries.
+ */
+public class SpillingArchiveEntryStore<GenArchiveEntry extends ArchiveEntry> implements ArchiveEntryStore<GenArchiveEntry> {
+
+    private static class StoredEntry<GenArchiveEntry> {
+        final GenArchiveEntry entry;
+        final byte[] data; // null if data was spilled to disk
+        final long offset;
+        final long length;
+
+        StoredEntry(GenArchiveEntry entry, byte[] data, long offset, long length) {
+            this.entry = entry;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final long memoryBudget;
+    private final long largeEntryThreshold;
+    private final SpillFile spillFile;
+    private final BufferGauge bufferGauge;
+
+    private final LinkedHashMap<String, StoredEntry<GenArchiveEntry>> entries = new LinkedHashMap<>();
+    private long memoryUsed = 0;
+
+    /**
+     * @param memoryBudget maximum total size of entry data held in memory
+     * @param largeEntryThreshold maximum size of data of a single entry held in memory
+     * @param tempDirectory directory for spill file, or null for system default
+     */
+    public SpillingArchiveEntryStore(long memoryBudget, long largeEntryThreshold, File tempDirectory) {
+        this(memoryBudget, largeEntryThreshold, tempDirectory, null);
+    }
+
+    /** @param bufferGauge gauge that tracks data held in memory, or null */
+    SpillingArchiveEntryStore(long memoryBudget, long largeEntryThreshold, File tempDirectory, BufferGauge bufferGauge) {
+        this.memoryBudget = memoryBudget;
+        this.largeEntryThreshold = largeEntryThreshold;
+        this.spillFile = new SpillFile(tempDirectory);
+        this.bufferGauge = bufferGauge;
+    }
+
+    @Override
+    public synchronized void put(String path, GenArchiveEntry entry, byte[] data) throws IOException {
+        if (data.length <= Math.min(memoryBudget - memoryUsed, largeEntryThreshold)) {
+            store(path, new StoredEntry<>(entry, data, 0, data.length));
+        } else {
+            long offset = spillFile.append(data, 0, data.length);
+            store(path, new StoredEntry<>(entry, null, offset, data.length));
+        }
+    }
+
+    @Override
+    public synchronized void put(String path, GenArchiveEntry entry, InputStream data) throws IOException {
+        long memoryAvailable = Math.min(memoryBudget - memoryUsed, largeEntryThreshold);
+
+        ByteArrayOutputStream memoryBuffer = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int bytesRead;
+        while ((bytesRead = data.read(buffer)) != -1) {
+            if (memoryBuffer.size() + bytesRead > memoryAvailable) {
+                long length = memoryBuffer.size() + bytesRead;
+                long offset = spillFile.append(memoryBuffer.toByteArray(), 0, memoryBuffer.size());
+                spillFile.append(buffer, 0, bytesRead);
+                while ((bytesRead = data.read(buffer)) != -1) {
+                    spillFile.append(buffer, 0, bytesRead);
+                    length += bytesRead;
+                }
+                store(path, new StoredEntry<>(entry, null, offset, length));
+                return;
+            }
+            memoryBuffer.write(buffer, 0, bytesRead);
+        }
+        store(path, new StoredEntry<>(entry, memoryBuffer.toByteArray(), 0, memoryBuffer.size()));
+    }
+
+    @Override
+    public synchronized void updateEntry(String path, GenArchiveEntry entry) {
+        StoredEntry<GenArchiveEntry> stored = entries.get(path);
+        entries.put(path, new StoredEntry<>(entry, stored.data, stored.offset, stored.length));
+    }
+
+    @Override
+    public synchronized boolean contains(String path) {
+        return entries.containsKey(path);
+    }
+
+    @Override
+    public synchronized GenArchiveEntry getEntry(String path) {
+        StoredEntry<GenArchiveEntry> stored = entries.get(path);
+        return stored != null ? stored.entry : null;
+    }
+
+    @Override
+    public ArchiveEntryWithData<GenArchiveEntry> get(String path) throws IOException {
+        StoredEntry<GenArchiveEntry> stored;
+        synchronized (this) {
+            stored = entries.get(path);
+        }
+        if (stored == null) {
+            return null;
+        } else if (stored.data != null) {
+            return new ArchiveEntryWithData<>(stored.entry, stored.data);
+        } else {
+            if (stored.length > Integer.MAX_VALUE) {
+                throw new IOException(String.format("Entry '%s' is too large to be loaded into memory: %d bytes", path, stored.length));
+            }
+            byte[] data = new byte[(int) stored.length];
+            spillFile.read(stored.offset, ByteBuffer.wrap(data));
+            return new ArchiveEntryWithData<>(stored.entry, data);
+        }
+    }
+
+    @Override
+    public InputStream openData(String path) throws IOException {
+        StoredEntry<GenArchiveEntry> stored;
+        synchronized (this) {
+            stored = entries.get(path);
+        }
+        if (stored.data != null) {
+            return new ByteArrayInputStream(stored.data);
+        } else {
+            return spillFile.openRegion(stored.offset, stored.length);
+        }
+    }
+
+    @Override
+    public SeekableSource openSeekableData(String path) throws IOException {
+        StoredEntry<GenArchiveEntry> stored;
+        synchronized (this) {
+            stored = entries.get(path);
+        }
+        if (stored.data != null) {
+            return new ByteBufferSeekableSource(stored.data);
+        } else {
+            return spillFile.openSeekableRegion(stored.offset, stored.length);
+        }
+    }
+
+    @Override
+    public synchronized long getDataLength(String path) {
+        return entries.get(path).length;
+    }
+
+    @Override
+    public synchronized void remove(String path) {
+        StoredEntry<GenArchiveEntry> stored = entries.remove(path);
+        if (stored != null && stored.data != null) {
+            addMemoryUsed(-stored.length);
+        }
+    }
+
+    @Override
+    public synchronized Collection<String> paths() {
+        return new ArrayList<>(entries.keySet());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        entries.clear();
+        addMemoryUsed(-memoryUsed);
+        spillFile.close();
+    }
+
+    private void store(String path, StoredEntry<GenArchiveEntry> stored) {
+        StoredEntry<GenArchiveEntry> previous = entries.put(path, stored);
+        if (previous != null && previous.data != null) {
+            addMemoryUsed(-previous.length);
+        }
+        if (stored.data != null) {
+            addMemoryUsed(stored.length);
+        }
+    }
+
+    private void addMemoryUsed(long bytes) {
+        memoryUsed += bytes;
+        if (bufferGauge != null) {
+            bufferGauge.add(bytes);
+        }
+    }
+
+}
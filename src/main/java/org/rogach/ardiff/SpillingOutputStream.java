@@ -0,0 +1,103 @@
+package org.rogach.ardiff;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Buffers written data in memory until memory budget is exhausted, and appends the rest to a temporary file.
+ * Buffered data can be later replayed with {@link #writeTo(OutputStream)} or {@link #openInputStream()}.
+ */
+class SpillingOutputStream extends OutputStream {
+
+    /** Byte arrays can't hold more, so memory buffer is spilled past this size regardless of budget. */
+    private static final long MAX_MEMORY_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+
+    private final long memoryBudget;
+    private final SpillFile spillFile;
+    private final BufferGauge bufferGauge;
+
+    private ByteArrayOutputStream memoryBuffer = new ByteArrayOutputStream();
+    private long length = 0;
+
+    SpillingOutputStream(long memoryBudget, File tempDirectory) {
+        this(memoryBudget, tempDirectory, null);
+    }
+
+    /** @param bufferGauge gauge that tracks data held in memory, or null */
+    SpillingOutputStream(long memoryBudget, File tempDirectory, BufferGauge bufferGauge) {
+        this.memoryBudget = Math.min(memoryBudget, MAX_MEMORY_BUFFER_SIZE);
+        this.spillFile = new SpillFile(tempDirectory);
+        this.bufferGauge = bufferGauge;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (memoryBuffer != null && memoryBuffer.size() + len > memoryBudget) {
+            spillFile.append(memoryBuffer.toByteArray(), 0, memoryBuffer.size());
+            releaseMemoryBuffer();
+        }
+        if (memoryBuffer != null) {
+            memoryBuffer.write(b, off, len);
+            addMemoryUsed(len);
+        } else {
+            spillFile.append(b, off, len);
+        }
+        length += len;
+    }
+
+    long length() {
+        return length;
+    }
+
+    void writeTo(OutputStream output) throws IOException {
+        if (memoryBuffer != null) {
+            memoryBuffer.writeTo(output);
+        } else {
+            try (InputStream data = spillFile.openRegion(0, length)) {
+                byte[] buffer = new byte[65536];
+                int bytesRead;
+                while ((bytesRead = data.read(buffer)) != -1) {
+                    output.write(buffer, 0, bytesRead);
+                }
+            }
+        }
+    }
+
+    /** @return stream over data written so far, valid until this stream is closed */
+    InputStream openInputStream() {
+        if (memoryBuffer != null) {
+            return new ByteArrayInputStream(memoryBuffer.toByteArray());
+        } else {
+            return spillFile.openRegion(0, length);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        releaseMemoryBuffer();
+        spillFile.close();
+    }
+
+    private void releaseMemoryBuffer() {
+        if (memoryBuffer != null) {
+            addMemoryUsed(-memoryBuffer.size());
+            memoryBuffer = null;
+        }
+    }
+
+    private void addMemoryUsed(long bytes) {
+        if (bufferGauge != null) {
+            bufferGauge.add(bytes);
+        }
+    }
+
+}
@@ -1,6 +1,6 @@
 package org.rogach.ardiff;
 
-import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.SeekableSource;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
@@ -8,18 +8,31 @@ import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.utils.BoundedInputStream;
 import org.apache.commons.compress.utils.CountingInputStream;
 import org.apache.commons.compress.utils.IOUtils;
+import org.rogach.ardiff.delta.DeltaEngine;
 import org.rogach.ardiff.exceptions.ArchiveDiffCorruptedException;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
 import org.rogach.ardiff.exceptions.ArchiveDiffFormatException;
 import org.rogach.ardiff.formats.ArArchiveDiff;
 
 import java.io.*;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedInputStream;
 
+/**
+ * Applies diff in a single pass over "before" archive, entries of which have to be in the same order as in the diff.
+ *
+ * With parallelism, work is split into pipeline stages connected by bounded buffer queues - reading and decompressing
+ * "before" archive, reading and decoding the diff, and compressing "after" archive each run on a separate thread,
+ * while entries are patched on the calling thread. Data passes through the same streams in the same order,
+ * so the result is exactly the same as without pipeline.
+ */
 public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
+    private static final int PIPELINE_BUFFER_SIZE = 65536;
+    private static final int PIPELINE_MAX_BUFFERS = 16;
+
     private InputStream before;
     private InputStream diff;
     private OutputStream after;
@@ -39,103 +52,183 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
     ArchiveOutputStream archiveStreamAfter;
 
     private GenArchiveEntry entry;
+    private InputStream entryData;
     private byte command;
+    private boolean longLengths;
+    private boolean chunked;
+    private boolean customDeltaEngine;
     private String commandPath = null;
+    private long commandOffset;
+
+    private final Set<String> retainedPaths = new HashSet<>();
+    private ArchiveEntryStore<GenArchiveEntry> retainedEntries;
 
     void streamingApplyDiff() throws ArchiveException, IOException, ArchiveDiffException {
-        archiveStreamBefore = utils.createArchiveInputStream(before);
-        checkedDiffStream = new CheckedInputStream(diff, new CRC32());
-        countingDiffStream = new CountingInputStream(checkedDiffStream);
-        diffStream = new DataInputStream(countingDiffStream);
+        if (utils.getOptions().getParallelism() > 1) {
+            pipelinedApplyDiff();
+            return;
+        }
 
+        archiveStreamBefore = utils.createArchiveInputStream(before);
         archiveStreamAfter = utils.createArchiveOutputStream(after);
+        applyCommands(ArchiveDiff.readDiffHeader(diff, utils.getOptions()));
+        utils.finishArchiveOutputStream(archiveStreamAfter);
+    }
 
-        byte[] header = new byte[8];
-        diffStream.readFully(header);
-
-        if (!Arrays.equals(header, ArchiveDiff.HEADER.getBytes("ASCII"))) {
-            throw new ArchiveDiffFormatException("Invalid diff stream header");
+    private void pipelinedApplyDiff() throws ArchiveException, IOException, ArchiveDiffException {
+        InputStream commandStream = ArchiveDiff.readDiffHeader(diff, utils.getOptions());
+        OutputStream compressingStreamAfter = utils.createCompressingOutputStream(after);
+        try (
+                ReadAheadInputStream decompressedBefore = new ReadAheadInputStream(
+                        utils.createDecompressingInputStream(before), "ardiff-read-before", PIPELINE_BUFFER_SIZE, PIPELINE_MAX_BUFFERS);
+                ReadAheadInputStream decodedDiff = new ReadAheadInputStream(
+                        commandStream, "ardiff-read-diff", PIPELINE_BUFFER_SIZE, PIPELINE_MAX_BUFFERS);
+                WriteBehindOutputStream uncompressedAfter = new WriteBehindOutputStream(
+                        compressingStreamAfter, "ardiff-write-after", PIPELINE_BUFFER_SIZE, PIPELINE_MAX_BUFFERS)
+        ) {
+            archiveStreamBefore = utils.createUncompressedArchiveInputStream(decompressedBefore);
+            archiveStreamAfter = utils.createUncompressedArchiveOutputStream(uncompressedAfter);
+            applyCommands(decodedDiff);
+            archiveStreamAfter.finish();
+            uncompressedAfter.finish();
         }
+        utils.finishCompressingOutputStream(compressingStreamAfter);
+    }
 
-        readNextEntry();
-        readNextDiffCommand();
-
-        while (entry != null || command != 0) {
-            if (command == 0) {
-                copyUnchangedEntry();
-                readNextEntry();
-            } else if (entry == null) {
-                if (command == ArchiveDiff.COMMAND_ADD) {
-                    addEntry();
-                    validateChecksum();
-                    readNextDiffCommand();
-                } else {
-                    throw new ArchiveDiffException("Unexpected command: " + command);
-                }
-            } else {
-                int entryOrder = entry.getName().compareTo(commandPath);
-                if ((utils.supportsSorting() && entryOrder < 0) || (!utils.supportsSorting() && entryOrder != 0)) {
+    private void applyCommands(InputStream commandStream) throws ArchiveException, IOException, ArchiveDiffException {
+        checkedDiffStream = new CheckedInputStream(commandStream, new CRC32());
+        countingDiffStream = new CountingInputStream(checkedDiffStream);
+        diffStream = new DataInputStream(countingDiffStream);
+
+        retainedEntries = utils.createEntryStore();
+        try {
+            // retained entries are listed at the start of the diff, so commands have to be read before the first entry
+            readNextDiffCommand();
+            readNextEntry();
+
+            while (entry != null || command != 0) {
+                if (command == 0) {
                     copyUnchangedEntry();
                     readNextEntry();
-                } else if (utils.supportsSorting() && entryOrder > 0) {
+                } else if (entry == null) {
                     if (command == ArchiveDiff.COMMAND_ADD) {
                         addEntry();
                         validateChecksum();
                         readNextDiffCommand();
+                    } else if (command == ArchiveDiff.COMMAND_COPY) {
+                        copyEntry();
+                        validateChecksum();
+                        readNextDiffCommand();
+                    } else if (command == ArchiveDiff.COMMAND_PATCH_FROM) {
+                        patchEntryFrom();
+                        validateChecksum();
+                        readNextDiffCommand();
+                    } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM) {
+                        patchArchiveEntryFrom();
+                        validateChecksum();
+                        readNextDiffCommand();
                     } else {
                         throw new ArchiveDiffException("Unexpected command: " + command);
                     }
                 } else {
-                    if (command == ArchiveDiff.COMMAND_REPLACE) {
-                        replaceEntry();
-                    } else if (command == ArchiveDiff.COMMAND_REMOVE) {
-                        // do nothing, simply proceed to next entry
-                    } else if (command == ArchiveDiff.COMMAND_PATCH) {
-                        patchEntry();
-                    } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH) {
-                        patchArchiveEntry();
-                    } else if (command == ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES) {
-                        updateEntryAttributes();
+                    int entryOrder = entry.getName().compareTo(commandPath);
+                    if ((utils.supportsSorting() && entryOrder < 0) || (!utils.supportsSorting() && entryOrder != 0)) {
+                        copyUnchangedEntry();
+                        readNextEntry();
+                    } else if (utils.supportsSorting() && entryOrder > 0) {
+                        if (command == ArchiveDiff.COMMAND_ADD) {
+                            addEntry();
+                            validateChecksum();
+                            readNextDiffCommand();
+                        } else if (command == ArchiveDiff.COMMAND_COPY) {
+                            copyEntry();
+                            validateChecksum();
+                            readNextDiffCommand();
+                        } else if (command == ArchiveDiff.COMMAND_PATCH_FROM) {
+                            patchEntryFrom();
+                            validateChecksum();
+                            readNextDiffCommand();
+                        } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH_FROM) {
+                            patchArchiveEntryFrom();
+                            validateChecksum();
+                            readNextDiffCommand();
+                        } else {
+                            throw new ArchiveDiffException("Unexpected command: " + command);
+                        }
                     } else {
-                        throw new ArchiveDiffException("Unexpected command: " + command);
-                    }
+                        if (command == ArchiveDiff.COMMAND_REPLACE) {
+                            replaceEntry();
+                        } else if (command == ArchiveDiff.COMMAND_REMOVE) {
+                            // do nothing, simply proceed to next entry
+                        } else if (command == ArchiveDiff.COMMAND_PATCH) {
+                            patchEntry();
+                        } else if (command == ArchiveDiff.COMMAND_ARCHIVE_PATCH) {
+                            patchArchiveEntry();
+                        } else if (command == ArchiveDiff.COMMAND_UPDATE_ATTRIBUTES) {
+                            updateEntryAttributes();
+                        } else {
+                            throw new ArchiveDiffException("Unexpected command: " + command);
+                        }
 
-                    validateChecksum();
-                    readNextDiffCommand();
-                    readNextEntry();
+                        validateChecksum();
+                        readNextDiffCommand();
+                        readNextEntry();
+                    }
                 }
             }
+        } finally {
+            retainedEntries.close();
         }
-
-        utils.finishArchiveOutputStream(archiveStreamAfter);
     }
 
     private void readNextEntry() throws IOException {
         entry = utils.getNextEntry(archiveStreamBefore);
-    }
-
-    private void readNextDiffCommand() throws IOException {
-        checkedDiffStream.getChecksum().reset();
-        command = diffStream.readByte();
-        if (command != 0) {
-            commandPath = utils.readString(diffStream);
+        if (entry != null && retainedPaths.contains(entry.getName())) {
+            // data will be needed by some later copy command, so store it aside before passing it along
+            retainedEntries.put(entry.getName(), entry, utils.timeEntryData(entry, archiveStreamBefore));
+            entryData = retainedEntries.openData(entry.getName());
         } else {
-            commandPath = null;
+            entryData = archiveStreamBefore;
         }
     }
 
+    private void readNextDiffCommand() throws IOException, ArchiveDiffCorruptedException {
+        do {
+            checkedDiffStream.getChecksum().reset();
+            commandOffset = countingDiffStream.getBytesRead();
+            command = diffStream.readByte();
+            longLengths = (command & ArchiveDiff.FLAG_LONG_LENGTHS) != 0;
+            customDeltaEngine = (command & ArchiveDiff.FLAG_DELTA_ENGINE) != 0;
+            chunked = (command & ArchiveDiff.FLAG_CHUNKED) != 0;
+            command &= ~(ArchiveDiff.FLAG_LONG_LENGTHS | ArchiveDiff.FLAG_DELTA_ENGINE | ArchiveDiff.FLAG_CHUNKED);
+            if (command != 0) {
+                commandPath = utils.readString(diffStream);
+            } else {
+                commandPath = null;
+            }
+            if (command == ArchiveDiff.COMMAND_RETAIN) {
+                retainedPaths.add(commandPath);
+                validateChecksum();
+            }
+        } while (command == ArchiveDiff.COMMAND_RETAIN);
+    }
+
     private void validateChecksum() throws IOException, ArchiveDiffCorruptedException {
         long checksum = checkedDiffStream.getChecksum().getValue();
         long expectedChecksum = diffStream.readLong();
         if (checksum != expectedChecksum) {
             throw new ArchiveDiffCorruptedException("Checksum mismatch at offset " + countingDiffStream.getBytesRead());
         }
+        ArchiveDiffListener listener = utils.getOptions().getListener();
+        if (listener != null) {
+            listener.commandApplied(DiffIndex.getCommandName(command), commandPath, countingDiffStream.getBytesRead() - commandOffset, utils.getOptions().getNestingDepth());
+        }
     }
 
-    private void copyStream(InputStream input, OutputStream output, int n) throws IOException {
+    private void copyStream(InputStream input, OutputStream output, long n) throws IOException {
         byte[] buffer = new byte[4096];
         while (n > 0) {
-            int bytesRead = input.read(buffer, 0, Math.min(buffer.length, n));
+            int bytesRead = input.read(buffer, 0, (int) Math.min(buffer.length, n));
             if (bytesRead == -1) {
                 throw new EOFException(String.format("Unexpected end of input - expected %d more bytes to read", n));
             }
@@ -146,7 +239,7 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
 
     private void addEntry() throws IOException, ArchiveDiffCorruptedException {
-        int dataLength = diffStream.readInt();
+        long dataLength = utils.readLength(longLengths, diffStream);
 
         GenArchiveEntry entry = utils.createNewArchiveEntry(commandPath, dataLength);
 
@@ -154,19 +247,105 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
         entry = utils.readAttributes(entry, diffStream);
 
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
         archiveStreamAfter.putArchiveEntry(entry);
         copyStream(diffStream, archiveStreamAfter, dataLength);
         archiveStreamAfter.closeArchiveEntry();
+        timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, commandPath);
     }
 
-    private void copyUnchangedEntry() throws IOException {
+    private void copyEntry() throws IOException, ArchiveDiffException {
+        String sourcePath = readRetainedSourcePath();
+
+        GenArchiveEntry entry = utils.readEntryCopy(commandPath, longLengths, diffStream);
+
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
         archiveStreamAfter.putArchiveEntry(entry);
-        IOUtils.copy(archiveStreamBefore, archiveStreamAfter);
+        try (InputStream data = retainedEntries.openData(sourcePath)) {
+            IOUtils.copy(data, archiveStreamAfter);
+        }
         archiveStreamAfter.closeArchiveEntry();
+        timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, commandPath);
+    }
+
+    private String readRetainedSourcePath() throws IOException, ArchiveDiffException {
+        String sourcePath = utils.readString(diffStream);
+        if (!retainedEntries.contains(sourcePath)) {
+            throw new ArchiveDiffFormatException("Source entry was not retained: " + sourcePath);
+        }
+        return sourcePath;
+    }
+
+    private void patchEntryFrom() throws IOException, ArchiveDiffException {
+        String sourcePath = readRetainedSourcePath();
+
+        long length = utils.readLength(longLengths, diffStream);
+
+        GenArchiveEntry newEntry = utils.createNewArchiveEntry(commandPath, length);
+
+        utils.readEntryChecksum(newEntry, diffStream);
+
+        newEntry = utils.readAttributes(newEntry, diffStream);
+
+        DeltaEngine deltaEngine = utils.readDeltaEngine(customDeltaEngine, diffStream);
+
+        long patchLength = utils.readLength(longLengths, diffStream);
+        BoundedInputStream patchInputStream = new BoundedInputStream(diffStream, patchLength);
+
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
+        archiveStreamAfter.putArchiveEntry(newEntry);
+        try (SeekableSource dataBefore = retainedEntries.openSeekableData(sourcePath)) {
+            deltaEngine.applyDelta(dataBefore, patchInputStream, archiveStreamAfter);
+        }
+        archiveStreamAfter.closeArchiveEntry();
+        timer.finish(ArchiveDiffListener.Phase.PATCH, commandPath);
+    }
+
+    private void patchArchiveEntryFrom() throws IOException, ArchiveDiffException, ArchiveException {
+        String sourcePath = readRetainedSourcePath();
+
+        long length = utils.readLength(longLengths, diffStream);
+
+        GenArchiveEntry newEntry = utils.createNewArchiveEntry(commandPath, length);
+
+        utils.readEntryChecksum(newEntry, diffStream);
+
+        newEntry = utils.readAttributes(newEntry, diffStream);
+
+        long patchLength = utils.readLength(longLengths, diffStream);
+
+        archiveStreamAfter.putArchiveEntry(newEntry);
+
+        try (InputStream dataBefore = retainedEntries.openData(sourcePath)) {
+            ArchiveDiff.applyDiff(
+                    new BufferedInputStream(dataBefore, 64),
+                    new BoundedInputStream(diffStream, patchLength),
+                    archiveStreamAfter,
+                    true,
+                    getNestedApplyOptions()
+            );
+        }
+
+        archiveStreamAfter.closeArchiveEntry();
+    }
+
+    /** Nested archives are read from the outer pipeline, so they don't start pipelines of their own. */
+    private ArchiveDiffOptions getNestedApplyOptions() {
+        return utils.getNestedDiffOptions().withParallelism(1);
+    }
+
+    private void copyUnchangedEntry() throws IOException {
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
+        if (!utils.copyRawEntry(entry, entry, archiveStreamAfter)) {
+            archiveStreamAfter.putArchiveEntry(entry);
+            IOUtils.copy(entryData, archiveStreamAfter);
+            archiveStreamAfter.closeArchiveEntry();
+        }
+        timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, entry.getName());
     }
 
     private void replaceEntry() throws IOException {
-        int dataLength = diffStream.readInt();
+        long dataLength = utils.readLength(longLengths, diffStream);
 
         GenArchiveEntry newEntry = utils.copyArchiveEntry(entry, dataLength);
 
@@ -174,13 +353,15 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
         newEntry = utils.readAttributes(newEntry, diffStream);
 
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
         archiveStreamAfter.putArchiveEntry(newEntry);
         copyStream(diffStream, archiveStreamAfter, dataLength);
         archiveStreamAfter.closeArchiveEntry();
+        timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, commandPath);
     }
 
-    private void patchEntry() throws IOException {
-        int length = diffStream.readInt();
+    private void patchEntry() throws IOException, ArchiveDiffException {
+        long length = utils.readLength(longLengths, diffStream);
 
         GenArchiveEntry newEntry = utils.copyArchiveEntry(entry, length);
 
@@ -188,32 +369,43 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
         newEntry = utils.readAttributes(newEntry, diffStream);
 
-        ByteArrayOutputStream dataBeforeOutputStream = new ByteArrayOutputStream();
-        IOUtils.copy(archiveStreamBefore, dataBeforeOutputStream);
-        byte[] dataBefore = dataBeforeOutputStream.toByteArray();
+        DeltaEngine deltaEngine = utils.readDeltaEngine(customDeltaEngine, diffStream);
 
-        int patchLength = diffStream.readInt();
+        long patchLength = utils.readLength(longLengths, diffStream);
         BoundedInputStream patchInputStream = new BoundedInputStream(diffStream, patchLength);
 
-        archiveStreamAfter.putArchiveEntry(newEntry);
-        new GDiffPatcher().patch(dataBefore, patchInputStream, archiveStreamAfter);
-        archiveStreamAfter.closeArchiveEntry();
+        // patch needs random access to the base data - large entries are kept in a temporary file for that
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
+        try (ArchiveEntryStore<GenArchiveEntry> baseEntries = utils.createEntryStore()) {
+            baseEntries.put(entry.getName(), entry, entryData);
+
+            archiveStreamAfter.putArchiveEntry(newEntry);
+            try (SeekableSource dataBefore = baseEntries.openSeekableData(entry.getName())) {
+                deltaEngine.applyDelta(dataBefore, patchInputStream, archiveStreamAfter);
+            }
+            archiveStreamAfter.closeArchiveEntry();
+        }
+        timer.finish(ArchiveDiffListener.Phase.PATCH, commandPath);
     }
 
     private void updateEntryAttributes() throws IOException {
-        int length = diffStream.readInt();
+        long length = utils.readLength(longLengths, diffStream);
 
         GenArchiveEntry newEntry = utils.copyArchiveEntry(entry, length);
 
         newEntry = utils.readAttributes(newEntry, diffStream);
 
-        archiveStreamAfter.putArchiveEntry(newEntry);
-        IOUtils.copy(archiveStreamBefore, archiveStreamAfter);
-        archiveStreamAfter.closeArchiveEntry();
+        PhaseTimer timer = PhaseTimer.start(utils.getOptions());
+        if (!utils.copyRawEntry(entry, newEntry, archiveStreamAfter)) {
+            archiveStreamAfter.putArchiveEntry(newEntry);
+            IOUtils.copy(entryData, archiveStreamAfter);
+            archiveStreamAfter.closeArchiveEntry();
+        }
+        timer.finish(ArchiveDiffListener.Phase.RECOMPRESS, commandPath);
     }
 
     private void patchArchiveEntry() throws IOException, ArchiveDiffException, ArchiveException {
-        int length = diffStream.readInt();
+        long length = utils.readLength(longLengths, diffStream);
 
         GenArchiveEntry newEntry = utils.copyArchiveEntry(entry, length);
 
@@ -221,17 +413,24 @@ public class StreamingArchiveDiffReader<GenArchiveEntry extends ArchiveEntry> {
 
         newEntry = utils.readAttributes(newEntry, diffStream);
 
-        int patchLength = diffStream.readInt();
+        InputStream patchInputStream = chunked
+                ? new ChunkedInputStream(diffStream)
+                : new BoundedInputStream(diffStream, utils.readLength(longLengths, diffStream));
 
         archiveStreamAfter.putArchiveEntry(newEntry);
 
         ArchiveDiff.applyDiff(
-                new BufferedInputStream(archiveStreamBefore, 64),
-                new BoundedInputStream(diffStream, patchLength),
+                new BufferedInputStream(entryData, 64),
+                patchInputStream,
                 archiveStreamAfter,
-                true
+                true,
+                getNestedApplyOptions()
         );
 
+        if (chunked) {
+            patchInputStream.close();
+        }
+
         archiveStreamAfter.closeArchiveEntry();
     }
 
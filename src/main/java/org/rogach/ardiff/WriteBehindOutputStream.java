@@ -0,0 +1,138 @@
+package org.rogach.ardiff;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Writes to underlying stream on a separate thread, with at most a fixed number of buffers waiting to be written -
+ * so that writing (and compression done by the underlying stream) overlaps with producing the data.
+ *
+ * {@link #finish} waits until all data is written, underlying stream is not closed.
+ * {@link #close} without finish discards data that was not written yet.
+ */
+class WriteBehindOutputStream extends OutputStream {
+
+    private static final byte[] END = new byte[0];
+
+    private final OutputStream out;
+    private final BlockingQueue<byte[]> buffers;
+    private final Thread thread;
+    private volatile Throwable failure;
+
+    private byte[] buffer;
+    private int bufferLength = 0;
+    private boolean finished = false;
+
+    WriteBehindOutputStream(OutputStream out, String name, int bufferSize, int maxBuffers) {
+        this.out = out;
+        this.buffer = new byte[bufferSize];
+        this.buffers = new ArrayBlockingQueue<>(maxBuffers);
+        this.thread = new Thread(this::writeBehind, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    private void writeBehind() {
+        try {
+            byte[] data;
+            while ((data = buffers.take()) != END) {
+                // after a failure, buffers are still taken, so that writer doesn't block
+                if (failure == null) {
+                    try {
+                        out.write(data);
+                    } catch (Throwable e) {
+                        failure = e;
+                    }
+                }
+            }
+            if (failure == null) {
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // stream was closed without finishing
+        } catch (Throwable e) {
+            failure = e;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer[bufferLength++] = (byte) b;
+        if (bufferLength == buffer.length) {
+            submitBuffer();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            int length = Math.min(len, buffer.length - bufferLength);
+            System.arraycopy(b, off, buffer, bufferLength, length);
+            bufferLength += length;
+            off += length;
+            len -= length;
+            if (bufferLength == buffer.length) {
+                submitBuffer();
+            }
+        }
+    }
+
+    /** Hands buffered data to the background thread, but doesn't wait until it is written. */
+    @Override
+    public void flush() throws IOException {
+        if (bufferLength > 0) {
+            submitBuffer();
+        }
+    }
+
+    /** Waits until all data is written to the underlying stream. */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        flush();
+        put(END);
+        finished = true;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data to be written");
+        }
+        ReadAheadInputStream.rethrowFailure(failure);
+    }
+
+    @Override
+    public void close() {
+        if (!finished) {
+            finished = true;
+            thread.interrupt();
+        }
+    }
+
+    private void submitBuffer() throws IOException {
+        byte[] data = buffer;
+        if (bufferLength < data.length) {
+            data = Arrays.copyOf(data, bufferLength);
+        } else {
+            buffer = new byte[buffer.length];
+        }
+        bufferLength = 0;
+        put(data);
+    }
+
+    private void put(byte[] data) throws IOException {
+        ReadAheadInputStream.rethrowFailure(failure);
+        try {
+            buffers.put(data);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for data to be written");
+        }
+    }
+
+}
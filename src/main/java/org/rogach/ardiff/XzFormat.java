@@ -0,0 +1,258 @@
+package org.rogach.ardiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Low-level pieces of .xz container format (stream header and footer, block headers, index),
+ * which are needed to split xz streams into independent blocks and to assemble them back.
+ * xz library only encodes and decodes whole streams, so single blocks are moved between streams by these helpers.
+ */
+class XzFormat {
+
+    static final byte[] HEADER_MAGIC = { (byte) 0xfd, '7', 'z', 'X', 'Z', 0 };
+    static final byte[] FOOTER_MAGIC = { 'Y', 'Z' };
+    static final int STREAM_HEADER_SIZE = 12;
+    static final int STREAM_FOOTER_SIZE = 12;
+
+    private static final int FLAG_COMPRESSED_SIZE = 0x40;
+    private static final int FLAG_UNCOMPRESSED_SIZE = 0x80;
+
+    /** Block as stored in the stream - header, compressed data, padding and check. */
+    static class Block {
+        final byte[] data;
+        final long unpaddedSize;
+        final long uncompressedSize;
+
+        Block(byte[] data, long unpaddedSize, long uncompressedSize) {
+            this.data = data;
+            this.unpaddedSize = unpaddedSize;
+            this.uncompressedSize = uncompressedSize;
+        }
+    }
+
+    private XzFormat() {}
+
+    static int getCheckSize(int checkType) {
+        return checkType == 0 ? 0 : 4 << ((checkType - 1) / 3);
+    }
+
+    static byte[] streamHeader(int checkType) {
+        byte[] header = new byte[STREAM_HEADER_SIZE];
+        System.arraycopy(HEADER_MAGIC, 0, header, 0, HEADER_MAGIC.length);
+        header[7] = (byte) checkType;
+        writeIntLE(header, 8, crc32(header, 6, 2));
+        return header;
+    }
+
+    /** @return check type */
+    static int parseStreamHeader(byte[] header) throws IOException {
+        if (!Arrays.equals(Arrays.copyOf(header, HEADER_MAGIC.length), HEADER_MAGIC)) {
+            throw new IOException("Invalid xz stream header");
+        }
+        if (readIntLE(header, 8) != crc32(header, 6, 2) || header[6] != 0 || (header[7] & 0xf0) != 0) {
+            throw new IOException("Invalid xz stream flags");
+        }
+        return header[7];
+    }
+
+    static byte[] index(List<Block> blocks) {
+        ByteArrayOutputStream index = new ByteArrayOutputStream();
+        index.write(0);
+        writeVarInt(index, blocks.size());
+        for (Block block : blocks) {
+            writeVarInt(index, block.unpaddedSize);
+            writeVarInt(index, block.uncompressedSize);
+        }
+        while (index.size() % 4 != 0) {
+            index.write(0);
+        }
+        byte[] indexBytes = index.toByteArray();
+        byte[] crc = new byte[4];
+        writeIntLE(crc, 0, crc32(indexBytes, 0, indexBytes.length));
+        index.write(crc, 0, crc.length);
+        return index.toByteArray();
+    }
+
+    static byte[] streamFooter(int checkType, long indexSize) {
+        byte[] footer = new byte[STREAM_FOOTER_SIZE];
+        writeIntLE(footer, 4, (int) (indexSize / 4 - 1));
+        footer[9] = (byte) checkType;
+        writeIntLE(footer, 0, crc32(footer, 4, 6));
+        System.arraycopy(FOOTER_MAGIC, 0, footer, 10, FOOTER_MAGIC.length);
+        return footer;
+    }
+
+    /**
+     * Extracts the only block of a standalone xz stream, rewriting its header so that it records
+     * compressed and uncompressed sizes - readers need them to find block boundaries without decoding blocks.
+     */
+    static Block extractBlock(byte[] stream, int checkType) throws IOException {
+        int footerOffset = stream.length - STREAM_FOOTER_SIZE;
+        int indexSize = (readIntLE(stream, footerOffset + 4) + 1) * 4;
+        int indexOffset = footerOffset - indexSize;
+
+        int[] position = { indexOffset + 1 };
+        if (stream[indexOffset] != 0 || readVarInt(stream, position) != 1) {
+            throw new IOException("Expected a single xz block");
+        }
+        long unpaddedSize = readVarInt(stream, position);
+        long uncompressedSize = readVarInt(stream, position);
+
+        int headerOffset = STREAM_HEADER_SIZE;
+        int headerSize = ((stream[headerOffset] & 0xff) + 1) * 4;
+        int flags = stream[headerOffset + 1] & 0xff;
+        position[0] = headerOffset + 2;
+        if ((flags & FLAG_COMPRESSED_SIZE) != 0) {
+            readVarInt(stream, position);
+        }
+        if ((flags & FLAG_UNCOMPRESSED_SIZE) != 0) {
+            readVarInt(stream, position);
+        }
+        int filtersOffset = position[0];
+        for (int filter = 0; filter <= (flags & 3); filter++) {
+            readVarInt(stream, position);
+            long propertiesSize = readVarInt(stream, position);
+            position[0] += (int) propertiesSize;
+        }
+        int filtersEnd = position[0];
+        long compressedSize = unpaddedSize - headerSize - getCheckSize(checkType);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        header.write(0); // size, filled in below
+        header.write((flags & 3) | FLAG_COMPRESSED_SIZE | FLAG_UNCOMPRESSED_SIZE);
+        writeVarInt(header, compressedSize);
+        writeVarInt(header, uncompressedSize);
+        header.write(stream, filtersOffset, filtersEnd - filtersOffset);
+        while ((header.size() + 4) % 4 != 0) {
+            header.write(0);
+        }
+        byte[] headerBytes = Arrays.copyOf(header.toByteArray(), header.size() + 4);
+        headerBytes[0] = (byte) (headerBytes.length / 4 - 1);
+        writeIntLE(headerBytes, headerBytes.length - 4, crc32(headerBytes, 0, headerBytes.length - 4));
+
+        int dataOffset = headerOffset + headerSize;
+        int dataLength = indexOffset - dataOffset; // compressed data, padding and check
+        byte[] block = Arrays.copyOf(headerBytes, headerBytes.length + dataLength);
+        System.arraycopy(stream, dataOffset, block, headerBytes.length, dataLength);
+        return new Block(block, headerBytes.length + compressedSize + getCheckSize(checkType), uncompressedSize);
+    }
+
+    /** @return true if block header at given offset records compressed and uncompressed sizes */
+    static boolean hasBlockSizes(byte[] data, int headerOffset) {
+        int flags = data[headerOffset + 1] & 0xff;
+        return (flags & FLAG_COMPRESSED_SIZE) != 0 && (flags & FLAG_UNCOMPRESSED_SIZE) != 0;
+    }
+
+    /**
+     * Reads block with given first byte of header from the stream.
+     * @return null if block header doesn't record compressed and uncompressed sizes
+     */
+    static Block readBlock(int firstByte, InputStream in, int checkType) throws IOException {
+        int headerSize = (firstByte + 1) * 4;
+        byte[] header = new byte[headerSize];
+        header[0] = (byte) firstByte;
+        readFully(in, header, 1, headerSize - 1);
+        if (readIntLE(header, headerSize - 4) != crc32(header, 0, headerSize - 4)) {
+            throw new IOException("Invalid xz block header checksum");
+        }
+        if (!hasBlockSizes(header, 0)) {
+            return null;
+        }
+        int[] position = { 2 };
+        long compressedSize = readVarInt(header, position);
+        long uncompressedSize = readVarInt(header, position);
+        long dataLength = (compressedSize + 3) / 4 * 4 + getCheckSize(checkType);
+        if (headerSize + dataLength > Integer.MAX_VALUE - 8 || uncompressedSize > Integer.MAX_VALUE - 8) {
+            throw new IOException("xz block is too large: " + uncompressedSize + " bytes");
+        }
+        byte[] block = Arrays.copyOf(header, (int) (headerSize + dataLength));
+        readFully(in, block, headerSize, (int) dataLength);
+        return new Block(block, headerSize + compressedSize + getCheckSize(checkType), uncompressedSize);
+    }
+
+    /** Single-block stream, which xz library can decode on its own. */
+    static byte[] standaloneStream(Block block, int checkType) {
+        byte[] index = index(Collections.singletonList(block));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream(block.data.length + 64);
+        stream.write(streamHeader(checkType), 0, STREAM_HEADER_SIZE);
+        stream.write(block.data, 0, block.data.length);
+        stream.write(index, 0, index.length);
+        stream.write(streamFooter(checkType, index.length), 0, STREAM_FOOTER_SIZE);
+        return stream.toByteArray();
+    }
+
+    static void writeVarInt(ByteArrayOutputStream out, long value) {
+        while (value >= 0x80) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarInt(byte[] data, int[] position) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            if (position[0] >= data.length) {
+                throw new IOException("Truncated xz integer");
+            }
+            int b = data[position[0]++] & 0xff;
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid xz integer");
+    }
+
+    static long readVarInt(InputStream in, CRC32 crc) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 63; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected end of xz stream");
+            }
+            crc.update(b);
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid xz integer");
+    }
+
+    static void readFully(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            int bytesRead = in.read(buffer, offset, length);
+            if (bytesRead == -1) {
+                throw new EOFException("Unexpected end of xz stream");
+            }
+            offset += bytesRead;
+            length -= bytesRead;
+        }
+    }
+
+    static int crc32(byte[] data, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return (int) crc.getValue();
+    }
+
+    static int readIntLE(byte[] data, int offset) {
+        return (data[offset] & 0xff) | (data[offset + 1] & 0xff) << 8 | (data[offset + 2] & 0xff) << 16 | (data[offset + 3] & 0xff) << 24;
+    }
+
+    static void writeIntLE(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >>> 8);
+        data[offset + 2] = (byte) (value >>> 16);
+        data[offset + 3] = (byte) (value >>> 24);
+    }
+
+}
@@ -0,0 +1,59 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.ByteBufferSeekableSource;
+import com.nothome.delta.SeekableSource;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encoder and decoder for deltas of single entries.
+ *
+ * Engine id is recorded in the diff for every patch command, so that readers can pick the matching decoder.
+ * Ids below 16 are reserved for built-in engines; custom engines have to be registered in
+ * {@link org.rogach.ardiff.ArchiveDiffOptions} both when computing and when applying diffs.
+ */
+public interface DeltaEngine {
+
+    DeltaEngine GDIFF = new GDiffDeltaEngine();
+    DeltaEngine VCDIFF = new VcdiffDeltaEngine();
+
+    static List<DeltaEngine> builtInEngines() {
+        return Arrays.asList(GDIFF, VCDIFF);
+    }
+
+    byte getId();
+
+    /** Short name, used to select the engine from command line. */
+    String getName();
+
+    /**
+     * Computes delta incrementally - target data is read once in a streaming fashion,
+     * source data is accessed through random access view. Streams are not closed.
+     */
+    void computeDelta(SeekableSource source, long sourceLength, InputStream target, OutputStream delta) throws IOException;
+
+    /** Reads delta until the end of stream, writing restored data into target. Streams are not closed. */
+    void applyDelta(SeekableSource source, InputStream delta, OutputStream target) throws IOException;
+
+    /**
+     * Composes delta of intermediate data against source with delta of target data against intermediate data
+     * into a delta of target data against source, without restoring the intermediate data. Streams are not closed.
+     * @return false if engine can't compose deltas, nothing is written then
+     */
+    default boolean composeDeltas(SeekableSource first, InputStream second, OutputStream composed) throws IOException {
+        return false;
+    }
+
+    default byte[] computeDelta(byte[] source, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        computeDelta(new ByteBufferSeekableSource(source), source.length, new ByteArrayInputStream(target), delta);
+        return delta.toByteArray();
+    }
+
+}
@@ -0,0 +1,264 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Composes two GDiff deltas (source to intermediate and intermediate to target) into a delta of target
+ * against source, without restoring the intermediate data.
+ *
+ * Operations of the first delta are indexed by their offsets in the intermediate data. Second delta is then read
+ * as a stream - its literal data is passed through, and every copy from intermediate data is split at operation
+ * boundaries of the first delta into copies from source and literal data taken from the first delta.
+ */
+class GDiffComposer {
+
+    private static final int MAGIC = 0xd1ffd1ff;
+    private static final int VERSION = 4;
+
+    private final SeekableSource first;
+
+    /** Offsets of operations of the first delta in the intermediate data, in increasing order. */
+    private long[] opTargetOffsets = new long[64];
+    /** Offset in the source for copies, offset of literal data in the first delta itself for data operations. */
+    private long[] opOffsets = new long[64];
+    private boolean[] opCopies = new boolean[64];
+    private int opCount = 0;
+    private long intermediateLength = 0;
+
+    private GDiffWriter writer;
+    private long pendingCopyOffset = 0;
+    private int pendingCopyLength = 0;
+
+    GDiffComposer(SeekableSource first) {
+        this.first = first;
+    }
+
+    void compose(InputStream second, OutputStream composed) throws IOException {
+        indexFirstDelta();
+
+        DataInputStream secondDelta = new DataInputStream(new BufferedInputStream(second, 65536));
+        readHeader(secondDelta);
+        // writer closes the stream at the end
+        writer = new GDiffWriter(new DataOutputStream(new BufferedOutputStream(new CloseShieldOutputStream(composed))));
+        byte[] buffer = new byte[4096];
+        while (true) {
+            int op = secondDelta.readUnsignedByte();
+            if (op == GDiffWriter.EOF) {
+                break;
+            } else if (op >= GDiffWriter.COPY_USHORT_UBYTE) {
+                long offset = readCopyOffset(op, secondDelta);
+                int length = readCopyLength(op, secondDelta);
+                copyIntermediate(offset, length, buffer);
+            } else {
+                int length = readDataLength(op, secondDelta);
+                flushCopy();
+                while (length > 0) {
+                    int chunkLength = Math.min(length, buffer.length);
+                    secondDelta.readFully(buffer, 0, chunkLength);
+                    addData(buffer, chunkLength);
+                    length -= chunkLength;
+                }
+            }
+        }
+        flushCopy();
+        writer.close();
+    }
+
+    private void indexFirstDelta() throws IOException {
+        first.seek(0);
+        DataInputStream firstDelta = new DataInputStream(new BufferedInputStream(new SeekableSourceInputStream(first), 65536));
+        readHeader(firstDelta);
+        long position = 5;
+        while (true) {
+            int op = firstDelta.readUnsignedByte();
+            position++;
+            if (op == GDiffWriter.EOF) {
+                break;
+            } else if (op >= GDiffWriter.COPY_USHORT_UBYTE) {
+                long offset = readCopyOffset(op, firstDelta);
+                int length = readCopyLength(op, firstDelta);
+                position += copyOpSize(op);
+                addOp(true, offset, length);
+            } else {
+                int length = readDataLength(op, firstDelta);
+                position += op == GDiffWriter.DATA_USHORT ? 2 : op == GDiffWriter.DATA_INT ? 4 : 0;
+                addOp(false, position, length);
+                skipFully(firstDelta, length);
+                position += length;
+            }
+        }
+    }
+
+    private void addOp(boolean copy, long offset, int length) {
+        if (length <= 0) {
+            return;
+        }
+        if (opCount == opTargetOffsets.length) {
+            opTargetOffsets = Arrays.copyOf(opTargetOffsets, opCount * 2);
+            opOffsets = Arrays.copyOf(opOffsets, opCount * 2);
+            opCopies = Arrays.copyOf(opCopies, opCount * 2);
+        }
+        opTargetOffsets[opCount] = intermediateLength;
+        opOffsets[opCount] = offset;
+        opCopies[opCount] = copy;
+        opCount++;
+        intermediateLength += length;
+    }
+
+    private void copyIntermediate(long offset, int length, byte[] buffer) throws IOException {
+        if (offset < 0 || offset + length > intermediateLength) {
+            throw new IOException(String.format("Copy of %d bytes at offset %d is out of intermediate data of %d bytes", length, offset, intermediateLength));
+        }
+        int op = Arrays.binarySearch(opTargetOffsets, 0, opCount, offset);
+        if (op < 0) {
+            op = -op - 2;
+        }
+        while (length > 0) {
+            long opEnd = op + 1 < opCount ? opTargetOffsets[op + 1] : intermediateLength;
+            int partLength = (int) Math.min(length, opEnd - offset);
+            long partOffset = opOffsets[op] + (offset - opTargetOffsets[op]);
+            if (opCopies[op]) {
+                addCopy(partOffset, partLength);
+            } else {
+                flushCopy();
+                copyFirstDeltaData(partOffset, partLength, buffer);
+            }
+            offset += partLength;
+            length -= partLength;
+            op++;
+        }
+    }
+
+    private void copyFirstDeltaData(long offset, int length, byte[] buffer) throws IOException {
+        first.seek(offset);
+        while (length > 0) {
+            ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, Math.min(length, buffer.length));
+            while (chunk.hasRemaining()) {
+                if (first.read(chunk) <= 0) {
+                    throw new EOFException("Unexpected end of delta");
+                }
+            }
+            addData(buffer, chunk.position());
+            length -= chunk.position();
+        }
+    }
+
+    /** Adjacent copies (e.g. of a region that was split by the first delta) are merged into one. */
+    private void addCopy(long offset, int length) throws IOException {
+        if (pendingCopyLength > 0 && pendingCopyOffset + pendingCopyLength == offset && (long) pendingCopyLength + length <= Integer.MAX_VALUE) {
+            pendingCopyLength += length;
+        } else {
+            flushCopy();
+            pendingCopyOffset = offset;
+            pendingCopyLength = length;
+        }
+    }
+
+    private void flushCopy() throws IOException {
+        if (pendingCopyLength > 0) {
+            writer.addCopy(pendingCopyOffset, pendingCopyLength);
+            pendingCopyLength = 0;
+        }
+    }
+
+    private void addData(byte[] data, int length) throws IOException {
+        for (int i = 0; i < length; i++) {
+            writer.addData(data[i]);
+        }
+    }
+
+    private static void readHeader(DataInputStream delta) throws IOException {
+        if (delta.readInt() != MAGIC || delta.readUnsignedByte() != VERSION) {
+            throw new IOException("Invalid GDiff header");
+        }
+    }
+
+    private static int readDataLength(int op, DataInputStream delta) throws IOException {
+        if (op == GDiffWriter.DATA_USHORT) {
+            return delta.readUnsignedShort();
+        } else if (op == GDiffWriter.DATA_INT) {
+            return delta.readInt();
+        } else {
+            return op;
+        }
+    }
+
+    private static long readCopyOffset(int op, DataInputStream delta) throws IOException {
+        switch (op) {
+            case GDiffWriter.COPY_USHORT_UBYTE:
+            case GDiffWriter.COPY_USHORT_USHORT:
+            case GDiffWriter.COPY_USHORT_INT:
+                return delta.readUnsignedShort();
+            case GDiffWriter.COPY_INT_UBYTE:
+            case GDiffWriter.COPY_INT_USHORT:
+            case GDiffWriter.COPY_INT_INT:
+                return delta.readInt() & 0xffffffffL;
+            default:
+                return delta.readLong();
+        }
+    }
+
+    private static int readCopyLength(int op, DataInputStream delta) throws IOException {
+        switch (op) {
+            case GDiffWriter.COPY_USHORT_UBYTE:
+            case GDiffWriter.COPY_INT_UBYTE:
+                return delta.readUnsignedByte();
+            case GDiffWriter.COPY_USHORT_USHORT:
+            case GDiffWriter.COPY_INT_USHORT:
+                return delta.readUnsignedShort();
+            default:
+                return delta.readInt();
+        }
+    }
+
+    private static int copyOpSize(int op) {
+        switch (op) {
+            case GDiffWriter.COPY_USHORT_UBYTE: return 3;
+            case GDiffWriter.COPY_USHORT_USHORT: return 4;
+            case GDiffWriter.COPY_USHORT_INT: return 6;
+            case GDiffWriter.COPY_INT_UBYTE: return 5;
+            case GDiffWriter.COPY_INT_USHORT: return 6;
+            case GDiffWriter.COPY_INT_INT: return 8;
+            default: return 12;
+        }
+    }
+
+    private static void skipFully(DataInputStream delta, int length) throws IOException {
+        if (delta.skipBytes(length) != length) {
+            throw new EOFException("Unexpected end of delta");
+        }
+    }
+
+    /** Sequential view of the first delta, used to index its operations. */
+    private static class SeekableSourceInputStream extends InputStream {
+
+        private final SeekableSource source;
+
+        SeekableSourceInputStream(SeekableSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            int bytesRead = source.read(ByteBuffer.wrap(b, off, len));
+            return bytesRead <= 0 ? -1 : bytesRead;
+        }
+
+    }
+
+}
@@ -0,0 +1,61 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.Delta;
+import com.nothome.delta.DiffWriter;
+import com.nothome.delta.GDiffPatcher;
+import com.nothome.delta.GDiffWriter;
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+
+import java.io.*;
+
+/**
+ * GDiff encoding (plain copy/insert commands) produced by javaxdelta.
+ * This was the only engine in earlier versions of the diff format, so it is used when diff doesn't specify an engine.
+ */
+public class GDiffDeltaEngine implements DeltaEngine {
+
+    public static final byte ID = 0;
+
+    /** Upper bound on number of source chunks in delta index, chunks are made larger for very large sources. */
+    static final long MAX_INDEX_CHUNKS = 1 << 22;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "gdiff";
+    }
+
+    @Override
+    public void computeDelta(SeekableSource source, long sourceLength, InputStream target, OutputStream delta) throws IOException {
+        // delta computation closes the writer at the end
+        findMatches(source, sourceLength, target, new GDiffWriter(new DataOutputStream(new BufferedOutputStream(new CloseShieldOutputStream(delta)))));
+    }
+
+    @Override
+    public void applyDelta(SeekableSource source, InputStream delta, OutputStream target) throws IOException {
+        new GDiffPatcher().patch(source, delta, target);
+    }
+
+    @Override
+    public boolean composeDeltas(SeekableSource first, InputStream second, OutputStream composed) throws IOException {
+        new GDiffComposer(first).compose(second, composed);
+        return true;
+    }
+
+    /** Reports copies from source and literal data of the target into writer, and closes it. */
+    static void findMatches(SeekableSource source, long sourceLength, InputStream target, DiffWriter writer) throws IOException {
+        Delta delta = new Delta();
+        delta.setChunkSize(getChunkSize(sourceLength));
+        delta.compute(new MatchLimitingSeekableSource(source), new BufferedInputStream(target, 65536), writer);
+    }
+
+    static int getChunkSize(long sourceLength) {
+        return (int) Math.max(Delta.DEFAULT_CHUNK_SIZE, sourceLength / MAX_INDEX_CHUNKS);
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Delta source view that reports end of data after a limited number of bytes read since the last seek.
+ *
+ * javaxdelta counts length of a match in an int, which overflows for matches over 2 GB (e.g. in mostly unchanged
+ * disk images). Delta seeks to the start of every match, so cutting reads off splits long matches into several copies.
+ * Source index is built from reads before the first seek, those are not limited.
+ */
+class MatchLimitingSeekableSource implements SeekableSource {
+
+    static final long MAX_MATCH_LENGTH = 1L << 30;
+
+    private final SeekableSource source;
+    private long remaining = Long.MAX_VALUE;
+
+    MatchLimitingSeekableSource(SeekableSource source) {
+        this.source = source;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        source.seek(pos);
+        remaining = MAX_MATCH_LENGTH;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer) throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        ByteBuffer limitedBuffer = buffer.slice();
+        limitedBuffer.limit((int) Math.min(limitedBuffer.limit(), remaining));
+        int bytesRead = source.read(limitedBuffer);
+        if (bytesRead > 0) {
+            buffer.position(buffer.position() + bytesRead);
+            remaining -= bytesRead;
+        }
+        return bytesRead;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+}
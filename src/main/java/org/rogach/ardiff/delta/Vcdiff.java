@@ -0,0 +1,125 @@
+package org.rogach.ardiff.delta;
+
+import org.apache.commons.compress.utils.IOUtils;
+import org.tukaani.xz.FinishableOutputStream;
+import org.tukaani.xz.FinishableWrapperOutputStream;
+import org.tukaani.xz.LZMA2InputStream;
+import org.tukaani.xz.LZMA2Options;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/** Constants and primitive encodings of VCDIFF format (RFC 3284). */
+final class Vcdiff {
+
+    static final byte[] MAGIC = { (byte) 0xD6, (byte) 0xC3, (byte) 0xC4, 0 };
+
+    // header indicator bits
+    static final int VCD_DECOMPRESS = 0x01;
+    static final int VCD_CODETABLE = 0x02;
+    static final int VCD_APPHEADER = 0x04; // xdelta3 extension
+
+    // window indicator bits
+    static final int VCD_SOURCE = 0x01;
+    static final int VCD_TARGET = 0x02;
+    static final int VCD_ADLER32 = 0x04; // xdelta3 extension
+
+    // delta indicator bits
+    static final int VCD_DATACOMP = 0x01;
+    static final int VCD_INSTCOMP = 0x02;
+    static final int VCD_ADDRCOMP = 0x04;
+
+    /** Secondary compressor id - raw LZMA2 stream, prefixed with uncompressed length. */
+    static final int SECONDARY_LZMA2 = 2;
+
+    /** Windows produced by the encoder. */
+    static final int TARGET_WINDOW_SIZE = 1 << 22;
+
+    /** Bound on window and section sizes accepted by the decoder, so that corrupted deltas don't exhaust memory. */
+    static final int MAX_SECTION_SIZE = 1 << 28;
+
+    /** Sections smaller than this are never worth compressing. */
+    static final int MIN_COMPRESSED_SECTION_SIZE = 64;
+
+    private Vcdiff() {}
+
+    static void writeVarint(long value, OutputStream out) throws IOException {
+        int length = varintLength(value);
+        for (int i = length - 1; i > 0; i--) {
+            out.write((int) (value >>> (7 * i)) & 0x7f | 0x80);
+        }
+        out.write((int) value & 0x7f);
+    }
+
+    static int varintLength(long value) {
+        int length = 1;
+        while ((value >>>= 7) != 0) {
+            length++;
+        }
+        return length;
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Unexpected end of VCDIFF data");
+            }
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid VCDIFF integer");
+    }
+
+    static long readVarint(ByteBuffer buffer) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            if (!buffer.hasRemaining()) {
+                throw new EOFException("Unexpected end of VCDIFF section");
+            }
+            int b = buffer.get();
+            value = (value << 7) | (b & 0x7f);
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid VCDIFF integer");
+    }
+
+    static int checkSize(long size) throws IOException {
+        if (size < 0 || size > MAX_SECTION_SIZE) {
+            throw new IOException("Invalid VCDIFF size: " + size);
+        }
+        return (int) size;
+    }
+
+    static byte[] compressSection(byte[] section) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(section.length / 2);
+        writeVarint(section.length, compressed);
+        LZMA2Options options = new LZMA2Options();
+        options.setDictSize(getDictSize(section.length));
+        try (FinishableOutputStream lzma = options.getOutputStream(new FinishableWrapperOutputStream(compressed))) {
+            lzma.write(section);
+        }
+        return compressed.toByteArray();
+    }
+
+    static byte[] decompressSection(byte[] compressed) throws IOException {
+        ByteArrayInputStream compressedStream = new ByteArrayInputStream(compressed);
+        int length = checkSize(readVarint(compressedStream));
+        byte[] section = new byte[length];
+        InputStream lzma = new LZMA2InputStream(compressedStream, getDictSize(length));
+        if (IOUtils.readFully(lzma, section) != length) {
+            throw new EOFException("Unexpected end of compressed VCDIFF section");
+        }
+        return section;
+    }
+
+    private static int getDictSize(int length) {
+        return Math.max(LZMA2Options.DICT_SIZE_MIN, length);
+    }
+
+}
@@ -0,0 +1,90 @@
+package org.rogach.ardiff.delta;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.rogach.ardiff.delta.VcdiffCodeTable.NEAR_CACHE_SIZE;
+import static org.rogach.ardiff.delta.VcdiffCodeTable.SAME_CACHE_SIZE;
+
+/**
+ * Cache of recent copy addresses (RFC 3284, section 5.3), which allows to encode addresses
+ * relative to recently used ones. Has to be reset at the start of every window.
+ */
+final class VcdiffAddressCache {
+
+    private static final int MODE_SELF = 0;
+    private static final int MODE_HERE = 1;
+    private static final int MODE_NEAR = 2;
+    private static final int MODE_SAME = MODE_NEAR + NEAR_CACHE_SIZE;
+
+    private final long[] near = new long[NEAR_CACHE_SIZE];
+    private final long[] same = new long[SAME_CACHE_SIZE * 256];
+    private int nextNearSlot = 0;
+
+    void reset() {
+        Arrays.fill(near, 0);
+        Arrays.fill(same, 0);
+        nextNearSlot = 0;
+    }
+
+    /**
+     * Writes address in the most compact mode into address section.
+     * @param here current position in source segment followed by target window
+     * @return chosen mode
+     */
+    int encode(long address, long here, OutputStream addresses) throws IOException {
+        int sameSlot = (int) (address % same.length);
+        int mode;
+        long value;
+        if (same[sameSlot] == address) {
+            mode = MODE_SAME + sameSlot / 256;
+            addresses.write(sameSlot % 256);
+        } else {
+            mode = MODE_SELF;
+            value = address;
+            if (Vcdiff.varintLength(here - address) < Vcdiff.varintLength(value)) {
+                mode = MODE_HERE;
+                value = here - address;
+            }
+            for (int i = 0; i < NEAR_CACHE_SIZE; i++) {
+                if (address >= near[i] && Vcdiff.varintLength(address - near[i]) < Vcdiff.varintLength(value)) {
+                    mode = MODE_NEAR + i;
+                    value = address - near[i];
+                }
+            }
+            Vcdiff.writeVarint(value, addresses);
+        }
+        update(address);
+        return mode;
+    }
+
+    long decode(long here, int mode, ByteBuffer addresses) throws IOException {
+        long address;
+        if (mode == MODE_SELF) {
+            address = Vcdiff.readVarint(addresses);
+        } else if (mode == MODE_HERE) {
+            address = here - Vcdiff.readVarint(addresses);
+        } else if (mode < MODE_SAME) {
+            address = near[mode - MODE_NEAR] + Vcdiff.readVarint(addresses);
+        } else {
+            if (!addresses.hasRemaining()) {
+                throw new IOException("Unexpected end of VCDIFF address section");
+            }
+            address = same[(mode - MODE_SAME) * 256 + (addresses.get() & 0xff)];
+        }
+        if (address < 0 || address >= here) {
+            throw new IOException("Invalid VCDIFF copy address: " + address);
+        }
+        update(address);
+        return address;
+    }
+
+    private void update(long address) {
+        near[nextNearSlot] = address;
+        nextNearSlot = (nextNearSlot + 1) % NEAR_CACHE_SIZE;
+        same[(int) (address % same.length)] = address;
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.rogach.ardiff.delta;
+
+import java.util.Arrays;
+
+/**
+ * Default instruction code table from RFC 3284, section 5.6.
+ * Every opcode encodes one or two instructions; zero size means that size follows the opcode in instruction section.
+ */
+final class VcdiffCodeTable {
+
+    static final int NOOP = 0;
+    static final int ADD = 1;
+    static final int RUN = 2;
+    static final int COPY = 3;
+
+    static final int NEAR_CACHE_SIZE = 4;
+    static final int SAME_CACHE_SIZE = 3;
+    static final int MODE_COUNT = 2 + NEAR_CACHE_SIZE + SAME_CACHE_SIZE;
+
+    static final VcdiffCodeTable DEFAULT = new VcdiffCodeTable();
+
+    final int[] type1 = new int[256];
+    final int[] size1 = new int[256];
+    final int[] mode1 = new int[256];
+    final int[] type2 = new int[256];
+    final int[] size2 = new int[256];
+    final int[] mode2 = new int[256];
+
+    /** Opcode of combined instruction by opcodes of its parts (with inline sizes), -1 if there is none. */
+    private final int[][] combinedOpcodes = new int[256][256];
+
+    private VcdiffCodeTable() {
+        int opcode = 0;
+        type1[opcode++] = RUN;
+        for (int size = 0; size <= 17; size++) {
+            set(opcode++, ADD, size, 0, NOOP, 0, 0);
+        }
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            set(opcode++, COPY, 0, mode, NOOP, 0, 0);
+            for (int size = 4; size <= 18; size++) {
+                set(opcode++, COPY, size, mode, NOOP, 0, 0);
+            }
+        }
+        for (int mode = 0; mode < 6; mode++) {
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                for (int copySize = 4; copySize <= 6; copySize++) {
+                    set(opcode++, ADD, addSize, 0, COPY, copySize, mode);
+                }
+            }
+        }
+        for (int mode = 6; mode < MODE_COUNT; mode++) {
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                set(opcode++, ADD, addSize, 0, COPY, 4, mode);
+            }
+        }
+        for (int mode = 0; mode < MODE_COUNT; mode++) {
+            set(opcode++, COPY, 4, mode, ADD, 1, 0);
+        }
+
+        for (int[] row : combinedOpcodes) {
+            Arrays.fill(row, -1);
+        }
+        for (opcode = 0; opcode < 256; opcode++) {
+            if (type2[opcode] != NOOP) {
+                combinedOpcodes[singleOpcode(type1[opcode], size1[opcode], mode1[opcode])][singleOpcode(type2[opcode], size2[opcode], mode2[opcode])] = opcode;
+            }
+        }
+    }
+
+    private void set(int opcode, int type1, int size1, int mode1, int type2, int size2, int mode2) {
+        this.type1[opcode] = type1;
+        this.size1[opcode] = size1;
+        this.mode1[opcode] = mode1;
+        this.type2[opcode] = type2;
+        this.size2[opcode] = size2;
+        this.mode2[opcode] = mode2;
+    }
+
+    /** @return opcode of a single ADD or COPY instruction, with inline size if possible */
+    int singleOpcode(int type, long size, int mode) {
+        if (type == ADD) {
+            return size >= 1 && size <= 17 ? 1 + (int) size : 1;
+        } else {
+            return 19 + 16 * mode + (size >= 4 && size <= 18 ? (int) size - 3 : 0);
+        }
+    }
+
+    int combinedOpcode(int firstOpcode, int secondOpcode) {
+        return combinedOpcodes[firstOpcode][secondOpcode];
+    }
+
+}
@@ -0,0 +1,52 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.SeekableSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * VCDIFF (RFC 3284) encoding with the default code table, in the spirit of xdelta3.
+ *
+ * Matches are found with the same javaxdelta index as for GDiff, but copy addresses are encoded relative
+ * to recently used ones, short instructions are merged into single opcodes, and data, instruction
+ * and address sections are compressed with LZMA2 - which gives considerably smaller deltas than GDiff,
+ * while decoding needs only one window of target data in memory.
+ */
+public class VcdiffDeltaEngine implements DeltaEngine {
+
+    public static final byte ID = 1;
+
+    private final boolean secondaryCompression;
+
+    public VcdiffDeltaEngine() {
+        this(true);
+    }
+
+    /** @param secondaryCompression compress window sections with LZMA2 */
+    public VcdiffDeltaEngine(boolean secondaryCompression) {
+        this.secondaryCompression = secondaryCompression;
+    }
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public String getName() {
+        return "vcdiff";
+    }
+
+    @Override
+    public void computeDelta(SeekableSource source, long sourceLength, InputStream target, OutputStream delta) throws IOException {
+        GDiffDeltaEngine.findMatches(source, sourceLength, target, new VcdiffWriter(delta, secondaryCompression));
+    }
+
+    @Override
+    public void applyDelta(SeekableSource source, InputStream delta, OutputStream target) throws IOException {
+        new VcdiffReader(source, delta, target).decode();
+    }
+
+}
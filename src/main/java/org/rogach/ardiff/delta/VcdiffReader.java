@@ -0,0 +1,191 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.SeekableSource;
+import org.apache.commons.compress.utils.IOUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+
+/**
+ * Decodes VCDIFF deltas window by window - only a single target window is held in memory,
+ * source data is read on demand for every copy.
+ *
+ * Besides deltas produced by {@link VcdiffWriter}, deltas of other encoders are supported as long as they use
+ * the default code table, no secondary compression other than ours and no copies from previous target windows.
+ */
+class VcdiffReader {
+
+    private final SeekableSource source;
+    private final InputStream delta;
+    private final OutputStream target;
+    private final VcdiffCodeTable codeTable = VcdiffCodeTable.DEFAULT;
+    private final VcdiffAddressCache addressCache = new VcdiffAddressCache();
+
+    private boolean secondaryCompression = false;
+
+    VcdiffReader(SeekableSource source, InputStream delta, OutputStream target) {
+        this.source = source;
+        this.delta = delta;
+        this.target = target;
+    }
+
+    void decode() throws IOException {
+        readHeader();
+        int windowIndicator;
+        while ((windowIndicator = delta.read()) != -1) {
+            decodeWindow(windowIndicator);
+        }
+    }
+
+    private void readHeader() throws IOException {
+        byte[] magic = new byte[Vcdiff.MAGIC.length];
+        if (IOUtils.readFully(delta, magic) != magic.length || !Arrays.equals(magic, Vcdiff.MAGIC)) {
+            throw new IOException("Invalid VCDIFF header");
+        }
+        int headerIndicator = readByte();
+        if ((headerIndicator & Vcdiff.VCD_CODETABLE) != 0) {
+            throw new IOException("Custom VCDIFF code tables are not supported");
+        }
+        if ((headerIndicator & Vcdiff.VCD_DECOMPRESS) != 0) {
+            int compressorId = readByte();
+            if (compressorId != Vcdiff.SECONDARY_LZMA2) {
+                throw new IOException("Unsupported VCDIFF secondary compressor: " + compressorId);
+            }
+            secondaryCompression = true;
+        }
+        if ((headerIndicator & Vcdiff.VCD_APPHEADER) != 0) {
+            IOUtils.skip(delta, Vcdiff.checkSize(Vcdiff.readVarint(delta)));
+        }
+    }
+
+    private void decodeWindow(int windowIndicator) throws IOException {
+        if ((windowIndicator & Vcdiff.VCD_TARGET) != 0) {
+            throw new IOException("VCDIFF copies from previous target windows are not supported");
+        }
+        long segmentLength = 0;
+        long segmentPosition = 0;
+        if ((windowIndicator & Vcdiff.VCD_SOURCE) != 0) {
+            segmentLength = Vcdiff.readVarint(delta);
+            segmentPosition = Vcdiff.readVarint(delta);
+        }
+        Vcdiff.readVarint(delta); // length of delta encoding
+        int targetLength = Vcdiff.checkSize(Vcdiff.readVarint(delta));
+        int deltaIndicator = readByte();
+        if (!secondaryCompression && deltaIndicator != 0) {
+            throw new IOException("VCDIFF window is compressed, but no secondary compressor is specified");
+        }
+        int dataLength = Vcdiff.checkSize(Vcdiff.readVarint(delta));
+        int instructionsLength = Vcdiff.checkSize(Vcdiff.readVarint(delta));
+        int addressesLength = Vcdiff.checkSize(Vcdiff.readVarint(delta));
+        long expectedChecksum = -1;
+        if ((windowIndicator & Vcdiff.VCD_ADLER32) != 0) {
+            expectedChecksum = new DataInputStream(delta).readInt() & 0xffffffffL;
+        }
+
+        ByteBuffer data = readSection(dataLength, (deltaIndicator & Vcdiff.VCD_DATACOMP) != 0);
+        ByteBuffer instructions = readSection(instructionsLength, (deltaIndicator & Vcdiff.VCD_INSTCOMP) != 0);
+        ByteBuffer addresses = readSection(addressesLength, (deltaIndicator & Vcdiff.VCD_ADDRCOMP) != 0);
+
+        byte[] window = new byte[targetLength];
+        int position = 0;
+        addressCache.reset();
+        while (instructions.hasRemaining()) {
+            int opcode = instructions.get() & 0xff;
+            position = execute(codeTable.type1[opcode], codeTable.size1[opcode], codeTable.mode1[opcode],
+                    window, position, segmentLength, segmentPosition, data, instructions, addresses);
+            position = execute(codeTable.type2[opcode], codeTable.size2[opcode], codeTable.mode2[opcode],
+                    window, position, segmentLength, segmentPosition, data, instructions, addresses);
+        }
+        if (position != targetLength) {
+            throw new IOException(String.format("VCDIFF window has %d bytes instead of %d", position, targetLength));
+        }
+
+        if (expectedChecksum != -1) {
+            Adler32 checksum = new Adler32();
+            checksum.update(window);
+            if (checksum.getValue() != expectedChecksum) {
+                throw new IOException("VCDIFF window checksum mismatch");
+            }
+        }
+
+        target.write(window);
+    }
+
+    /** @return target position after the instruction */
+    private int execute(
+            int type,
+            int size,
+            int mode,
+            byte[] window,
+            int position,
+            long segmentLength,
+            long segmentPosition,
+            ByteBuffer data,
+            ByteBuffer instructions,
+            ByteBuffer addresses
+    ) throws IOException {
+        if (type == VcdiffCodeTable.NOOP) {
+            return position;
+        }
+        if (size == 0) {
+            size = Vcdiff.checkSize(Vcdiff.readVarint(instructions));
+        }
+        if (size > window.length - position) {
+            throw new IOException("VCDIFF instruction exceeds target window");
+        }
+
+        if (type == VcdiffCodeTable.ADD) {
+            if (data.remaining() < size) {
+                throw new EOFException("Unexpected end of VCDIFF data section");
+            }
+            data.get(window, position, size);
+        } else if (type == VcdiffCodeTable.RUN) {
+            if (!data.hasRemaining()) {
+                throw new EOFException("Unexpected end of VCDIFF data section");
+            }
+            Arrays.fill(window, position, position + size, data.get());
+        } else {
+            long address = addressCache.decode(segmentLength + position, mode, addresses);
+            int copied = 0;
+            if (address < segmentLength) {
+                copied = (int) Math.min(size, segmentLength - address);
+                readSource(segmentPosition + address, window, position, copied);
+            }
+            // copies from the target window may overlap with their own output, so they are done byte by byte
+            int targetAddress = (int) (address + copied - segmentLength);
+            for (int i = copied; i < size; i++) {
+                window[position + i] = window[targetAddress++];
+            }
+        }
+        return position + size;
+    }
+
+    private void readSource(long offset, byte[] window, int position, int length) throws IOException {
+        source.seek(offset);
+        ByteBuffer buffer = ByteBuffer.wrap(window, position, length);
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                throw new EOFException("VCDIFF copy is outside of source data");
+            }
+        }
+    }
+
+    private ByteBuffer readSection(int length, boolean compressed) throws IOException {
+        byte[] section = new byte[length];
+        if (IOUtils.readFully(delta, section) != length) {
+            throw new EOFException("Unexpected end of VCDIFF window");
+        }
+        return ByteBuffer.wrap(compressed ? Vcdiff.decompressSection(section) : section);
+    }
+
+    private int readByte() throws IOException {
+        int b = delta.read();
+        if (b == -1) {
+            throw new EOFException("Unexpected end of VCDIFF data");
+        }
+        return b;
+    }
+
+}
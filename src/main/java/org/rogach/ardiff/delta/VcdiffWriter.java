@@ -0,0 +1,205 @@
+package org.rogach.ardiff.delta;
+
+import com.nothome.delta.DiffWriter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects copies and literal data reported by javaxdelta into VCDIFF windows.
+ * Each window covers up to {@link Vcdiff#TARGET_WINDOW_SIZE} bytes of target data
+ * and refers to the smallest source segment that contains all of its copies.
+ */
+class VcdiffWriter implements DiffWriter {
+
+    private final OutputStream out;
+    private final boolean secondaryCompression;
+    private final VcdiffCodeTable codeTable = VcdiffCodeTable.DEFAULT;
+    private final VcdiffAddressCache addressCache = new VcdiffAddressCache();
+
+    // instructions of the current window, source offset is -1 for ADD
+    private long[] copyOffsets = new long[1024];
+    private int[] lengths = new int[1024];
+    private int instructionCount = 0;
+    private byte[] addedData = new byte[4096];
+    private int addedDataLength = 0;
+    private int targetWindowLength = 0;
+
+    VcdiffWriter(OutputStream out, boolean secondaryCompression) throws IOException {
+        this.out = out;
+        this.secondaryCompression = secondaryCompression;
+        out.write(Vcdiff.MAGIC);
+        if (secondaryCompression) {
+            out.write(Vcdiff.VCD_DECOMPRESS);
+            out.write(Vcdiff.SECONDARY_LZMA2);
+        } else {
+            out.write(0);
+        }
+    }
+
+    @Override
+    public void addCopy(long offset, int length) throws IOException {
+        while (length > 0) {
+            int windowLength = Math.min(length, Vcdiff.TARGET_WINDOW_SIZE - targetWindowLength);
+            addInstruction(offset, windowLength);
+            offset += windowLength;
+            length -= windowLength;
+            if (targetWindowLength == Vcdiff.TARGET_WINDOW_SIZE) {
+                writeWindow();
+            }
+        }
+    }
+
+    @Override
+    public void addData(byte b) throws IOException {
+        if (addedDataLength == addedData.length) {
+            addedData = Arrays.copyOf(addedData, addedData.length * 2);
+        }
+        addedData[addedDataLength++] = b;
+        if (instructionCount > 0 && copyOffsets[instructionCount - 1] == -1) {
+            lengths[instructionCount - 1]++;
+            targetWindowLength++;
+        } else {
+            addInstruction(-1, 1);
+        }
+        if (targetWindowLength == Vcdiff.TARGET_WINDOW_SIZE) {
+            writeWindow();
+        }
+    }
+
+    private void addInstruction(long offset, int length) {
+        if (instructionCount == lengths.length) {
+            copyOffsets = Arrays.copyOf(copyOffsets, instructionCount * 2);
+            lengths = Arrays.copyOf(lengths, instructionCount * 2);
+        }
+        copyOffsets[instructionCount] = offset;
+        lengths[instructionCount] = length;
+        instructionCount++;
+        targetWindowLength += length;
+    }
+
+    /** Windows are only written when full, so that flushes in the middle of delta computation don't fragment them. */
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /** Writes the last window, but doesn't close the underlying stream. */
+    @Override
+    public void close() throws IOException {
+        writeWindow();
+        out.flush();
+    }
+
+    private void writeWindow() throws IOException {
+        if (instructionCount == 0) {
+            return;
+        }
+
+        long segmentStart = Long.MAX_VALUE;
+        long segmentEnd = 0;
+        for (int i = 0; i < instructionCount; i++) {
+            if (copyOffsets[i] != -1) {
+                segmentStart = Math.min(segmentStart, copyOffsets[i]);
+                segmentEnd = Math.max(segmentEnd, copyOffsets[i] + lengths[i]);
+            }
+        }
+        boolean hasSource = segmentStart != Long.MAX_VALUE;
+        long segmentLength = hasSource ? segmentEnd - segmentStart : 0;
+
+        ByteArrayOutputStream instructions = new ByteArrayOutputStream(instructionCount * 2);
+        ByteArrayOutputStream addresses = new ByteArrayOutputStream(instructionCount * 2);
+        addressCache.reset();
+        long here = segmentLength;
+        // single instruction with inline size, not written yet since it may be merged with the next one
+        int pendingOpcode = -1;
+        for (int i = 0; i < instructionCount; i++) {
+            int opcode;
+            if (copyOffsets[i] == -1) {
+                opcode = codeTable.singleOpcode(VcdiffCodeTable.ADD, lengths[i], 0);
+            } else {
+                int mode = addressCache.encode(copyOffsets[i] - segmentStart, here, addresses);
+                opcode = codeTable.singleOpcode(VcdiffCodeTable.COPY, lengths[i], mode);
+            }
+            here += lengths[i];
+
+            boolean inlineSize = codeTable.size1[opcode] != 0;
+            if (pendingOpcode != -1 && inlineSize && codeTable.combinedOpcode(pendingOpcode, opcode) != -1) {
+                instructions.write(codeTable.combinedOpcode(pendingOpcode, opcode));
+                pendingOpcode = -1;
+            } else {
+                if (pendingOpcode != -1) {
+                    instructions.write(pendingOpcode);
+                }
+                if (inlineSize) {
+                    pendingOpcode = opcode;
+                } else {
+                    instructions.write(opcode);
+                    Vcdiff.writeVarint(lengths[i], instructions);
+                    pendingOpcode = -1;
+                }
+            }
+        }
+        if (pendingOpcode != -1) {
+            instructions.write(pendingOpcode);
+        }
+
+        int deltaIndicator = 0;
+        byte[] dataSection = Arrays.copyOf(addedData, addedDataLength);
+        byte[] instructionSection = instructions.toByteArray();
+        byte[] addressSection = addresses.toByteArray();
+        if (secondaryCompression) {
+            byte[] compressedData = compressIfSmaller(dataSection);
+            if (compressedData != dataSection) {
+                deltaIndicator |= Vcdiff.VCD_DATACOMP;
+                dataSection = compressedData;
+            }
+            byte[] compressedInstructions = compressIfSmaller(instructionSection);
+            if (compressedInstructions != instructionSection) {
+                deltaIndicator |= Vcdiff.VCD_INSTCOMP;
+                instructionSection = compressedInstructions;
+            }
+            byte[] compressedAddresses = compressIfSmaller(addressSection);
+            if (compressedAddresses != addressSection) {
+                deltaIndicator |= Vcdiff.VCD_ADDRCOMP;
+                addressSection = compressedAddresses;
+            }
+        }
+
+        ByteArrayOutputStream encoding = new ByteArrayOutputStream();
+        Vcdiff.writeVarint(targetWindowLength, encoding);
+        encoding.write(deltaIndicator);
+        Vcdiff.writeVarint(dataSection.length, encoding);
+        Vcdiff.writeVarint(instructionSection.length, encoding);
+        Vcdiff.writeVarint(addressSection.length, encoding);
+        encoding.write(dataSection);
+        encoding.write(instructionSection);
+        encoding.write(addressSection);
+
+        if (hasSource) {
+            out.write(Vcdiff.VCD_SOURCE);
+            Vcdiff.writeVarint(segmentLength, out);
+            Vcdiff.writeVarint(segmentStart, out);
+        } else {
+            out.write(0);
+        }
+        Vcdiff.writeVarint(encoding.size(), out);
+        encoding.writeTo(out);
+
+        instructionCount = 0;
+        addedDataLength = 0;
+        targetWindowLength = 0;
+    }
+
+    /** @return compressed section, or the same array if compression doesn't make it smaller */
+    private static byte[] compressIfSmaller(byte[] section) throws IOException {
+        if (section.length < Vcdiff.MIN_COMPRESSED_SECTION_SIZE) {
+            return section;
+        }
+        byte[] compressed = Vcdiff.compressSection(section);
+        return compressed.length < section.length ? compressed : section;
+    }
+
+}
@@ -6,4 +6,8 @@ public class ArchiveDiffFormatException extends ArchiveDiffException {
         super(message);
     }
 
+    public ArchiveDiffFormatException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
 }
@@ -27,12 +27,12 @@ public class ArArchiveDiff extends ArchiveDiff<ArArchiveEntry> {
     }
 
     @Override
-    public ArArchiveEntry createNewArchiveEntry(String path, int length) {
+    public ArArchiveEntry createNewArchiveEntry(String path, long length) {
         return new ArArchiveEntry(path, length);
     }
 
     @Override
-    public ArArchiveEntry copyArchiveEntry(ArArchiveEntry orig, int length) {
+    public ArArchiveEntry copyArchiveEntry(ArArchiveEntry orig, long length) {
         return new ArArchiveEntry(
                 orig.getName(),
                 length,
@@ -85,7 +85,7 @@ public class ArArchiveDiff extends ArchiveDiff<ArArchiveEntry> {
 
 
     @Override
-    public ArArchiveEntry getEntryForData(ArArchiveEntry entry, int dataSize, Supplier<Long> checksumSupplier) throws IOException {
+    public ArArchiveEntry getEntryForData(ArArchiveEntry entry, long dataSize, Supplier<Long> checksumSupplier) throws IOException {
         return copyArchiveEntry(entry, dataSize);
     }
 
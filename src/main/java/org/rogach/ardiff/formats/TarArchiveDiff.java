@@ -10,6 +10,9 @@ import org.apache.commons.compress.archivers.tar.TarConstants;
 import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
 import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
 import org.rogach.ardiff.ArchiveDiff;
+import org.rogach.ardiff.ParallelGzipOutputStream;
+import org.rogach.ardiff.ParallelXzInputStream;
+import org.rogach.ardiff.ParallelXzOutputStream;
 import org.rogach.ardiff.exceptions.ArchiveDiffException;
 
 import java.io.*;
@@ -47,60 +50,92 @@ public class TarArchiveDiff extends ArchiveDiff<TarArchiveEntry> {
         return true;
     }
 
-    private GZIPOutputStream gzipOutputStream;
+    private OutputStream compressedOutputStream;
 
     @Override
     public ArchiveOutputStream createArchiveOutputStream(OutputStream output) throws IOException, ArchiveDiffException, ArchiveException {
-        OutputStream compressedOutputStream;
+        compressedOutputStream = createCompressingOutputStream(output);
+        return createUncompressedArchiveOutputStream(compressedOutputStream);
+    }
+
+    @Override
+    public void finishArchiveOutputStream(ArchiveOutputStream output) throws IOException {
+        output.finish();
+        finishCompressingOutputStream(compressedOutputStream);
+    }
+
+    @Override
+    public OutputStream createCompressingOutputStream(OutputStream output) throws IOException, ArchiveDiffException {
         if ("".equals(compressionType)) {
-            compressedOutputStream = output;
+            return output;
         } else if ("gz".equals(compressionType)) {
-            gzipOutputStream = new GZIPOutputStream(output);
-            compressedOutputStream = gzipOutputStream;
+            return getOptions().getGzipBlockSize() > 0 ? new ParallelGzipOutputStream(output, getOptions()) : new GZIPOutputStream(output);
         } else if ("xz".equals(compressionType)) {
-            compressedOutputStream = new XZCompressorOutputStream(output);
+            return getOptions().getXzBlockSize() > 0 ? new ParallelXzOutputStream(output, getOptions()) : new XZCompressorOutputStream(output);
         } else {
             throw new ArchiveDiffException("Unexpected tar compression type: " + compressionType);
         }
-        TarArchiveOutputStream outputStream = new TarArchiveOutputStream(compressedOutputStream);
-        outputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
-        return outputStream;
     }
 
     @Override
-    public void finishArchiveOutputStream(ArchiveOutputStream output) throws IOException {
-        output.finish();
-        if ("gz".equals(compressionType)) {
-            gzipOutputStream.finish();
+    public void finishCompressingOutputStream(OutputStream output) throws IOException {
+        if (output instanceof GZIPOutputStream) {
+            ((GZIPOutputStream) output).finish();
+        } else if (output instanceof ParallelGzipOutputStream) {
+            ((ParallelGzipOutputStream) output).finish();
+        } else if (output instanceof XZCompressorOutputStream) {
+            ((XZCompressorOutputStream) output).finish();
+        } else if (output instanceof ParallelXzOutputStream) {
+            ((ParallelXzOutputStream) output).finish();
         }
     }
 
     @Override
-    public ArchiveInputStream createArchiveInputStream(InputStream input) throws IOException, ArchiveDiffException, ArchiveException {
-        InputStream decompressedInputStream;
+    public ArchiveOutputStream createUncompressedArchiveOutputStream(OutputStream output) {
+        TarArchiveOutputStream outputStream = new TarArchiveOutputStream(output);
+        outputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_GNU);
+        // entries over 8 GB don't fit into octal size field, PAX headers are only written for such entries
+        outputStream.setBigNumberMode(TarArchiveOutputStream.BIGNUMBER_POSIX);
+        return outputStream;
+    }
+
+    @Override
+    public InputStream createDecompressingInputStream(InputStream input) throws IOException, ArchiveDiffException {
         if ("".equals(compressionType)) {
-            decompressedInputStream = input;
+            return input;
         } else if ("gz".equals(compressionType)) {
-            decompressedInputStream = new GZIPInputStream(input);
+            return new GZIPInputStream(input);
         } else if ("xz".equals(compressionType)) {
-            decompressedInputStream = new XZCompressorInputStream(input);
+            // blocks can be decoded in parallel only if their headers record sizes, otherwise xz is read sequentially
+            return getOptions().getParallelism() > 1 ? ParallelXzInputStream.open(input, getOptions()) : new XZCompressorInputStream(input);
         } else {
             throw new ArchiveDiffException("Unexpected tar compression type: " + compressionType);
         }
-        return new TarArchiveInputStream(decompressedInputStream);
     }
 
     @Override
-    public TarArchiveEntry createNewArchiveEntry(String path, int length) {
+    public ArchiveInputStream createUncompressedArchiveInputStream(InputStream input) {
+        return new TarArchiveInputStream(input);
+    }
+
+    @Override
+    public TarArchiveEntry createNewArchiveEntry(String path, long length) {
         TarArchiveEntry newEntry = new TarArchiveEntry(path);
         newEntry.setSize(length);
         return newEntry;
     }
 
     @Override
-    public TarArchiveEntry copyArchiveEntry(TarArchiveEntry orig, int length) throws IOException {
+    public TarArchiveEntry copyArchiveEntry(TarArchiveEntry orig, long length) throws IOException {
         byte[] header = new byte[TarConstants.DEFAULT_RCDSIZE];
-        orig.writeEntryHeader(header);
+        // size over 8 GB doesn't fit into plain header, and it is replaced below anyway
+        long origSize = orig.getSize();
+        orig.setSize(0);
+        try {
+            orig.writeEntryHeader(header);
+        } finally {
+            orig.setSize(origSize);
+        }
 
         // change entry format to POSIX
         // commons-io does not care about version when reading or writing archive entries,
@@ -177,7 +212,7 @@ public class TarArchiveDiff extends ArchiveDiff<TarArchiveEntry> {
     }
 
     @Override
-    public TarArchiveEntry getEntryForData(TarArchiveEntry entry, int dataSize, Supplier<Long> checksumSupplier) throws IOException {
+    public TarArchiveEntry getEntryForData(TarArchiveEntry entry, long dataSize, Supplier<Long> checksumSupplier) throws IOException {
         return copyArchiveEntry(entry, dataSize);
     }
 
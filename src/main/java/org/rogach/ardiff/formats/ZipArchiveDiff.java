@@ -1,13 +1,23 @@
 package org.rogach.ardiff.formats;
 
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveOutputStream;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.rogach.ardiff.ArchiveDiff;
+import org.rogach.ardiff.ArchiveEntryWithDataStream;
+import org.rogach.ardiff.DeltaSourceIndex;
+import org.rogach.ardiff.exceptions.ArchiveDiffException;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
-import java.util.Arrays;
-import java.util.Objects;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.util.*;
 import java.util.function.Supplier;
 
 public class ZipArchiveDiff extends ArchiveDiff<ZipArchiveEntry> {
@@ -31,14 +41,120 @@ public class ZipArchiveDiff extends ArchiveDiff<ZipArchiveEntry> {
     }
 
     @Override
-    public ZipArchiveEntry createNewArchiveEntry(String path, int length) {
+    public void computeDiffImpl(
+            SeekableByteChannel before,
+            SeekableByteChannel after,
+            boolean assumeOrdering,
+            OutputStream diff
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        if (assumeOrdering) {
+            // streaming mode already works in constant memory, and must follow physical entry order
+            super.computeDiffImpl(before, after, assumeOrdering, diff);
+        } else {
+            // central directory gives us sorted entry list without reading any entry data,
+            // so only entries that are actually compared need to be decompressed
+            try (
+                    ZipFile zipFileBefore = new ZipFile(before);
+                    ZipFile zipFileAfter = new ZipFile(after)
+            ) {
+                computeDiffImpl(
+                        iterateSortedEntries(zipFileBefore),
+                        iterateSortedEntries(zipFileAfter),
+                        sources -> indexSources(sources, zipFileBefore, zipFileAfter),
+                        false,
+                        diff
+                );
+            }
+        }
+    }
+
+    private void indexSources(DeltaSourceIndex<ZipArchiveEntry> sources, ZipFile zipFileBefore, ZipFile zipFileAfter) throws IOException {
+        List<ZipArchiveEntry> entries = Collections.list(zipFileBefore.getEntries());
+        entries.sort(Comparator.comparing(ZipArchiveEntry::getName));
+        for (ZipArchiveEntry entry : entries) {
+            boolean removed = !zipFileAfter.getEntries(entry.getName()).iterator().hasNext();
+            indexSource(sources, entry, entry.getSize(), removed, () -> timeEntryData(entry, zipFileBefore.getInputStream(entry)));
+        }
+    }
+
+    private Iterator<ArchiveEntryWithDataStream<ZipArchiveEntry>> iterateSortedEntries(ZipFile zipFile) {
+        List<ZipArchiveEntry> entries = Collections.list(zipFile.getEntries());
+        entries.sort(Comparator.comparing(ZipArchiveEntry::getName));
+        Iterator<ZipArchiveEntry> entryIterator = entries.iterator();
+
+        return new Iterator<ArchiveEntryWithDataStream<ZipArchiveEntry>>() {
+            @Override
+            public boolean hasNext() {
+                return entryIterator.hasNext();
+            }
+
+            @Override
+            public ArchiveEntryWithDataStream<ZipArchiveEntry> next() {
+                ZipArchiveEntry entry = entryIterator.next();
+                try {
+                    return new ArchiveEntryWithDataStream<>(entry, timeEntryData(entry, zipFile.getInputStream(entry)));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+    }
+
+    /** Central directory of "before" archive during apply from a file, gives access to compressed entry data. */
+    private ZipFile rawEntrySource = null;
+
+    @Override
+    public void applyDiffImpl(
+            File before,
+            InputStream diff,
+            OutputStream after,
+            boolean assumeOrdering
+    ) throws ArchiveException, ArchiveDiffException, IOException {
+        try (ZipFile zipFileBefore = new ZipFile(before)) {
+            rawEntrySource = zipFileBefore;
+            super.applyDiffImpl(before, diff, after, assumeOrdering);
+        } finally {
+            rawEntrySource = null;
+        }
+    }
+
+    @Override
+    public boolean copyRawEntry(ZipArchiveEntry entryBefore, ZipArchiveEntry entryAfter, ArchiveOutputStream archiveStreamAfter) throws IOException {
+        if (rawEntrySource == null || !(archiveStreamAfter instanceof ZipArchiveOutputStream)) {
+            return false;
+        }
+        Iterator<ZipArchiveEntry> rawEntries = rawEntrySource.getEntries(entryBefore.getName()).iterator();
+        if (!rawEntries.hasNext()) {
+            return false;
+        }
+        ZipArchiveEntry rawEntry = rawEntries.next();
+        // with duplicate names it is not known which of the entries is being copied,
+        // and changed compression method means that data has to be compressed anew
+        if (rawEntries.hasNext() || rawEntry.getMethod() != entryAfter.getMethod() ||
+                (entryBefore.getCrc() != -1 && entryBefore.getCrc() != rawEntry.getCrc())) {
+            return false;
+        }
+
+        // crc and size may be unknown in local headers, but central directory always has them
+        ZipArchiveEntry newEntry = new ZipArchiveEntry(entryAfter);
+        newEntry.setCrc(rawEntry.getCrc());
+        newEntry.setSize(rawEntry.getSize());
+        newEntry.setCompressedSize(rawEntry.getCompressedSize());
+        try (InputStream rawData = rawEntrySource.getRawInputStream(rawEntry)) {
+            ((ZipArchiveOutputStream) archiveStreamAfter).addRawArchiveEntry(newEntry, rawData);
+        }
+        return true;
+    }
+
+    @Override
+    public ZipArchiveEntry createNewArchiveEntry(String path, long length) {
         ZipArchiveEntry newEntry = new ZipArchiveEntry(path);
         newEntry.setSize(length);
         return newEntry;
     }
 
     @Override
-    public ZipArchiveEntry copyArchiveEntry(ZipArchiveEntry orig, int length) throws IOException {
+    public ZipArchiveEntry copyArchiveEntry(ZipArchiveEntry orig, long length) throws IOException {
         ZipArchiveEntry newEntry = new ZipArchiveEntry(orig);
         newEntry.setSize(length);
         return newEntry;
@@ -83,6 +199,15 @@ public class ZipArchiveDiff extends ArchiveDiff<ZipArchiveEntry> {
                 entryBefore.getMethod() == entryAfter.getMethod();
     }
 
+    @Override
+    public boolean dataKnownEqual(ZipArchiveEntry entryBefore, ZipArchiveEntry entryAfter) {
+        // crc and size are unknown (-1) in local headers of entries that use data descriptor,
+        // but are always available from central directory
+        return entryBefore.getCrc() != -1 && entryBefore.getSize() != -1 &&
+                entryBefore.getCrc() == entryAfter.getCrc() &&
+                entryBefore.getSize() == entryAfter.getSize();
+    }
+
     @Override
     public void writeAttributesDiff(ZipArchiveEntry entryBefore, ZipArchiveEntry entryAfter, DataOutputStream diffStream) throws IOException {
         diffAttributes(ATTR_EXTRA, entryBefore.getExtra(), entryAfter.getExtra(), diffStream);
@@ -106,7 +231,22 @@ public class ZipArchiveDiff extends ArchiveDiff<ZipArchiveEntry> {
     }
 
     @Override
-    public ZipArchiveEntry getEntryForData(ZipArchiveEntry entry, int dataSize, Supplier<Long> checksumSupplier) throws IOException {
+    public boolean isEntryHeaderComplete(ZipArchiveEntry entry) {
+        return entry.getSize() != -1 && entry.getCrc() != -1;
+    }
+
+    @Override
+    public long getEntryHeaderChecksum(ZipArchiveEntry entry) {
+        return entry.getCrc();
+    }
+
+    @Override
+    public ZipArchiveEntry copyEntryHeader(ZipArchiveEntry entry) throws IOException {
+        return new ZipArchiveEntry(entry);
+    }
+
+    @Override
+    public ZipArchiveEntry getEntryForData(ZipArchiveEntry entry, long dataSize, Supplier<Long> checksumSupplier) throws IOException {
         entry.setSize(dataSize);
         entry.setCrc(checksumSupplier.get());
         return entry;
@@ -3,16 +3,23 @@ package org.rogach.ardiff;
 import org.apache.commons.compress.archivers.ArchiveEntry;
 import org.apache.commons.compress.archivers.ArchiveInputStream;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.compress.utils.SeekableInMemoryByteChannel;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.junit.Assert;
 import org.junit.Test;
+import org.rogach.ardiff.delta.DeltaEngine;
 import org.rogach.ardiff.exceptions.ArchiveDiffCorruptedException;
+import org.tukaani.xz.XZInputStream;
 
 import java.io.*;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class DiffTests {
 
@@ -195,6 +202,1506 @@ public class DiffTests {
         }
     }
 
+    @Test
+    public void testParallelComputeIsDeterministic() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar", "tar.gz")) {
+            for (boolean assumeOrdering : Arrays.asList(false, true)) {
+                byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip." + archiveType));
+                byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip." + archiveType));
+
+                ByteArrayOutputStream sequentialDiffOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.computeDiff(
+                        new ByteArrayInputStream(before),
+                        new ByteArrayInputStream(after),
+                        sequentialDiffOutputStream,
+                        assumeOrdering
+                );
+
+                ByteArrayOutputStream parallelDiffOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.computeDiff(
+                        new ByteArrayInputStream(before),
+                        new ByteArrayInputStream(after),
+                        parallelDiffOutputStream,
+                        assumeOrdering,
+                        ArchiveDiffOptions.DEFAULT.withParallelism(4).withMemoryBudget(1024)
+                );
+
+                Assert.assertArrayEquals(
+                        String.format("parallel diff differs from sequential one for %s (assumeOrdering = %s)", archiveType, assumeOrdering),
+                        sequentialDiffOutputStream.toByteArray(), parallelDiffOutputStream.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testParallelApplyIsDeterministic() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar", "tar.gz")) {
+            byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip." + archiveType));
+            byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip." + archiveType));
+
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream
+            );
+
+            ByteArrayOutputStream sequentialResultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    sequentialResultOutputStream
+            );
+
+            // with small budget, larger patches are applied on the calling thread in between concurrent ones
+            for (long memoryBudget : Arrays.asList(Long.MAX_VALUE, 1024L)) {
+                ByteArrayOutputStream parallelResultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(
+                        new ByteArrayInputStream(before),
+                        new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                        parallelResultOutputStream,
+                        false,
+                        ArchiveDiffOptions.DEFAULT.withParallelism(4).withMemoryBudget(memoryBudget)
+                );
+
+                Assert.assertArrayEquals(
+                        String.format("parallel apply result differs from sequential one for %s (memoryBudget = %d)", archiveType, memoryBudget),
+                        sequentialResultOutputStream.toByteArray(), parallelResultOutputStream.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testPipelinedStreamingApplyIsDeterministic() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar", "tar.gz")) {
+            byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_tar." + archiveType));
+            byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_tar." + archiveType));
+
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream,
+                    true
+            );
+
+            ByteArrayOutputStream sequentialResultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    sequentialResultOutputStream,
+                    true
+            );
+
+            ByteArrayOutputStream pipelinedResultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    pipelinedResultOutputStream,
+                    true,
+                    ArchiveDiffOptions.DEFAULT.withParallelism(4)
+            );
+
+            Assert.assertTrue(
+                    "pipelined streaming apply invariant failed for " + archiveType,
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(pipelinedResultOutputStream.toByteArray())));
+            Assert.assertArrayEquals(
+                    "pipelined streaming apply result differs from sequential one for " + archiveType,
+                    sequentialResultOutputStream.toByteArray(), pipelinedResultOutputStream.toByteArray());
+        }
+    }
+
+    @Test
+    public void testParallelGzipOutput() throws Exception {
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 1024 * 1024) {
+            text.append("line ").append(random.nextInt(5000)).append('\n');
+        }
+        byte[] data = text.toString().getBytes("ASCII");
+
+        ByteArrayOutputStream sequentialOutputStream = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(sequentialOutputStream, ArchiveDiffOptions.DEFAULT.withGzipBlockSize(100000))) {
+            gzipOutputStream.write(data);
+        }
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        ByteArrayOutputStream parallelOutputStream = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzipOutputStream = new ParallelGzipOutputStream(
+                parallelOutputStream, ArchiveDiffOptions.DEFAULT.withGzipBlockSize(100000).withParallelism(4).withExecutor(executor))) {
+            for (int offset = 0; offset < data.length; offset += 777) {
+                gzipOutputStream.write(data, offset, Math.min(777, data.length - offset));
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        Assert.assertArrayEquals("parallel gzip output depends on parallelism", sequentialOutputStream.toByteArray(), parallelOutputStream.toByteArray());
+        Assert.assertArrayEquals("parallel gzip output can't be decompressed",
+                data, IOUtils.toByteArray(new java.util.zip.GZIPInputStream(new ByteArrayInputStream(parallelOutputStream.toByteArray()))));
+
+        // dictionary priming keeps compression close to single-stream gzip
+        ByteArrayOutputStream singleStreamOutputStream = new ByteArrayOutputStream();
+        try (OutputStream gzipOutputStream = new java.util.zip.GZIPOutputStream(singleStreamOutputStream)) {
+            gzipOutputStream.write(data);
+        }
+        Assert.assertTrue("parallel gzip output is too large",
+                parallelOutputStream.size() < singleStreamOutputStream.size() * 1.02);
+
+        byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip.tar.gz"));
+        byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip.tar.gz"));
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream);
+
+        List<byte[]> results = new ArrayList<>();
+        for (int parallelism : Arrays.asList(1, 4)) {
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    false,
+                    ArchiveDiffOptions.DEFAULT.withGzipBlockSize(1024).withParallelism(parallelism)
+            );
+            Assert.assertTrue(
+                    "diff-apply with parallel gzip output failed",
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            results.add(resultOutputStream.toByteArray());
+        }
+        Assert.assertArrayEquals("apply result with parallel gzip output depends on parallelism", results.get(0), results.get(1));
+    }
+
+    @Test
+    public void testParallelXzOutput() throws Exception {
+        Random random = new Random(0);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 512 * 1024) {
+            text.append("line ").append(random.nextInt(5000)).append('\n');
+        }
+        byte[] data = text.toString().getBytes("ASCII");
+
+        ByteArrayOutputStream sequentialOutputStream = new ByteArrayOutputStream();
+        try (ParallelXzOutputStream xzOutputStream = new ParallelXzOutputStream(sequentialOutputStream, ArchiveDiffOptions.DEFAULT.withXzBlockSize(100000))) {
+            xzOutputStream.write(data);
+        }
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            ArchiveDiffOptions parallelOptions = ArchiveDiffOptions.DEFAULT.withXzBlockSize(100000).withParallelism(4).withExecutor(executor);
+            ByteArrayOutputStream parallelOutputStream = new ByteArrayOutputStream();
+            try (ParallelXzOutputStream xzOutputStream = new ParallelXzOutputStream(parallelOutputStream, parallelOptions)) {
+                for (int offset = 0; offset < data.length; offset += 777) {
+                    xzOutputStream.write(data, offset, Math.min(777, data.length - offset));
+                }
+            }
+
+            Assert.assertArrayEquals("parallel xz output depends on parallelism", sequentialOutputStream.toByteArray(), parallelOutputStream.toByteArray());
+            Assert.assertArrayEquals("parallel xz output can't be decompressed by xz library",
+                    data, IOUtils.toByteArray(new XZInputStream(new ByteArrayInputStream(parallelOutputStream.toByteArray()))));
+
+            // concatenated streams are read as one, same as by xz
+            ByteArrayOutputStream concatenatedOutputStream = new ByteArrayOutputStream();
+            concatenatedOutputStream.write(parallelOutputStream.toByteArray());
+            concatenatedOutputStream.write(new byte[4]);
+            concatenatedOutputStream.write(parallelOutputStream.toByteArray());
+            InputStream parallelInputStream = ParallelXzInputStream.open(new ByteArrayInputStream(concatenatedOutputStream.toByteArray()), parallelOptions);
+            Assert.assertTrue(parallelInputStream instanceof ParallelXzInputStream);
+            byte[] decompressed = IOUtils.toByteArray(parallelInputStream);
+            Assert.assertArrayEquals("parallel xz input is broken", data, Arrays.copyOf(decompressed, data.length));
+            Assert.assertArrayEquals("parallel xz input is broken", data, Arrays.copyOfRange(decompressed, data.length, decompressed.length));
+        } finally {
+            executor.shutdown();
+        }
+
+        byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip.tar.xz"));
+        byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip.tar.xz"));
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream);
+
+        List<byte[]> results = new ArrayList<>();
+        for (int parallelism : Arrays.asList(1, 4)) {
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    false,
+                    ArchiveDiffOptions.DEFAULT.withXzBlockSize(1024).withParallelism(parallelism)
+            );
+            Assert.assertTrue(
+                    "diff-apply with parallel xz output failed",
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            results.add(resultOutputStream.toByteArray());
+        }
+        Assert.assertArrayEquals("apply result with parallel xz output depends on parallelism", results.get(0), results.get(1));
+
+        // archive with recorded block sizes is read in parallel as a base of the next diff
+        ByteArrayOutputStream nextDiffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(results.get(0)), new ByteArrayInputStream(before), nextDiffOutputStream,
+                false, ArchiveDiffOptions.DEFAULT.withParallelism(4));
+        ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(results.get(0)), new ByteArrayInputStream(nextDiffOutputStream.toByteArray()), resultOutputStream,
+                false, ArchiveDiffOptions.DEFAULT.withParallelism(4));
+        Assert.assertTrue("diff-apply with parallel xz input failed",
+                ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(before), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+    }
+
+    @Test
+    public void testRandomAccessCompute() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar")) {
+            byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip." + archiveType));
+            byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b1_c2_zip." + archiveType));
+
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new SeekableInMemoryByteChannel(before),
+                    new SeekableInMemoryByteChannel(after),
+                    diffOutputStream,
+                    false,
+                    ArchiveDiffOptions.DEFAULT
+            );
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream
+            );
+
+            Assert.assertTrue(
+                    "random-access diff-apply archive equality invariant failed for " + archiveType,
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testApplyWithSpilledEntries() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar", "tar.gz")) {
+            byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_tar." + archiveType));
+            byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c1_tar." + archiveType));
+
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream
+            );
+
+            // budget is smaller than any entry, so every entry gets spilled to disk
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    false,
+                    ArchiveDiffOptions.DEFAULT.withMemoryBudget(1)
+            );
+
+            Assert.assertTrue(
+                    "diff-apply with spilled entries failed for " + archiveType,
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testRawCopyOfUnchangedZipEntries() throws Exception {
+        Random random = new Random(42);
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        for (String name : Arrays.asList("a.txt", "b.txt", "c.txt")) {
+            StringBuilder text = new StringBuilder();
+            while (text.length() < 100000) {
+                text.append(name).append(' ').append(random.nextInt(1000)).append('\n');
+            }
+            entriesBefore.put(name, text.toString().getBytes("ASCII"));
+            entriesAfter.put(name, text.toString().getBytes("ASCII"));
+        }
+        entriesAfter.put("b.txt", "changed".getBytes("ASCII"));
+        // entries are compressed with other level than default, so recompressed data would differ from original
+        byte[] before = createZipArchive(entriesBefore, java.util.zip.Deflater.BEST_COMPRESSION);
+        byte[] after = createZipArchive(entriesAfter, java.util.zip.Deflater.BEST_COMPRESSION);
+
+        File beforeFile = File.createTempFile("ardiff-test", ".zip");
+        try {
+            FileUtils.writeByteArrayToFile(beforeFile, before);
+            for (boolean sorted : Arrays.asList(false, true)) {
+                ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream, sorted);
+
+                ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(beforeFile, new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream, sorted, ArchiveDiffOptions.DEFAULT);
+                byte[] result = resultOutputStream.toByteArray();
+
+                Assert.assertTrue(
+                        "diff-apply with raw copy of unchanged entries failed",
+                        ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(result)));
+                try (
+                        ZipFile zipFileBefore = new ZipFile(new SeekableInMemoryByteChannel(before));
+                        ZipFile zipFileResult = new ZipFile(new SeekableInMemoryByteChannel(result))
+                ) {
+                    for (String name : Arrays.asList("a.txt", "c.txt")) {
+                        Assert.assertArrayEquals(
+                                "unchanged entry must be copied without recompression: " + name,
+                                IOUtils.toByteArray(zipFileBefore.getRawInputStream(zipFileBefore.getEntry(name))),
+                                IOUtils.toByteArray(zipFileResult.getRawInputStream(zipFileResult.getEntry(name))));
+                    }
+                }
+            }
+        } finally {
+            beforeFile.delete();
+        }
+    }
+
+    @Test
+    public void testDeeplyNestedArchives() throws Exception {
+        Random random = new Random(42);
+        List<byte[]> versions = new ArrayList<>();
+        for (int version = 0; version < 2; version++) {
+            byte[] data = new byte[10000];
+            random.nextBytes(data);
+            // archives nested three levels deep, innermost entry changes between versions
+            byte[] archive = createZipArchive(Collections.singletonMap("data.bin", data), java.util.zip.Deflater.BEST_COMPRESSION);
+            for (String name : Arrays.asList("inner.jar", "middle.jar", "outer.jar")) {
+                Map<String, byte[]> entries = new LinkedHashMap<>();
+                entries.put("a.txt", "unchanged".getBytes("ASCII"));
+                entries.put(name, archive);
+                archive = createZipArchive(entries, java.util.zip.Deflater.BEST_COMPRESSION);
+            }
+            versions.add(archive);
+        }
+
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(versions.get(0)), new ByteArrayInputStream(versions.get(1)), diffOutputStream);
+
+        ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(versions.get(0)), new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream);
+        Assert.assertTrue(
+                "diff-apply of deeply nested archives failed",
+                ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(versions.get(1)), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+    }
+
+    private byte[] createZipArchive(Map<String, byte[]> entries, int level) throws Exception {
+        ByteArrayOutputStream archiveOutputStream = new ByteArrayOutputStream();
+        ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(archiveOutputStream);
+        zipOutputStream.setLevel(level);
+        for (Map.Entry<String, byte[]> entryWithData : entries.entrySet()) {
+            ZipArchiveEntry entry = new ZipArchiveEntry(entryWithData.getKey());
+            // otherwise entries get current time, which may differ between archives
+            entry.setTime(1500000000000L);
+            zipOutputStream.putArchiveEntry(entry);
+            zipOutputStream.write(entryWithData.getValue());
+            zipOutputStream.closeArchiveEntry();
+        }
+        zipOutputStream.close();
+        return archiveOutputStream.toByteArray();
+    }
+
+    @Test
+    public void testEntriesWithSameTimestampAreCompared() throws Exception {
+        // tar stores no checksum, so same size and mtime say nothing about entry data
+        byte[] before = createTarArchive("a.txt", "abc".getBytes("ASCII"), 1500000000000L);
+        byte[] after = createTarArchive("a.txt", "xyz".getBytes("ASCII"), 1500000000000L);
+
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(
+                new ByteArrayInputStream(before),
+                new ByteArrayInputStream(after),
+                diffOutputStream,
+                false
+        );
+        ByteArrayOutputStream patched = new ByteArrayOutputStream();
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diffOutputStream.toByteArray()), patched, false);
+        Assert.assertTrue("changed entry must not be skipped", ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(patched.toByteArray())));
+    }
+
+    @Test
+    public void testLargeEntriesAreStreamed() throws Exception {
+        Random random = new Random(42);
+        byte[] dataBefore = new byte[300000];
+        random.nextBytes(dataBefore);
+        byte[] dataAfter = Arrays.copyOf(dataBefore, dataBefore.length + 1000);
+        for (int i = 0; i < 10; i++) {
+            dataAfter[random.nextInt(dataAfter.length)] = (byte) random.nextInt();
+        }
+        byte[] dataAdded = new byte[100000];
+        random.nextBytes(dataAdded);
+        byte[] dataReplacedBefore = new byte[100000];
+        random.nextBytes(dataReplacedBefore);
+        byte[] dataReplaced = new byte[100000];
+        random.nextBytes(dataReplaced);
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("disk.img", dataBefore);
+        entriesBefore.put("random.bin", dataReplacedBefore);
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("disk.img", dataAfter);
+        entriesAfter.put("new.bin", dataAdded);
+        entriesAfter.put("random.bin", dataReplaced);
+        byte[] before = sortArchive(createTarArchive(entriesBefore, 1500000000000L));
+        byte[] after = sortArchive(createTarArchive(entriesAfter, 1500000000000L));
+
+        // all entries are over the threshold and budget, so none of them is materialized
+        ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT.withLargeEntryThreshold(50000).withMemoryBudget(1);
+
+        for (boolean sorted : Arrays.asList(false, true)) {
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream, sorted, options);
+            byte[] diff = diffOutputStream.toByteArray();
+
+            ByteArrayOutputStream inMemoryDiffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), inMemoryDiffOutputStream, sorted);
+            Assert.assertArrayEquals("streaming delta must match in-memory delta", inMemoryDiffOutputStream.toByteArray(), diff);
+            Assert.assertTrue("changed large entry must be patched", diff.length < dataAdded.length + dataReplaced.length + 10000);
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff), resultOutputStream, sorted, options);
+            if (sorted) {
+                Assert.assertArrayEquals("sorted apply must be binary equal", after, resultOutputStream.toByteArray());
+            } else {
+                Assert.assertTrue(
+                        "diff-apply with large entries failed",
+                        ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+    }
+
+    private byte[] createTarArchive(String name, byte[] data, long modTime) throws Exception {
+        return createTarArchive(Collections.singletonMap(name, data), modTime);
+    }
+
+    private byte[] createTarArchive(Map<String, byte[]> entries, long modTime) throws Exception {
+        ByteArrayOutputStream archiveOutputStream = new ByteArrayOutputStream();
+        TarArchiveOutputStream tarOutputStream = new TarArchiveOutputStream(archiveOutputStream);
+        for (Map.Entry<String, byte[]> entryWithData : entries.entrySet()) {
+            TarArchiveEntry entry = new TarArchiveEntry(entryWithData.getKey());
+            entry.setSize(entryWithData.getValue().length);
+            entry.setModTime(modTime);
+            tarOutputStream.putArchiveEntry(entry);
+            tarOutputStream.write(entryWithData.getValue());
+            tarOutputStream.closeArchiveEntry();
+        }
+        tarOutputStream.close();
+        return archiveOutputStream.toByteArray();
+    }
+
+    @Test
+    public void testMovedEntriesAreCopied() throws Exception {
+        Random random = new Random(42);
+        byte[] libraryData = new byte[4096];
+        random.nextBytes(libraryData);
+        byte[] binData = new byte[4096];
+        random.nextBytes(binData);
+        byte[] changedBinData = binData.clone();
+        changedBinData[100] ^= 1;
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("a/x.bin", binData);
+        entriesBefore.put("lib/liba.so.1", libraryData);
+        byte[] before = createTarArchive(entriesBefore, 1500000000000L);
+
+        // "b/x.bin" is copied from entry that is modified itself, "lib2/liba.so.1" is moved
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("a/x.bin", changedBinData);
+        entriesAfter.put("b/x.bin", binData);
+        entriesAfter.put("lib2/liba.so.1", libraryData);
+        byte[] after = createTarArchive(entriesAfter, 1500000000000L);
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            Assert.assertTrue("moved entries must not be shipped in full", diffOutputStream.size() < libraryData.length);
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            if (assumeOrdering) {
+                Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+            } else {
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(
+                new ByteArrayInputStream(before),
+                new ByteArrayInputStream(after),
+                diffOutputStream,
+                true,
+                ArchiveDiffOptions.DEFAULT.withDetectCopies(false).withDetectSimilarEntries(false)
+        );
+        Assert.assertTrue("without copy detection data must be shipped in full", diffOutputStream.size() > 2 * libraryData.length);
+    }
+
+    @Test
+    public void testEntriesAreCopiedFromAnyBeforeEntry() throws Exception {
+        Random random = new Random(42);
+        byte[] libraryData = new byte[4096];
+        random.nextBytes(libraryData);
+        byte[] sharedData = new byte[4096];
+        random.nextBytes(sharedData);
+
+        Map<String, byte[]> entriesBefore = new TreeMap<>();
+        entriesBefore.put("lib/liba.so", libraryData);
+        entriesBefore.put("share/data.bin", sharedData);
+
+        // "lib/liba.so" is moved to a name that sorts earlier, "share/data.bin" is kept unchanged
+        // and copied to names that sort both before and after it
+        Map<String, byte[]> entriesAfter = new TreeMap<>();
+        entriesAfter.put("bin/liba.so", libraryData);
+        entriesAfter.put("doc/data.bin", sharedData);
+        entriesAfter.put("share/data.bin", sharedData);
+        entriesAfter.put("tmp/data.bin", sharedData);
+
+        // in unsorted mode all "before" entries can be read before the merge, so every copy is found
+        for (String archiveType : Arrays.asList("zip", "tar")) {
+            byte[] before = archiveType.equals("zip") ? createZipArchive(entriesBefore, 6) : createTarArchive(entriesBefore, 1500000000000L);
+            byte[] after = archiveType.equals("zip") ? createZipArchive(entriesAfter, 6) : createTarArchive(entriesAfter, 1500000000000L);
+
+            for (boolean randomAccess : Arrays.asList(false, true)) {
+                ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+                if (randomAccess) {
+                    ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(before), new SeekableInMemoryByteChannel(after), diffOutputStream, false, ArchiveDiffOptions.DEFAULT);
+                } else {
+                    ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream, false, ArchiveDiffOptions.DEFAULT);
+                }
+                Assert.assertTrue(
+                        String.format("copied entries must not be shipped in full (%s, random access=%s)", archiveType, randomAccess),
+                        diffOutputStream.size() < libraryData.length);
+
+                ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream);
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+
+        // sorted archives are streamed, so only entries that sort earlier can be copied -
+        // unchanged entries among them by length and checksum from local headers, without reading their data
+        byte[] before = createSeekableZipArchive(entriesBefore);
+        byte[] after = createSeekableZipArchive(entriesAfter);
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream, true, ArchiveDiffOptions.DEFAULT);
+        Assert.assertTrue("unchanged entry must be copied in sorted mode", diffOutputStream.size() < libraryData.length + 2 * sharedData.length);
+
+        ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream, true, ArchiveDiffOptions.DEFAULT);
+        Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+    }
+
+    /** Zip archive written to a seekable channel has length and checksum of entries in their local headers. */
+    private byte[] createSeekableZipArchive(Map<String, byte[]> entries) throws Exception {
+        SeekableInMemoryByteChannel channel = new SeekableInMemoryByteChannel();
+        ZipArchiveOutputStream zipOutputStream = new ZipArchiveOutputStream(channel);
+        for (Map.Entry<String, byte[]> entryWithData : entries.entrySet()) {
+            ZipArchiveEntry entry = new ZipArchiveEntry(entryWithData.getKey());
+            entry.setTime(1500000000000L);
+            zipOutputStream.putArchiveEntry(entry);
+            zipOutputStream.write(entryWithData.getValue());
+            zipOutputStream.closeArchiveEntry();
+        }
+        zipOutputStream.close();
+        return Arrays.copyOf(channel.array(), (int) channel.size());
+    }
+
+    @Test
+    public void testRenamedEntriesArePatched() throws Exception {
+        Random random = new Random(42);
+        byte[] libraryData = new byte[16384];
+        random.nextBytes(libraryData);
+        byte[] changedLibraryData = libraryData.clone();
+        changedLibraryData[100] ^= 1;
+        changedLibraryData[10000] ^= 1;
+        byte[] blobData = new byte[16384];
+        random.nextBytes(blobData);
+        byte[] changedBlobData = Arrays.copyOf(blobData, blobData.length + 100);
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("app-1.4.zip", IOUtils.toByteArray(getClass().getResourceAsStream("/zip-simple/a1_b1_c1.zip")));
+        entriesBefore.put("data/blob.bin", blobData);
+        entriesBefore.put("lib/libfoo-2.3.1.so", libraryData);
+        byte[] unsortedBefore = createTarArchive(entriesBefore, 1500000000000L);
+
+        // "libfoo" is matched by name without version, "blob" only by content
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("app-1.5.zip", IOUtils.toByteArray(getClass().getResourceAsStream("/zip-simple/a1_b1_c2.zip")));
+        entriesAfter.put("lib/libfoo-2.3.2.so", changedLibraryData);
+        entriesAfter.put("other/renamed.dat", changedBlobData);
+        byte[] unsortedAfter = createTarArchive(entriesAfter, 1500000000000L);
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            // sorting also normalizes nested archives, as required for binary equality in sorted mode
+            byte[] before = assumeOrdering ? sortArchive(unsortedBefore) : unsortedBefore;
+            byte[] after = assumeOrdering ? sortArchive(unsortedAfter) : unsortedAfter;
+
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            Assert.assertTrue("renamed entries must be delta-encoded", diffOutputStream.size() < libraryData.length);
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            if (assumeOrdering) {
+                Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+            } else {
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+
+        // old versions are kept unchanged in zip archives, and one of them sorts after the new version -
+        // in unsorted mode both are still found as delta bases, without decompressing other unchanged entries
+        byte[] otherLibraryData = new byte[16384];
+        random.nextBytes(otherLibraryData);
+        byte[] changedOtherLibraryData = otherLibraryData.clone();
+        changedOtherLibraryData[5000] ^= 1;
+
+        Map<String, byte[]> zipEntriesBefore = new TreeMap<>();
+        zipEntriesBefore.put("lib/libfoo-2.3.1.so", libraryData);
+        zipEntriesBefore.put("z/libbar-1.0.so", otherLibraryData);
+        byte[] zipBefore = createZipArchive(zipEntriesBefore, 6);
+
+        Map<String, byte[]> zipEntriesAfter = new TreeMap<>(zipEntriesBefore);
+        zipEntriesAfter.put("a/libbar-1.1.so", changedOtherLibraryData);
+        zipEntriesAfter.put("lib/libfoo-2.3.2.so", changedLibraryData);
+        byte[] zipAfter = createZipArchive(zipEntriesAfter, 6);
+
+        for (boolean randomAccess : Arrays.asList(false, true)) {
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            if (randomAccess) {
+                ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(zipBefore), new SeekableInMemoryByteChannel(zipAfter), diffOutputStream, false, ArchiveDiffOptions.DEFAULT);
+            } else {
+                ArchiveDiff.computeDiff(new ByteArrayInputStream(zipBefore), new ByteArrayInputStream(zipAfter), diffOutputStream, false, ArchiveDiffOptions.DEFAULT);
+            }
+            Assert.assertTrue("new versions must be delta-encoded against unchanged old ones (random access=" + randomAccess + ")",
+                    diffOutputStream.size() < libraryData.length);
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(new ByteArrayInputStream(zipBefore), new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream);
+            Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(zipAfter), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testVcdiffDeltaEngine() throws Exception {
+        Random random = new Random(42);
+        byte[] libraryData = new byte[65536];
+        for (int i = 0; i < libraryData.length; i++) {
+            libraryData[i] = (byte) "abcdefgh\n".charAt(random.nextInt(9));
+        }
+        byte[] changedLibraryData = libraryData.clone();
+        for (int i = 0; i < 200; i++) {
+            changedLibraryData[random.nextInt(changedLibraryData.length)] = 'x';
+        }
+        byte[] textData = Arrays.copyOf(libraryData, 8192);
+        byte[] changedTextData = Arrays.copyOf(changedLibraryData, 8192);
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("doc/readme.txt", textData);
+        entriesBefore.put("lib/liba.so", libraryData);
+        byte[] before = createTarArchive(entriesBefore, 1500000000000L);
+
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("doc/readme.txt", changedTextData);
+        entriesAfter.put("lib/liba.so", changedLibraryData);
+        byte[] after = createTarArchive(entriesAfter, 1500000000000L);
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream gdiffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    gdiffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+
+            // only the library is encoded with VCDIFF, text file is still patched with GDiff
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT.withDeltaEngine(".so", DeltaEngine.VCDIFF)
+            );
+            Assert.assertTrue("VCDIFF patches must be smaller than GDiff ones", diffOutputStream.size() < gdiffOutputStream.size());
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(diffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            if (assumeOrdering) {
+                Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+            } else {
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+    }
+
+    @Test
+    public void testPatchPrediction() throws Exception {
+        Random random = new Random(42);
+        byte[] mediaData = new byte[65536];
+        random.nextBytes(mediaData);
+        byte[] reencodedMediaData = new byte[65536];
+        random.nextBytes(reencodedMediaData);
+        byte[] blobData = new byte[65536];
+        random.nextBytes(blobData);
+        byte[] changedBlobData = blobData.clone();
+        for (int i = 0; i < 20; i++) {
+            changedBlobData[random.nextInt(changedBlobData.length)] ^= 1;
+        }
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("media/video.mp4", mediaData);
+        entriesBefore.put("data/blob.bin", blobData);
+        byte[] before = createTarArchive(entriesBefore, 1500000000000L);
+
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("media/video.mp4", reencodedMediaData);
+        entriesAfter.put("data/blob.bin", changedBlobData);
+        byte[] after = createTarArchive(entriesAfter, 1500000000000L);
+
+        Assert.assertEquals(PatchPredictor.Prediction.REPLACE, PatchPredictor.predict(mediaData, reencodedMediaData));
+        Assert.assertEquals(PatchPredictor.Prediction.PATCH, PatchPredictor.predict(blobData, changedBlobData));
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream expectedDiffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    expectedDiffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT.withPatchPrediction(false)
+            );
+
+            // every prediction is verified, so that accuracy is known for all of them
+            PatchPredictionStats stats = new PatchPredictionStats(1);
+            ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    diffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT.withPatchPredictionStats(stats)
+            );
+            Assert.assertEquals(1, stats.getPredictedReplaceCount());
+            Assert.assertEquals(1, stats.getPredictedPatchCount());
+            Assert.assertEquals(1.0, stats.getAccuracy(), 0.0);
+
+            // without verification, replaced entry is not delta-encoded, but the diff stays the same
+            ByteArrayOutputStream predictedDiffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(after),
+                    predictedDiffOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            Assert.assertArrayEquals(expectedDiffOutputStream.toByteArray(), predictedDiffOutputStream.toByteArray());
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(
+                    new ByteArrayInputStream(before),
+                    new ByteArrayInputStream(predictedDiffOutputStream.toByteArray()),
+                    resultOutputStream,
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT
+            );
+            if (assumeOrdering) {
+                Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+            } else {
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+            }
+        }
+    }
+
+    @Test
+    public void testPatchPredictionVerificationIsDeterministic() throws Exception {
+        Random random = new Random(42);
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        for (int i = 0; i < 64; i++) {
+            byte[] mediaData = new byte[16384];
+            random.nextBytes(mediaData);
+            entriesBefore.put("media/video" + i + ".mp4", mediaData);
+            byte[] reencodedMediaData = new byte[16384];
+            random.nextBytes(reencodedMediaData);
+            entriesAfter.put("media/video" + i + ".mp4", reencodedMediaData);
+        }
+        byte[] before = createTarArchive(entriesBefore, 1500000000000L);
+        byte[] after = createTarArchive(entriesAfter, 1500000000000L);
+        // more predictions are made before the same entries, and worker threads make predictions in any order
+        Map<String, byte[]> extraEntriesBefore = new LinkedHashMap<>(entriesBefore);
+        Map<String, byte[]> extraEntriesAfter = new LinkedHashMap<>(entriesAfter);
+        for (int i = 0; i < 3; i++) {
+            byte[] mediaData = new byte[16384];
+            random.nextBytes(mediaData);
+            extraEntriesBefore.put("audio/track" + i + ".mp3", mediaData);
+            byte[] reencodedMediaData = new byte[16384];
+            random.nextBytes(reencodedMediaData);
+            extraEntriesAfter.put("audio/track" + i + ".mp3", reencodedMediaData);
+        }
+        byte[] extraBefore = createTarArchive(extraEntriesBefore, 1500000000000L);
+        byte[] extraAfter = createTarArchive(extraEntriesAfter, 1500000000000L);
+
+        List<Set<String>> verifiedPaths = new ArrayList<>();
+        for (boolean extraEntries : Arrays.asList(false, true)) {
+            for (int parallelism : new int[] { 1, 4 }) {
+                Set<String> paths = Collections.synchronizedSet(new TreeSet<>());
+                ArchiveDiffListener listener = new ArchiveDiffListener() {
+                    @Override
+                    public void deltaComputed(String path, long sourceLength, long targetLength, long deltaLength, int depth) {
+                        if (path.startsWith("media/")) {
+                            paths.add(path);
+                        }
+                    }
+                };
+                ArchiveDiff.computeDiff(
+                        new ByteArrayInputStream(extraEntries ? extraBefore : before),
+                        new ByteArrayInputStream(extraEntries ? extraAfter : after),
+                        new ByteArrayOutputStream(),
+                        false,
+                        ArchiveDiffOptions.DEFAULT.withParallelism(parallelism).withPatchPredictionStats(new PatchPredictionStats(4)).withListener(listener)
+                );
+                verifiedPaths.add(paths);
+            }
+        }
+        Assert.assertTrue("some predictions must be verified", !verifiedPaths.get(0).isEmpty());
+        Assert.assertTrue("most predictions must not be verified", verifiedPaths.get(0).size() < 32);
+        for (Set<String> paths : verifiedPaths) {
+            Assert.assertEquals("verified entries must be picked by path", verifiedPaths.get(0), paths);
+        }
+    }
+
+    @Test
+    public void testCompressedDiff() throws Exception {
+        Random random = new Random(42);
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] data = new byte[16384];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) "abcdefgh\n".charAt(random.nextInt(9));
+            }
+            entriesBefore.put("file" + i + ".txt", data);
+            if (i % 2 == 0) {
+                entriesAfter.put("file" + i + ".txt", data);
+            }
+            if (i % 3 == 0) {
+                entriesAfter.put("added" + i + ".txt", Arrays.copyOf(data, 8192));
+            }
+        }
+        byte[] before = sortArchive(createTarArchive(entriesBefore, 1500000000000L));
+        byte[] after = sortArchive(createTarArchive(entriesAfter, 1500000000000L));
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream plainDiffOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), plainDiffOutputStream, assumeOrdering);
+
+            for (DiffCompression compression : Arrays.asList(DiffCompression.DEFLATE, DiffCompression.XZ)) {
+                // small blocks, so that the diff is split into many of them
+                ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT.withCompression(compression).withCompressionBlockSize(16384);
+                byte[] diff = null;
+                for (int parallelism : Arrays.asList(1, 4)) {
+                    ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+                    ArchiveDiff.computeDiff(
+                            new ByteArrayInputStream(before),
+                            new ByteArrayInputStream(after),
+                            diffOutputStream,
+                            assumeOrdering,
+                            options.withParallelism(parallelism)
+                    );
+                    if (diff != null) {
+                        Assert.assertArrayEquals("compressed diff must not depend on parallelism", diff, diffOutputStream.toByteArray());
+                    }
+                    diff = diffOutputStream.toByteArray();
+                    Assert.assertTrue(compression + " diff must be smaller than plain diff", diff.length < plainDiffOutputStream.size());
+
+                    ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                    ArchiveDiff.applyDiff(
+                            new ByteArrayInputStream(before),
+                            new ByteArrayInputStream(diff),
+                            resultOutputStream,
+                            assumeOrdering,
+                            ArchiveDiffOptions.DEFAULT.withParallelism(parallelism)
+                    );
+                    if (assumeOrdering) {
+                        Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+                    } else {
+                        Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDiffIndex() throws Exception {
+        Random random = new Random(42);
+        byte[] libraryData = new byte[4096];
+        random.nextBytes(libraryData);
+        byte[] binData = new byte[4096];
+        random.nextBytes(binData);
+        byte[] changedBinData = binData.clone();
+        changedBinData[100] ^= 1;
+        byte[] readmeData = "readme".getBytes("UTF-8");
+
+        Map<String, byte[]> entriesBefore = new LinkedHashMap<>();
+        entriesBefore.put("a/x.bin", binData);
+        entriesBefore.put("doc/readme.txt", readmeData);
+        entriesBefore.put("lib/liba.so.1", libraryData);
+        byte[] before = createTarArchive(entriesBefore, 1500000000000L);
+
+        Map<String, byte[]> entriesAfter = new LinkedHashMap<>();
+        entriesAfter.put("a/x.bin", changedBinData);
+        entriesAfter.put("b/x.bin", binData);
+        entriesAfter.put("doc/readme.txt", readmeData);
+        entriesAfter.put("lib2/liba.so.1", libraryData);
+        byte[] after = createTarArchive(entriesAfter, 1500000000000L);
+
+        // copy source is modified itself, so partial apply has to read its retained data
+        Set<String> paths = new HashSet<>(Arrays.asList("b/x.bin", "doc/readme.txt", "lib/liba.so.1"));
+        Map<String, byte[]> expectedEntries = new LinkedHashMap<>();
+        expectedEntries.put("b/x.bin", binData);
+        expectedEntries.put("doc/readme.txt", readmeData);
+        byte[] expected = createTarArchive(expectedEntries, 1500000000000L);
+
+        for (DiffCompression compression : Arrays.asList(DiffCompression.NONE, DiffCompression.DEFLATE)) {
+            for (boolean assumeOrdering : Arrays.asList(false, true)) {
+                ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.computeDiff(
+                        new ByteArrayInputStream(before),
+                        new ByteArrayInputStream(after),
+                        diffOutputStream,
+                        assumeOrdering,
+                        ArchiveDiffOptions.DEFAULT.withIndex(true).withCompression(compression)
+                );
+                byte[] diff = diffOutputStream.toByteArray();
+
+                DiffIndex index = DiffIndex.read(new SeekableInMemoryByteChannel(diff));
+                Assert.assertNotNull(index);
+                Map<String, String> commands = new HashMap<>();
+                for (DiffIndex.Entry entry : index.getEntries()) {
+                    commands.put(entry.getCommandName() + " " + entry.getPath(), entry.getSourcePath());
+                }
+                Map<String, String> expectedCommands = new HashMap<>();
+                expectedCommands.put("retain a/x.bin", null);
+                expectedCommands.put("retain lib/liba.so.1", null);
+                expectedCommands.put("patch a/x.bin", null);
+                expectedCommands.put("copy b/x.bin", "a/x.bin");
+                expectedCommands.put("copy lib2/liba.so.1", "lib/liba.so.1");
+                expectedCommands.put("remove lib/liba.so.1", null);
+                Assert.assertEquals(expectedCommands, commands);
+
+                // readers stop at the end of commands, so the index doesn't get in the way of a full apply
+                ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff), resultOutputStream, assumeOrdering);
+                if (assumeOrdering) {
+                    Assert.assertArrayEquals(after, resultOutputStream.toByteArray());
+                } else {
+                    Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+                }
+
+                ByteArrayOutputStream partialResultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(
+                        new ByteArrayInputStream(before),
+                        new SeekableInMemoryByteChannel(diff),
+                        partialResultOutputStream,
+                        paths,
+                        ArchiveDiffOptions.DEFAULT
+                );
+                Assert.assertTrue(ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(expected), new ByteArrayInputStream(partialResultOutputStream.toByteArray())));
+
+                if (compression == DiffCompression.NONE) {
+                    // commands of other entries are not even read
+                    for (DiffIndex.Entry entry : index.getEntries()) {
+                        if (entry.getCommandName().equals("patch")) {
+                            diff[ArchiveDiff.HEADER.length() + (int) entry.getOffset() + (int) entry.getLength() / 2] ^= 1;
+                        }
+                    }
+                    ArchiveDiff.applyDiff(
+                            new ByteArrayInputStream(before),
+                            new SeekableInMemoryByteChannel(diff),
+                            new ByteArrayOutputStream(),
+                            paths,
+                            ArchiveDiffOptions.DEFAULT
+                    );
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testChunkedNestedArchiveDiff() throws Exception {
+        Random random = new Random(42);
+        byte[] data = new byte[4096];
+        random.nextBytes(data);
+        byte[] changedData = data.clone();
+        changedData[100] ^= 1;
+        // added entry makes nested diff span several chunks
+        byte[] addedData = new byte[3 * ChunkedOutputStream.DEFAULT_CHUNK_SIZE + 100];
+        random.nextBytes(addedData);
+
+        Map<String, byte[]> nestedEntriesBefore = new LinkedHashMap<>();
+        nestedEntriesBefore.put("a.bin", data);
+        Map<String, byte[]> nestedEntriesAfter = new LinkedHashMap<>();
+        nestedEntriesAfter.put("a.bin", changedData);
+        nestedEntriesAfter.put("b.bin", addedData);
+
+        byte[] before = createTarArchive(Collections.singletonMap("inner.tar", createTarArchive(nestedEntriesBefore, 1500000000000L)), 1500000000000L);
+        byte[] after = createTarArchive(Collections.singletonMap("inner.tar", createTarArchive(nestedEntriesAfter, 1500000000000L)), 1500000000000L);
+
+        ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(
+                new ByteArrayInputStream(before),
+                new ByteArrayInputStream(after),
+                diffOutputStream,
+                true,
+                ArchiveDiffOptions.DEFAULT.withIndex(true)
+        );
+        byte[] diff = diffOutputStream.toByteArray();
+
+        DiffIndex index = DiffIndex.read(new SeekableInMemoryByteChannel(diff));
+        Assert.assertNotNull(index);
+        Assert.assertEquals(1, index.getEntries().size());
+        Assert.assertEquals("archive patch", index.getEntries().get(0).getCommandName());
+        Assert.assertTrue(
+                "nested diff must be written in chunks",
+                (index.getEntries().get(0).getCommand() & ArchiveDiff.FLAG_CHUNKED) != 0);
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff), resultOutputStream, assumeOrdering);
+            Assert.assertTrue(
+                    "diff-apply with chunked nested diff failed",
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testComposeDiffs() throws Exception {
+        Random random = new Random(42);
+        byte[] patchedData = new byte[16384];
+        random.nextBytes(patchedData);
+        byte[] patchedDataB = patchedData.clone();
+        patchedDataB[1000] ^= 1;
+        byte[] patchedDataC = patchedDataB.clone();
+        patchedDataC[9000] ^= 1;
+        byte[] sourceData = new byte[8192];
+        random.nextBytes(sourceData);
+        byte[] sourceDataB = sourceData.clone();
+        sourceDataB[10] ^= 1;
+        byte[] nestedData = new byte[4096];
+        random.nextBytes(nestedData);
+
+        // A to B: patch, remove, add, change nested archive; B to C: patch again, re-add removed entry,
+        // change added entry, change nested archive again, add a copy of an entry patched in B
+        Map<String, byte[]> entriesA = new TreeMap<>();
+        entriesA.put("a-source.bin", sourceData);
+        entriesA.put("inner.tar", createTarArchive("x.bin", nestedData, 1500000000000L));
+        entriesA.put("patched.bin", patchedData);
+        entriesA.put("removed.txt", "removed".getBytes("UTF-8"));
+        entriesA.put("unchanged.txt", "unchanged".getBytes("UTF-8"));
+        Map<String, byte[]> entriesB = new TreeMap<>(entriesA);
+        entriesB.put("a-source.bin", sourceDataB);
+        entriesB.put("added.txt", "added".getBytes("UTF-8"));
+        entriesB.put("inner.tar", createTarArchive("x.bin", patchedData, 1500000000000L));
+        entriesB.put("patched.bin", patchedDataB);
+        entriesB.remove("removed.txt");
+        Map<String, byte[]> entriesC = new TreeMap<>(entriesB);
+        entriesC.put("added.txt", "added and changed".getBytes("UTF-8"));
+        entriesC.put("inner.tar", createTarArchive("x.bin", patchedDataB, 1500000000000L));
+        entriesC.put("patched.bin", patchedDataC);
+        entriesC.put("removed.txt", "added again".getBytes("UTF-8"));
+        entriesC.put("z-copy.bin", sourceDataB);
+
+        byte[] archiveA = createTarArchive(entriesA, 1500000000000L);
+        byte[] archiveB = createTarArchive(entriesB, 1500000001000L);
+        byte[] archiveC = createTarArchive(entriesC, 1500000002000L);
+
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            ByteArrayOutputStream firstDiff = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(archiveA), new ByteArrayInputStream(archiveB), firstDiff, assumeOrdering);
+            ByteArrayOutputStream secondDiff = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(archiveB), new ByteArrayInputStream(archiveC), secondDiff, assumeOrdering);
+
+            ByteArrayOutputStream composedDiff = new ByteArrayOutputStream();
+            ArchiveDiff.composeDiffs(
+                    new ByteArrayInputStream(firstDiff.toByteArray()),
+                    new ByteArrayInputStream(secondDiff.toByteArray()),
+                    "tar",
+                    assumeOrdering,
+                    ArchiveDiffOptions.DEFAULT.withIndex(true),
+                    composedDiff
+            );
+            byte[] diff = composedDiff.toByteArray();
+
+            Map<String, String> commands = new HashMap<>();
+            for (DiffIndex.Entry entry : DiffIndex.read(new SeekableInMemoryByteChannel(diff)).getEntries()) {
+                commands.put(entry.getPath(), entry.getCommandName());
+            }
+            Assert.assertEquals("consecutive patches must be composed into one", "patch", commands.get("patched.bin"));
+            Assert.assertEquals("consecutive nested diffs must be composed into one", "archive patch", commands.get("inner.tar"));
+
+            ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(new ByteArrayInputStream(archiveA), new ByteArrayInputStream(diff), resultOutputStream, assumeOrdering);
+            Assert.assertTrue(
+                    "composed diff must turn A into C",
+                    ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(archiveC), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+        }
+    }
+
+    @Test
+    public void testDiffCache() throws Exception {
+        File cacheDirectory = File.createTempFile("ardiff-cache", "");
+        cacheDirectory.delete();
+        try {
+            for (String archiveType : Arrays.asList("zip", "tar", "tar.gz")) {
+                for (boolean assumeOrdering : Arrays.asList(false, true)) {
+                    byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip." + archiveType));
+                    byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip." + archiveType));
+                    // same nested archive change inside another archive
+                    byte[] otherAfter = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b2_c2_zip." + archiveType));
+                    if (assumeOrdering) {
+                        before = sortArchive(before);
+                        after = sortArchive(after);
+                        otherAfter = sortArchive(otherAfter);
+                    }
+
+                    DiffCache cache = new DiffCache(cacheDirectory, 100L * 1024 * 1024);
+                    ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT.withDiffCache(cache);
+
+                    ByteArrayOutputStream expectedDiff = new ByteArrayOutputStream();
+                    ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(before), new SeekableInMemoryByteChannel(after), expectedDiff, assumeOrdering, ArchiveDiffOptions.DEFAULT);
+
+                    for (int i = 0; i < 2; i++) {
+                        long hits = cache.getHits();
+                        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+                        ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(before), new SeekableInMemoryByteChannel(after), diff, assumeOrdering, options);
+                        Assert.assertArrayEquals("cached diff must be equal to computed one", expectedDiff.toByteArray(), diff.toByteArray());
+                        if (i > 0) {
+                            Assert.assertEquals("second computation must be a single cache hit", hits + 1, cache.getHits());
+                        }
+                    }
+
+                    ByteArrayOutputStream expectedOtherDiff = new ByteArrayOutputStream();
+                    ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(before), new SeekableInMemoryByteChannel(otherAfter), expectedOtherDiff, assumeOrdering, ArchiveDiffOptions.DEFAULT);
+                    long hits = cache.getHits();
+                    ByteArrayOutputStream otherDiff = new ByteArrayOutputStream();
+                    ArchiveDiff.computeDiff(new SeekableInMemoryByteChannel(before), new SeekableInMemoryByteChannel(otherAfter), otherDiff, assumeOrdering, options);
+                    Assert.assertArrayEquals("diff with cached nested parts must be equal to computed one", expectedOtherDiff.toByteArray(), otherDiff.toByteArray());
+                    if (!assumeOrdering) {
+                        Assert.assertTrue("nested archive diff must be taken from the cache", cache.getHits() > hits);
+                    }
+
+                    ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                    ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(otherDiff.toByteArray()), resultOutputStream, assumeOrdering);
+                    Assert.assertTrue(
+                            "diff-apply with cached diffs failed",
+                            ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(otherAfter), new ByteArrayInputStream(resultOutputStream.toByteArray())));
+                }
+            }
+
+            Assert.assertTrue("cache must be restored from the directory", new DiffCache(cacheDirectory, Long.MAX_VALUE).getSize() > 0);
+            DiffCache smallCache = new DiffCache(cacheDirectory, 1024);
+            Assert.assertTrue("least recently used diffs must be evicted", smallCache.getSize() <= 1024);
+            Assert.assertEquals(smallCache.getSize(), FileUtils.sizeOfDirectory(cacheDirectory));
+        } finally {
+            FileUtils.deleteDirectory(cacheDirectory);
+        }
+    }
+
+    @Test
+    public void testComputeDiffsBatch() throws Exception {
+        for (String archiveType : Arrays.asList("zip", "tar", "tar.gz", "ar")) {
+            for (String nestedType : archiveType.equals("ar") ? Arrays.asList("tar") : Arrays.asList("zip", "tar")) {
+                for (boolean assumeOrdering : Arrays.asList(false, true)) {
+                    List<byte[]> archives = new ArrayList<>();
+                    // sorted zips use data descriptors, so sizes and checksums of their entries are only known after reading data
+                    for (String name : Arrays.asList("_r_b1_c2", "_r_b2_c1", "a1_r_b1_c1", "a2_r_b2_c2", "a1_r_b2_c2", "a2_r_b1_c1")) {
+                        byte[] archive = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/" + name + "_" + nestedType + "." + archiveType));
+                        archives.add(assumeOrdering && !archiveType.equals("ar") ? sortArchive(archive) : archive);
+                    }
+                    byte[] base = archives.get(0);
+                    List<byte[]> others = archives.subList(1, archives.size());
+                    ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT.withParallelism(3);
+
+                    for (boolean baseIsBefore : Arrays.asList(true, false)) {
+                        List<InputStream> inputs = new ArrayList<>();
+                        List<OutputStream> outputs = new ArrayList<>();
+                        for (byte[] other : others) {
+                            inputs.add(new ByteArrayInputStream(other));
+                            outputs.add(new ByteArrayOutputStream());
+                        }
+                        if (baseIsBefore) {
+                            ArchiveDiff.computeDiffs(new ByteArrayInputStream(base), inputs, outputs, assumeOrdering, options);
+                        } else {
+                            ArchiveDiff.computeDiffs(inputs, new ByteArrayInputStream(base), outputs, assumeOrdering, options);
+                        }
+
+                        for (int i = 0; i < others.size(); i++) {
+                            byte[] before = baseIsBefore ? base : others.get(i);
+                            byte[] after = baseIsBefore ? others.get(i) : base;
+                            ByteArrayOutputStream expectedDiff = new ByteArrayOutputStream();
+                            // diff doesn't depend on parallelism either, even though entries are read at different times
+                            ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), expectedDiff, assumeOrdering, options.withParallelism(1));
+                            Assert.assertArrayEquals(
+                                    String.format("batch diff must be equal to single diff (%s with nested %s, sorted=%s, base is before=%s, diff #%d)", archiveType, nestedType, assumeOrdering, baseIsBefore, i),
+                                    expectedDiff.toByteArray(),
+                                    ((ByteArrayOutputStream) outputs.get(i)).toByteArray());
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPeakBufferedBytesIncludeDiffCommands() throws Exception {
+        byte[] before = sortArchive(IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip.tar.gz")));
+        byte[] after = sortArchive(IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip.tar.gz")));
+
+        // sorted archives are streamed and no entries are indexed, so only diff commands are held in memory,
+        // buffered until copy sources are known
+        ArchiveDiffMetrics metrics = new ArchiveDiffMetrics();
+        ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT
+                .withDetectCopies(true)
+                .withDetectSimilarEntries(false)
+                .withListener(metrics);
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diff, true, options);
+
+        Assert.assertTrue("buffered diff commands", metrics.getPeakBufferedBytes() > 0);
+    }
+
+    @Test
+    public void testListener() throws Exception {
+        for (boolean assumeOrdering : Arrays.asList(false, true)) {
+            byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip.tar.gz"));
+            byte[] after = IOUtils.toByteArray(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip.tar.gz"));
+            if (assumeOrdering) {
+                before = sortArchive(before);
+                after = sortArchive(after);
+            }
+            ArchiveDiffMetrics metrics = new ArchiveDiffMetrics();
+            ByteArrayOutputStream events = new ByteArrayOutputStream();
+            JsonLinesListener eventsListener = new JsonLinesListener(events);
+            ArchiveDiffOptions options = ArchiveDiffOptions.DEFAULT.withParallelism(2).withListener(ArchiveDiffListener.combine(metrics, eventsListener));
+
+            ByteArrayOutputStream diff = new ByteArrayOutputStream();
+            ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diff, assumeOrdering, options);
+            ByteArrayOutputStream patched = new ByteArrayOutputStream();
+            ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diff.toByteArray()), patched, assumeOrdering, options);
+            eventsListener.close();
+
+            Assert.assertTrue("archives must be equal", ArchiveDiff.archivesAreEqual(new ByteArrayInputStream(after), new ByteArrayInputStream(patched.toByteArray())));
+            String mode = assumeOrdering ? "sorted" : "unsorted";
+            Assert.assertEquals("top-level operations (" + mode + ")", 2, metrics.getOperationCount());
+            Assert.assertTrue("archive patches written (" + mode + ")", metrics.getCommandsWritten("archive patch") > 0);
+            Assert.assertTrue("archive patches applied (" + mode + ")", metrics.getCommandsApplied("archive patch") > 0);
+            Assert.assertTrue("archive patch bytes (" + mode + ")", metrics.getBytesWritten("archive patch") > 0);
+            Assert.assertTrue("nested archives (" + mode + ")", metrics.getMaxDepth() >= 1);
+            Assert.assertTrue("deltas (" + mode + ")", metrics.getDeltaCount() > 0);
+            Assert.assertTrue("delta time (" + mode + ")", metrics.getPhaseWallNanos(ArchiveDiffListener.Phase.DELTA) > 0);
+            Assert.assertTrue("patch time (" + mode + ")", metrics.getPhaseWallNanos(ArchiveDiffListener.Phase.PATCH) > 0);
+            Assert.assertTrue("recompress time (" + mode + ")", metrics.getPhaseWallNanos(ArchiveDiffListener.Phase.RECOMPRESS) > 0);
+            Assert.assertTrue("decompress time (" + mode + ")", metrics.getPhaseWallNanos(ArchiveDiffListener.Phase.DECOMPRESS) > 0);
+            if (!assumeOrdering) {
+                Assert.assertTrue("buffered entries (" + mode + ")", metrics.getPeakBufferedBytes() > 0);
+            }
+
+            String[] lines = new String(events.toByteArray(), "UTF-8").split("\n");
+            for (String line : lines) {
+                Assert.assertTrue("event must be a JSON object: " + line, line.startsWith("{\"event\":\"") && line.endsWith("}"));
+            }
+            Assert.assertTrue("command events", Arrays.stream(lines).anyMatch(line -> line.contains("\"event\":\"command written\"")));
+            Assert.assertTrue("operation events", lines[lines.length - 1].contains("\"event\":\"operation finished\""));
+        }
+    }
+
+    @Test
+    public void testDiffServer() throws Exception {
+        File directory = File.createTempFile("ardiff-server", "");
+        directory.delete();
+        directory.mkdirs();
+        // token file goes under user home, which is redirected so that the test leaves nothing behind
+        String userHome = System.getProperty("user.home");
+        System.setProperty("user.home", directory.getPath());
+        DiffServer server = new DiffServer(0, 2, ArchiveDiffOptions.DEFAULT.withParallelism(2), new PrintStream(new ByteArrayOutputStream()), new PrintStream(new ByteArrayOutputStream()));
+        Thread serverThread = new Thread(() -> {
+            try {
+                server.serve();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        serverThread.start();
+        try {
+            FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("/recursive/a1_r_b1_c1_zip.tar.gz"), new File(directory, "before.tar.gz"));
+            FileUtils.copyInputStreamToFile(getClass().getResourceAsStream("/recursive/a2_r_b2_c2_zip.tar.gz"), new File(directory, "after.tar.gz"));
+            String port = String.valueOf(server.getPort());
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            // relative paths are resolved against client working directory
+            Assert.assertEquals(0, ArchiveDiff.run(new String[] { "--server", port, "compute", "before.tar.gz", "after.tar.gz", "diff" }, directory, ArchiveDiffOptions.DEFAULT, true, new PrintStream(out), new PrintStream(err)));
+            Assert.assertEquals(0, ArchiveDiff.run(new String[] { "apply", "before.tar.gz", "diff", "result.tar.gz", "--server", port }, directory, ArchiveDiffOptions.DEFAULT, true, new PrintStream(out), new PrintStream(err)));
+            Assert.assertEquals(0, ArchiveDiff.run(new String[] { "--server", port, "compare", "after.tar.gz", "result.tar.gz" }, directory, ArchiveDiffOptions.DEFAULT, true, new PrintStream(out), new PrintStream(err)));
+            Assert.assertEquals("Archives are equal\n", out.toString("UTF-8").replace(System.lineSeparator(), "\n"));
+            Assert.assertEquals("", err.toString("UTF-8"));
+
+            Assert.assertEquals(1, ArchiveDiff.run(new String[] { "--server", port, "compare", "before.tar.gz", "missing.tar.gz" }, directory, ArchiveDiffOptions.DEFAULT, true, new PrintStream(out), new PrintStream(err)));
+            Assert.assertTrue("job failure must be reported to the client", err.toString("UTF-8").contains("missing.tar.gz"));
+
+            File tokenFile = DiffServer.getTokenFile(server.getPort());
+            if (java.nio.file.FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+                Assert.assertEquals("rw-------", java.nio.file.attribute.PosixFilePermissions.toString(java.nio.file.Files.getPosixFilePermissions(tokenFile.toPath())));
+            }
+            byte[] token = FileUtils.readFileToByteArray(tokenFile);
+            byte[] wrongToken = token.clone();
+            wrongToken[0] ^= 1;
+            // job with wrong token is dropped without running it, and so is a job with malformed argument count
+            File removed = new File(directory, "removed");
+            Assert.assertTrue(removed.createNewFile());
+            for (boolean validToken : Arrays.asList(false, true)) {
+                ByteArrayOutputStream requestOutputStream = new ByteArrayOutputStream();
+                DataOutputStream request = new DataOutputStream(requestOutputStream);
+                request.write(validToken ? token : wrongToken);
+                request.writeUTF(directory.getAbsolutePath());
+                request.writeInt(validToken ? Integer.MAX_VALUE : 3);
+                request.writeUTF("sort");
+                request.writeUTF("before.tar.gz");
+                request.writeUTF("removed");
+                try (java.net.Socket socket = new java.net.Socket(java.net.InetAddress.getLoopbackAddress(), server.getPort())) {
+                    socket.getOutputStream().write(requestOutputStream.toByteArray());
+                    int response;
+                    try {
+                        response = socket.getInputStream().read();
+                    } catch (java.net.SocketException e) {
+                        response = -1; // connection may be reset, since server drops it without reading the rest
+                    }
+                    Assert.assertEquals("rejected job must get no response", -1, response);
+                }
+            }
+            Assert.assertEquals("rejected job must not run", 0, removed.length());
+        } finally {
+            server.close();
+            serverThread.join();
+            Assert.assertFalse("token file must be removed when server stops", DiffServer.getTokenFile(server.getPort()).exists());
+            System.setProperty("user.home", userHome);
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    @Test
+    public void testDefaultOptionsFitIntoSmallHeap() throws Exception {
+        File directory = File.createTempFile("ardiff-heap", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            File before = new File(directory, "before.tar");
+            File after = new File(directory, "after.tar");
+            // archives are larger than heap of the child JVM - removed entries go into delta source index,
+            // added entries are either new data that is written into buffered diff commands, or similar to removed ones
+            Random random = new Random(42);
+            byte[] data = new byte[1024 * 1024];
+            try (
+                    TarArchiveOutputStream tarBefore = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(before)));
+                    TarArchiveOutputStream tarAfter = new TarArchiveOutputStream(new BufferedOutputStream(new FileOutputStream(after)))
+            ) {
+                for (int i = 0; i < 32; i++) {
+                    random.nextBytes(data);
+                    putTarEntry(tarBefore, String.format("a/%03d.bin", i), data);
+                    if (i % 2 == 0) {
+                        random.nextBytes(data);
+                    } else {
+                        data[random.nextInt(data.length)] ^= 1;
+                    }
+                    putTarEntry(tarAfter, String.format("b/%03d.bin", i), data);
+                }
+            }
+
+            for (boolean sorted : Arrays.asList(false, true)) {
+                File result = new File(directory, "result.tar");
+                Process process = new ProcessBuilder(
+                        new File(System.getProperty("java.home"), "bin/java").getPath(), "-Xmx24m",
+                        "-cp", System.getProperty("java.class.path"),
+                        SmallHeapRoundTrip.class.getName(),
+                        before.getPath(), after.getPath(), new File(directory, "diff").getPath(), result.getPath(), String.valueOf(sorted)
+                ).inheritIO().start();
+                Assert.assertEquals("round trip with default options must fit into 24 MB heap, sorted=" + sorted, 0, process.waitFor());
+
+                try (
+                        InputStream expected = new BufferedInputStream(new FileInputStream(after));
+                        InputStream resultInputStream = new BufferedInputStream(new FileInputStream(result))
+                ) {
+                    Assert.assertTrue("diff-apply with small heap failed, sorted=" + sorted, ArchiveDiff.archivesAreEqual(expected, resultInputStream));
+                }
+            }
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private static void putTarEntry(TarArchiveOutputStream tarOutputStream, String name, byte[] data) throws IOException {
+        TarArchiveEntry entry = new TarArchiveEntry(name);
+        entry.setSize(data.length);
+        entry.setModTime(1500000000000L);
+        tarOutputStream.putArchiveEntry(entry);
+        tarOutputStream.write(data);
+        tarOutputStream.closeArchiveEntry();
+    }
+
+    /** Runs in a separate JVM with small heap, see {@link #testDefaultOptionsFitIntoSmallHeap}. */
+    public static class SmallHeapRoundTrip {
+        public static void main(String[] args) throws Exception {
+            File before = new File(args[0]);
+            File after = new File(args[1]);
+            File diff = new File(args[2]);
+            boolean sorted = Boolean.parseBoolean(args[4]);
+            try (OutputStream diffOutputStream = new BufferedOutputStream(new FileOutputStream(diff))) {
+                ArchiveDiff.computeDiff(before, after, diffOutputStream, sorted, ArchiveDiffOptions.DEFAULT);
+            }
+            try (
+                    InputStream diffInputStream = new BufferedInputStream(new FileInputStream(diff));
+                    OutputStream resultOutputStream = new BufferedOutputStream(new FileOutputStream(args[3]))
+            ) {
+                ArchiveDiff.applyDiff(before, diffInputStream, resultOutputStream, sorted, ArchiveDiffOptions.DEFAULT);
+            }
+        }
+    }
+
+    private byte[] sortArchive(byte[] archive) throws Exception {
+        ByteArrayOutputStream sortedOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.sortArchiveEntries(new ByteArrayInputStream(archive), sortedOutputStream);
+        return sortedOutputStream.toByteArray();
+    }
+
     @Test(expected = ArchiveDiffCorruptedException.class)
     public void testDiffChecksumValidation() throws Exception {
         byte[] before = IOUtils.toByteArray(getClass().getResourceAsStream("/zip-simple/a1_b1_c1.zip"));
@@ -289,6 +1796,63 @@ public class DiffTests {
         ensureArchiveSorted(new ByteArrayInputStream(sorted), "zip");
     }
 
+    @Test
+    public void testArchiveSortingWithSpilledEntries() throws Exception {
+        for (String resource : Arrays.asList("/unsorted.zip", "/unsorted-recursive.zip")) {
+            byte[] unsorted = IOUtils.toByteArray(getClass().getResourceAsStream(resource));
+
+            ByteArrayOutputStream inMemoryOutputStream = new ByteArrayOutputStream();
+            ArchiveDiff.sortArchiveEntries(
+                    new ByteArrayInputStream(unsorted),
+                    inMemoryOutputStream
+            );
+
+            // with the smallest budget every entry ends up in a separate run on disk,
+            // with the larger one nested archives are sorted in memory within a share of what outer sorter has left
+            for (long memoryBudget : new long[] { 1, 4096 }) {
+                ByteArrayOutputStream spilledOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.sortArchiveEntries(
+                        new ByteArrayInputStream(unsorted),
+                        spilledOutputStream,
+                        ArchiveDiffOptions.DEFAULT.withMemoryBudget(memoryBudget)
+                );
+
+                ensureArchiveSorted(new ByteArrayInputStream(spilledOutputStream.toByteArray()), "zip");
+                Assert.assertArrayEquals(
+                        "external sort result with budget " + memoryBudget + " differs from in-memory sort for " + resource,
+                        inMemoryOutputStream.toByteArray(),
+                        spilledOutputStream.toByteArray());
+            }
+        }
+    }
+
+    @Test
+    public void testSortingWithCompressionBlockSizes() throws Exception {
+        // block sizes apply to the sorted archive itself, nested archives are written with default compression -
+        // the same way as they are reconstructed when a sorted diff is applied
+        ArchiveDiffOptions sortOptions = ArchiveDiffOptions.DEFAULT.withGzipBlockSize(1024).withXzBlockSize(1024);
+        for (String nestedFormat : Arrays.asList("tar.gz", "tar.xz")) {
+            for (String format : Arrays.asList("zip", "tar", "tar.gz", "tar.xz")) {
+                String pair = "_r_b2_c1_" + nestedFormat + "." + format + " -> a1_r_b2__" + nestedFormat + "." + format;
+                byte[] before = sortArchive(getClass().getResourceAsStream("/recursive/_r_b2_c1_" + nestedFormat + "." + format), sortOptions);
+                byte[] after = sortArchive(getClass().getResourceAsStream("/recursive/a1_r_b2__" + nestedFormat + "." + format), sortOptions);
+
+                ByteArrayOutputStream diffOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.computeDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(after), diffOutputStream, true);
+
+                ByteArrayOutputStream resultOutputStream = new ByteArrayOutputStream();
+                ArchiveDiff.applyDiff(new ByteArrayInputStream(before), new ByteArrayInputStream(diffOutputStream.toByteArray()), resultOutputStream, true, sortOptions);
+                Assert.assertArrayEquals("sorted apply must be binary equal for " + pair, after, resultOutputStream.toByteArray());
+            }
+        }
+    }
+
+    private byte[] sortArchive(InputStream archive, ArchiveDiffOptions options) throws Exception {
+        ByteArrayOutputStream sortedOutputStream = new ByteArrayOutputStream();
+        ArchiveDiff.sortArchiveEntries(new BufferedInputStream(archive), sortedOutputStream, options);
+        return sortedOutputStream.toByteArray();
+    }
+
     private void ensureArchiveSorted(InputStream input, String archiveType) throws Exception {
         ArchiveInputStream archiveInputStream = new ArchiveStreamFactory().createArchiveInputStream(archiveType, input);
 